@@ -2048,7 +2048,17 @@ public class Ode implements EntryPoint {
     dialogBox.show();
   }
 
-  public void blocksTruncatedDialog(final long projectId, final String fileId, final String content, final OdeAsyncCallback callback) {
+  /**
+   * Asks whether to save a blocks file the server found empty when it was not before.
+   *
+   * @param projectId  the project of the file
+   * @param fileId  the blocks file
+   * @param content  the content that was not saved
+   * @param callback  called with the result of saving the content anyway
+   * @param notSaved  executed when the user chooses not to save the content
+   */
+  public void blocksTruncatedDialog(final long projectId, final String fileId, final String content, final OdeAsyncCallback callback,
+      final Command notSaved) {
     final DialogBox dialogBox = new DialogBox(false, true); // DialogBox(autohide, modal)
     dialogBox.setStylePrimaryName("ode-DialogBox");
     dialogBox.setText(MESSAGES.blocksTruncatedDialogText());
@@ -2087,6 +2097,7 @@ public class Ode implements EntryPoint {
           // Wait for a few seconds for other I/O to complete
           cancelSession.setEnabled(false); // Disable button to prevent further clicking
           continueSession.setEnabled(false); // This one as well
+          notSaved.execute();
           Timer t = new Timer() {
               int count = 5;
               @Override
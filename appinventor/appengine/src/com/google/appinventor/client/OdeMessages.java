@@ -1493,6 +1493,14 @@ public interface OdeMessages extends Messages, AutogeneratedOdeMessages {
   @Description("Warning that downloading projects will take a while")
   String downloadAllAlert();
 
+  @DefaultMessage("Preparing your projects for download: {0} of {1} done...")
+  @Description("Progress of the export of all projects, shown until the download starts")
+  String downloadAllProjectsProgress(int projectsDone, int projectsTotal);
+
+  @DefaultMessage("Server error: could not download your projects.")
+  @Description("Error message displayed when the export of all projects fails")
+  String downloadAllProjectsError();
+
   @DefaultMessage("More Actions")
   @Description("Label of the button leading to more cascade items")
   String moreActionsButton();
@@ -2232,6 +2240,10 @@ public interface OdeMessages extends Messages, AutogeneratedOdeMessages {
   @Description("")
   String waitingForBarcode();
 
+  @DefaultMessage("Waiting for the build server ({0} builds ahead)")
+  @Description("Progress of a build that the build server has queued behind other builds")
+  String waitingInBuildQueue(int buildsAhead);
+
   @DefaultMessage("Preparing application icon")
   @Description("")
   String preparingApplicationIcon();
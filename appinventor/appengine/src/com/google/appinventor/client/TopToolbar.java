@@ -38,6 +38,7 @@ import com.google.appinventor.common.version.GitBuildId;
 import com.google.appinventor.components.common.YaVersion;
 import com.google.appinventor.shared.rpc.ServerLayout;
 import com.google.appinventor.shared.rpc.project.GallerySettings;
+import com.google.appinventor.shared.rpc.project.ProjectExportStatus;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.rpc.user.Config;
@@ -45,6 +46,7 @@ import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.gwt.user.client.Command;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.Window.Location;
 import com.google.gwt.user.client.rpc.AsyncCallback;
@@ -470,9 +472,11 @@ public class TopToolbar extends Composite {
       ProjectRootNode projectRootNode = Ode.getInstance().getCurrentYoungAndroidProjectRootNode();
       if (projectRootNode != null) {
         String target = YoungAndroidProjectNode.YOUNG_ANDROID_TARGET_ANDROID;
+        // The user is waiting to scan the barcode and try the app, so the build is started
+        // before queued builds
         ChainableCommand cmd = new SaveAllEditorsCommand(
             new GenerateYailCommand(
-                new BuildCommand(target, secondBuildserver,
+                new BuildCommand(target, secondBuildserver, true,
                   new ShowProgressBarCommand(target,
                     new WaitForBuildResultCommand(target,
                       new ShowBarcodeCommand(target)), "BarcodeAction"))));
@@ -551,18 +555,58 @@ public class TopToolbar extends Composite {
   }
 
   private static class ExportAllProjectsAction implements Command {
+    // How often to check on the export while the server builds it
+    private static final int POLL_INTERVAL_MILLIS = 2000;
+
     @Override
     public void execute() {
       Tracking.trackEvent(Tracking.PROJECT_EVENT,
           Tracking.PROJECT_ACTION_DOWNLOAD_ALL_PROJECTS_SOURCE_YA);
 
-      // Is there a way to disable the Download All button until this completes?
       if (Window.confirm(MESSAGES.downloadAllAlert())) {
-
-        Downloader.getInstance().download(ServerLayout.DOWNLOAD_SERVLET_BASE +
-            ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE);
+        // The server builds the zip in the background. Starting again replaces an
+        // export that is still running.
+        Ode.getInstance().getProjectService().startExportAllProjects(
+            new OdeAsyncCallback<ProjectExportStatus>(MESSAGES.downloadAllProjectsError()) {
+              @Override
+              public void onSuccess(ProjectExportStatus status) {
+                waitForExport(status.getJobId());
+              }
+            });
       }
     }
+
+    private void waitForExport(final String jobId) {
+      Timer timer = new Timer() {
+        @Override
+        public void run() {
+          Ode.getInstance().getProjectService().getExportAllProjectsStatus(
+              new OdeAsyncCallback<ProjectExportStatus>(MESSAGES.downloadAllProjectsError()) {
+                @Override
+                public void onSuccess(ProjectExportStatus status) {
+                  if (status == null || !status.getJobId().equals(jobId)) {
+                    return;     // Replaced by a newer export
+                  }
+                  switch (status.getState()) {
+                    case DONE:
+                      ErrorReporter.hide();
+                      Downloader.getInstance().download(ServerLayout.DOWNLOAD_SERVLET_BASE +
+                          ServerLayout.DOWNLOAD_ALL_PROJECTS_EXPORT);
+                      break;
+                    case FAILED:
+                      ErrorReporter.reportError(MESSAGES.downloadAllProjectsError());
+                      break;
+                    default:
+                      ErrorReporter.reportInfo(MESSAGES.downloadAllProjectsProgress(
+                          status.getProjectsDone(), status.getProjectsTotal()));
+                      waitForExport(jobId);
+                  }
+                }
+              });
+        }
+      };
+      timer.schedule(POLL_INTERVAL_MILLIS);
+    }
   }
 
   private static class ImportProjectAction implements Command {
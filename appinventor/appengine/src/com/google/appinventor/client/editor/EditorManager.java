@@ -17,14 +17,18 @@ import com.google.appinventor.client.explorer.project.Project;
 import com.google.appinventor.client.output.OdeLog;
 import com.google.appinventor.client.settings.project.ProjectSettings;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FilePatch;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.common.collect.Maps;
 import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.rpc.AsyncCallback;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -51,6 +55,9 @@ public final class EditorManager {
   // TODO(user): Make this configurable.
   private static final int AUTO_SAVE_FORCED_TIMEOUT = 30000;
 
+  // Files shorter than this are always saved whole.
+  private static final int MIN_PATCH_CONTENT_LENGTH = 4096;
+
   // Fields used for saving and auto-saving.
   private final Set<ProjectSettings> dirtyProjectSettings;
   private final Set<FileEditor> dirtyFileEditors;
@@ -58,6 +65,14 @@ public final class EditorManager {
   private boolean autoSaveIsScheduled;
   private long autoSaveRequestTime;
 
+  // The content the server has for each open file, as last loaded or saved, keyed by
+  // "<projectId>:<fileId>". Saves send a patch against it instead of the whole file.
+  private final Map<String, String> serverContents;
+
+  // The saves waiting for the save in flight of each file to finish, keyed by
+  // "<projectId>:<fileId>". A file has an entry only while one of its saves is in flight.
+  private final Map<String, List<Command>> fileSaveQueues;
+
   private class DateHolder {
     long date;
     long projectId;
@@ -71,6 +86,8 @@ public final class EditorManager {
 
     dirtyProjectSettings = new HashSet<ProjectSettings>();
     dirtyFileEditors = new HashSet<FileEditor>();
+    serverContents = Maps.newHashMap();
+    fileSaveQueues = Maps.newHashMap();
 
     autoSaveTimer = new Timer() {
       @Override
@@ -148,6 +165,7 @@ public final class EditorManager {
         if (fileEditor != null) {
           dirtyFileEditors.remove(fileEditor);
         }
+        serverContents.remove(projectId + ":" + fileId);
       }
       projectEditor.closeFileEditors(fileIds);
     }
@@ -167,6 +185,24 @@ public final class EditorManager {
     ProjectSettings projectSettings = project.getSettings();
     dirtyProjectSettings.remove(projectSettings);
     openProjectEditors.remove(projectId);
+    Iterator<String> keys = serverContents.keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().startsWith(projectId + ":")) {
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * Records the content of a file as loaded from the server, so that the next
+   * save of the file can send only what changed.
+   *
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param content  the content loaded
+   */
+  public void setServerContent(long projectId, String fileId, String content) {
+    serverContents.put(projectId + ":" + fileId, content);
   }
 
   /**
@@ -386,10 +422,12 @@ public final class EditorManager {
         final long projectId = fileDescriptor.getProjectId();
         final String fileId = fileDescriptor.getFileId();
         final String content = fileDescriptor.getContent();
-        Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
-          projectId, fileId, false, content, new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
+        final String key = projectId + ":" + fileId;
+        final OdeAsyncCallback<Long> callback = new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
             @Override
             public void onSuccess(Long date) {
+              serverContents.put(key, content);
+              saveFinished(key);
               if (dateHolder.date != 0) {
                 // This sets the project modification time to that of one of
                 // the successful file saves. It doesn't really matter which
@@ -408,13 +446,100 @@ public final class EditorManager {
             public void onFailure(Throwable caught) {
               // Here is where we handle BlocksTruncatedException
               if (caught instanceof BlocksTruncatedException) {
-                Ode.getInstance().blocksTruncatedDialog(projectId, fileId, content, this);
+                Ode.getInstance().blocksTruncatedDialog(projectId, fileId, content, this,
+                    new Command() {
+                      @Override
+                      public void execute() {
+                        // Nothing was written, so the server still has serverContents. Send
+                        // the saves queued behind this one.
+                        saveFinished(key);
+                      }
+                    });
               } else {
+                // We no longer know what the server has, so the next save sends all of it.
+                serverContents.remove(key);
+                saveFinished(key);
                 super.onFailure(caught);
               }
             }
-          });
+          };
+        Command save = new Command() {
+          @Override
+          public void execute() {
+            saveFile(projectId, fileId, content, callback);
+          }
+        };
+        List<Command> queuedSaves = fileSaveQueues.get(key);
+        if (queuedSaves != null) {
+          // A save of this file is still in flight. Send this one after it, so that the
+          // saves reach the server in order and each patch is made against saved content.
+          queuedSaves.add(save);
+        } else {
+          fileSaveQueues.put(key, new ArrayList<Command>());
+          save.execute();
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends the content of a file to the server, as a patch against the content
+   * the server has when that is smaller, and as a whole otherwise. Only one
+   * save of a file is sent at a time, so the server has the content of the last
+   * successful save.
+   */
+  private void saveFile(final long projectId, final String fileId, final String content,
+      final OdeAsyncCallback<Long> callback) {
+    String base = serverContents.get(projectId + ":" + fileId);
+    FilePatch patch = null;
+    if (base != null && content.length() >= MIN_PATCH_CONTENT_LENGTH) {
+      try {
+        patch = FilePatch.create(base, content);
+      } catch (ChecksumedFileException e) {
+        OdeLog.wlog("Unable to create a patch for " + fileId + ": " + e.getMessage());
       }
     }
+    if (patch != null && patch.getInsertLength() < content.length() / 2) {
+      Ode.getInstance().getProjectService().savePatch(Ode.getInstance().getSessionId(),
+          projectId, fileId, false, patch, new AsyncCallback<Long>() {
+            @Override
+            public void onSuccess(Long date) {
+              callback.onSuccess(date);
+            }
+
+            @Override
+            public void onFailure(Throwable caught) {
+              if (caught instanceof ChecksumedFileException) {
+                // The server has a different version of the file. Send all of it.
+                OdeLog.log("Saving all of " + fileId + ": " + caught.getMessage());
+                Ode.getInstance().getProjectService().save2(
+                    Ode.getInstance().getSessionId(), projectId, fileId, false, content,
+                    callback);
+              } else {
+                callback.onFailure(caught);
+              }
+            }
+          });
+    } else {
+      Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
+          projectId, fileId, false, content, callback);
+    }
+  }
+
+  /**
+   * Sends the next save queued for a file once the one in flight has finished.
+   *
+   * @param key  the "<projectId>:<fileId>" key of the file
+   */
+  private void saveFinished(String key) {
+    List<Command> queuedSaves = fileSaveQueues.get(key);
+    if (queuedSaves == null) {
+      return;
+    }
+    if (queuedSaves.isEmpty()) {
+      fileSaveQueues.remove(key);
+    } else {
+      queuedSaves.remove(0).execute();
+    }
   }
 }
@@ -173,6 +173,7 @@ public final class YaBlocksEditor extends FileEditor
           this.onFailure(e);
           return;
         }
+        Ode.getInstance().getEditorManager().setServerContent(projectId, fileId, blkFileContent);
         String formJson = myFormEditor.preUpgradeJsonString(); // [lyn, 2014/10/27] added formJson for upgrading
         try {
           blocksArea.loadBlocksContent(formJson, blkFileContent);
@@ -195,7 +196,12 @@ public final class YaBlocksEditor extends FileEditor
         super.onFailure(caught);
       }
     };
-    Ode.getInstance().getProjectService().load2(projectId, fileId, callback);
+    ChecksumedLoadFile preloaded = ((YaProjectEditor) projectEditor).takePreloadedFile(fileId);
+    if (preloaded != null) {
+      callback.onSuccess(preloaded);
+    } else {
+      Ode.getInstance().getProjectService().load2(projectId, fileId, callback);
+    }
   }
 
   @Override
@@ -203,6 +203,7 @@ public final class YaFormEditor extends SimpleEditor implements FormChangeListen
           this.onFailure(e);
           return;
         }
+        Ode.getInstance().getEditorManager().setServerContent(projectId, fileId, contents);
         final FileContentHolder fileContentHolder = new FileContentHolder(contents);
         upgradeFile(fileContentHolder, new Command() {
           @Override
@@ -226,7 +227,12 @@ public final class YaFormEditor extends SimpleEditor implements FormChangeListen
         super.onFailure(caught);
       }
     };
-    Ode.getInstance().getProjectService().load2(projectId, fileId, callback);
+    ChecksumedLoadFile preloaded = ((YaProjectEditor) projectEditor).takePreloadedFile(fileId);
+    if (preloaded != null) {
+      callback.onSuccess(preloaded);
+    } else {
+      Ode.getInstance().getProjectService().load2(projectId, fileId, callback);
+    }
   }
 
   @Override
@@ -109,6 +109,11 @@ public final class YaProjectEditor extends ProjectEditor implements ProjectChang
   private boolean screen1FormLoaded = false;
   private boolean screen1BlocksLoaded = false;
   private boolean screen1Added = false;
+
+  // Form and blocks files fetched by a single batch load when the project is opened, by file id.
+  // Each editor takes its file from here rather than loading it with its own RPC.
+  private final Map<String, ChecksumedLoadFile> preloadedFiles =
+      new HashMap<String, ChecksumedLoadFile>();
   
   /**
    * Returns a project editor factory for {@code YaProjectEditor}s.
@@ -177,6 +182,32 @@ public final class YaProjectEditor extends ProjectEditor implements ProjectChang
   // blocks are loaded!
 
   private void loadProject() {
+    // Fetch the files of every screen in one round trip before the editors ask for them.
+    List<String> fileIds = new ArrayList<String>();
+    for (ProjectNode source : projectRootNode.getAllSourceNodes()) {
+      if (source instanceof YoungAndroidFormNode || source instanceof YoungAndroidBlocksNode) {
+        fileIds.add(source.getFileId());
+      }
+    }
+    Ode.getInstance().getProjectService().load2(projectId, fileIds,
+        new AsyncCallback<Map<String, ChecksumedLoadFile>>() {
+          @Override
+          public void onSuccess(Map<String, ChecksumedLoadFile> result) {
+            preloadedFiles.putAll(result);
+            addEditors();
+          }
+
+          @Override
+          public void onFailure(Throwable caught) {
+            // Each editor will load its own file instead.
+            OdeLog.wlog("Unable to load the screens of project " + projectId + ": "
+                + caught.getMessage());
+            addEditors();
+          }
+        });
+  }
+
+  private void addEditors() {
     // add form editors first, then blocks editors because the blocks editors
     // need access to their corresponding form editors to set up properly
     for (ProjectNode source : projectRootNode.getAllSourceNodes()) {
@@ -488,6 +519,17 @@ public final class YaProjectEditor extends ProjectEditor implements ProjectChang
     }
   }
     
+  /**
+   * Returns the content of a file fetched when the project was opened, or null if it was not.
+   * The content is returned only once, so that reloading a file reads its current content.
+   *
+   * @param fileId  the file id
+   * @return  the checksummed content, or null
+   */
+  ChecksumedLoadFile takePreloadedFile(String fileId) {
+    return preloadedFiles.remove(fileId);
+  }
+
   private boolean readyToShowScreen1() {
     return screen1FormLoaded && screen1BlocksLoaded && screen1Added;
   }
@@ -30,6 +30,9 @@ public class BuildCommand extends ChainableCommand {
   // Whether or not to use the second buildserver
   private boolean secondBuildserver = false;
 
+  // Whether the user is waiting to try the app, so the build server starts it before other builds
+  private boolean highPriority = false;
+
   /**
    * Creates a new build command.
    *
@@ -47,9 +50,23 @@ public class BuildCommand extends ChainableCommand {
    * @param nextCommand the command to execute after the build has finished
    */
   public BuildCommand(String target, boolean secondBuildserver, ChainableCommand nextCommand) {
+    this(target, secondBuildserver, false, nextCommand);
+  }
+
+  /**
+   * Creates a new build command, with additional behavior provided by
+   * another ChainableCommand.
+   *
+   * @param target the build target
+   * @param highPriority whether the user is waiting to try the built app on a device
+   * @param nextCommand the command to execute after the build has finished
+   */
+  public BuildCommand(String target, boolean secondBuildserver, boolean highPriority,
+      ChainableCommand nextCommand) {
     super(nextCommand);
     this.target = target;
     this.secondBuildserver = secondBuildserver;
+    this.highPriority = highPriority;
   }
 
   @Override
@@ -115,6 +132,7 @@ public class BuildCommand extends ChainableCommand {
     };
 
     String nonce = ode.generateNonce();
-    ode.getProjectService().build(node.getProjectId(), nonce, target, secondBuildserver, callback);
+    ode.getProjectService().build(node.getProjectId(), nonce, target, secondBuildserver,
+        highPriority, callback);
   }
 }
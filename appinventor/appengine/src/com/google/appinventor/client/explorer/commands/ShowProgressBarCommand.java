@@ -37,7 +37,13 @@ public class ShowProgressBarCommand extends ChainableCommand {
   private String target;
   private ChainableCommand nextCommand;
   private final String buildRequestTime;
-  private static final int WAIT_INTERVAL_MILLIS = 5000;
+  // The server holds each request until the build's status changes. The
+  // progress bar only asks it itself if no WaitForBuildResultCommand follows;
+  // otherwise it shows the results that command receives, so that a build
+  // holds one waiting request rather than two.
+  private static final int WAIT_INTERVAL_MILLIS = 1000;
+  // The version of the build's status last seen, or -1 if none
+  private long buildStatusVersion = -1;
   private ProjectNode projectNode;
   private ProgressBarDialogBox minPB;
   private String serviceName;
@@ -57,6 +63,15 @@ public class ShowProgressBarCommand extends ChainableCommand {
     this.nextCommand = nextCommand;
     this.buildRequestTime = DateTimeFormat.getMediumDateTimeFormat().format(new Date());
     this.serviceName = serviceName;
+    if (nextCommand instanceof WaitForBuildResultCommand) {
+      ((WaitForBuildResultCommand) nextCommand).setBuildResultListener(
+          new WaitForBuildResultCommand.BuildResultListener() {
+            @Override
+            public void onBuildResult(RpcResult result) {
+              showResult(result);
+            }
+          });
+    }
   }
 
   @Override
@@ -73,6 +88,9 @@ public class ShowProgressBarCommand extends ChainableCommand {
       minPB = new ProgressBarDialogBox(serviceName, node);
       minPB.center();
       executeNextCommand(node);
+      if (nextCommand instanceof WaitForBuildResultCommand) {
+        return;
+      }
     }
     counter++;
     //call back function - dynamic DialogBox
@@ -80,17 +98,15 @@ public class ShowProgressBarCommand extends ChainableCommand {
       {
       @Override
       public void onSuccess(RpcResult result) {
-        addMessages(node.getName(),result);
-        if (result.succeeded()) {
-            minPB.hide();
-        } else if (progressBarShow != 2 ) {
+        showResult(result);
+        if (result.getResult() == -1 && progressBarShow != 2 ) {
           // Build isn't done yet
+          buildStatusVersion = WaitForBuildResultCommand.getBuildStatusVersion(result);
           Timer timer = new Timer() {
               @Override
                 public void run() {
                 execute(node); }
             };
-          // TODO(user): Maybe do an exponential backoff here.
           timer.schedule(WAIT_INTERVAL_MILLIS);
         }
       }
@@ -99,7 +115,15 @@ public class ShowProgressBarCommand extends ChainableCommand {
         super.onFailure(caught);
         executionFailedOrCanceled();}
     };
-    ode.getProjectService().getBuildResult(node.getProjectId(), target, callback);
+    ode.getProjectService().waitForBuildResult(node.getProjectId(), target, buildStatusVersion,
+        callback);
+  }
+
+  private void showResult(RpcResult result) {
+    addMessages(projectNode.getName(), result);
+    if (result.succeeded()) {
+      minPB.hide();
+    }
   }
 
   public void addMessages(String projectName, RpcResult result) {
@@ -119,7 +143,10 @@ public class ShowProgressBarCommand extends ChainableCommand {
       try {
         currentProgress = Math.max(currentProgress,
             Integer.parseInt(result.getOutput()));
-        if (currentProgress <= 10) {
+        int queuePosition = WaitForBuildResultCommand.getQueuePosition(result);
+        if (queuePosition > 0) {
+          labelContent = "<br />" + MESSAGES.waitingInBuildQueue(queuePosition - 1);
+        } else if (currentProgress <= 10) {
           labelContent = "<br />" + MESSAGES.preparingApplicationIcon();
         } else if (currentProgress < 15) {
           labelContent = "<br />" + MESSAGES.determiningPermissions();
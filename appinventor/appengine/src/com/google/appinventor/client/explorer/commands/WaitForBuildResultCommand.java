@@ -19,6 +19,8 @@ import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidBlocks
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.youngandroid.YoungAndroidSourceAnalyzer;
 import com.google.gwt.i18n.client.DateTimeFormat;
+import com.google.gwt.json.client.JSONNull;
+import com.google.gwt.json.client.JSONNumber;
 import com.google.gwt.json.client.JSONObject;
 import com.google.gwt.json.client.JSONParser;
 import com.google.gwt.json.client.JSONString;
@@ -35,11 +37,25 @@ import static com.google.appinventor.client.Ode.MESSAGES;
  * @author markf@google.com (Mark Friedman)
  */
 public class WaitForBuildResultCommand extends ChainableCommand {
+  /**
+   * Hears of each result of the build as this command receives it, so that
+   * other commands can show the build's progress without asking the server
+   * for it themselves.
+   */
+  public interface BuildResultListener {
+    void onBuildResult(RpcResult result);
+  }
+
   // The build target
   private final String target;
-  private static final int WAIT_INTERVAL_MILLIS = 10000;
+  // The server holds each request until the build's status changes, so this
+  // only limits how often the client asks when the build makes fast progress.
+  private static final int WAIT_INTERVAL_MILLIS = 1000;
   private final MessagesOutput messagesOutput;
   private final String buildRequestTime;
+  // The version of the build's status last seen, or -1 if none
+  private long buildStatusVersion = -1;
+  private BuildResultListener listener;
 
   /**
    * Creates a new WaitForBuildResultCommand.
@@ -64,6 +80,15 @@ public class WaitForBuildResultCommand extends ChainableCommand {
     buildRequestTime = DateTimeFormat.getMediumDateTimeFormat().format(new Date());
   }
 
+  /**
+   * Sets the listener that hears of each result of the build.
+   *
+   * @param listener the listener, or null for none
+   */
+  public void setBuildResultListener(BuildResultListener listener) {
+    this.listener = listener;
+  }
+
   @Override
   public boolean willCallExecuteNextCommand() {
     return true;
@@ -88,6 +113,9 @@ public class WaitForBuildResultCommand extends ChainableCommand {
         messagesOutput.addMessages(result.getError());
         Tracking.trackEvent(Tracking.PROJECT_EVENT, Tracking.PROJECT_SUBACTION_BUILD_YA,
                             node.getName(), getElapsedMillis());
+        if (listener != null) {
+          listener.onBuildResult(result);
+        }
         if (result.succeeded()) {
           ode.getTopToolbar().updateKeystoreFileMenuButtons();
           executeNextCommand(node);
@@ -113,13 +141,13 @@ public class WaitForBuildResultCommand extends ChainableCommand {
           executionFailedOrCanceled();
         } else {
           // Build isn't done yet
+          buildStatusVersion = getBuildStatusVersion(result);
           Timer timer = new Timer() {
             @Override
             public void run() {
               execute(node);
             }
           };
-          // TODO(user): Maybe do an exponential backoff here.
           timer.schedule(WAIT_INTERVAL_MILLIS);
         }
       }
@@ -131,7 +159,45 @@ public class WaitForBuildResultCommand extends ChainableCommand {
       }
     };
 
-    ode.getProjectService().getBuildResult(node.getProjectId(), target, callback);
+    ode.getProjectService().waitForBuildResult(node.getProjectId(), target, buildStatusVersion,
+        callback);
+  }
+
+  /**
+   * Returns the version of the build's status from a result of -1, or -1 if
+   * the server did not send one.
+   */
+  static long getBuildStatusVersion(RpcResult result) {
+    JSONString version = getBuildStatus(result, "version").isString();
+    try {
+      return version == null ? -1 : Long.parseLong(version.stringValue());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the position of the build in the build server's queue from a
+   * result of -1, or 0 if the build is not waiting to start.
+   */
+  static int getQueuePosition(RpcResult result) {
+    JSONNumber position = getBuildStatus(result, "queuePosition").isNumber();
+    return position == null ? 0 : (int) position.doubleValue();
+  }
+
+  /*
+   * Returns a property of the build's status in the extra of a result of -1,
+   * or JSON null.
+   */
+  private static JSONValue getBuildStatus(RpcResult result, String name) {
+    String extraString = result.getExtra();
+    if (extraString != null) {
+      JSONObject extraJSONObject = JSONParser.parseStrict(extraString).isObject();
+      if (extraJSONObject != null && extraJSONObject.get(name) != null) {
+        return extraJSONObject.get(name);
+      }
+    }
+    return JSONNull.getInstance();
   }
 
   private static YoungAndroidBlocksNode findBlocksNode(YoungAndroidProjectNode projectRootNode,
@@ -713,6 +713,11 @@ public final class YoungAndroidFormUpgrader {
       // DrawShape & DrawArc was added.
       srcCompVersion = 11;
     }
+    if (srcCompVersion < 12) {
+      // No properties need to be modified to upgrade to version 12.
+      // The FrameSynchronizedSprites property was added.
+      srcCompVersion = 12;
+    }
     return srcCompVersion;
   }
 
@@ -0,0 +1,42 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * AllProjectsExportServlet -- Export all of a user's projects
+ *
+ * This Servlet is called from the task queue manager with the tasks
+ * added by {@link AllProjectsExporter#start}. Like the
+ * BlobUpgradeServlet, it is restricted to admin users only, which
+ * the task queue manager always is. Running on the task queue gives
+ * the export up to 10 minutes, rather than the minute a download
+ * request has.
+ *
+ */
+public class AllProjectsExportServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(AllProjectsExportServlet.class.getName());
+  private final AllProjectsExporter exporter =
+      new AllProjectsExporter(StorageIoInstanceHolder.getInstance());
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+
+    String userId = req.getParameter("user");
+    String jobId = req.getParameter("job");
+    LOG.info("Got Request to Export: " + userId + " " + jobId);
+    exporter.run(userId, jobId);
+  }
+}
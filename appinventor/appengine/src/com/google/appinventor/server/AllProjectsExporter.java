@@ -0,0 +1,310 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.shared.rpc.ServerLayout;
+import com.google.appinventor.shared.rpc.project.ProjectExportStatus;
+import com.google.appinventor.shared.rpc.project.ProjectExportStatus.State;
+import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Exports all of a user's projects as a zip of their source zips.
+ *
+ * <p>An export used to be built in memory while the download request waited,
+ * which timed out or ran out of memory for users with many projects. Now
+ * {@link #start} records a new export and adds a task to the "export" queue;
+ * {@link AllProjectsExportServlet} runs it with the task queue's longer
+ * deadline. The projects are read a few at a time in parallel, and the zip is
+ * streamed to a temp file as they are written. The client polls
+ * {@link #getStatus} and downloads the temp file through the
+ * {@link ServerLayout#DOWNLOAD_ALL_PROJECTS_EXPORT} download once it is done.
+ *
+ * <p>A user has at most one export. Starting another one replaces it, and an
+ * export that finds it has been replaced stops and removes its temp file.
+ * Exports that are never replaced are removed, with their temp files, by the
+ * exports that run after they expire.
+ */
+public final class AllProjectsExporter {
+
+  // The number of projects read at the same time. Each one is held in memory
+  // until it is written to the zip.
+  @VisibleForTesting
+  static final int PROJECT_PARALLELISM = 4;
+
+  // An export is removed, with its temp file, this long after it started if
+  // the user has not started another one since.
+  @VisibleForTesting
+  static final long EXPORT_EXPIRATION_MILLIS = 24 * 60 * 60 * 1000L;
+
+  private static final String QUEUE_NAME = "export";
+
+  private static final Logger LOG = Logger.getLogger(AllProjectsExporter.class.getName());
+
+  private final StorageIo storageIo;
+
+  public AllProjectsExporter(StorageIo storageIo) {
+    this.storageIo = storageIo;
+  }
+
+  /**
+   * Starts an export of all of the user's projects, replacing any previous
+   * one.
+   *
+   * @param userId  user id
+   * @return  the status of the new export
+   */
+  public ProjectExportStatus start(String userId) {
+    ProjectExportStatus status = createJob(userId);
+    QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withUrl("/export")
+        .param("user", userId).param("job", status.getJobId()));
+    return status;
+  }
+
+  /**
+   * Returns the status of the user's most recent export, or null if there is
+   * none.
+   *
+   * @param userId  user id
+   */
+  public ProjectExportStatus getStatus(String userId) {
+    return storageIo.getProjectExportStatus(userId);
+  }
+
+  /**
+   * Returns the name of the temp file of a finished export.
+   *
+   * @param userId  user id
+   * @throws FileNotFoundException  if the user's most recent export is not done
+   */
+  public String getExportFileName(String userId) throws FileNotFoundException {
+    ProjectExportStatus status = storageIo.getProjectExportStatus(userId);
+    if (status == null || status.getState() != State.DONE) {
+      throw new FileNotFoundException("No export to download");
+    }
+    return getFileName(status.getJobId());
+  }
+
+  @VisibleForTesting
+  ProjectExportStatus createJob(String userId) {
+    ProjectExportStatus previous = storageIo.getProjectExportStatus(userId);
+    ProjectExportStatus status =
+        new ProjectExportStatus(UUID.randomUUID().toString(), State.PENDING, 0, 0);
+    storageIo.storeProjectExportStatus(userId, status);
+    if (previous != null && previous.getState() == State.DONE) {
+      // An export that is still running removes its own file when it sees it was replaced
+      deleteFile(previous.getJobId());
+    }
+    return status;
+  }
+
+  /**
+   * Removes a few of the exports started before the given time, and deletes
+   * their temp files.
+   *
+   * @param createdBefore  time in milliseconds since the epoch
+   */
+  @VisibleForTesting
+  void removeExpiredExports(long createdBefore) {
+    for (String jobId : storageIo.removeExpiredProjectExports(createdBefore)) {
+      deleteFile(jobId);
+    }
+  }
+
+  /**
+   * Runs an export. Does nothing if the export has already finished or has
+   * been replaced, so that the task can be retried safely.
+   *
+   * @param userId  user id
+   * @param jobId  the id of the export
+   */
+  public void run(String userId, String jobId) {
+    ProjectExportStatus status = storageIo.getProjectExportStatus(userId);
+    if (status == null || !status.getJobId().equals(jobId) || status.isFinished()) {
+      return;
+    }
+    List<Long> projectIds = storageIo.getProjects(userId);
+    boolean done = false;
+    try {
+      int count = export(userId, jobId, projectIds);
+      if (count < 0) {
+        LOG.info("Export " + jobId + " for user " + userId + " was replaced");
+      } else if (count == 0) {
+        storageIo.storeProjectExportStatus(userId,
+            new ProjectExportStatus(jobId, State.FAILED, 0, projectIds.size()));
+      } else {
+        done = storageIo.storeProjectExportStatus(userId,
+            new ProjectExportStatus(jobId, State.DONE, count, projectIds.size()));
+      }
+    } catch (IOException | RuntimeException e) {
+      // The task is not retried, as the export would most likely fail again
+      LOG.log(Level.WARNING, "Export " + jobId + " for user " + userId + " failed", e);
+      storageIo.storeProjectExportStatus(userId,
+          new ProjectExportStatus(jobId, State.FAILED, 0, projectIds.size()));
+    } finally {
+      if (!done) {
+        deleteFile(jobId);
+      }
+    }
+    // Expired exports are removed here, on the task queue, rather than while a user waits
+    removeExpiredExports(System.currentTimeMillis() - EXPORT_EXPIRATION_MILLIS);
+  }
+
+  /*
+   * Writes the export's zip and returns the number of entries, or -1 if the
+   * export was replaced before it finished.
+   */
+  private int export(final String userId, String jobId, final List<Long> projectIds)
+      throws IOException {
+    if (!storageIo.storeProjectExportStatus(userId,
+        new ProjectExportStatus(jobId, State.RUNNING, 0, projectIds.size()))) {
+      return -1;
+    }
+    if (projectIds.isEmpty()) {
+      return 0;
+    }
+    ZipOutputStream out = new ZipOutputStream(storageIo.createTempFile(getFileName(jobId)));
+    // The projects are read in parallel, but written to the zip in order, with at most
+    // PROJECT_PARALLELISM projects held in memory.
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(PROJECT_PARALLELISM, projectIds.size()),
+        ThreadManager.currentRequestThreadFactory());
+    int count = 0;
+    try {
+      List<Future<ExportedProject>> projects = new ArrayList<Future<ExportedProject>>();
+      for (int i = 0; i < projectIds.size(); i++) {
+        while (projects.size() < projectIds.size() && projects.size() < i + PROJECT_PARALLELISM) {
+          final long projectId = projectIds.get(projects.size());
+          projects.add(executor.submit(new Callable<ExportedProject>() {
+            @Override
+            public ExportedProject call() {
+              return exportProject(userId, projectId);
+            }
+          }));
+        }
+        ExportedProject project = getProject(projects.get(i));
+        projects.set(i, null);
+        if (project != null) {
+          String name = project.name;
+          // If necessary, rename duplicate projects
+          while (true) {
+            try {
+              out.putNextEntry(new ZipEntry(name));
+              break;
+            } catch (IOException e) {
+              name = "duplicate-" + name;
+            }
+          }
+          project.content.writeTo(out);
+          out.closeEntry();
+          count++;
+        }
+        if (!storageIo.storeProjectExportStatus(userId,
+            new ProjectExportStatus(jobId, State.RUNNING, i + 1, projectIds.size()))) {
+          return -1;
+        }
+      }
+      if (count == 0) {
+        return 0;
+      }
+
+      List<String> userFiles = storageIo.getUserFiles(userId);
+      if (userFiles.contains(StorageUtil.ANDROID_KEYSTORE_FILENAME)) {
+        byte[] androidKeystoreBytes =
+            storageIo.downloadRawUserFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
+        if (androidKeystoreBytes.length > 0) {
+          out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+          out.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
+          out.closeEntry();
+          count++;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      out.close();
+    }
+    return count;
+  }
+
+  /*
+   * A project's source zip, as it is named in the export.
+   */
+  private static final class ExportedProject {
+    final String name;
+    final ByteArrayOutputStream content;
+
+    ExportedProject(String name, ByteArrayOutputStream content) {
+      this.name = name;
+      this.content = content;
+    }
+  }
+
+  /*
+   * Returns the source zip of a project, or null if it cannot be read. Such
+   * projects are left out of the export rather than failing it.
+   */
+  private ExportedProject exportProject(String userId, long projectId) {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    try {
+      // Note: We never include Yail files when exporting all source projects
+      // even for Admins. If you are an admin and want to debug a project, download
+      // it explicitly. Nor are the exports cached, as each project's next export is unlikely
+      // to be another export of all projects.
+      String name = storageIo.exportProjectSourceZip(userId, projectId, false, false, false,
+          false, false, false, false, content);
+      return new ExportedProject(name + ".aia", content);
+    } catch (IllegalArgumentException e) {
+      LOG.info("No files found for userid: " + userId + " for projectid: " + projectId);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "IOException while reading files found for userid: " + userId
+          + " for projectid: " + projectId, e);
+    }
+    return null;
+  }
+
+  private static ExportedProject getProject(Future<ExportedProject> project) throws IOException {
+    try {
+      return project.get();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while reading projects", e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private void deleteFile(String jobId) {
+    try {
+      storageIo.deleteTempFile(getFileName(jobId));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to delete export " + jobId, e);
+    }
+  }
+
+  private static String getFileName(String jobId) {
+    return "__TEMP__/export-" + jobId + ".zip";
+  }
+}
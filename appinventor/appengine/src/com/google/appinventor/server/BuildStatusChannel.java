@@ -0,0 +1,167 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.BuildStatus;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * The status of the builds of projects, published by the build server's
+ * callbacks to {@link ReceiveBuildServlet} and awaited by the client.
+ *
+ * <p>The client used to call getBuildResult every few seconds, and every call
+ * read the progress and queried the project's output files. Now it long-polls:
+ * {@link #await} holds the request until the status of the build changes, so
+ * the client hears of progress as it happens with one call per change, and
+ * the output files are only read once the build is done. App Engine buffers
+ * responses, so server-sent events are not an option.
+ *
+ * <p>A build is identified by its user and project, as in the callback URL
+ * given to the build server; a project has one build at a time. The status is
+ * kept with {@link StorageIo#storeBuildStatus}, since the callbacks and the
+ * waiting request may be served by different instances. A waiter is woken at
+ * once by a callback served by its own instance. Otherwise it reads the
+ * status again after {@link #MIN_RECHECK_MILLIS}, doubling the interval up to
+ * {@link #MAX_RECHECK_MILLIS}, so that a waiter makes a handful of memcache
+ * reads per request rather than one a second.
+ */
+public final class BuildStatusChannel {
+
+  // How long a waiter first waits before reading a status that may have been
+  // published by another instance, and the longest it waits between reads
+  static final long MIN_RECHECK_MILLIS = 1000;
+  static final long MAX_RECHECK_MILLIS = 8000;
+
+  // The objects waiters of this instance wait on, by build. A waiter holds on
+  // to its monitor, so the monitors of builds nobody waits for are collected.
+  private static final LoadingCache<String, Object> MONITORS = CacheBuilder.newBuilder()
+      .weakValues()
+      .build(new CacheLoader<String, Object>() {
+        @Override
+        public Object load(String key) {
+          return new Object();
+        }
+      });
+
+  private final StorageIo storageIo;
+
+  public BuildStatusChannel(StorageIo storageIo) {
+    this.storageIo = storageIo;
+  }
+
+  /**
+   * Records that a new build of a project has started.
+   *
+   * @param userId  user id
+   * @param projectId  project id
+   */
+  public void start(String userId, long projectId) {
+    publish(userId, projectId, 0, false, 0);
+  }
+
+  /**
+   * Publishes the position of a build in the build server's queue. The build
+   * server reports positions and progress from different threads, so a
+   * position is ignored once the build has made progress, and the start of
+   * the build is published by its first progress report instead.
+   *
+   * @param userId  user id
+   * @param projectId  project id
+   * @param queuePosition  the position reported by the build server, or 0
+   *                       when the build starts
+   */
+  public void publishQueuePosition(String userId, long projectId, int queuePosition) {
+    if (queuePosition <= 0) {
+      return;
+    }
+    BuildStatus status = storageIo.getBuildStatus(userId, projectId);
+    if (status == null || (status.getProgress() == 0 && !status.isDone())) {
+      publish(userId, projectId, 0, false, queuePosition);
+    }
+  }
+
+  /**
+   * Publishes the progress of a build.
+   *
+   * @param userId  user id
+   * @param projectId  project id
+   * @param progress  the progress reported by the build server
+   */
+  public void publishProgress(String userId, long projectId, int progress) {
+    publish(userId, projectId, progress, false, 0);
+  }
+
+  /**
+   * Publishes that the build server has sent the output files of a build.
+   *
+   * @param userId  user id
+   * @param projectId  project id
+   */
+  public void publishDone(String userId, long projectId) {
+    publish(userId, projectId, 100, true, 0);
+  }
+
+  /**
+   * Returns the status of the latest build of a project, or null if it is
+   * not known.
+   *
+   * @param userId  user id
+   * @param projectId  project id
+   */
+  public BuildStatus get(String userId, long projectId) {
+    return storageIo.getBuildStatus(userId, projectId);
+  }
+
+  /**
+   * Waits until the status of the latest build of a project is not the given
+   * version, or until the timeout.
+   *
+   * @param userId  user id
+   * @param projectId  project id
+   * @param version  the version of the status last seen, or -1 if none
+   * @param timeoutMillis  how long to wait at most
+   * @return  the status, or null if it is not known
+   */
+  public BuildStatus await(String userId, long projectId, long version, long timeoutMillis) {
+    Object monitor = MONITORS.getUnchecked(key(userId, projectId));
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long recheckMillis = MIN_RECHECK_MILLIS;
+    while (true) {
+      BuildStatus status = storageIo.getBuildStatus(userId, projectId);
+      long remaining = deadline - System.currentTimeMillis();
+      if ((status != null && status.getVersion() != version) || remaining <= 0) {
+        return status;
+      }
+      synchronized (monitor) {
+        try {
+          monitor.wait(Math.min(remaining, recheckMillis));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return status;
+        }
+      }
+      recheckMillis = Math.min(recheckMillis * 2, MAX_RECHECK_MILLIS);
+    }
+  }
+
+  private void publish(String userId, long projectId, int progress, boolean done,
+      int queuePosition) {
+    storageIo.storeBuildStatus(userId, projectId, progress, done, queuePosition);
+    Object monitor = MONITORS.getIfPresent(key(userId, projectId));
+    if (monitor != null) {
+      synchronized (monitor) {
+        monitor.notifyAll();
+      }
+    }
+  }
+
+  private static String key(String userId, long projectId) {
+    return userId + ":" + projectId;
+  }
+}
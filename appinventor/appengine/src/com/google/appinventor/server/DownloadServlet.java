@@ -15,11 +15,13 @@ import com.google.appinventor.shared.rpc.ServerLayout;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.io.ByteStreams;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
@@ -126,11 +128,19 @@ public class DownloadServlet extends OdeServlet {
         // project in the export
         boolean includeYail = userInfoProvider.getIsAdmin();
         boolean includeScreenShots = includeYail;
-        StorageIoInstanceHolder.getInstance().assertUserHasProject(userId, projectId);
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(userId,
-          projectId, includeProjectHistory, false, zipName, includeYail,
-          includeScreenShots, false, false);
-        downloadableFile = zipFile.getRawFile();
+        StorageIo storageIo = StorageIoInstanceHolder.getInstance();
+        storageIo.assertUserHasProject(userId, projectId);
+        if (zipName == null) {
+          zipName = storageIo.getProjectName(userId, projectId) + ".aia";
+        }
+        // The zip is streamed to the response as the project files are read, instead of being
+        // assembled in memory first. Its length is not known up front.
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setHeader("content-disposition", "attachment; filename=\"" + zipName + "\"");
+        resp.setContentType(StorageUtil.getContentTypeForFilePath(zipName));
+        fileExporter.exportProjectSourceZip(userId, projectId, includeProjectHistory, false,
+            includeYail, includeScreenShots, false, false, resp.getOutputStream());
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_USER_PROJECT_SOURCE)) {
         if (!userInfoProvider.getIsAdmin()) {
@@ -193,6 +203,22 @@ public class DownloadServlet extends OdeServlet {
             userId, "all-projects.zip");
         downloadableFile = zipFile.getRawFile();
 
+      } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_EXPORT)) {
+        // Download the zip of zips written by the user's finished export of all projects.
+        // It is streamed from storage, since it can be too large to hold in memory.
+        StorageIo storageIo = StorageIoInstanceHolder.getInstance();
+        String exportFileName = new AllProjectsExporter(storageIo).getExportFileName(userId);
+        InputStream in = storageIo.openTempFile(exportFileName);
+        try {
+          resp.setStatus(HttpServletResponse.SC_OK);
+          resp.setHeader("content-disposition", "attachment; filename=\"all-projects.zip\"");
+          resp.setContentType(StorageUtil.getContentTypeForFilePath("all-projects.zip"));
+          ByteStreams.copy(in, resp.getOutputStream());
+        } finally {
+          in.close();
+        }
+        return;
+
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_FILE)) {
         // Download a specific file.
         uriComponents = uri.split("/", SPLIT_LIMIT_FILE);
@@ -10,6 +10,7 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.annotation.Nullable;
 
@@ -57,6 +58,29 @@ public interface FileExporter {
     boolean includeScreenShots,
     boolean fatalError, boolean forGallery) throws IOException;
 
+  /**
+   * Exports the project source files as a zip written to the given stream, without holding the
+   * whole zip in memory.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param includeProjectHistory indicates whether to include a file
+   *        containing the project's history in the zip
+   * @param includeAndroidKeystore indicates whether to include the user's android.keystore file
+   * @param out the stream to write the zip to, which is closed on success
+   * @param fatalError set to true to cause missing GCS file to throw exception
+   * @return the name of the project
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no source files), in which case nothing has been written to out
+   * @throws IOException if files cannot be written
+   */
+  String exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean fatalError, boolean forGallery, OutputStream out) throws IOException;
+
   /**
    * Exports all of the user's projects' source files as a zip of zips.
    *
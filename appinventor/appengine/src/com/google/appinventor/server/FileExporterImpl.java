@@ -7,7 +7,6 @@
 package com.google.appinventor.server;
 
 import com.google.common.base.Strings;
-import com.google.appinventor.server.storage.ObjectifyStorageIo;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
@@ -17,6 +16,7 @@ import com.google.appinventor.shared.storage.StorageUtil;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
@@ -68,12 +68,23 @@ public final class FileExporterImpl implements FileExporter {
     boolean fatalError,
     boolean forGallery) throws IOException {
     // Download project source files as a zip.
-    if (storageIo instanceof ObjectifyStorageIo) {
-      return ((ObjectifyStorageIo)storageIo).exportProjectSourceZip(userId, projectId,
-        includeProjectHistory, includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError);
-    } else {
-      throw new IllegalArgumentException("Objectify only");
-    }
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError);
+  }
+
+  @Override
+  public String exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean fatalError,
+    boolean forGallery,
+    OutputStream out) throws IOException {
+    // Download project source files as a zip.
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError, true,
+        out);
   }
 
   @Override
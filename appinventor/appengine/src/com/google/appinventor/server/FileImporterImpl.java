@@ -9,11 +9,11 @@ package com.google.appinventor.server;
 import com.google.appinventor.common.utils.StringUtils;
 import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.project.youngandroid.YoungAndroidProjectService;
+import com.google.appinventor.server.storage.ProjectUpload;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.UploadResponse;
 import com.google.appinventor.shared.rpc.project.Project;
-import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
@@ -77,6 +77,11 @@ public final class FileImporterImpl implements FileImporter {
         storageIo.getUser(userId).getUserEmail(), projectName);
     String srcDirectory = YoungAndroidProjectService.getSourceDirectory(qualifiedFormName);
 
+    // Raw files go to storage as they are read, so that an archive with large assets is never
+    // held in memory. Nothing is visible until the upload is committed, and if the import fails,
+    // aborting the upload removes what was written.
+    ProjectUpload upload = storageIo.beginProjectUpload(userId);
+    boolean committed = false;
     ZipInputStream zin = new ZipInputStream(uploadedFileStream);
     boolean isProjectArchive = false;  // have we found at least one project properties file?
     try {
@@ -128,32 +133,33 @@ public final class FileImporterImpl implements FileImporter {
               fileName = srcDirectory + '/' + StorageUtil.basename(fileName);
             }
 
-            // Get the file content from the ZipEntry.
-            ByteArrayOutputStream contentStream = new ByteArrayOutputStream();
-            ByteStreams.copy(zin, contentStream);
-
-            project.addRawFile(new RawFile(fileName, contentStream.toByteArray()));
+            // Copy the file content from the ZipEntry.
+            upload.addRawFile(fileName, zin);
           }
         }
       }
-    } finally {
-      zin.close();
-    }
 
-    if (!isProjectArchive) {
-      // The uploaded file seems to be a valid zip file, but it doesn't contain the project
-      // properties file.
-      throw new FileImporterException(UploadResponse.Status.NOT_PROJECT_ARCHIVE);
-    }
+      if (!isProjectArchive) {
+        // The uploaded file seems to be a valid zip file, but it doesn't contain the project
+        // properties file.
+        throw new FileImporterException(UploadResponse.Status.NOT_PROJECT_ARCHIVE);
+      }
 
-    // Set project history if provided
-    if (projectHistory != null) {
-      project.setProjectHistory(projectHistory);
+      // Set project history if provided
+      if (projectHistory != null) {
+        project.setProjectHistory(projectHistory);
+      }
+      String settings = YoungAndroidProjectService.getProjectSettings(null, null, null, null, null,
+          null, null, null, null, null, null, null, null, null);
+      long projectId = upload.commit(project, settings);
+      committed = true;
+      return storageIo.getUserProject(userId, projectId);
+    } finally {
+      if (!committed) {
+        upload.abort();
+      }
+      zin.close();
     }
-    String settings = YoungAndroidProjectService.getProjectSettings(null, null, null, null, null,
-        null, null, null, null, null, null, null, null, null);
-    long projectId = storageIo.createProject(userId, project, settings);
-    return storageIo.getUserProject(userId, projectId);
   }
 
   @VisibleForTesting
@@ -0,0 +1,35 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.GalleryStorageIo;
+import com.google.appinventor.server.storage.GalleryStorageIoInstanceHolder;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * GalleryCounterServlet -- Write the pending downloads and likes of a
+ * gallery app
+ *
+ * This Servlet is called from the task queue manager with the tasks
+ * added to the "gallerycounters" queue when an app is downloaded or
+ * liked. Like the BlobUpgradeServlet, it is restricted to admin users
+ * only, which the task queue manager always is. If the counter cannot
+ * be written the request fails, and the task queue retries it.
+ *
+ */
+public class GalleryCounterServlet extends OdeServlet {
+  private final GalleryStorageIo galleryStorageIo = GalleryStorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    galleryStorageIo.flushGalleryCounter(req.getParameter("counter"));
+  }
+}
@@ -23,7 +23,9 @@ import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
 import com.google.appinventor.shared.rpc.project.FileDescriptor;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FilePatch;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
+import com.google.appinventor.shared.rpc.project.ProjectExportStatus;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.ProjectService;
 import com.google.appinventor.shared.rpc.project.TextFile;
@@ -43,6 +45,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -60,6 +63,8 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   private static final long serialVersionUID = -8316312003804169166L;
 
   private final transient StorageIo storageIo = StorageIoInstanceHolder.getInstance();
+  private final transient AllProjectsExporter allProjectsExporter =
+      new AllProjectsExporter(storageIo);
 
   // RPC implementation for YoungAndroid projects
   private final transient YoungAndroidProjectService youngAndroidProject =
@@ -242,8 +247,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   @Override
   public List<UserProject> getProjectInfos() {
     String userId = userInfoProvider.getUserId();
-    List<Long> projectIds = storageIo.getProjects(userId);
-    return makeUserProjects(userId, projectIds);
+    return storageIo.getUserProjects(userId);
   }
 
   /**
@@ -365,6 +369,23 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
     return getProjectRpcImpl(userId, projectId).load2(userId, projectId, fileId);
   }
 
+  /**
+   * Loads several files of a project in a single call. The files are read
+   * from storage concurrently.
+   *
+   * @param projectId  project ID
+   * @param fileIds  project nodes whose sources should be loaded, or null
+   *                 to load all of the project's source files
+   *
+   * @return  checksummed file objects, by file id
+   */
+  @Override
+  public Map<String, ChecksumedLoadFile> load2(long projectId, List<String> fileIds)
+      throws ChecksumedFileException {
+    final String userId = userInfoProvider.getUserId();
+    return getProjectRpcImpl(userId, projectId).load2(userId, projectId, fileIds);
+  }
+
   /**
    * Attempt to record the project Id and error message when we detect a corruption
    * while loading a project.
@@ -473,6 +494,27 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
         content);
   }
 
+  /**
+   * Saves the content of the file associated with a node in the project tree
+   * by applying a patch to the content in storage.
+   *
+   * @param sessionId session id
+   * @param projectId  project ID
+   * @param fileId  project node whose source should be saved
+   * @param force  whether to save a trivial blocks workspace
+   * @param patch  the change from the content in storage
+   * @return modification date for project
+   */
+  @Override
+  public long savePatch(String sessionId, long projectId, String fileId, boolean force,
+      FilePatch patch) throws InvalidSessionException, BlocksTruncatedException,
+      ChecksumedFileException {
+    validateSessionId(sessionId);
+    final String userId = userInfoProvider.getUserId();
+    return getProjectRpcImpl(userId, projectId).savePatch(userId, projectId, fileId, force,
+        patch);
+  }
+
   /**
    * Saves the contents of multiple files.
    *
@@ -509,15 +551,19 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
    *
    * @param projectId  project ID
    * @param target  build target (optional, implementation dependent)
+   * @param secondBuildserver  whether to use the second buildserver
+   * @param highPriority  whether the build server should start the build before other waiting
+   *                      builds
    *
    * @return  results of build
    */
   @Override
-  public RpcResult build(long projectId, String nonce, String target, boolean secondBuildserver) {
+  public RpcResult build(long projectId, String nonce, String target, boolean secondBuildserver,
+      boolean highPriority) {
     // Dispatch
     final String userId = userInfoProvider.getUserId();
     return getProjectRpcImpl(userId, projectId).build(
-      userInfoProvider.getUser(), projectId, nonce, target, secondBuildserver);
+      userInfoProvider.getUser(), projectId, nonce, target, secondBuildserver, highPriority);
   }
 
   /**
@@ -539,6 +585,24 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
       userInfoProvider.getUser(), projectId, target);
   }
 
+  /**
+   * Gets the result of a build command for the project once its status
+   * changes.
+   *
+   * @param projectId  project ID
+   * @param target  build target (optional, implementation dependent)
+   * @param version  the version of the build status last seen, or -1
+   *
+   * @return  build results
+   */
+  @Override
+  public RpcResult waitForBuildResult(long projectId, String target, long version) {
+    // Dispatch
+    final String userId = userInfoProvider.getUserId();
+    return getProjectRpcImpl(userId, projectId).waitForBuildResult(
+      userInfoProvider.getUser(), projectId, target, version);
+  }
+
   /*
    * Write the serialized response out to stdout. This is a very unusual thing
    * to do, but it allows us to create a static file version of the response
@@ -555,12 +619,6 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
     return storageIo.getUserProject(userId, projectId);
   }
 
-  // Bulk fetch UserProjects -- efficiently get all project infos asked for
-  // using a minimum number of datastore API calls
-  private List<UserProject> makeUserProjects(String userId, List<Long> projectIds) {
-    return storageIo.getUserProjects(userId, projectIds);
-  }
-
   /*
    * Returns the RPC implementation for the given project type.
    */
@@ -665,6 +723,16 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
       }
   }
 
+  @Override
+  public ProjectExportStatus startExportAllProjects() {
+    return allProjectsExporter.start(userInfoProvider.getUserId());
+  }
+
+  @Override
+  public ProjectExportStatus getExportAllProjectsStatus() {
+    return allProjectsExporter.getStatus(userInfoProvider.getUserId());
+  }
+
   @Override
   public void log(String message) {
     LOG.warning(message);
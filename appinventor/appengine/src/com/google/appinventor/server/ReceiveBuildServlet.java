@@ -38,6 +38,8 @@ public class ReceiveBuildServlet extends OdeServlet {
 
   private final OdeAuthFilter odeFilter = new OdeAuthFilter();
   private final transient StorageIo storageIo = StorageIoInstanceHolder.getInstance();
+  private final transient BuildStatusChannel buildStatusChannel =
+      new BuildStatusChannel(storageIo);
 
   @Override
   public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -60,6 +62,7 @@ public class ReceiveBuildServlet extends OdeServlet {
 
     // Set the user in the OdeFilter, which is used everywhere as the UserInfoProvider.
     odeFilter.setUserFromUserId(userId, false, false);
+    boolean receivedOutput = false;
     try {
       String buildFileDirPath = uriComponents[4];
       ZipInputStream zipInputStream = new ZipInputStream(req.getInputStream());
@@ -69,25 +72,39 @@ public class ReceiveBuildServlet extends OdeServlet {
           break;
         }
         String fileName = zipEntry.getName();
-        byte[] fileBytes = ByteStreams.toByteArray(zipInputStream);
         if (StorageUtil.ANDROID_KEYSTORE_FILENAME.equals(fileName)) {
           LOG.info("Saving android.keystore for user: " + userId);
           storageIo.addFilesToUser(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
-          storageIo.uploadRawUserFile(userId, fileName, fileBytes);
+          storageIo.uploadRawUserFile(userId, fileName, ByteStreams.toByteArray(zipInputStream));
         } else if (fileName.equals("build.status")) {
-          int progress = Integer.parseInt((new String(fileBytes)).trim());
+          int progress = Integer.parseInt(readSmallFile(zipInputStream));
           LOG.info("Received a build.status file contents = " + progress);
-          storageIo.storeBuildStatus(userId, projectId, progress);
+          buildStatusChannel.publishProgress(userId, projectId, progress);
+        } else if (fileName.equals("build.queue")) {
+          // The build server queued the build; the contents are its position in the queue, or 0
+          // when it starts.
+          int position = Integer.parseInt(readSmallFile(zipInputStream));
+          LOG.info("Received a build.queue file contents = " + position);
+          buildStatusChannel.publishQueuePosition(userId, projectId, position);
         } else {
           String filePath = buildFileDirPath + "/" + fileName;
           LOG.info("Saving build output files: " + filePath);
           storageIo.addOutputFilesToProject(userId, projectId, filePath);
-          storageIo.uploadRawFileForce(projectId, filePath, userId, fileBytes);
-          storageIo.storeBuildStatus(userId, projectId, 0); // Reset for the next build
+          // The APK is streamed from the request to storage as it arrives.
+          storageIo.uploadRawFileForce(projectId, filePath, userId, zipInputStream);
+          receivedOutput = true;
         }
       }
+      if (receivedOutput) {
+        // Wakes up the client waiting for the build, now that it can read the output files
+        buildStatusChannel.publishDone(userId, projectId);
+      }
     } finally {
       odeFilter.removeUser();
     }
   }
+
+  private static String readSmallFile(ZipInputStream zipInputStream) throws IOException {
+    return new String(ByteStreams.toByteArray(zipInputStream)).trim();
+  }
 }
@@ -0,0 +1,41 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.CachingStorageIo;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * StorageStatsServlet -- Show the hit ratios of the storage caches
+ *
+ * The statistics are those of the instance that serves the request,
+ * as they are logged periodically. Like the BlobUpgradeServlet, it is
+ * restricted to admin users only.
+ *
+ */
+public class StorageStatsServlet extends OdeServlet {
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    StorageIo storageIo = StorageIoInstanceHolder.getInstance();
+    resp.setContentType("text/plain; charset=utf-8");
+    PrintWriter out = resp.getWriter();
+    if (storageIo instanceof CachingStorageIo) {
+      for (String stats : ((CachingStorageIo) storageIo).getStats().split("; ")) {
+        out.println(stats);
+      }
+    } else {
+      out.println("The storage cache is off.");
+    }
+  }
+}
@@ -6,11 +6,13 @@
 
 package com.google.appinventor.server.project;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.RpcResult;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
 import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
+import com.google.appinventor.shared.rpc.project.FilePatch;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.TextFile;
@@ -23,7 +25,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -32,6 +42,9 @@ import java.util.List;
  * @author lizlooney@google.com (Liz Looney)
  */
 public abstract class CommonProjectService {
+  // The maximum number of files read from storage at the same time by a batch load.
+  private static final int LOAD_PARALLELISM = 8;
+
   protected final String projectType;
   protected final StorageIo storageIo;
 
@@ -204,6 +217,65 @@ public abstract class CommonProjectService {
     return retval;
   }
 
+  /**
+   * Loads several files of a project in one call, reading them from storage
+   * concurrently. Each file is checksummed as by
+   * {@link #load2(String, long, String)}.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileIds  the files to load, or null to load all of the project's
+   *                 source files
+   *
+   * @return  the ChecksumedLoadFile of each file, by file id, in the order
+   *          requested
+   */
+  public Map<String, ChecksumedLoadFile> load2(final String userId, final long projectId,
+      List<String> fileIds) throws ChecksumedFileException {
+    if (fileIds == null) {
+      fileIds = storageIo.getProjectSourceFiles(userId, projectId);
+    }
+    Map<String, ChecksumedLoadFile> result = new LinkedHashMap<String, ChecksumedLoadFile>();
+    if (fileIds.size() <= 1) {
+      for (String fileId : fileIds) {
+        result.put(fileId, load2(userId, projectId, fileId));
+      }
+      return result;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(LOAD_PARALLELISM, fileIds.size()), ThreadManager.currentRequestThreadFactory());
+    try {
+      List<Future<ChecksumedLoadFile>> futures = new ArrayList<Future<ChecksumedLoadFile>>();
+      for (final String fileId : fileIds) {
+        futures.add(executor.submit(new Callable<ChecksumedLoadFile>() {
+          @Override
+          public ChecksumedLoadFile call() throws ChecksumedFileException {
+            return load2(userId, projectId, fileId);
+          }
+        }));
+      }
+      for (int i = 0; i < fileIds.size(); i++) {
+        result.put(fileIds.get(i), futures.get(i).get());
+      }
+      return result;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ChecksumedFileException(e.toString());
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ChecksumedFileException) {
+        throw (ChecksumedFileException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   /**
    * Attempt to record the project Id and error message when we detect a corruption
    * while loading a project.
@@ -293,6 +365,25 @@ public abstract class CommonProjectService {
     }
   }
 
+  /**
+   * Saves the content of the file associated with a node in the project tree
+   * by applying a patch to the content in storage. Nothing is saved unless
+   * the patch applies to the stored content and produces the content whose
+   * checksum it carries.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileId  project node whose source should be saved
+   * @param force  whether to save a trivial blocks workspace
+   * @param patch  the change from the content in storage
+   * @return modification date for project
+   */
+  public long savePatch(String userId, long projectId, String fileId, boolean force,
+      FilePatch patch) throws BlocksTruncatedException, ChecksumedFileException {
+    String base = storageIo.downloadFile(userId, projectId, fileId, StorageUtil.DEFAULT_CHARSET);
+    return save2(userId, projectId, fileId, force, patch.apply(base));
+  }
+
   /**
    * Saves a screenshot of a current blocks editor. This is called from the client side
    * whenever the user leaves a blocks editor. The data is shipped to us in base64 encoding
@@ -323,10 +414,13 @@ public abstract class CommonProjectService {
    * @param nonce -- random string used to find finished APK
    * @param target  build target (optional, implementation dependent)
    * @param secondBuildserver use second buildserver
+   * @param highPriority  whether the build server should start the build before other waiting
+   *                      builds
    *
    * @return  build results
    */
-  public abstract RpcResult build(User user, long projectId, String nonce, String target, boolean secondBuildserver);
+  public abstract RpcResult build(User user, long projectId, String nonce, String target, boolean secondBuildserver,
+      boolean highPriority);
 
   /**
    * Gets the result of a build command for the project.
@@ -341,6 +435,20 @@ public abstract class CommonProjectService {
    */
   public abstract RpcResult getBuildResult(User user, long projectId, String target);
 
+  /**
+   * Gets the result of a build command for the project once its status
+   * differs from the one last seen, or after a while if it does not change.
+   *
+   * @param user the User that owns the {@code projectId}.
+   * @param projectId  project id to be built
+   * @param target  build target (optional, implementation dependent.
+   * @param version  the version of the status last seen, as returned in
+   *                 RpcResult.extra by a build result that is not done, or -1
+   * @return  build results, as for {@link #getBuildResult}
+   */
+  public abstract RpcResult waitForBuildResult(User user, long projectId, String target,
+      long version);
+
   public TextFile importMedia(String userId, long projectId, String urlString, boolean save) throws IOException {
     InputStream is = null;
     try {
@@ -11,6 +11,7 @@ import com.google.apphosting.api.ApiProxy;
 import com.google.appinventor.common.utils.StringUtils;
 import com.google.appinventor.common.version.GitBuildId;
 import com.google.appinventor.components.common.YaVersion;
+import com.google.appinventor.server.BuildStatusChannel;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.FileExporter;
 import com.google.appinventor.server.FileExporterImpl;
@@ -20,6 +21,7 @@ import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.project.CommonProjectService;
 import com.google.appinventor.server.project.utils.Security;
 import com.google.appinventor.server.properties.json.ServerJsonParser;
+import com.google.appinventor.server.storage.BuildStatus;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.shared.properties.json.JSONParser;
 import com.google.appinventor.shared.rpc.RpcResult;
@@ -80,7 +82,6 @@ import java.util.logging.Logger;
  */
 public final class YoungAndroidProjectService extends CommonProjectService {
 
-  private static int currentProgress = 0;
   private static final Logger LOG = Logger.getLogger(YoungAndroidProjectService.class.getName());
 
   // The value of this flag can be changed in appengine-web.xml
@@ -124,8 +125,15 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       Flag.createFlag("appengine.host", "");
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
 
+  // How long waitForBuildResult holds a request when the build status does not change. Each
+  // waiting request takes up a request slot of its instance.
+  private static final long BUILD_RESULT_WAIT_MILLIS = 20000;
+
+  private final BuildStatusChannel buildStatusChannel;
+
   public YoungAndroidProjectService(StorageIo storageIo) {
     super(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, storageIo);
+    buildStatusChannel = new BuildStatusChannel(storageIo);
   }
 
   /**
@@ -651,12 +659,15 @@ public final class YoungAndroidProjectService extends CommonProjectService {
    * @param projectId  project id to be built
    * @param nonce random string used to find resulting APK from unauth context
    * @param target  build target (optional, implementation dependent)
+   * @param secondBuildserver  use second buildserver
+   * @param highPriority  whether the build server should start the build before other waiting
+   *                      builds
    *
    * @return an RpcResult reflecting the call to the Build Server
    */
   @Override
   public RpcResult build(User user, long projectId, String nonce, String target,
-    boolean secondBuildserver) {
+    boolean secondBuildserver, boolean highPriority) {
     String userId = user.getUserId();
     String projectName = storageIo.getProjectName(userId, projectId);
     String outputFileDir = BUILD_FOLDER + '/' + target;
@@ -671,6 +682,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     for (String buildOutputFile : buildOutputFiles) {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
+    buildStatusChannel.start(userId, projectId);
     URL buildServerUrl = null;
     ProjectSourceZip zipFile = null;
     try {
@@ -679,6 +691,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
           userId,
           projectId,
           secondBuildserver,
+          highPriority,
           outputFileDir));
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
@@ -812,11 +825,12 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   // a little more complicated when we want to get the URL from an App Engine config file or
   // command line argument.
   private String getBuildServerUrlStr(String userName, String userId,
-    long projectId, boolean secondBuildserver, String fileName)
+    long projectId, boolean secondBuildserver, boolean highPriority, String fileName)
       throws UnsupportedEncodingException, EncryptionException {
     return "http://" + (secondBuildserver ? buildServerHost2.get() : buildServerHost.get()) +
       "/buildserver/build-all-from-zip-async"
       + "?uname=" + URLEncoder.encode(userName, "UTF-8")
+      + (highPriority ? "&priority=high" : "")
       + (sendGitVersion.get()
         ? "&gitBuildVersion="
         + URLEncoder.encode(GitBuildId.getVersion(), "UTF-8")
@@ -875,10 +889,28 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   @Override
   public RpcResult getBuildResult(User user, long projectId, String target) {
     String userId = user.getUserId();
+    return getBuildResult(userId, projectId, target, buildStatusChannel.get(userId, projectId));
+  }
+
+  @Override
+  public RpcResult waitForBuildResult(User user, long projectId, String target, long version) {
+    String userId = user.getUserId();
+    return getBuildResult(userId, projectId, target,
+        buildStatusChannel.await(userId, projectId, version, BUILD_RESULT_WAIT_MILLIS));
+  }
+
+  private RpcResult getBuildResult(String userId, long projectId, String target,
+      BuildStatus status) {
+    if (status != null && !status.isDone()) {
+      // The build server has not sent the output files yet, so there is no need to look for them
+      return new RpcResult(-1, "" + status.getProgress(), "", getBuildStatusExtra(status));
+    }
+    // If the status is not known, as when memcache is down, we cheat and report 50%
+    int progress = status == null ? 50 : status.getProgress();
+    String version = getBuildStatusExtra(status);
     String buildOutputFileName = BUILD_FOLDER + '/' + target + '/' + "build.out";
     List<String> outputFiles = storageIo.getProjectOutputFiles(userId, projectId);
-    updateCurrentProgress(user, projectId, target);
-    RpcResult buildResult = new RpcResult(-1, ""+currentProgress, ""); // Build not finished
+    RpcResult buildResult = new RpcResult(-1, "" + progress, "", version); // Build not finished
     for (String outputFile : outputFiles) {
       if (buildOutputFileName.equals(outputFile)) {
         String outputStr = storageIo.downloadFile(userId, projectId, outputFile, "UTF-8");
@@ -897,15 +929,24 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     return buildResult;
   }
 
-  /**
-   * Check if there are any build progress available for the given user's project
-   *
-   * @param user the User that owns the {@code projectId}.
-   * @param projectId  project id to be built
-   * @param target  build target (optional, implementation dependent)
+  /*
+   * Returns the extra of a result for a build that is not finished: the
+   * version of the build's status, to be passed to waitForBuildResult, and
+   * the position of the build in the build server's queue. Returns null if
+   * the status is not known.
    */
-  public void updateCurrentProgress(User user, long projectId, String target) {
-    currentProgress = storageIo.getBuildStatus(user.getUserId(), projectId);
+  private static String getBuildStatusExtra(BuildStatus status) {
+    if (status == null) {
+      return null;
+    }
+    try {
+      JSONObject extra = new JSONObject();
+      extra.put("version", "" + status.getVersion());
+      extra.put("queuePosition", status.getQueuePosition());
+      return extra.toString();
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
   }
 
   // Nicely format floating number using only two decimal places
@@ -0,0 +1,57 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.io.Serializable;
+
+/**
+ * The status of the build of a project, as stored by
+ * {@link StorageIo#storeBuildStatus}.
+ */
+public final class BuildStatus implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final long version;
+  private final int progress;
+  private final boolean done;
+  private final int queuePosition;
+
+  public BuildStatus(long version, int progress, boolean done, int queuePosition) {
+    this.version = version;
+    this.progress = progress;
+    this.done = done;
+    this.queuePosition = queuePosition;
+  }
+
+  /**
+   * Returns a number that changes whenever the status of the build does.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the progress reported by the build server, from 0 to 100.
+   */
+  public int getProgress() {
+    return progress;
+  }
+
+  /**
+   * Returns whether the build server has sent the output files of the build.
+   */
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Returns the position of the build in the build server's queue, counting
+   * from 1, or 0 if the build is not waiting to start.
+   */
+  public int getQueuePosition() {
+    return queuePosition;
+  }
+}
@@ -0,0 +1,484 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appinventor.shared.rpc.AdminInterfaceException;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.admin.AdminUser;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link StorageIo} that caches users, the white list and project metadata
+ * in front of another StorageIo.
+ *
+ * <p>Every request is authenticated with {@link #getUser} and, when the white
+ * list is in use, {@link #checkWhiteList}, and the project list asks for the
+ * name and date of each project. Each of those used to be a datastore read.
+ * Here they are cached in two tiers: a small cache local to this instance
+ * (L1) in front of memcache (L2).
+ *
+ * <p>Cached values are grouped, for example all of the values of a user.
+ * Each group has a version number, kept in memcache, which is part of the
+ * key of its values. A setter bumps the version of the group it changes,
+ * which makes the cached values of the group unreachable on every instance
+ * at once. Each instance keeps the versions it has read for
+ * {@link #VERSION_CHECK_SECONDS}, so most L1 hits read nothing at all, and a
+ * change made on another instance is seen within that time. A change made on
+ * this instance is seen at once. An L2 hit costs one or two small memcache
+ * reads, but no datastore read. If memcache is not available, nothing is
+ * cached.
+ */
+public class CachingStorageIo extends ForwardingStorageIo {
+
+  private static final Logger LOG = Logger.getLogger(CachingStorageIo.class.getName());
+
+  // The maximum number of values kept by each L1 cache.
+  private static final int L1_MAXIMUM_SIZE = 2000;
+
+  // How long an instance uses the version of a group it read from memcache
+  // before reading it again.
+  @VisibleForTesting
+  static final int VERSION_CHECK_SECONDS = 5;
+
+  // Statistics are logged after this many lookups in a cache.
+  private static final long STATS_LOG_INTERVAL = 10000;
+
+  private static final String CACHE_PREFIX = "StorageIoCache:";
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  // Users, by user id, in the group of the user.
+  private final TieredCache users;
+  // Whether an email address is on the white list, by email address. There is
+  // no setter for the white list, so the values simply expire.
+  private final TieredCache whiteList;
+  // Project names and dates, in the group of the project.
+  private final TieredCache projects;
+
+  /*
+   * A cache of one kind of value.
+   */
+  private final class TieredCache {
+    private final String name;
+    private final int expirationSeconds;
+    // Values, by versioned key. Values of old versions are evicted in time.
+    private final Cache<String, Object> values;
+    // The versions of groups, as last read from or written to memcache.
+    private final Cache<String, Long> versions;
+
+    private final AtomicLong l1Hits = new AtomicLong();
+    private final AtomicLong l2Hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    TieredCache(String name, int expirationSeconds, Ticker ticker) {
+      this.name = name;
+      this.expirationSeconds = expirationSeconds;
+      values = CacheBuilder.newBuilder()
+          .maximumSize(L1_MAXIMUM_SIZE)
+          .expireAfterWrite(expirationSeconds, TimeUnit.SECONDS)
+          .ticker(ticker)
+          .build();
+      versions = CacheBuilder.newBuilder()
+          .maximumSize(L1_MAXIMUM_SIZE)
+          .expireAfterWrite(VERSION_CHECK_SECONDS, TimeUnit.SECONDS)
+          .ticker(ticker)
+          .build();
+    }
+
+    /**
+     * Returns the current version of a group, or null if it is not known, in
+     * which case nothing of the group should be cached.
+     */
+    Long getVersion(String group) {
+      Long version = versions.getIfPresent(group);
+      if (version != null) {
+        return version;
+      }
+      String versionKey = versionKey(group);
+      Object value = memcache.get(versionKey);
+      if (value == null) {
+        // The version was evicted or never set. Start again from the time,
+        // which is later than any version the group had before.
+        memcache.put(versionKey, System.currentTimeMillis(), null,
+            MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        value = memcache.get(versionKey);
+        if (value == null) {
+          return null;
+        }
+      }
+      version = ((Number) value).longValue();
+      versions.put(group, version);
+      return version;
+    }
+
+    /**
+     * Returns a cached value, or null if there is none.
+     */
+    Object get(String group, long version, String key) {
+      String versionedKey = versionedKey(group, version, key);
+      Object value = values.getIfPresent(versionedKey);
+      if (value != null) {
+        count(l1Hits);
+        return value;
+      }
+      value = memcache.get(versionedKey);
+      if (value != null) {
+        values.put(versionedKey, value);
+        count(l2Hits);
+        return value;
+      }
+      count(misses);
+      return null;
+    }
+
+    /**
+     * Caches a value read while the group had the given version.
+     */
+    void put(String group, long version, String key, Object value) {
+      String versionedKey = versionedKey(group, version, key);
+      values.put(versionedKey, value);
+      memcache.put(versionedKey, value, Expiration.byDeltaSeconds(expirationSeconds));
+    }
+
+    /**
+     * Makes the cached values of a group unreachable.
+     */
+    void invalidate(String group) {
+      Long version = memcache.increment(versionKey(group), 1, System.currentTimeMillis());
+      if (version != null) {
+        versions.put(group, version);
+        return;
+      }
+      LOG.warning("Unable to invalidate the cached " + name + " " + group);
+      // Other instances keep the values until they expire, but this one drops them.
+      versions.invalidate(group);
+      String prefix = CACHE_PREFIX + name + ":" + group + ":";
+      Iterator<String> keys = values.asMap().keySet().iterator();
+      while (keys.hasNext()) {
+        if (keys.next().startsWith(prefix)) {
+          keys.remove();
+        }
+      }
+    }
+
+    String getStats() {
+      long l1 = l1Hits.get();
+      long l2 = l2Hits.get();
+      long missed = misses.get();
+      long total = Math.max(1, l1 + l2 + missed);
+      return name + " cache: " + (l1 + l2 + missed) + " lookups, "
+          + (100 * l1 / total) + "% L1 hits, " + (100 * l2 / total) + "% L2 hits, "
+          + (100 * missed / total) + "% misses";
+    }
+
+    private void count(AtomicLong counter) {
+      counter.incrementAndGet();
+      if ((l1Hits.get() + l2Hits.get() + misses.get()) % STATS_LOG_INTERVAL == 0) {
+        LOG.info(getStats());
+      }
+    }
+
+    private String versionKey(String group) {
+      return CACHE_PREFIX + "version:" + name + ":" + group;
+    }
+
+    private String versionedKey(String group, long version, String key) {
+      return CACHE_PREFIX + name + ":" + group + ":" + version + ":" + key;
+    }
+  }
+
+  public CachingStorageIo(StorageIo delegate) {
+    this(delegate, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  CachingStorageIo(StorageIo delegate, Ticker ticker) {
+    super(delegate);
+    memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+    users = new TieredCache("user", 3600, ticker);
+    whiteList = new TieredCache("whitelist", 600, ticker);
+    projects = new TieredCache("project", 3600, ticker);
+  }
+
+  /**
+   * Returns the hit ratios of the caches of this instance, as logged every
+   * {@link #STATS_LOG_INTERVAL} lookups and shown by the StorageStatsServlet.
+   */
+  public String getStats() {
+    return users.getStats() + "; " + whiteList.getStats() + "; " + projects.getStats();
+  }
+
+  // User management
+
+  @Override
+  public User getUser(String userId) {
+    return getUser(userId, null);
+  }
+
+  @Override
+  public User getUser(String userId, String email) {
+    Long version = users.getVersion(userId);
+    if (version != null) {
+      User user = (User) users.get(userId, version, userId);
+      // Like ObjectifyStorageIo, go to the datastore to record a new email address.
+      if (user != null && (email == null || email.equals(user.getUserEmail()))) {
+        return copyUser(user);
+      }
+    }
+    User user = delegate.getUser(userId, email);
+    // A user found by email address may have another id, and a user who has
+    // not accepted the terms of service is about to change.
+    if (version != null && user.getUserTosAccepted() && userId.equals(user.getUserId())) {
+      users.put(userId, version, userId, copyUser(user));
+    }
+    return user;
+  }
+
+  @Override
+  public void setUserEmail(String userId, String email) {
+    delegate.setUserEmail(userId, email);
+    users.invalidate(userId);
+  }
+
+  @Override
+  public void setTosAccepted(String userId) {
+    delegate.setTosAccepted(userId);
+    users.invalidate(userId);
+  }
+
+  @Override
+  public void setUserSessionId(String userId, String sessionId) {
+    delegate.setUserSessionId(userId, sessionId);
+    users.invalidate(userId);
+  }
+
+  @Override
+  public void setUserPassword(String userId, String password) {
+    delegate.setUserPassword(userId, password);
+    users.invalidate(userId);
+  }
+
+  @Override
+  public void setUserName(String userId, String name) {
+    delegate.setUserName(userId, name);
+    users.invalidate(userId);
+  }
+
+  @Override
+  public void setUserLink(String userId, String link) {
+    delegate.setUserLink(userId, link);
+    users.invalidate(userId);
+  }
+
+  @Override
+  public void setUserEmailFrequency(String userId, int emailFrequency) {
+    delegate.setUserEmailFrequency(userId, emailFrequency);
+    users.invalidate(userId);
+  }
+
+  @Override
+  public void storeUser(AdminUser user) throws AdminInterfaceException {
+    delegate.storeUser(user);
+    if (user.getId() != null) {
+      users.invalidate(user.getId());
+    }
+  }
+
+  @Override
+  public boolean checkWhiteList(String email) {
+    String key = email.toLowerCase();
+    Long version = whiteList.getVersion(key);
+    if (version != null) {
+      Boolean allowed = (Boolean) whiteList.get(key, version, key);
+      if (allowed != null) {
+        return allowed;
+      }
+    }
+    boolean allowed = delegate.checkWhiteList(email);
+    if (version != null) {
+      whiteList.put(key, version, key, allowed);
+    }
+    return allowed;
+  }
+
+  // Project management
+
+  @Override
+  public void deleteProject(String userId, long projectId) {
+    delegate.deleteProject(userId, projectId);
+    projects.invalidate(Long.toString(projectId));
+  }
+
+  @Override
+  public String getProjectName(String userId, long projectId) {
+    String group = Long.toString(projectId);
+    String key = userId + ":name";
+    Long version = projects.getVersion(group);
+    if (version != null) {
+      String name = (String) projects.get(group, version, key);
+      if (name != null) {
+        return name;
+      }
+    }
+    String name = delegate.getProjectName(userId, projectId);
+    if (version != null && name != null) {
+      projects.put(group, version, key, name);
+    }
+    return name;
+  }
+
+  @Override
+  public long getProjectDateModified(String userId, long projectId) {
+    String group = Long.toString(projectId);
+    String key = userId + ":dateModified";
+    Long version = projects.getVersion(group);
+    if (version != null) {
+      Long date = (Long) projects.get(group, version, key);
+      if (date != null) {
+        return date;
+      }
+    }
+    long date = delegate.getProjectDateModified(userId, projectId);
+    if (version != null) {
+      projects.put(group, version, key, date);
+    }
+    return date;
+  }
+
+  // The methods below change the modification date of a project.
+
+  @Override
+  public void storeProjectSettings(String userId, long projectId, String settings) {
+    delegate.storeProjectSettings(userId, projectId, settings);
+    projects.invalidate(Long.toString(projectId));
+  }
+
+  @Override
+  public void addSourceFilesToProject(String userId, long projectId, boolean changeModDate,
+      String... fileIds) {
+    delegate.addSourceFilesToProject(userId, projectId, changeModDate, fileIds);
+    projects.invalidate(Long.toString(projectId));
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(String userId, long projectId, boolean changeModDate,
+      String... fileIds) {
+    delegate.removeSourceFilesFromProject(userId, projectId, changeModDate, fileIds);
+    projects.invalidate(Long.toString(projectId));
+  }
+
+  @Override
+  public long uploadFile(long projectId, String fileId, String userId, String content,
+      String encoding) throws BlocksTruncatedException {
+    Long date = null;
+    try {
+      date = delegate.uploadFile(projectId, fileId, userId, content, encoding);
+      return date;
+    } finally {
+      uploaded(userId, projectId, date);
+    }
+  }
+
+  @Override
+  public long uploadFileForce(long projectId, String fileId, String userId, String content,
+      String encoding) {
+    Long date = null;
+    try {
+      date = delegate.uploadFileForce(projectId, fileId, userId, content, encoding);
+      return date;
+    } finally {
+      uploaded(userId, projectId, date);
+    }
+  }
+
+  @Override
+  public long uploadRawFile(long projectId, String fileId, String userId, boolean force,
+      byte[] content) throws BlocksTruncatedException {
+    Long date = null;
+    try {
+      date = delegate.uploadRawFile(projectId, fileId, userId, force, content);
+      return date;
+    } finally {
+      uploaded(userId, projectId, date);
+    }
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content) {
+    Long date = null;
+    try {
+      date = delegate.uploadRawFileForce(projectId, fileId, userId, content);
+      return date;
+    } finally {
+      uploaded(userId, projectId, date);
+    }
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileId, String userId,
+      InputStream content) throws IOException {
+    Long date = null;
+    try {
+      date = delegate.uploadRawFileForce(projectId, fileId, userId, content);
+      return date;
+    } finally {
+      uploaded(userId, projectId, date);
+    }
+  }
+
+  /*
+   * Invalidates the cached metadata of a project after an upload, or after a failed one, unless
+   * the upload left the modification date as cached. That is the case for the unchanged files
+   * that the autosave timer sends, which the delegate skips, and for writes within a minute of
+   * the last one, and in both cases the cached name and date are still right.
+   */
+  private void uploaded(String userId, long projectId, Long date) {
+    String group = Long.toString(projectId);
+    if (date != null) {
+      Long version = projects.getVersion(group);
+      if (version != null
+          && date.equals(projects.get(group, version, userId + ":dateModified"))) {
+        return;
+      }
+    }
+    projects.invalidate(group);
+  }
+
+  @Override
+  public long deleteFile(String userId, long projectId, String fileId) {
+    try {
+      return delegate.deleteFile(userId, projectId, fileId);
+    } finally {
+      projects.invalidate(Long.toString(projectId));
+    }
+  }
+
+  /*
+   * Callers change the users they get, for example to set isAdmin, so each
+   * gets its own copy.
+   */
+  private static User copyUser(User user) {
+    User copy = user.copy();
+    copy.setPassword(user.getPassword());
+    return copy;
+  }
+}
@@ -0,0 +1,492 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.Motd;
+import com.google.appinventor.shared.rpc.Nonce;
+import com.google.appinventor.shared.rpc.admin.AdminUser;
+import com.google.appinventor.shared.rpc.AdminInterfaceException;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectExportStatus;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.rpc.user.SplashConfig;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link StorageIo} that forwards every call to another one. Subclasses
+ * override the methods whose behavior they change.
+ */
+public abstract class ForwardingStorageIo implements StorageIo {
+
+  protected final StorageIo delegate;
+
+  protected ForwardingStorageIo(StorageIo delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public User getUser(String userId) {
+    return delegate.getUser(userId);
+  }
+
+  @Override
+  public User getUser(String userId, String email) {
+    return delegate.getUser(userId, email);
+  }
+
+  @Override
+  public User getUserFromEmail(String email) {
+    return delegate.getUserFromEmail(email);
+  }
+
+  @Override
+  public void setUserEmail(String userId, String email) {
+    delegate.setUserEmail(userId, email);
+  }
+
+  @Override
+  public void setTosAccepted(String userId) {
+    delegate.setTosAccepted(userId);
+  }
+
+  @Override
+  public void setUserSessionId(String userId, String sessionId) {
+    delegate.setUserSessionId(userId, sessionId);
+  }
+
+  @Override
+  public void setUserPassword(String userId, String password) {
+    delegate.setUserPassword(userId, password);
+  }
+
+  @Override
+  public String loadSettings(String userId) {
+    return delegate.loadSettings(userId);
+  }
+
+  @Override
+  public void setUserName(String userId, String name) {
+    delegate.setUserName(userId, name);
+  }
+
+  @Override
+  public String getUserName(String userId) {
+    return delegate.getUserName(userId);
+  }
+
+  @Override
+  public String getUserLink(String userId) {
+    return delegate.getUserLink(userId);
+  }
+
+  @Override
+  public void setUserLink(String userId, String link) {
+    delegate.setUserLink(userId, link);
+  }
+
+  @Override
+  public int getUserEmailFrequency(String userId) {
+    return delegate.getUserEmailFrequency(userId);
+  }
+
+  @Override
+  public void setUserEmailFrequency(String userId, int emailFrequency) {
+    delegate.setUserEmailFrequency(userId, emailFrequency);
+  }
+
+  @Override
+  public void storeSettings(String userId, String settings) {
+    delegate.storeSettings(userId, settings);
+  }
+
+  @Override
+  public long createProject(String userId, Project project, String projectSettings) {
+    return delegate.createProject(userId, project, projectSettings);
+  }
+
+  @Override
+  public ProjectUpload beginProjectUpload(String userId) {
+    return delegate.beginProjectUpload(userId);
+  }
+
+  @Override
+  public void deleteProject(String userId, long projectId) {
+    delegate.deleteProject(userId, projectId);
+  }
+
+  @Override
+  public List<Long> getProjects(String userId) {
+    return delegate.getProjects(userId);
+  }
+
+  @Override
+  public void setProjectGalleryId(String userId, long projectId, long galleryId) {
+    delegate.setProjectGalleryId(userId, projectId, galleryId);
+  }
+
+  @Override
+  public void setProjectAttributionId(String userId, long projectId, long attributionId) {
+    delegate.setProjectAttributionId(userId, projectId, attributionId);
+  }
+
+  @Override
+  public String loadProjectSettings(String userId, long projectId) {
+    return delegate.loadProjectSettings(userId, projectId);
+  }
+
+  @Override
+  public void storeProjectSettings(String userId, long projectId, String settings) {
+    delegate.storeProjectSettings(userId, projectId, settings);
+  }
+
+  @Override
+  public String getProjectType(String userId, long projectId) {
+    return delegate.getProjectType(userId, projectId);
+  }
+
+  @Override
+  public UserProject getUserProject(String userId, long projectId) {
+    return delegate.getUserProject(userId, projectId);
+  }
+
+  @Override
+  public List<UserProject> getUserProjects(String userId, List<Long> projectIds) {
+    return delegate.getUserProjects(userId, projectIds);
+  }
+
+  @Override
+  public List<UserProject> getUserProjects(String userId) {
+    return delegate.getUserProjects(userId);
+  }
+
+  @Override
+  public String getProjectName(String userId, long projectId) {
+    return delegate.getProjectName(userId, projectId);
+  }
+
+  @Override
+  public long getProjectDateModified(String userId, long projectId) {
+    return delegate.getProjectDateModified(userId, projectId);
+  }
+
+  @Override
+  public String getProjectHistory(String userId, long projectId) {
+    return delegate.getProjectHistory(userId, projectId);
+  }
+
+  @Override
+  public long getProjectDateCreated(String userId, long projectId) {
+    return delegate.getProjectDateCreated(userId, projectId);
+  }
+
+  @Override
+  public void addFilesToUser(String userId, String... fileIds) {
+    delegate.addFilesToUser(userId, fileIds);
+  }
+
+  @Override
+  public List<String> getUserFiles(String userId) {
+    return delegate.getUserFiles(userId);
+  }
+
+  @Override
+  public void uploadUserFile(String userId, String fileId, String content, String encoding) {
+    delegate.uploadUserFile(userId, fileId, content, encoding);
+  }
+
+  @Override
+  public void uploadRawUserFile(String userId, String fileName, byte[] content) {
+    delegate.uploadRawUserFile(userId, fileName, content);
+  }
+
+  @Override
+  public String downloadUserFile(String userId, String fileId, String encoding) {
+    return delegate.downloadUserFile(userId, fileId, encoding);
+  }
+
+  @Override
+  public byte[] downloadRawUserFile(String userId, String fileName) {
+    return delegate.downloadRawUserFile(userId, fileName);
+  }
+
+  @Override
+  public void deleteUserFile(String userId, String fileId) {
+    delegate.deleteUserFile(userId, fileId);
+  }
+
+  @Override
+  public int getMaxJobSizeBytes() {
+    return delegate.getMaxJobSizeBytes();
+  }
+
+  @Override
+  public void addSourceFilesToProject(String userId, long projectId, boolean changeModDate,
+      String... fileIds) {
+    delegate.addSourceFilesToProject(userId, projectId, changeModDate, fileIds);
+  }
+
+  @Override
+  public void addOutputFilesToProject(String userId, long projectId, String... fileIds) {
+    delegate.addOutputFilesToProject(userId, projectId, fileIds);
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(String userId, long projectId, boolean changeModDate,
+      String... fileIds) {
+    delegate.removeSourceFilesFromProject(userId, projectId, changeModDate, fileIds);
+  }
+
+  @Override
+  public void removeOutputFilesFromProject(String userId, long projectId, String... fileIds) {
+    delegate.removeOutputFilesFromProject(userId, projectId, fileIds);
+  }
+
+  @Override
+  public List<String> getProjectSourceFiles(String userId, long projectId) {
+    return delegate.getProjectSourceFiles(userId, projectId);
+  }
+
+  @Override
+  public List<String> getProjectOutputFiles(String userId, long projectId) {
+    return delegate.getProjectOutputFiles(userId, projectId);
+  }
+
+  @Override
+  public long getProjectGalleryId(String userId, long projectId) {
+    return delegate.getProjectGalleryId(userId, projectId);
+  }
+
+  @Override
+  public long getProjectAttributionId(long projectId) {
+    return delegate.getProjectAttributionId(projectId);
+  }
+
+  @Override
+  public long uploadFile(long projectId, String fileId, String userId, String content,
+      String encoding) throws BlocksTruncatedException {
+    return delegate.uploadFile(projectId, fileId, userId, content, encoding);
+  }
+
+  @Override
+  public long uploadFileForce(long projectId, String fileId, String userId, String content,
+      String encoding) {
+    return delegate.uploadFileForce(projectId, fileId, userId, content, encoding);
+  }
+
+  @Override
+  public long uploadRawFile(long projectId, String fileId, String userId, boolean force,
+      byte[] content) throws BlocksTruncatedException {
+    return delegate.uploadRawFile(projectId, fileId, userId, force, content);
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content) {
+    return delegate.uploadRawFileForce(projectId, fileId, userId, content);
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileId, String userId,
+      InputStream content) throws IOException {
+    return delegate.uploadRawFileForce(projectId, fileId, userId, content);
+  }
+
+  @Override
+  public long deleteFile(String userId, long projectId, String fileId) {
+    return delegate.deleteFile(userId, projectId, fileId);
+  }
+
+  @Override
+  public String downloadFile(String userId, long projectId, String fileId, String encoding) {
+    return delegate.downloadFile(userId, projectId, fileId, encoding);
+  }
+
+  @Override
+  public void recordCorruption(String userId, long projectId, String fileId, String message) {
+    delegate.recordCorruption(userId, projectId, fileId, message);
+  }
+
+  @Override
+  public byte[] downloadRawFile(String userId, long projectId, String fileId) {
+    return delegate.downloadRawFile(userId, projectId, fileId);
+  }
+
+  @Override
+  public String uploadTempFile(byte[] content) throws IOException {
+    return delegate.uploadTempFile(content);
+  }
+
+  @Override
+  public InputStream openTempFile(String fileName) throws IOException {
+    return delegate.openTempFile(fileName);
+  }
+
+  @Override
+  public void deleteTempFile(String fileName) throws IOException {
+    delegate.deleteTempFile(fileName);
+  }
+
+  @Override
+  public OutputStream createTempFile(String fileName) throws IOException {
+    return delegate.createTempFile(fileName);
+  }
+
+  @Override
+  public ProjectExportStatus getProjectExportStatus(String userId) {
+    return delegate.getProjectExportStatus(userId);
+  }
+
+  @Override
+  public boolean storeProjectExportStatus(String userId, ProjectExportStatus status) {
+    return delegate.storeProjectExportStatus(userId, status);
+  }
+
+  @Override
+  public List<String> removeExpiredProjectExports(long createdBefore) {
+    return delegate.removeExpiredProjectExports(createdBefore);
+  }
+
+  @Override
+  public Motd getCurrentMotd() {
+    return delegate.getCurrentMotd();
+  }
+
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+      boolean includeProjectHistory, boolean includeAndroidKeystore, @Nullable String zipName,
+      boolean includeYail, boolean includeScreenShots, boolean forGallery,
+      boolean fatalError) throws IOException {
+    return delegate.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError);
+  }
+
+  @Override
+  public String exportProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+      boolean includeAndroidKeystore, boolean includeYail, boolean includeScreenShots,
+      boolean forGallery, boolean fatalError, boolean cacheExport, OutputStream zipStream)
+      throws IOException {
+    return delegate.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError,
+        cacheExport, zipStream);
+  }
+
+  @Override
+  public String findUserByEmail(String email) throws NoSuchElementException {
+    return delegate.findUserByEmail(email);
+  }
+
+  @Override
+  public String findIpAddressByKey(String key) {
+    return delegate.findIpAddressByKey(key);
+  }
+
+  @Override
+  public void storeIpAddressByKey(String key, String ipAddress) {
+    delegate.storeIpAddressByKey(key, ipAddress);
+  }
+
+  @Override
+  public boolean checkWhiteList(String email) {
+    return delegate.checkWhiteList(email);
+  }
+
+  @Override
+  public void storeFeedback(String notes, String foundIn, String faultData, String comments,
+      String datestamp, String email, String projectId) {
+    delegate.storeFeedback(notes, foundIn, faultData, comments, datestamp, email, projectId);
+  }
+
+  @Override
+  public Nonce getNoncebyValue(String nonceValue) {
+    return delegate.getNoncebyValue(nonceValue);
+  }
+
+  @Override
+  public void storeNonce(String nonceValue, String userId, long projectId) {
+    delegate.storeNonce(nonceValue, userId, projectId);
+  }
+
+  @Override
+  public void cleanupNonces() {
+    delegate.cleanupNonces();
+  }
+
+  @Override
+  public void checkUpgrade(String userId) {
+    delegate.checkUpgrade(userId);
+  }
+
+  @Override
+  public void doUpgrade(String userId) {
+    delegate.doUpgrade(userId);
+  }
+
+  @Override
+  public SplashConfig getSplashConfig() {
+    return delegate.getSplashConfig();
+  }
+
+  @Override
+  public StoredData.PWData createPWData(String email) {
+    return delegate.createPWData(email);
+  }
+
+  @Override
+  public StoredData.PWData findPWData(String uid) {
+    return delegate.findPWData(uid);
+  }
+
+  @Override
+  public void cleanuppwdata() {
+    delegate.cleanuppwdata();
+  }
+
+  @Override
+  public List<AdminUser> searchUsers(String partialEmail) {
+    return delegate.searchUsers(partialEmail);
+  }
+
+  @Override
+  public void storeUser(AdminUser user) throws AdminInterfaceException {
+    delegate.storeUser(user);
+  }
+
+  @Override
+  public String downloadBackpack(String backPackId) {
+    return delegate.downloadBackpack(backPackId);
+  }
+
+  @Override
+  public void uploadBackpack(String backPackId, String content) {
+    delegate.uploadBackpack(backPackId, content);
+  }
+
+  @Override
+  public void storeBuildStatus(String userId, long projectId, int progress, boolean done,
+      int queuePosition) {
+    delegate.storeBuildStatus(userId, projectId, progress, done, queuePosition);
+  }
+
+  @Override
+  public BuildStatus getBuildStatus(String userId, long projectId) {
+    return delegate.getBuildStatus(userId, projectId);
+  }
+
+  @Override
+  public void assertUserHasProject(String userId, long projectId) {
+    delegate.assertUserHasProject(userId, projectId);
+  }
+}
@@ -0,0 +1,24 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.annotation.Unindexed;
+
+/**
+ * One shard of a counter of a gallery app, such as its number of downloads. A counter is the
+ * sum of its shards. Each shard is its own entity group, so concurrent updates of a counter
+ * rarely touch the same entity.
+ *
+ * @see GalleryCounters
+ */
+@Unindexed
+public class GalleryCounterShardData {
+  // <galleryId>:<counter name>:<shard number>
+  @Id String id;
+  long count;
+}
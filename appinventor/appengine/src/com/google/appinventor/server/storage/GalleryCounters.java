@@ -0,0 +1,391 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.annotations.VisibleForTesting;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+
+/**
+ * Write-behind, sharded counters of gallery apps.
+ *
+ * <p>Popular apps are downloaded and liked far more often than one entity group can be written,
+ * so every increment used to contend on the app's {@link GalleryAppData}. Instead, increments are
+ * added up in memcache, where every instance sees them, and a task on the "gallerycounters" queue
+ * flushes each counter at most every {@link #FLUSH_INTERVAL_MILLIS}. The first increment of a
+ * counter in an interval adds the task, named after the counter and the interval so that it is
+ * added once whichever instances see increments, and the task runs once the interval is over.
+ * Deltas are therefore written even if no request comes in after them. A flush adds the pending
+ * delta to a random {@link GalleryCounterShardData}, sums the shards and hands the total to the
+ * {@link Listener}, which copies it into GalleryAppData so that the gallery listings can still be
+ * sorted by it.
+ *
+ * <p>Deltas that memcache evicts before they are flushed are lost. That is the price of not
+ * writing on every request, and is acceptable for popularity counts.
+ */
+final class GalleryCounters {
+
+  /**
+   * The counters kept for each gallery app.
+   */
+  enum Counter {
+    DOWNLOADS,
+    LIKES;
+
+    String getName() {
+      return name().toLowerCase();
+    }
+  }
+
+  /**
+   * Receives the totals of the counters that were flushed.
+   */
+  interface Listener {
+    /**
+     * Returns the value a counter had before it was sharded, from GalleryAppData.
+     */
+    long getUnshardedValue(long galleryId, Counter counter);
+
+    /**
+     * Called after a delta was added to a counter.
+     *
+     * @param galleryId  the gallery app
+     * @param counter  the counter
+     * @param delta  the change written by this flush
+     * @param total  the new value of the counter
+     */
+    void counterFlushed(long galleryId, Counter counter, long delta, long total);
+  }
+
+  /**
+   * Arranges for {@link #flush} to be called for a counter.
+   */
+  interface FlushScheduler {
+    /**
+     * Schedules a flush of a counter. Scheduling the same task name again has no effect.
+     *
+     * @param name  the counter, as passed to {@link #flush}
+     * @param taskName  a name unique to the counter and the interval
+     * @param delayMillis  how long to wait before flushing
+     */
+    void schedule(String name, String taskName, long delayMillis);
+  }
+
+  // The number of shards of each counter. Shard 0 also holds the value the counter had before
+  // it was sharded.
+  static final int NUM_SHARDS = 10;
+
+  static final long FLUSH_INTERVAL_MILLIS = 5000;
+
+  static final String QUEUE_NAME = "gallerycounters";
+
+  private static final int MAX_SHARD_RETRIES = 5;
+
+  // How many times a flush tries to claim a pending delta that keeps changing under it
+  private static final int MAX_TAKE_RETRIES = 10;
+
+  // How long a total stays in memcache. Totals read in that time may miss recent flushes.
+  private static final int CACHE_EXPIRATION_SECONDS = 10;
+
+  private static final String CACHE_PREFIX = "GalleryCounter:";
+
+  // Pending increments and decrements are kept apart, since memcache does not decrement a value
+  // below zero.
+  private static final String INCREMENTS_PREFIX = "GalleryCounterIncrements:";
+  private static final String DECREMENTS_PREFIX = "GalleryCounterDecrements:";
+
+  // The number of counters for which an instance remembers the interval it scheduled a flush in
+  private static final int MAX_SCHEDULED = 1000;
+
+  private static final Logger LOG = Logger.getLogger(GalleryCounters.class.getName());
+
+  /**
+   * Flushes counters with tasks on the "gallerycounters" queue, which call
+   * {@link GalleryStorageIo#flushGalleryCounter}.
+   */
+  static final FlushScheduler QUEUE_SCHEDULER = new FlushScheduler() {
+    @Override
+    public void schedule(String name, String taskName, long delayMillis) {
+      try {
+        QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withUrl("/gallerycounters")
+            .param("counter", name).taskName(taskName).countdownMillis(delayMillis));
+      } catch (TaskAlreadyExistsException e) {
+        // Another instance scheduled this flush
+      } catch (RuntimeException e) {
+        // The delta stays pending until the next increment schedules a flush
+        LOG.log(Level.WARNING, "Unable to schedule a flush of gallery counter " + name, e);
+      }
+    }
+  };
+
+  private final Listener listener;
+  private final FlushScheduler scheduler;
+  private final MemcacheService memcache;
+  private final Random random = new Random();
+
+  // The interval in which this instance last scheduled a flush, by counter name, so that the
+  // task is not added again for every increment. Guarded by itself.
+  private final Map<String, Long> scheduled = new LinkedHashMap<String, Long>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      return size() > MAX_SCHEDULED;
+    }
+  };
+
+  GalleryCounters(Listener listener) {
+    this(listener, QUEUE_SCHEDULER);
+  }
+
+  @VisibleForTesting
+  GalleryCounters(Listener listener, FlushScheduler scheduler) {
+    this(listener, scheduler, MemcacheServiceFactory.getMemcacheService());
+  }
+
+  @VisibleForTesting
+  GalleryCounters(Listener listener, FlushScheduler scheduler, MemcacheService memcache) {
+    this.listener = listener;
+    this.scheduler = scheduler;
+    this.memcache = memcache;
+    memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+  }
+
+  /**
+   * Adds delta to a counter. The change is written by a flush scheduled for the end of the
+   * current interval, or right away if memcache is unavailable.
+   */
+  void add(long galleryId, Counter counter, long delta) {
+    if (delta == 0) {
+      return;
+    }
+    String name = counterName(galleryId, counter);
+    Long pending = delta > 0
+        ? memcache.increment(INCREMENTS_PREFIX + name, delta, 0L)
+        : memcache.increment(DECREMENTS_PREFIX + name, -delta, 0L);
+    if (pending == null) {
+      try {
+        addToShards(galleryId, counter, name, delta);
+      } catch (RuntimeException e) {
+        // The delta is dropped rather than failing the request; the counter is only a popularity
+        // hint.
+        LOG.log(Level.WARNING, "Unable to write gallery counter " + name + " by " + delta, e);
+        return;
+      }
+      updateTotal(galleryId, counter, name, delta);
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long interval = now / FLUSH_INTERVAL_MILLIS;
+    synchronized (scheduled) {
+      Long last = scheduled.put(name, interval);
+      if (last != null && last == interval) {
+        return;
+      }
+    }
+    scheduler.schedule(name, "counter-" + name.replace(':', '-') + "-" + interval,
+        (interval + 1) * FLUSH_INTERVAL_MILLIS - now);
+  }
+
+  /**
+   * Returns the value of a counter, including the changes that have not been flushed yet.
+   * Flushed changes may be missing for a few seconds.
+   */
+  long get(long galleryId, Counter counter) {
+    String name = counterName(galleryId, counter);
+    Map<String, Object> values = memcache.getAll(Arrays.asList(
+        CACHE_PREFIX + name, INCREMENTS_PREFIX + name, DECREMENTS_PREFIX + name));
+    Long total = (Long) values.get(CACHE_PREFIX + name);
+    if (total == null) {
+      total = sumShards(ObjectifyService.begin(), name);
+      if (total == 0) {
+        total = listener.getUnshardedValue(galleryId, counter);
+      }
+      memcache.put(CACHE_PREFIX + name, total,
+          Expiration.byDeltaSeconds(CACHE_EXPIRATION_SECONDS));
+    }
+    total += getLong(values.get(INCREMENTS_PREFIX + name))
+        - getLong(values.get(DECREMENTS_PREFIX + name));
+    return Math.max(0, total);
+  }
+
+  /**
+   * Sets a counter to the given value, dropping the changes not flushed yet. Used when the value
+   * is recomputed from scratch.
+   */
+  void set(long galleryId, Counter counter, long value) {
+    String name = counterName(galleryId, counter);
+    memcache.deleteAll(Arrays.asList(INCREMENTS_PREFIX + name, DECREMENTS_PREFIX + name));
+    Objectify datastore = ObjectifyService.begin();
+    List<Key<GalleryCounterShardData>> keys = shardKeys(name);
+    datastore.delete(keys.subList(1, keys.size()));
+    GalleryCounterShardData shard = new GalleryCounterShardData();
+    shard.id = keys.get(0).getName();
+    shard.count = value;
+    datastore.put(shard);
+    memcache.delete(CACHE_PREFIX + name);
+  }
+
+  /**
+   * Writes the pending changes of a counter. Called by the flush scheduled by {@link #add}.
+   *
+   * @param name  the counter name given to the scheduler
+   * @throws RuntimeException  if the changes could not be written; they are kept, and the flush
+   *     should be retried
+   */
+  void flush(String name) {
+    int separator = name.indexOf(':');
+    long galleryId = Long.parseLong(name.substring(0, separator));
+    Counter counter = Counter.valueOf(name.substring(separator + 1).toUpperCase());
+    // Take exactly the deltas read, so that the changes added meanwhile stay pending
+    long increments = take(INCREMENTS_PREFIX + name);
+    long decrements = 0;
+    try {
+      decrements = take(DECREMENTS_PREFIX + name);
+      if (increments != decrements) {
+        addToShards(galleryId, counter, name, increments - decrements);
+      }
+    } catch (RuntimeException e) {
+      giveBack(INCREMENTS_PREFIX + name, increments);
+      giveBack(DECREMENTS_PREFIX + name, decrements);
+      throw e;
+    }
+    if (increments != decrements) {
+      updateTotal(galleryId, counter, name, increments - decrements);
+    }
+  }
+
+  /*
+   * Claims the pending value of a key by resetting it to 0, provided nothing changed it since it
+   * was read. Flushes of a counter can overlap, for example a retried task and the task of the
+   * next interval, and reading the value and then decrementing it would let both of them write
+   * the same delta.
+   *
+   * @throws ConcurrentModificationException  if the value kept changing; the flush is retried
+   */
+  private long take(String key) {
+    for (int tries = 0; tries < MAX_TAKE_RETRIES; tries++) {
+      IdentifiableValue pending = memcache.getIdentifiable(key);
+      long value = pending == null ? 0 : getLong(pending.getValue());
+      if (value <= 0) {
+        return 0;
+      }
+      if (memcache.putIfUntouched(key, pending, 0L)) {
+        return value;
+      }
+    }
+    throw new ConcurrentModificationException("Unable to claim the pending delta of " + key);
+  }
+
+  /*
+   * Returns a claimed value to the pending deltas after a failed flush.
+   */
+  private void giveBack(String key, long value) {
+    if (value > 0) {
+      memcache.increment(key, value, 0L);
+    }
+  }
+
+  private static long getLong(Object value) {
+    return value == null ? 0 : ((Number) value).longValue();
+  }
+
+  private void addToShards(long galleryId, Counter counter, String name, long delta) {
+    List<Key<GalleryCounterShardData>> keys = shardKeys(name);
+    // Shard 0 is created before any other so that the sum always includes the unsharded value.
+    if (ObjectifyService.begin().find(keys.get(0)) == null) {
+      addToShard(keys.get(0), 0, listener.getUnshardedValue(galleryId, counter));
+    }
+    addToShard(keys.get(random.nextInt(NUM_SHARDS)), delta, 0);
+  }
+
+  /*
+   * Hands the new total of a counter to the listener. Once the delta is in the shards, a failure
+   * here is only logged: the next flush copies the total again.
+   */
+  private void updateTotal(long galleryId, Counter counter, String name, long delta) {
+    try {
+      long total = Math.max(0, sumShards(ObjectifyService.begin(), name));
+      memcache.put(CACHE_PREFIX + name, total,
+          Expiration.byDeltaSeconds(CACHE_EXPIRATION_SECONDS));
+      listener.counterFlushed(galleryId, counter, delta, total);
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to update the total of gallery counter " + name, e);
+    }
+  }
+
+  /*
+   * Adds delta to a shard in a transaction. If the shard does not exist, it is created with
+   * initialValue + delta.
+   */
+  private void addToShard(Key<GalleryCounterShardData> key, long delta, long initialValue) {
+    for (int tries = 0; ; tries++) {
+      Objectify datastore = ObjectifyService.beginTransaction();
+      try {
+        GalleryCounterShardData shard = datastore.find(key);
+        if (shard == null) {
+          shard = new GalleryCounterShardData();
+          shard.id = key.getName();
+          shard.count = initialValue;
+        } else if (delta == 0) {
+          return;
+        }
+        shard.count += delta;
+        datastore.put(shard);
+        datastore.getTxn().commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        if (tries >= MAX_SHARD_RETRIES) {
+          throw e;
+        }
+      } finally {
+        if (datastore.getTxn().isActive()) {
+          datastore.getTxn().rollback();
+        }
+      }
+    }
+  }
+
+  @VisibleForTesting
+  static long sumShards(Objectify datastore, String name) {
+    long total = 0;
+    for (GalleryCounterShardData shard : datastore.get(shardKeys(name)).values()) {
+      total += shard.count;
+    }
+    return total;
+  }
+
+  private static List<Key<GalleryCounterShardData>> shardKeys(String name) {
+    List<Key<GalleryCounterShardData>> keys =
+        new ArrayList<Key<GalleryCounterShardData>>(NUM_SHARDS);
+    for (int i = 0; i < NUM_SHARDS; i++) {
+      keys.add(new Key<GalleryCounterShardData>(GalleryCounterShardData.class, name + ":" + i));
+    }
+    return keys;
+  }
+
+  @VisibleForTesting
+  static String counterName(long galleryId, Counter counter) {
+    return galleryId + ":" + counter.getName();
+  }
+}
@@ -0,0 +1,444 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.annotations.VisibleForTesting;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Query;
+
+/**
+ * Precomputed, ranked listings of the active gallery apps.
+ *
+ * <p>The gallery pages used to run an offset query, which reads and skips every app before the
+ * page, and a count of all active apps on every page view. Instead, the ids of the first
+ * {@link #MAX_LISTING_SIZE} apps of each {@link Feed} are kept in memcache, in order, with an
+ * approximate total. A page within the listing is a slice of it fetched with one batch get, so it
+ * costs the same however deep it is. Pages past the end of the listing continue with the apps that
+ * rank after its last app, by score, tie break and id, so they follow on from the listing however
+ * it has changed since it was built. Each of these pages saves the datastore cursor at its end, and
+ * the next page resumes from it. A page past the listing reached without a cursor, for example by
+ * jumping ahead or after the cursor expired, counts and skips the apps before it, so its cost
+ * grows with its distance from the end of the listing.
+ *
+ * <p>Listings are built on first use and whenever memcache drops them. When an app changes, for
+ * example when its counters are flushed, {@link #changed} moves it to its new place in every
+ * listing rather than building them again. Listings are stored with compare-and-set, so that a
+ * listing built before a change is not stored after it.
+ */
+final class GalleryListings {
+
+  /**
+   * The listings, and the order of their apps.
+   */
+  enum Feed {
+    RECENT("dateModified", null),
+    DOWNLOADS("numDownloads", null),
+    LIKES("numLikes", "numDownloads");
+
+    // The property apps are ranked by, highest first, and the one that breaks ties, if any.
+    // Apps with the same score and tie break are ranked by id, lowest first, as the datastore
+    // orders them.
+    private final String property;
+    private final String tieBreakProperty;
+
+    Feed(String property, String tieBreakProperty) {
+      this.property = property;
+      this.tieBreakProperty = tieBreakProperty;
+    }
+
+    private long getScore(GalleryAppData appData) {
+      switch (this) {
+        case RECENT:
+          return appData.dateModified;
+        case DOWNLOADS:
+          return appData.numDownloads;
+        default:
+          return appData.numLikes;
+      }
+    }
+
+    private long getTieBreak(GalleryAppData appData) {
+      return this == LIKES ? appData.numDownloads : 0;
+    }
+
+    private Query<GalleryAppData> query(Objectify datastore) {
+      return order(datastore.query(GalleryAppData.class).filter("active", true));
+    }
+
+    private Query<GalleryAppData> order(Query<GalleryAppData> query) {
+      query.order("-" + property);
+      return tieBreakProperty == null ? query : query.order("-" + tieBreakProperty);
+    }
+
+    /*
+     * Returns the queries for the apps that rank after the given one, in order: those with the
+     * same score and tie break and a higher id, those with the same score and a lower tie break,
+     * and those with a lower score. The datastore allows an inequality filter on one property
+     * only, hence the separate queries.
+     */
+    private List<Query<GalleryAppData>> queriesAfter(Objectify datastore, long score,
+        long tieBreak, long galleryId) {
+      List<Query<GalleryAppData>> queries = new ArrayList<Query<GalleryAppData>>();
+      Query<GalleryAppData> sameRank = datastore.query(GalleryAppData.class)
+          .filter("active", true).filter(property, score);
+      if (tieBreakProperty != null) {
+        sameRank.filter(tieBreakProperty, tieBreak);
+      }
+      queries.add(sameRank.filter("id >", galleryId).order("id"));
+      if (tieBreakProperty != null) {
+        queries.add(datastore.query(GalleryAppData.class).filter("active", true)
+            .filter(property, score).filter(tieBreakProperty + " <", tieBreak)
+            .order("-" + tieBreakProperty));
+      }
+      queries.add(order(datastore.query(GalleryAppData.class).filter("active", true)
+          .filter(property + " <", score)));
+      return queries;
+    }
+  }
+
+  /*
+   * The first apps of a feed, best first. Stored in memcache.
+   */
+  private static final class Listing implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    long[] ids;
+    long[] scores;
+    long[] tieBreaks;
+    // The number of active apps, exact if complete and as of the last build otherwise.
+    int total;
+    // Whether the listing holds every active app.
+    boolean complete;
+
+    int size() {
+      return ids.length;
+    }
+
+    int indexOf(long galleryId) {
+      for (int i = 0; i < ids.length; i++) {
+        if (ids[i] == galleryId) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    void remove(int index) {
+      ids = removeAt(ids, index);
+      scores = removeAt(scores, index);
+      tieBreaks = removeAt(tieBreaks, index);
+    }
+
+    int insert(long galleryId, long score, long tieBreak) {
+      int index = 0;
+      while (index < ids.length && (scores[index] > score
+          || (scores[index] == score && (tieBreaks[index] > tieBreak
+              || (tieBreaks[index] == tieBreak && ids[index] < galleryId))))) {
+        index++;
+      }
+      ids = insertAt(ids, index, galleryId);
+      scores = insertAt(scores, index, score);
+      tieBreaks = insertAt(tieBreaks, index, tieBreak);
+      return index;
+    }
+
+    private static long[] removeAt(long[] array, int index) {
+      long[] result = new long[array.length - 1];
+      System.arraycopy(array, 0, result, 0, index);
+      System.arraycopy(array, index + 1, result, index, result.length - index);
+      return result;
+    }
+
+    private static long[] insertAt(long[] array, int index, long value) {
+      long[] result = new long[array.length + 1];
+      System.arraycopy(array, 0, result, 0, index);
+      result[index] = value;
+      System.arraycopy(array, index, result, index + 1, array.length - index);
+      return result;
+    }
+  }
+
+  /*
+   * Where a page past the end of a listing ended: the query it ended in and the position within
+   * that query. Stored in memcache.
+   */
+  private static final class PageCursor implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    int query;
+    String cursor;
+  }
+
+  // The number of apps kept in a listing. About 24 bytes each, well under the memcache limit.
+  static final int MAX_LISTING_SIZE = 2000;
+
+  // Listings are rebuilt at least this often, to correct the total and any missed change.
+  private static final int CACHE_EXPIRATION_SECONDS = 3600;
+
+  // Stored in place of a listing while it is built. A change made meanwhile removes it, so that
+  // the listing, which may have missed the change, is not stored.
+  @VisibleForTesting
+  static final String BUILDING = "building";
+
+  private static final int BUILDING_EXPIRATION_SECONDS = 60;
+
+  // Page cursors only need to last while someone pages through a feed.
+  private static final int PAGE_CURSOR_EXPIRATION_SECONDS = 600;
+
+  private static final int MAX_UPDATE_RETRIES = 5;
+
+  private static final String CACHE_PREFIX = "GalleryListing:";
+
+  private static final Logger LOG = Logger.getLogger(GalleryListings.class.getName());
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+  private final int maxListingSize;
+
+  GalleryListings() {
+    this(MAX_LISTING_SIZE);
+  }
+
+  @VisibleForTesting
+  GalleryListings(int maxListingSize) {
+    this.maxListingSize = maxListingSize;
+    memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+  }
+
+  /**
+   * Returns a page of a feed.
+   *
+   * @param feed  the feed
+   * @param start  the index of the first app of the page
+   * @param count  the number of apps of the page
+   * @param apps  receives the apps of the page, best first
+   * @return  the approximate number of apps in the feed
+   */
+  int getPage(Feed feed, int start, int count, List<GalleryAppData> apps) {
+    Objectify datastore = ObjectifyService.begin();
+    Listing listing = getListing(datastore, feed);
+    int end = Math.min(start + count, listing.size());
+    if (start < end) {
+      List<Key<GalleryAppData>> keys = new ArrayList<Key<GalleryAppData>>(end - start);
+      for (int i = start; i < end; i++) {
+        keys.add(new Key<GalleryAppData>(GalleryAppData.class, listing.ids[i]));
+      }
+      Map<Key<GalleryAppData>, GalleryAppData> found = datastore.get(keys);
+      for (Key<GalleryAppData> key : keys) {
+        GalleryAppData appData = found.get(key);
+        // A change may not have reached the listing yet.
+        if (appData != null && appData.active) {
+          apps.add(appData);
+        }
+      }
+    }
+    if (start + count > listing.size() && !listing.complete) {
+      List<Query<GalleryAppData>> queries;
+      int last = listing.size() - 1;
+      if (last >= 0) {
+        queries = feed.queriesAfter(datastore, listing.scores[last], listing.tieBreaks[last],
+            listing.ids[last]);
+      } else {
+        queries = Collections.singletonList(feed.query(datastore));
+      }
+      int skip = Math.max(0, start - listing.size());
+      int needed = start + count - Math.max(start, listing.size());
+      int first = 0;
+      Cursor startCursor = null;
+      if (skip > 0) {
+        Object value = memcache.get(getPageCursorKey(feed, listing, skip));
+        if (value instanceof PageCursor) {
+          PageCursor pageCursor = (PageCursor) value;
+          first = pageCursor.query;
+          startCursor = Cursor.fromWebSafeString(pageCursor.cursor);
+          skip = 0;
+        }
+      }
+      for (int i = first; i < queries.size(); i++) {
+        Query<GalleryAppData> query = queries.get(i);
+        if (i == first && startCursor != null) {
+          query.startCursor(startCursor);
+        } else if (skip > 0 && i < queries.size() - 1) {
+          int queryCount = query.count();
+          if (queryCount <= skip) {
+            // The page starts after the apps of this query
+            skip -= queryCount;
+            continue;
+          }
+        }
+        QueryResultIterator<GalleryAppData> results = query.offset(skip).limit(needed).iterator();
+        while (results.hasNext()) {
+          apps.add(results.next());
+          needed--;
+        }
+        skip = 0;
+        if (needed == 0) {
+          // The next page starts here
+          PageCursor pageCursor = new PageCursor();
+          pageCursor.query = i;
+          pageCursor.cursor = results.getCursor().toWebSafeString();
+          memcache.put(getPageCursorKey(feed, listing, start + count - listing.size()),
+              pageCursor, Expiration.byDeltaSeconds(PAGE_CURSOR_EXPIRATION_SECONDS));
+          break;
+        }
+      }
+    }
+    return Math.max(listing.total, listing.size());
+  }
+
+  /**
+   * Moves an app to its place in every feed, or removes it if it is no longer active.
+   *
+   * @param appData  the app as written to the datastore
+   */
+  void changed(GalleryAppData appData) {
+    for (Feed feed : Feed.values()) {
+      update(feed, appData);
+    }
+  }
+
+  private void update(Feed feed, GalleryAppData appData) {
+    String key = getCacheKey(feed);
+    for (int tries = 0; tries < MAX_UPDATE_RETRIES; tries++) {
+      IdentifiableValue value = memcache.getIdentifiable(key);
+      if (value == null || value.getValue() == null) {
+        // Nothing to update; the next page view builds the listing with the change.
+        return;
+      }
+      if (!(value.getValue() instanceof Listing)) {
+        // The listing is being built, maybe without the change. Keep it from being stored.
+        memcache.delete(key);
+        return;
+      }
+      Listing listing = (Listing) value.getValue();
+      int index = listing.indexOf(appData.id);
+      if (index >= 0) {
+        listing.remove(index);
+        if (!appData.active) {
+          listing.total--;
+        }
+      } else if (appData.active) {
+        listing.total++;
+      }
+      if (appData.active) {
+        int inserted = listing.insert(appData.id, feed.getScore(appData),
+            feed.getTieBreak(appData));
+        if (!listing.complete && inserted == listing.size() - 1) {
+          // The app ranks after the listing, where the apps are read from the datastore
+          listing.remove(inserted);
+        } else if (listing.size() > maxListingSize) {
+          listing.remove(listing.size() - 1);
+          listing.complete = false;
+        }
+      }
+      if (listing.complete) {
+        listing.total = listing.size();
+      }
+      if (memcache.putIfUntouched(key, value, listing,
+          Expiration.byDeltaSeconds(CACHE_EXPIRATION_SECONDS))) {
+        return;
+      }
+    }
+    // Too much contention; build the listing again on the next page view.
+    memcache.delete(key);
+  }
+
+  @VisibleForTesting
+  static String getCacheKey(Feed feed) {
+    return CACHE_PREFIX + feed.name();
+  }
+
+  /*
+   * Returns the key of the cursor of the page past the end of a listing that starts at the given
+   * position after it. The key names the last app of the listing, which the pages follow on from,
+   * so that cursors saved for a listing that has changed since are not used.
+   */
+  private static String getPageCursorKey(Feed feed, Listing listing, int position) {
+    int last = listing.size() - 1;
+    StringBuilder key = new StringBuilder(getCacheKey(feed)).append(":cursor:");
+    if (last >= 0) {
+      key.append(listing.ids[last]).append(':').append(listing.scores[last]).append(':')
+          .append(listing.tieBreaks[last]).append(':');
+    }
+    return key.append(position).toString();
+  }
+
+  private Listing getListing(Objectify datastore, Feed feed) {
+    String key = getCacheKey(feed);
+    IdentifiableValue value = memcache.getIdentifiable(key);
+    if (value != null && value.getValue() instanceof Listing) {
+      return (Listing) value.getValue();
+    }
+    if (value == null) {
+      memcache.put(key, BUILDING, Expiration.byDeltaSeconds(BUILDING_EXPIRATION_SECONDS),
+          MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      value = memcache.getIdentifiable(key);
+      if (value != null && value.getValue() instanceof Listing) {
+        return (Listing) value.getValue();
+      }
+    }
+    Listing listing = build(datastore, feed);
+    // Stored only if no change was made while building, and no other request stored a listing
+    if (value != null && BUILDING.equals(value.getValue())) {
+      memcache.putIfUntouched(key, value, listing,
+          Expiration.byDeltaSeconds(CACHE_EXPIRATION_SECONDS));
+    }
+    return listing;
+  }
+
+  private Listing build(Objectify datastore, Feed feed) {
+    long[] ids = new long[maxListingSize];
+    long[] scores = new long[maxListingSize];
+    long[] tieBreaks = new long[maxListingSize];
+    int size = 0;
+    boolean complete = true;
+    for (GalleryAppData appData : feed.query(datastore).limit(maxListingSize + 1)) {
+      if (size == maxListingSize) {
+        complete = false;
+        break;
+      }
+      ids[size] = appData.id;
+      scores[size] = feed.getScore(appData);
+      tieBreaks[size] = feed.getTieBreak(appData);
+      size++;
+    }
+    Listing listing = new Listing();
+    listing.ids = trim(ids, size);
+    listing.scores = trim(scores, size);
+    listing.tieBreaks = trim(tieBreaks, size);
+    listing.complete = complete;
+    if (complete) {
+      listing.total = size;
+    } else {
+      listing.total = feed.query(datastore).count();
+    }
+    LOG.info("Built the " + feed.name().toLowerCase() + " gallery listing of " + size + " of "
+        + listing.total + " apps");
+    return listing;
+  }
+
+  private static long[] trim(long[] array, int size) {
+    long[] result = new long[size];
+    System.arraycopy(array, 0, result, 0, size);
+    return result;
+  }
+}
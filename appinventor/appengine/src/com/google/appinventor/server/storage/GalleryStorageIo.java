@@ -150,6 +150,13 @@ public interface GalleryStorageIo {
    */
   void incrementDownloads(long galleryId);
 
+  /**
+   * writes the pending changes of a download or like counter. Called by the
+   * task queue, with the counter named by the task.
+   * @param counter the name of the counter
+   */
+  void flushGalleryCounter(String counter);
+
   /**
    * deletes an app
    * @param galleryId the id of gallery app to be deleted
@@ -87,12 +87,62 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     ObjectifyService.register(GalleryAppAttributionData.class);
     ObjectifyService.register(GalleryAppReportData.class);
     ObjectifyService.register(GalleryModerationActionData.class);
+    ObjectifyService.register(GalleryCounterShardData.class);
   }
 
   // we'll need to talk to the StorageIo to get developer names, so...
   private final transient StorageIo storageIo =
       StorageIoInstanceHolder.getInstance();
 
+  // The recent, most downloaded and most liked apps, kept up to date as apps change.
+  private final GalleryListings listings = new GalleryListings();
+
+  // Downloads and likes are counted in shards and copied into GalleryAppData when flushed.
+  private final GalleryCounters counters = new GalleryCounters(new GalleryCounters.Listener() {
+    @Override
+    public long getUnshardedValue(long galleryId, GalleryCounters.Counter counter) {
+      GalleryAppData galleryAppData = ObjectifyService.begin().find(galleryKey(galleryId));
+      if (galleryAppData == null) {
+        return 0;
+      }
+      return counter == GalleryCounters.Counter.DOWNLOADS
+          ? galleryAppData.numDownloads : galleryAppData.numLikes;
+    }
+
+    @Override
+    public void counterFlushed(final long galleryId, final GalleryCounters.Counter counter,
+        final long delta, final long total) {
+      final Result<GalleryAppData> updated = new Result<GalleryAppData>();
+      try {
+        runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
+            updated.t = galleryAppData;
+            if (galleryAppData != null) {
+              if (counter == GalleryCounters.Counter.DOWNLOADS) {
+                galleryAppData.numDownloads = (int) total;
+                galleryAppData.unreadDownloads =
+                    (int) Math.max(0, galleryAppData.unreadDownloads + delta);
+              } else {
+                galleryAppData.numLikes = (int) total;
+                galleryAppData.unreadLikes = (int) Math.max(0, galleryAppData.unreadLikes + delta);
+              }
+              datastore.put(galleryAppData);
+            }
+          }
+        });
+      } catch (ObjectifyException e) {
+        LOG.log(Level.WARNING, "Unable to update the " + counter.getName() + " of gallery app "
+            + galleryId, e);
+        return;
+      }
+      if (updated.t != null) {
+        listings.changed(updated.t);
+      }
+    }
+  });
+
   /**
    * creates a new gallery app
    * @param title title of new app
@@ -150,6 +200,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           "gallery error", e);
     }
+    listings.changed(galleryAppData.t);
     GalleryApp gApp = new GalleryApp();
     makeGalleryApp(galleryAppData.t, gApp);
     return gApp;
@@ -174,19 +225,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public GalleryAppListResult getRecentGalleryApps(int start, final int count) {
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    // If I try to run this in runjobwithretries, it tells me can't run
-    // non-ancestor query as a transaction. ObjectifyStorageio has some samples
-    // of not using transactions (run with) so I grabbed.
-
-    Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppData appData:datastore.query(GalleryAppData.class).order("-dateModified").filter("active", true).offset(start).limit(count)) {
-      GalleryApp gApp = new GalleryApp();
-      makeGalleryApp(appData, gApp);
-      apps.add(gApp);
-    }
-    int totalCount = datastore.query(GalleryAppData.class).order("-dateModified").filter("active", true).count();
-    return new GalleryAppListResult(apps, totalCount);
+    return getListingPage(GalleryListings.Feed.RECENT, start, count);
   }
   /**
    * Returns a wrapped class which contains a list of most downloaded
@@ -197,19 +236,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public GalleryAppListResult getMostDownloadedApps(int start, final int count) {
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    // If I try to run this in runjobwithretries, it tells me can't run
-    // non-ancestor query as a transaction. ObjectifyStorageio has some samples
-    // of not using transactions (run with) so I grabbed.
-
-    Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppData appData:datastore.query(GalleryAppData.class).order("-numDownloads").filter("active", true).offset(start).limit(count)) {
-      GalleryApp gApp = new GalleryApp();
-      makeGalleryApp(appData, gApp);
-      apps.add(gApp);
-    }
-    int totalCount = datastore.query(GalleryAppData.class).order("-numDownloads").filter("active", true).count();
-    return new GalleryAppListResult(apps, totalCount);
+    return getListingPage(GalleryListings.Feed.DOWNLOADS, start, count);
   }
 
   /**
@@ -221,29 +248,19 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public GalleryAppListResult getMostLikedApps(int start, final int count) {
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    // If I try to run this in runjobwithretries, it tells me can't run
-    // non-ancestor query as a transaction. ObjectifyStorageio has some samples
-    // of not using transactions (run with) so I grabbed
+    return getListingPage(GalleryListings.Feed.LIKES, start, count);
+  }
 
-    Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppData appData : datastore.query(GalleryAppData.class)
-           .filter("active", true)
-           .order("-numLikes")
-           .order("-numDownloads")
-           .offset(start).limit(count)) {
+  private GalleryAppListResult getListingPage(GalleryListings.Feed feed, int start, int count) {
+    List<GalleryAppData> appDatas = new ArrayList<GalleryAppData>();
+    int totalCount = listings.getPage(feed, start, count, appDatas);
+    List<GalleryApp> apps = new ArrayList<GalleryApp>();
+    for (GalleryAppData appData : appDatas) {
       GalleryApp gApp = new GalleryApp();
       makeGalleryApp(appData, gApp);
       apps.add(gApp);
     }
-
-    // The line below is a PROBLEM. It is *very expensive*
-    // We either need to keep separate track of the number of apps in the
-    // Gallery, or we need to cache this value somewhere so we are
-    // not computing it all the time!
-    int totalCount = datastore.query(GalleryAppData.class).filter("active", true).count();
     return new GalleryAppListResult(apps, totalCount);
-
   }
 
   /**
@@ -402,22 +419,16 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public void incrementDownloads(final long galleryId) {
+    counters.add(galleryId, GalleryCounters.Counter.DOWNLOADS, 1);
+  }
 
-    try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            galleryAppData.numDownloads = galleryAppData.numDownloads + 1;
-            galleryAppData.unreadDownloads = galleryAppData.unreadDownloads + 1;
-            datastore.put(galleryAppData);
-          }
-        }
-      });
-    } catch (ObjectifyException e) {
-       throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo", e);
-    }
+  /**
+   * Writes the pending changes of a download or like counter
+   * @param counter the name of the counter
+   */
+  @Override
+  public void flushGalleryCounter(String counter) {
+    counters.flush(counter);
   }
 
   /**
@@ -432,11 +443,13 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       final String description, final String moreInfo, final String credit,
       final String userId) {
 
+    final Result<GalleryAppData> updated = new Result<GalleryAppData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
           GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
+          updated.t = galleryAppData;
           if (galleryAppData != null) {
             long date = System.currentTimeMillis();
             galleryAppData.title = title;
@@ -451,6 +464,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo", e);
     }
+    if (updated.t != null) {
+      listings.changed(updated.t);
+    }
   }
 
   /**
@@ -512,12 +528,14 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     }
     */
     //for now, we only set app to inactive status.
+    final Result<GalleryAppData> updated = new Result<GalleryAppData>();
     try {
         runJobWithRetries(new JobRetryHelper() {
           @Override
           public void run(Objectify datastore) {
             // delete the GalleryApp
             GalleryAppData appData = datastore.find(galleryKey(galleryId));
+            updated.t = appData;
             if(appData != null){
               appData.active = false;
               datastore.put(appData);
@@ -527,6 +545,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
        } catch (ObjectifyException e) {
         throw CrashReport.createAndLogError(LOG, null,"gallery remove error", e);
       }
+    if (updated.t != null) {
+      listings.changed(updated.t);
+    }
   }
 
 
@@ -605,6 +626,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   @Override
   public int increaseLikes(final long galleryId,final String userId) {
     final Result<Integer> numLikes = new Result<Integer>();
+    final Result<Boolean> liked = new Result<Boolean>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -629,17 +651,22 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
 
             // Retrieve the current number of likes
             numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's like/unread like count
-            galleryAppData.numLikes = galleryAppData.numLikes + 1;
-            galleryAppData.unreadLikes = galleryAppData.unreadLikes + 1;
-            datastore.put(galleryAppData);
+            liked.t = true;
           }
         }
+
+        @Override
+        public void onNonFatalError() {
+          liked.t = null;
+        }
       });
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.increaseLike", e);
     }
+    // Increase app's like/unread like count
+    if (liked.t != null) {
+      counters.add(galleryId, GalleryCounters.Counter.LIKES, 1);
+    }
     return numLikes.t;
   }
 
@@ -653,6 +680,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   @Override
   public int decreaseLikes(final long galleryId, final String userId) {
     final Result<Integer> numLikes = new Result<Integer>();
+    final Result<Boolean> unliked = new Result<Boolean>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -663,29 +691,29 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
             for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
               if(likeData.userId.equals(userId)){
                 datastore.delete(likeData);
+                unliked.t = true;
                 // break;
                 // We don't break because there might be more then one likeData object for this
                 // person
               }
             }
             numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's like/unread like count
-            if(galleryAppData.numLikes > 0){
-              galleryAppData.numLikes = galleryAppData.numLikes - 1;
-            }
-
-            if (galleryAppData.unreadLikes > 0) {
-              galleryAppData.unreadLikes = galleryAppData.unreadLikes - 1;
-              datastore.put(galleryAppData);
-            }
           }
         }
+
+        @Override
+        public void onNonFatalError() {
+          unliked.t = null;
+        }
       });
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           "error in galleryStorageIo.decreaseLike", e);
     }
+    // Decrease app's like/unread like count
+    if (unliked.t != null) {
+      counters.add(galleryId, GalleryCounters.Counter.LIKES, -1);
+    }
     return numLikes.t;
   }
 
@@ -697,22 +725,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * @return the num of like
    */
   public int getNumLikes(final long galleryId) {
-    final Result<Integer> num = new Result<Integer>();
-    try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-          //num.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-          GalleryAppData galleryAppData = datastore.find(galleryKey);
-          num.t = galleryAppData.numLikes;
-        }
-      });
-    } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          "error in galleryStorageIo.getNumLike", e);
-    }
-    return num.t;
+    return (int) counters.get(galleryId, GalleryCounters.Counter.LIKES);
   }
 
   /**
@@ -755,6 +768,8 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public void salvageGalleryApp(final long galleryId) {
+    final Result<Integer> numLikes = new Result<Integer>();
+    final Result<GalleryAppData> salvaged = new Result<GalleryAppData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -782,6 +797,8 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
           GalleryAppData galleryAppData = datastore.find(galleryKey);
           galleryAppData.numLikes = num;
           datastore.put(galleryAppData);
+          numLikes.t = num;
+          salvaged.t = galleryAppData;
           LOG.info("salvage on gallerId:" + galleryId + ", total likes:" + galleryAppData.numLikes);
         }
       });
@@ -789,6 +806,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           "error in galleryStorageIo.salvageGalleryApp", e);
     }
+    // The like count was recomputed, so the shards restart from it.
+    counters.set(galleryId, GalleryCounters.Counter.LIKES, numLikes.t);
+    listings.changed(salvaged.t);
   }
 
   /**
@@ -1087,6 +1107,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   @Override
   public boolean deactivateGalleryApp(final long galleryId) {
     final Result<Boolean> success = new Result<Boolean>();
+    final Result<GalleryAppData> updated = new Result<GalleryAppData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -1099,6 +1120,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
               appData.active = !appData.active;
               datastore.put(appData);
               success.t = true;
+              updated.t = appData;
               if(appData.active){
                 GalleryApp gApp = new GalleryApp();
                 makeGalleryApp(appData, gApp);
@@ -1112,6 +1134,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.markReportAsResolved", e);
     }
+    if (updated.t != null) {
+      listings.changed(updated.t);
+    }
     return success.t;
   }
   /**
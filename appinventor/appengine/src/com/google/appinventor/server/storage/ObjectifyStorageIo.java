@@ -6,6 +6,7 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.appidentity.AppIdentityService;
 import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
 import com.google.appengine.api.appidentity.AppIdentityServiceFailureException;
@@ -16,6 +17,7 @@ import com.google.appengine.api.memcache.ErrorHandlers;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
 import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
@@ -27,6 +29,7 @@ import com.google.appinventor.server.Server;
 import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.storage.StoredData.Backpack;
 import com.google.appinventor.server.storage.StoredData.CorruptionRecord;
+import com.google.appinventor.server.storage.StoredData.ExportJobData;
 import com.google.appinventor.server.storage.StoredData.FeedbackData;
 import com.google.appinventor.server.storage.StoredData.FileData;
 import com.google.appinventor.server.storage.StoredData.MotdData;
@@ -37,6 +40,7 @@ import com.google.appinventor.server.storage.StoredData.SplashData;
 import com.google.appinventor.server.storage.StoredData.UserData;
 import com.google.appinventor.server.storage.StoredData.UserFileData;
 import com.google.appinventor.server.storage.StoredData.UserProjectData;
+import com.google.appinventor.server.storage.StoredData.UserProjectIndexData;
 import com.google.appinventor.server.storage.StoredData.RendezvousData;
 import com.google.appinventor.server.storage.StoredData.WhiteListData;
 import com.google.appinventor.shared.rpc.AdminInterfaceException;
@@ -45,6 +49,7 @@ import com.google.appinventor.shared.rpc.Motd;
 import com.google.appinventor.shared.rpc.Nonce;
 import com.google.appinventor.shared.rpc.admin.AdminUser;
 import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectExportStatus;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
@@ -54,9 +59,13 @@ import com.google.appinventor.shared.rpc.user.SplashConfig;
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 
@@ -69,6 +78,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 
 // GCS imports
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
 import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsInputChannel;
@@ -77,6 +87,7 @@ import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
 import com.google.appengine.tools.cloudstorage.RetryParams;
 
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -86,13 +97,24 @@ import java.nio.channels.Channels;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import java.util.Date;
 import java.util.UUID;
@@ -129,11 +151,38 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
 
+  // Blocks files longer than this are stored in GCS; shorter ones in the datastore
+  private static final int GCS_BLOCKS_FILE_MIN_LENGTH = 50000;
+
   private final boolean useGcs = Flag.createFlag("use.gcs", true).get();
 
   private final boolean conversionEnabled = false; // We are converting GCS <=> Blobstore
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
 
+  // Maximum number of files read from GCS or Blobstore at the same time when exporting a project
+  private static final int EXPORT_PARALLELISM = 8;
+
+  // Name, within a project's GCS directory, of the last export of its source files
+  private static final String EXPORT_CACHE_NAME = ".export-cache.zip";
+
+  // GCS user metadata key holding the fingerprint of the files in a cached export
+  private static final String EXPORT_FINGERPRINT = "fingerprint";
+
+  // Memcache key prefix for the fingerprint of the last export that missed a cached export, and
+  // how long it is kept. An export is only cached when it misses twice with the same files.
+  private static final String EXPORT_MISS_KEY_PREFIX = "export-miss:";
+  private static final int EXPORT_MISS_EXPIRATION_SECONDS = 24 * 3600;
+
+  // Build statuses are kept for the length of the longest build, and then some
+  private static final int BUILD_STATUS_EXPIRATION_SECONDS = 3600;
+
+  // How often the counts of raw file writes are logged
+  private static final int WRITE_STATS_LOG_INTERVAL = 1000;
+
+  // Raw file writes, and those skipped because the content did not change
+  private final AtomicLong rawFileWrites = new AtomicLong();
+  private final AtomicLong skippedRawFileWrites = new AtomicLong();
+
   // Use this class to define the work of a job that can be
   // retried. The "datastore" argument to run() is the Objectify
   // object for this job (created with
@@ -184,6 +233,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     ObjectifyService.register(UserData.class);
     ObjectifyService.register(ProjectData.class);
     ObjectifyService.register(UserProjectData.class);
+    ObjectifyService.register(UserProjectIndexData.class);
     ObjectifyService.register(FileData.class);
     ObjectifyService.register(UserFileData.class);
     ObjectifyService.register(MotdData.class);
@@ -195,6 +245,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     ObjectifyService.register(PWData.class);
     ObjectifyService.register(SplashData.class);
     ObjectifyService.register(Backpack.class);
+    ObjectifyService.register(ExportJobData.class);
 
     // Learn GCS Bucket from App Configuration or App Engine Default
     String gcsBucket = Flag.createFlag("gcs.bucket", "").get();
@@ -620,9 +671,20 @@ public class ObjectifyStorageIo implements  StorageIo {
   }
 
   @Override
-  public long createProject(final String userId, final Project project,
-      final String projectSettings) {
+  public long createProject(String userId, Project project, String projectSettings) {
+    return createProject(userId, project, projectSettings, null,
+        Collections.<FileData>emptyList());
+  }
+
+  /*
+   * Creates a project. If allocatedId is not null, it is the id of the
+   * project, and uploadedFiles are files of the project already written to
+   * GCS, for which FileData is created along with the project.
+   */
+  private long createProject(final String userId, final Project project,
+      final String projectSettings, final Long allocatedId, final List<FileData> uploadedFiles) {
     final Result<Long> projectId = new Result<Long>();
+    final Result<ProjectData> projectData = new Result<ProjectData>();
     final List<FileData> addedFiles = new ArrayList<FileData>();
 
     try {
@@ -633,7 +695,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) throws ObjectifyException {
           long date = System.currentTimeMillis();
           ProjectData pd = new ProjectData();
-          pd.id = null;  // let Objectify auto-generate the project id
+          pd.id = allocatedId;  // if null, let Objectify auto-generate the project id
           pd.dateCreated = date;
           pd.dateModified = date;
           pd.history = project.getProjectHistory();
@@ -646,6 +708,7 @@ public class ObjectifyStorageIo implements  StorageIo {
 
           assert pd.id != null;
           projectId.t = pd.id;
+          projectData.t = pd;
           // After the job commits projectId.t should end up with the last value
           // we've gotten for pd.id (i.e. the one that committed if there
           // was no error).
@@ -672,6 +735,10 @@ public class ObjectifyStorageIo implements  StorageIo {
             }
           }
           datastore.put(addedFiles);  // batch put
+          for (FileData fd : uploadedFiles) {
+            fd.projectKey = projectKey;
+          }
+          datastore.put(uploadedFiles);
         }
 
         @Override
@@ -697,7 +764,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           upd.settings = projectSettings;
           upd.state = UserProjectData.StateEnum.OPEN;
           upd.userKey = userKey(userId);
-          datastore.put(upd);
+          datastore.put(upd, makeProjectIndexData(upd.userKey, projectData.t));
         }
       }, true);
     } catch (ObjectifyException e) {
@@ -721,6 +788,92 @@ public class ObjectifyStorageIo implements  StorageIo {
     return projectId.t;
   }
 
+  @Override
+  public ProjectUpload beginProjectUpload(String userId) {
+    validateGCS();
+    return new GcsProjectUpload(userId);
+  }
+
+  /*
+   * Streams the raw files of a new project to GCS. Files that are kept in the
+   * datastore are small, and are held in memory until the project is created.
+   */
+  @VisibleForTesting
+  class GcsProjectUpload implements ProjectUpload {
+    private final String userId;
+    // The project id is allocated first, because it is part of the GCS names.
+    private final long projectId = ObjectifyService.factory().allocateId(ProjectData.class);
+    // The files written to GCS and those held in memory, by file name
+    private final Map<String, FileData> uploadedFiles = new LinkedHashMap<String, FileData>();
+    private final Map<String, RawFile> smallFiles = new LinkedHashMap<String, RawFile>();
+    private boolean committed;
+
+    GcsProjectUpload(String userId) {
+      this.userId = userId;
+    }
+
+    @VisibleForTesting
+    long getProjectId() {
+      return projectId;
+    }
+
+    @Override
+    public void addRawFile(String fileName, InputStream content) throws IOException {
+      // Read only as much as decides whether the file goes to GCS.
+      byte[] head = ByteStreams.toByteArray(useGCSforFile(fileName, Integer.MAX_VALUE)
+          ? ByteStreams.limit(content, GCS_BLOCKS_FILE_MIN_LENGTH + 1) : content);
+      if (!useGCSforFile(fileName, head.length)) {
+        uploadedFiles.remove(fileName);
+        smallFiles.put(fileName, new RawFile(fileName, head));
+        return;
+      }
+      FileData fd = new FileData();
+      fd.fileName = fileName;
+      fd.role = FileData.RoleEnum.SOURCE;
+      fd.userId = userId;
+      fd.isGCS = true;
+      fd.gcsName = makeGCSfileName(fileName, projectId);
+      // Recorded before writing, so that abort removes a partial write.
+      smallFiles.remove(fileName);
+      uploadedFiles.put(fileName, fd);
+      GcsOutputChannel outputChannel =
+          gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName),
+              GcsFileOptions.getDefaultInstance());
+      OutputStream out = Channels.newOutputStream(outputChannel);
+      out.write(head);
+      ByteStreams.copy(content, out);
+      out.close();
+    }
+
+    @Override
+    public long commit(Project project, String projectSettings) {
+      for (RawFile file : smallFiles.values()) {
+        project.addRawFile(file);
+      }
+      long id = createProject(userId, project, projectSettings, projectId,
+          new ArrayList<FileData>(uploadedFiles.values()));
+      committed = true;
+      return id;
+    }
+
+    @Override
+    public void abort() {
+      if (committed) {
+        return;
+      }
+      for (FileData fd : uploadedFiles.values()) {
+        try {
+          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to delete " + fd.gcsName +
+              " from GCS while aborting project upload.", e);
+        }
+      }
+      uploadedFiles.clear();
+      smallFiles.clear();
+    }
+  }
+
   /*
    *  Creates and returns a new FileData object with the specified fields.
    *  Does not check for the existence of the object and does not update
@@ -734,6 +887,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     file.projectKey = projectKey;
     file.role = role;
     file.userId = userId;
+    file.contentHash = hashContent(content);
     if (useGCSforFile(fileName, content.length)) {
       file.isGCS = true;
       file.gcsName = makeGCSfileName(fileName, projectKey.getId());
@@ -758,9 +912,10 @@ public class ObjectifyStorageIo implements  StorageIo {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          // delete the UserProjectData object
+          // delete the UserProjectData object and its entry in the project list
           Key<UserData> userKey = userKey(userId);
-          datastore.delete(userProjectKey(userKey, projectId));
+          datastore.delete(userProjectKey(userKey, projectId),
+              userProjectIndexKey(userKey, projectId));
           // delete any FileData objects associated with this project
         }
       }, true);
@@ -783,6 +938,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           datastore.delete(projectKey);
         }
       }, true);
+      gcsPaths.add(getExportCacheName(projectId));
       // have to delete the blobs outside of the user and project jobs
       for (String blobKeyString: blobKeys) {
         deleteBlobstoreFile(blobKeyString);
@@ -804,37 +960,47 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public void setProjectGalleryId(final String userId, final long projectId,final long galleryId) {
+    final Result<ProjectData> changedProject = new Result<ProjectData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
+          changedProject.t = null;
           ProjectData projectData = datastore.find(projectKey(projectId));
           if (projectData != null) {
             projectData.galleryId = galleryId;
+            projectData.version++;
             datastore.put(projectData);
+            changedProject.t = projectData;
           }
         }
       }, true);
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    updateProjectIndex(userId, changedProject.t);
   }
   @Override
   public void setProjectAttributionId(final String userId, final long projectId,final long attributionId) {
+    final Result<ProjectData> changedProject = new Result<ProjectData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
+          changedProject.t = null;
           ProjectData projectData = datastore.find(projectKey(projectId));
           if (projectData != null) {
             projectData.attributionId = attributionId;
+            projectData.version++;
             datastore.put(projectData);
+            changedProject.t = projectData;
           }
         }
       }, true);
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null,"error in setProjectAttributionId",  e);
     }
+    updateProjectIndex(userId, changedProject.t);
   }
 
   @Override
@@ -986,6 +1152,140 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  @Override
+  public List<UserProject> getUserProjects(final String userId) {
+    final List<UserProject> uProjects = new ArrayList<UserProject>();
+    final Result<Boolean> complete = new Result<Boolean>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          uProjects.clear();
+          complete.t = false;
+          for (UserProjectIndexData upi : datastore.query(UserProjectIndexData.class)
+                   .ancestor(userKey(userId))) {
+            if (upi.projectId == UserProjectIndexData.COMPLETE_MARKER_ID) {
+              complete.t = true;
+            } else {
+              uProjects.add(makeUserProject(upi));
+            }
+          }
+        }
+      }, false);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+    if (complete.t) {
+      return uProjects;
+    }
+    return buildProjectIndex(userId);
+  }
+
+  /*
+   * Builds the project list of a user who created projects before it was
+   * maintained, from their UserProjectData and ProjectData.
+   */
+  private List<UserProject> buildProjectIndex(final String userId) {
+    final List<UserProject> uProjects = new ArrayList<UserProject>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          uProjects.clear();
+          Key<UserData> userKey = userKey(userId);
+          List<Long> projectIds = new ArrayList<Long>();
+          // Read in the transaction, so that a project created meanwhile makes it retry
+          for (UserProjectData upd : datastore.query(UserProjectData.class).ancestor(userKey)) {
+            projectIds.add(upd.projectId);
+          }
+          // Entries written by updateProjectIndex since the build started
+          Map<Long, UserProjectIndexData> entries = new HashMap<Long, UserProjectIndexData>();
+          for (UserProjectIndexData upi : datastore.query(UserProjectIndexData.class)
+                   .ancestor(userKey)) {
+            entries.put(upi.projectId, upi);
+          }
+          // The projects are in other entity groups, so they are read outside of the
+          // transaction. The entry of a project changed meanwhile is either among the
+          // entries read above, or written by updateProjectIndex after this transaction
+          // commits. Writing it before then makes this transaction retry.
+          Map<Long, ProjectData> pds = ObjectifyService.begin().get(ProjectData.class, projectIds);
+          List<UserProjectIndexData> index = new ArrayList<UserProjectIndexData>(pds.size() + 1);
+          for (ProjectData pd : pds.values()) {
+            UserProjectIndexData upi = entries.get(pd.id);
+            if (upi == null || upi.version < pd.version) {
+              upi = makeProjectIndexData(userKey, pd);
+              index.add(upi);
+            }
+            uProjects.add(makeUserProject(upi));
+          }
+          UserProjectIndexData marker = new UserProjectIndexData();
+          marker.projectId = UserProjectIndexData.COMPLETE_MARKER_ID;
+          marker.userKey = userKey;
+          index.add(marker);
+          datastore.put(index);
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+    LOG.info("Built the project list of user " + userId + " with " + uProjects.size()
+        + " projects");
+    return uProjects;
+  }
+
+  /*
+   * Copies the metadata of a project to its entry in the project list of its
+   * owner, once the job that changed the project has committed. The entry is
+   * in the user's entity group, so it is written in a transaction of its own.
+   * The entry is only written if the project has not been deleted since, and
+   * if it has not been written from a later version of the project.
+   */
+  @VisibleForTesting
+  void updateProjectIndex(final String userId, final ProjectData pd) {
+    if (userId == null || pd == null) {
+      return;
+    }
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          Key<UserData> userKey = userKey(userId);
+          if (datastore.find(userProjectKey(userKey, pd.id)) == null) {
+            return;
+          }
+          UserProjectIndexData upi = datastore.find(userProjectIndexKey(userKey, pd.id));
+          if (upi == null || upi.version < pd.version) {
+            datastore.put(makeProjectIndexData(userKey, pd));
+          }
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      // The project is saved, and its entry is updated with its next change.
+      LOG.log(Level.WARNING, "Unable to update the project list of user " + userId
+          + " for project " + pd.id, e);
+    }
+  }
+
+  private static UserProjectIndexData makeProjectIndexData(Key<UserData> userKey,
+      ProjectData pd) {
+    UserProjectIndexData upi = new UserProjectIndexData();
+    upi.projectId = pd.id;
+    upi.userKey = userKey;
+    upi.name = pd.name;
+    upi.type = pd.type;
+    upi.dateCreated = pd.dateCreated;
+    upi.dateModified = pd.dateModified;
+    upi.galleryId = pd.galleryId;
+    upi.attributionId = pd.attributionId;
+    upi.version = pd.version;
+    return upi;
+  }
+
+  private static UserProject makeUserProject(UserProjectIndexData upi) {
+    return new UserProject(upi.projectId, upi.name, upi.type, upi.dateCreated,
+        upi.dateModified, upi.galleryId, upi.attributionId);
+  }
+
   @Override
   public String getProjectName(final String userId, final long projectId) {
     final Result<String> projectName = new Result<String>();
@@ -1322,17 +1622,19 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void addSourceFilesToProject(final String userId, final long projectId,
     final boolean changeModDate, final String... fileNames) {
+    final Result<ProjectData> changedProject = new Result<ProjectData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          addFilesToProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, userId, fileNames);
+          addFilesToProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, userId, changedProject, fileNames);
         }
       }, true);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
+    updateProjectIndex(userId, changedProject.t);
   }
 
   @Override
@@ -1342,7 +1644,8 @@ public class ObjectifyStorageIo implements  StorageIo {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          addFilesToProject(datastore, projectId, FileData.RoleEnum.TARGET, false, userId, fileNames);
+          addFilesToProject(datastore, projectId, FileData.RoleEnum.TARGET, false, userId, null,
+              fileNames);
         }
       }, true);
     } catch (ObjectifyException e) {
@@ -1352,7 +1655,8 @@ public class ObjectifyStorageIo implements  StorageIo {
   }
 
   private void addFilesToProject(Objectify datastore, long projectId, FileData.RoleEnum role,
-    boolean changeModDate, String userId, String... fileNames) {
+    boolean changeModDate, String userId, Result<ProjectData> changedProject,
+    String... fileNames) {
     List<FileData> addedFiles = new ArrayList<FileData>();
     Key<ProjectData> projectKey = projectKey(projectId);
     for (String fileName : fileNames) {
@@ -1364,7 +1668,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
     datastore.put(addedFiles); // batch put
     if (changeModDate) {
-      updateProjectModDate(datastore, projectId, false);
+      updateProjectModDate(datastore, projectId, false, changedProject);
     }
   }
 
@@ -1388,17 +1692,19 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void removeSourceFilesFromProject(final String userId, final long projectId,
       final boolean changeModDate, final String... fileNames) {
+    final Result<ProjectData> changedProject = new Result<ProjectData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+          removeFilesFromProject(datastore, userId, projectId, FileData.RoleEnum.SOURCE, changeModDate, changedProject, fileNames);
         }
       }, true);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
+    updateProjectIndex(userId, changedProject.t);
   }
 
   @Override
@@ -1408,7 +1714,8 @@ public class ObjectifyStorageIo implements  StorageIo {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+          removeFilesFromProject(datastore, userId, projectId, FileData.RoleEnum.TARGET, false, null,
+              fileNames);
         }
       }, true);
     } catch (ObjectifyException e) {
@@ -1417,8 +1724,9 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
-  private void removeFilesFromProject(Objectify datastore, long projectId,
-      FileData.RoleEnum role, boolean changeModDate, String... fileNames) {
+  private void removeFilesFromProject(Objectify datastore, String userId, long projectId,
+      FileData.RoleEnum role, boolean changeModDate, Result<ProjectData> changedProject,
+      String... fileNames) {
     Key<ProjectData> projectKey = projectKey(projectId);
     List<Key<FileData>> filesToRemove = new ArrayList<Key<FileData>>();
     for (String fileName : fileNames) {
@@ -1437,7 +1745,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
     datastore.delete(filesToRemove);  // batch delete
     if (changeModDate) {
-      updateProjectModDate(datastore, projectId, false);
+      updateProjectModDate(datastore, projectId, false, changedProject);
     }
   }
 
@@ -1509,8 +1817,27 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
-  private long updateProjectModDate(Objectify datastore, long projectId, boolean doingConversion) {
+  private long getProjectModDate(Objectify datastore, long projectId) {
+    return getProjectModDate(datastore.find(projectKey(projectId)), projectId);
+  }
+
+  private long getProjectModDate(ProjectData pd, long projectId) {
+    if (pd == null) {
+      throw CrashReport.createAndLogError(LOG, null, null,
+          new IllegalArgumentException("project " + projectId + " doesn't exist"));
+    }
+    return pd.dateModified;
+  }
+
+  /*
+   * Updates the modification date of a project, and returns it. If the project
+   * changes, it is put in changedProject, so that the caller can update the
+   * project list with updateProjectIndex once the job commits.
+   */
+  private long updateProjectModDate(Objectify datastore, long projectId,
+      boolean doingConversion, Result<ProjectData> changedProject) {
     long modDate = System.currentTimeMillis();
+    changedProject.t = null;
     ProjectData pd = datastore.find(projectKey(projectId));
     if (pd != null) {
       // Only update the ProjectData dateModified if it is more then a minute
@@ -1519,7 +1846,9 @@ public class ObjectifyStorageIo implements  StorageIo {
       // blobstore to GCS
       if ((modDate > (pd.dateModified + 1000*60)) && !doingConversion) {
         pd.dateModified = modDate;
+        pd.version++;
         datastore.put(pd);
+        changedProject.t = pd;
       } else {
         // return the (old) dateModified
         modDate = pd.dateModified;
@@ -1542,6 +1871,78 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  @Override
+  public long uploadRawFileForce(final long projectId, final String fileName, final String userId,
+      final InputStream content) throws IOException {
+    validateGCS();
+    if (!useGCSforFile(fileName, 0)) {
+      return uploadRawFileForce(projectId, fileName, userId, ByteStreams.toByteArray(content));
+    }
+
+    // Copy the content to GCS in chunks before touching the datastore, so that a large build
+    // output is never held in memory. The channel is only closed, which makes the new object
+    // visible, if the whole content was copied.
+    final String gcsName = makeGCSfileName(fileName, projectId);
+    GcsOutputChannel outputChannel =
+        gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, gcsName),
+            GcsFileOptions.getDefaultInstance());
+    ByteStreams.copy(content, Channels.newOutputStream(outputChannel));
+    outputChannel.close();
+
+    final Result<Long> modTime = new Result<Long>();
+    final Result<ProjectData> changedProject = new Result<ProjectData>();
+    final Result<String> oldBlobstoreKey = new Result<String>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        FileData fd;
+
+        @Override
+        public void run(Objectify datastore) throws ObjectifyException {
+          Key<FileData> key = projectFileKey(projectKey(projectId), fileName);
+          fd = datastore.find(key);
+          Preconditions.checkState(fd != null);
+          if (fd.userId != null && !fd.userId.equals("") && !fd.userId.equals(userId)) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectUserProjectErrorInfo(userId, projectId),
+                new UnauthorizedAccessException(userId, projectId, null));
+          }
+          if (fd.isBlob) {
+            // mark the old blobstore blob for deletion
+            oldBlobstoreKey.t = fd.blobKey;
+          }
+          fd.isGCS = true;
+          fd.gcsName = gcsName;
+          fd.content = null;
+          fd.isBlob = false;
+          fd.blobstorePath = null;
+          fd.contentHash = null;
+          // Old file not marked with ownership, mark it now
+          if (fd.userId == null || fd.userId.equals("")) {
+            fd.userId = userId;
+          }
+          datastore.put(fd);
+          memcache.put(key.getString(), fd); // Store the updated data in memcache
+          modTime.t = updateProjectModDate(datastore, projectId, false, changedProject);
+        }
+
+        @Override
+        public void onNonFatalError() {
+          if (fd != null && fd.blobKey != null) {
+            oldBlobstoreKey.t = fd.blobKey;
+          }
+        }
+      }, false);
+      if (oldBlobstoreKey.t != null) {
+        deleteBlobstoreFile(oldBlobstoreKey.t);
+      }
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+    updateProjectIndex(userId, changedProject.t);
+    return modTime.t;
+  }
+
   @Override
   public long uploadRawFile(final long projectId, final String fileName, final String userId,
       final boolean force, final byte[] content) throws BlocksTruncatedException {
@@ -1552,7 +1953,10 @@ public class ObjectifyStorageIo implements  StorageIo {
       final boolean force, final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
+    final Result<ProjectData> changedProject = new Result<ProjectData>();
     final boolean useGCS = useGCSforFile(fileName, content.length);
+    final String contentHash = hashContent(content);
+    final Result<Boolean> skipped = new Result<Boolean>();
     final Result<String> oldBlobstoreKey = new Result<String>();
     final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
         || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
@@ -1567,6 +1971,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) throws ObjectifyException {
           Key<FileData> key = projectFileKey(projectKey(projectId), fileName);
           fd = (FileData) memcache.get(key.getString());
+          boolean fromMemcache = fd != null;
           if (fd == null) {
             fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
           } else {
@@ -1598,6 +2003,29 @@ public class ObjectifyStorageIo implements  StorageIo {
             }
           }
 
+          // The autosave timer often sends files that did not change. Leave those as they are,
+          // unless they are being moved between Blobstore and GCS.
+          if (!doingConversion && isStoredContent(fd, contentHash, useGCS)) {
+            if (!fromMemcache) {
+              skipped.t = true;
+              modTime.t = getProjectModDate(datastore, projectId);
+              return;
+            }
+            // The copy from memcache is not trusted on its own. The put that follows a write
+            // can fail, leaving the copy of an earlier write, and a write skipped because of it
+            // would lose the user's change. So the file is read again, in the same batch get as
+            // the project.
+            Key<ProjectData> projectKey = projectKey(projectId);
+            Map<Key<Object>, Object> stored =
+                datastore.get(Arrays.<Key<?>>asList(key, projectKey));
+            if (isStoredContent((FileData) stored.get(key), contentHash, useGCS)) {
+              skipped.t = true;
+              modTime.t = getProjectModDate((ProjectData) stored.get(projectKey), projectId);
+              return;
+            }
+          }
+          skipped.t = false;
+
           if (fd.isBlob) {
             // mark the old blobstore blob for deletion
            oldBlobstoreKey.t = fd.blobKey;
@@ -1656,9 +2084,10 @@ public class ObjectifyStorageIo implements  StorageIo {
           if (fd.userId == null || fd.userId.equals("")) {
             fd.userId = userId;
           }
+          fd.contentHash = contentHash;
           datastore.put(fd);
           memcache.put(key.getString(), fd); // Store the updated data in memcache
-          modTime.t = updateProjectModDate(datastore, projectId, doingConversion);
+          modTime.t = updateProjectModDate(datastore, projectId, doingConversion, changedProject);
         }
 
         @Override
@@ -1684,9 +2113,51 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
     }
+    updateProjectIndex(userId, changedProject.t);
+    countRawFileWrite(skipped.t);
     return modTime.t;
   }
 
+  /*
+   * Returns whether fd is stored where content of the given hash would be
+   * written, and holds that content.
+   */
+  private boolean isStoredContent(FileData fd, String contentHash, boolean useGCS) {
+    return fd != null && contentHash.equals(fd.contentHash) && !fd.isBlob
+        && useGCS == isTrue(fd.isGCS);
+  }
+
+  private static String hashContent(byte[] content) {
+    return Hashing.sha256().hashBytes(content).toString();
+  }
+
+  private void countRawFileWrite(boolean skipped) {
+    long writes = rawFileWrites.incrementAndGet();
+    if (skipped) {
+      skippedRawFileWrites.incrementAndGet();
+    }
+    if (writes % WRITE_STATS_LOG_INTERVAL == 0) {
+      LOG.info(getWriteStats());
+    }
+  }
+
+  /**
+   * Returns the number of raw file writes by this instance, and how many of
+   * them were skipped because the content did not change, as logged every
+   * {@link #WRITE_STATS_LOG_INTERVAL} writes.
+   */
+  public String getWriteStats() {
+    long writes = rawFileWrites.get();
+    long skipped = skippedRawFileWrites.get();
+    return "raw file writes: " + writes + ", skipped as unchanged: " + skipped
+        + " (" + (100 * skipped / Math.max(1, writes)) + "%)";
+  }
+
+  @VisibleForTesting
+  long getSkippedRawFileWrites() {
+    return skippedRawFileWrites.get();
+  }
+
   protected void deleteBlobstoreFile(String blobKeyString) {
     // It would be nice if there were an AppEngineFile.delete() method but alas there isn't, so we
     // have to get the BlobKey and delete via the BlobstoreService.
@@ -1711,7 +2182,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       return true;              // Use GCS for package output and assets
     boolean mayUse = (fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
       || (fileName.contains("src/") && fileName.endsWith(".bky")); // Blockly files
-    if (mayUse && length > 50000) // Only use GCS for larger blocks files
+    if (mayUse && length > GCS_BLOCKS_FILE_MIN_LENGTH) // Only use GCS for larger blocks files
       return true;
     return false;
   }
@@ -1725,6 +2196,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public long deleteFile(final String userId, final long projectId, final String fileName) {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
+    final Result<ProjectData> changedProject = new Result<ProjectData>();
     final Result<String> oldBlobKeyString = new Result<String>();
     final Result<String> oldgcsName = new Result<String>();
     try {
@@ -1748,13 +2220,14 @@ public class ObjectifyStorageIo implements  StorageIo {
             }
           }
           datastore.delete(fileKey);
-          modTime.t = updateProjectModDate(datastore, projectId, false);
+          modTime.t = updateProjectModDate(datastore, projectId, false, changedProject);
         }
       }, true);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
     }
+    updateProjectIndex(userId, changedProject.t);
     if (oldBlobKeyString.t != null) {
       deleteBlobstoreFile(oldBlobKeyString.t);
     }
@@ -1985,6 +2458,65 @@ public class ObjectifyStorageIo implements  StorageIo {
     final boolean includeScreenShots,
     final boolean forGallery,
     final boolean fatalError) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    Result<String> projectName = new Result<String>();
+    int fileCount = exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError,
+        true, zipFile, projectName);
+
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  /**
+   *  Exports project files as a zip archive written to the given stream, rather than
+   *  returned in memory.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param includeYail include any yail files in the project
+   * @param includeScreenShots include any screen shots stored with the project
+   * @param forGallery flag to indicate we are exporting for the gallery
+   * @param fatalError Signal a fatal error if a file is not found
+   * @param cacheExport whether the export may be cached for the next export of the project
+   * @param zipStream the stream to write the zip archive to, which is closed on success
+   * @return  the name of the project
+   * @throws IllegalArgumentException if the project has no files, in which case nothing has
+   *         been written to zipStream
+   */
+  @Override
+  public String exportProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    final boolean cacheExport,
+    OutputStream zipStream) throws IOException {
+    Result<String> projectName = new Result<String>();
+    exportProjectSourceZip(userId, projectId, includeProjectHistory, includeAndroidKeystore,
+        includeYail, includeScreenShots, forGallery, fatalError, cacheExport, zipStream,
+        projectName);
+    return projectName.t;
+  }
+
+  private int exportProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    final boolean cacheExport,
+    OutputStream zipStream,
+    final Result<String> projectName) throws IOException {
     validateGCS();
     final Result<Integer> fileCount = new Result<Integer>();
     fileCount.t = 0;
@@ -1995,14 +2527,9 @@ public class ObjectifyStorageIo implements  StorageIo {
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
     projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
-    out.setComment("Built with MIT App Inventor");
-
     try {
       JobRetryHelper job = new JobRetryHelper() {
         @Override
@@ -2051,88 +2578,64 @@ public class ObjectifyStorageIo implements  StorageIo {
       if (error != null) {
         throw error;
       }
-      // Process the file contents outside of the job since we can't read
-      // blobs in the job.
-      for (FileData fd : fileData) {
-        fileName = fd.fileName;
-        byte[] data = null;
-        if (fd.isBlob) {
-          try {
-            if (fd.blobKey == null) {
-              throw new BlobReadException("blobKey is null");
-            }
-            data = getBlobstoreBytes(fd.blobKey);
-          } catch (BlobReadException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-          }
-        } else if (isTrue(fd.isGCS)) {
-          try {
-            int count;
-            boolean npfHappened = false;
-            boolean recovered = false;
-            for (count = 0; count < 5; count++) {
-              GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-              int bytesRead = 0;
-              int fileSize = 0;
-              ByteBuffer resultBuffer;
-              try {
-                fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-                resultBuffer = ByteBuffer.allocate(fileSize);
-                GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-                try {
-                  while (bytesRead < fileSize) {
-                    bytesRead += readChannel.read(resultBuffer);
-                    if (bytesRead < fileSize) {
-                      if (DEBUG) {
-                        LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                      }
-                    }
-                  }
-                  recovered = true;
-                  data = resultBuffer.array();
-                  break;        // We got the data, break out of the loop!
-                } finally {
-                  readChannel.close();
-                }
-              } catch (NullPointerException e) {
-                // This happens if the object in GCS is non-existent, which would happen
-                // when people uploaded a zero length object. As of this change, we now
-                // store zero length objects into GCS, but there are plenty of older objects
-                // that are missing in GCS.
-                LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
-                npfHappened = true;
-                resultBuffer = ByteBuffer.allocate(0);
-                data = resultBuffer.array();
-              }
-            }
+    } catch (ObjectifyException e) {
+      CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      throw new IOException("Reflecting exception for userid " + userId +
+          " projectId " + projectId + ", original exception " + e.getMessage());
+    } catch (RuntimeException e) {
+      CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      throw new IOException("Reflecting exception for userid " + userId +
+          " projectId " + projectId + ", original exception " + e.getMessage());
+    }
 
-            // report out on how things went above
-            if (npfHappened) {    // We lost at least once
-              if (recovered) {
-                LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
-                  " count = " + count);
-              } else {
-                LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
-                if (fatalError) {
-                  throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
-                }
+    if (fileData.isEmpty()) {
+      // Checked before anything is written, so that the caller can still report the error
+      throw new IllegalArgumentException("No files to download");
+    }
+
+    final ZipOutputStream out = new ZipOutputStream(zipStream);
+    out.setComment("Built with MIT App Inventor");
+
+    // The file contents are read from GCS and Blobstore in parallel, but written to the zip in
+    // order, with at most EXPORT_PARALLELISM files held in memory.
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(EXPORT_PARALLELISM, fileData.size()), ThreadManager.currentRequestThreadFactory());
+    try {
+      GcsFilename cacheFileName = new GcsFilename(GCS_BUCKET_NAME, getExportCacheName(projectId));
+      String fingerprint = getExportFingerprint(fileData, executor);
+      if (copyExportCache(cacheFileName, fingerprint, fileData, out)) {
+        fileCount.t += fileData.size();
+      } else {
+        ExportCacheWriter cacheWriter =
+            cacheExport && shouldCacheExport(cacheFileName, fingerprint)
+            ? new ExportCacheWriter(cacheFileName, fingerprint) : null;
+        List<Future<byte[]>> contents = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < fileData.size(); i++) {
+          while (contents.size() < fileData.size() && contents.size() < i + EXPORT_PARALLELISM) {
+            final FileData fd = fileData.get(contents.size());
+            contents.add(executor.submit(new Callable<byte[]>() {
+              @Override
+              public byte[] call() throws IOException {
+                return readExportFileContent(userId, projectId, fd, fatalError);
               }
-            }
-          } catch (IOException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-              collectProjectErrorInfo(userId, projectId, fileName), e);
+            }));
           }
-        } else {
-          data = fd.content;
+          fileName = fileData.get(i).fileName;
+          byte[] data = getExportFileContent(contents.get(i));
+          contents.set(i, null);
+          out.putNextEntry(new ZipEntry(fileName));
+          out.write(data, 0, data.length);
+          out.closeEntry();
+          if (cacheWriter != null) {
+            cacheWriter.add(fileName, data);
+          }
+          fileCount.t++;
         }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
+        if (cacheWriter != null) {
+          cacheWriter.finish();
         }
-        out.putNextEntry(new ZipEntry(fileName));
-        out.write(data, 0, data.length);
-        out.closeEntry();
-        fileCount.t++;
       }
       if (projectHistory.t != null) {
         byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
@@ -2141,21 +2644,13 @@ public class ObjectifyStorageIo implements  StorageIo {
         out.closeEntry();
         fileCount.t++;
       }
-    } catch (ObjectifyException e) {
-      CrashReport.createAndLogError(LOG, null,
-          collectProjectErrorInfo(userId, projectId, fileName), e);
-      throw new IOException("Reflecting exception for userid " + userId +
-          " projectId " + projectId + ", original exception " + e.getMessage());
     } catch (RuntimeException e) {
       CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
       throw new IOException("Reflecting exception for userid " + userId +
           " projectId " + projectId + ", original exception " + e.getMessage());
-    }
-
-    if (fileCount.t == 0) {
-      // can't close out since will get a ZipException due to the lack of files
-      throw new IllegalArgumentException("No files to download");
+    } finally {
+      executor.shutdownNow();
     }
 
     if (includeAndroidKeystore) {
@@ -2187,14 +2682,297 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
 
     out.close();
+    return fileCount.t;
+  }
 
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
+  /*
+   * Reads the content of a project file for exportProjectSourceZip. Called in parallel for the
+   * files of a project.
+   */
+  private byte[] readExportFileContent(String userId, long projectId, FileData fd,
+      boolean fatalError) throws IOException {
+    String fileName = fd.fileName;
+    byte[] data = null;
+    if (fd.isBlob) {
+      try {
+        if (fd.blobKey == null) {
+          throw new BlobReadException("blobKey is null");
+        }
+        data = getBlobstoreBytes(fd.blobKey);
+      } catch (BlobReadException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+    } else if (isTrue(fd.isGCS)) {
+      try {
+        int count;
+        boolean npfHappened = false;
+        boolean recovered = false;
+        for (count = 0; count < 5; count++) {
+          GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
+          int bytesRead = 0;
+          int fileSize = 0;
+          ByteBuffer resultBuffer;
+          try {
+            fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
+            resultBuffer = ByteBuffer.allocate(fileSize);
+            GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
+            try {
+              while (bytesRead < fileSize) {
+                bytesRead += readChannel.read(resultBuffer);
+                if (bytesRead < fileSize) {
+                  if (DEBUG) {
+                    LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
+                  }
+                }
+              }
+              recovered = true;
+              data = resultBuffer.array();
+              break;        // We got the data, break out of the loop!
+            } finally {
+              readChannel.close();
+            }
+          } catch (NullPointerException e) {
+            // This happens if the object in GCS is non-existent, which would happen
+            // when people uploaded a zero length object. As of this change, we now
+            // store zero length objects into GCS, but there are plenty of older objects
+            // that are missing in GCS.
+            LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
+            npfHappened = true;
+            resultBuffer = ByteBuffer.allocate(0);
+            data = resultBuffer.array();
+          }
+        }
+
+        // report out on how things went above
+        if (npfHappened) {    // We lost at least once
+          if (recovered) {
+            LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
+              " count = " + count);
+          } else {
+            LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
+            if (fatalError) {
+              throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
+            }
+          }
+        }
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+    } else {
+      data = fd.content;
+    }
+    if (data == null) {     // This happens if file creation is interrupted
+      data = new byte[0];
+    }
+    return data;
+  }
+
+  private static byte[] getExportFileContent(Future<byte[]> content) throws IOException {
+    try {
+      return content.get();
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while reading project files", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /*
+   * Returns a hash of the names and versions of the given files: the content hash recorded with
+   * the file, the Blobstore key, or a hash of the content stored in the datastore. Only GCS files
+   * written without a content hash, such as those of uploaded projects, need their GCS etag to be
+   * looked up. Returns null if such a GCS file is missing, since the export must not be cached.
+   */
+  private String getExportFingerprint(List<FileData> fileData, ExecutorService executor)
+      throws IOException {
+    List<Future<String>> etags = new ArrayList<Future<String>>();
+    for (final FileData fd : fileData) {
+      if (fd.isBlob || !isTrue(fd.isGCS) || fd.contentHash != null) {
+        etags.add(null);
+        continue;
+      }
+      etags.add(executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws IOException {
+          GcsFileMetadata metadata =
+              gcsService.getMetadata(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
+          return metadata == null ? null : metadata.getEtag();
+        }
+      }));
+    }
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (int i = 0; i < fileData.size(); i++) {
+      FileData fd = fileData.get(i);
+      String version;
+      if (fd.isBlob) {
+        version = "blob:" + fd.blobKey;
+      } else if (fd.contentHash != null) {
+        version = "hash:" + fd.contentHash;
+      } else if (isTrue(fd.isGCS)) {
+        String etag;
+        try {
+          etag = etags.get(i).get();
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while reading project files", e);
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause(), IOException.class);
+          throw new IOException(e.getCause());
+        }
+        version = etag == null ? null : "gcs:" + etag;
+      } else {
+        version = "hash:" + hashContent(fd.content == null ? new byte[0] : fd.content);
+      }
+      if (version == null) {
+        return null;
+      }
+      hasher.putString(fileData.get(i).fileName, Charsets.UTF_8).putChar('\0');
+      hasher.putString(version, Charsets.UTF_8).putChar('\0');
+    }
+    return hasher.hash().toString();
+  }
+
+  /*
+   * Returns the GCS name of the cached last export of a project's source files. A project has
+   * one, for whichever files were last exported; since the fingerprint covers the file names, an
+   * export with or without the YAIL files or screenshots only uses it if it has the same files.
+   */
+  @VisibleForTesting
+  String getExportCacheName(long projectId) {
+    return makeGCSfileName(EXPORT_CACHE_NAME, projectId);
+  }
+
+  /*
+   * Returns whether a file exists in GCS.
+   */
+  @VisibleForTesting
+  boolean gcsFileExists(String gcsName) throws IOException {
+    return gcsService.getMetadata(new GcsFilename(GCS_BUCKET_NAME, gcsName)) != null;
+  }
+
+  /*
+   * Copies the entries of the cached export to the given zip, if its fingerprint matches, without
+   * holding them in memory. Returns false if there is no matching cached export, or if it cannot
+   * be read before anything is written; the files are then read one by one. The fingerprint
+   * covers the file names, so a cached export whose entries do not match them is damaged: it is
+   * deleted, and the export fails if some entries were already written.
+   */
+  private boolean copyExportCache(GcsFilename cacheFileName, String fingerprint,
+      List<FileData> fileData, ZipOutputStream out) throws IOException {
+    if (fingerprint == null) {
+      return false;
+    }
+    boolean written = false;
+    try {
+      GcsFileMetadata metadata = gcsService.getMetadata(cacheFileName);
+      if (metadata == null
+          || !fingerprint.equals(metadata.getOptions().getUserMetadata().get(EXPORT_FINGERPRINT))) {
+        return false;
+      }
+      InputStream in = Channels.newInputStream(gcsService.openPrefetchingReadChannel(
+          cacheFileName, 0, (int) Math.min(metadata.getLength(), 1024 * 1024) + 1));
+      try {
+        // ZipInputStream checks the CRC of every entry, so a damaged cache file is detected
+        ZipInputStream zip = new ZipInputStream(in);
+        int count = 0;
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+          if (count >= fileData.size() || !entry.getName().equals(fileData.get(count).fileName)) {
+            throw new ZipException("Unexpected entry " + entry.getName());
+          }
+          written = true;
+          out.putNextEntry(new ZipEntry(entry.getName()));
+          ByteStreams.copy(zip, out);
+          out.closeEntry();
+          count++;
+        }
+        if (count != fileData.size()) {
+          throw new ZipException("Missing entries");
+        }
+        return true;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read cached export " + cacheFileName, e);
+      if (e instanceof ZipException || e instanceof EOFException) {
+        try {
+          gcsService.delete(cacheFileName);
+        } catch (IOException deleteError) {
+          LOG.log(Level.WARNING, "Unable to delete cached export " + cacheFileName, deleteError);
+        }
+      }
+      if (written) {
+        throw e;
+      }
+      return false;
+    }
+  }
+
+  /*
+   * Returns whether to cache an export that missed the cached export. While a project is being
+   * edited every export misses, so rather than rewriting the cache each time, an export is only
+   * cached when the previous miss was for the same files.
+   */
+  private boolean shouldCacheExport(GcsFilename cacheFileName, String fingerprint) {
+    if (fingerprint == null) {
+      return false;
+    }
+    String key = EXPORT_MISS_KEY_PREFIX + cacheFileName.getObjectName();
+    if (fingerprint.equals(memcache.get(key))) {
+      return true;
+    }
+    memcache.put(key, fingerprint, Expiration.byDeltaSeconds(EXPORT_MISS_EXPIRATION_SECONDS));
+    return false;
+  }
+
+  /*
+   * Writes the cached export of a project's source files, alongside the export itself. Errors
+   * are logged and drop the cache file, they never fail the export.
+   */
+  private class ExportCacheWriter {
+    private final GcsFilename cacheFileName;
+    private ZipOutputStream zip;
+
+    ExportCacheWriter(GcsFilename cacheFileName, String fingerprint) {
+      this.cacheFileName = cacheFileName;
+      try {
+        GcsFileOptions options = new GcsFileOptions.Builder()
+            .mimeType("application/zip")
+            .addUserMetadata(EXPORT_FINGERPRINT, fingerprint)
+            .build();
+        zip = new ZipOutputStream(
+            Channels.newOutputStream(gcsService.createOrReplace(cacheFileName, options)));
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to create cached export " + cacheFileName, e);
+      }
+    }
+
+    void add(String fileName, byte[] data) {
+      if (zip != null) {
+        try {
+          zip.putNextEntry(new ZipEntry(fileName));
+          zip.write(data, 0, data.length);
+          zip.closeEntry();
+        } catch (IOException e) {
+          // The GCS file is only created when the channel is closed.
+          LOG.log(Level.WARNING, "Unable to write cached export " + cacheFileName, e);
+          zip = null;
+        }
+      }
+    }
+
+    void finish() {
+      if (zip != null) {
+        try {
+          zip.close();
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to write cached export " + cacheFileName, e);
+        }
+      }
     }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
   }
 
   @Override
@@ -2474,6 +3252,10 @@ public class ObjectifyStorageIo implements  StorageIo {
     return new Key<UserData>(UserData.class, userId);
   }
 
+  private Key<ExportJobData> exportJobKey(String userId) {
+    return new Key<ExportJobData>(ExportJobData.class, userId);
+  }
+
   private Key<ProjectData> projectKey(long projectId) {
     return new Key<ProjectData>(ProjectData.class, projectId);
   }
@@ -2482,6 +3264,10 @@ public class ObjectifyStorageIo implements  StorageIo {
     return new Key<UserProjectData>(userKey, UserProjectData.class, projectId);
   }
 
+  private Key<UserProjectIndexData> userProjectIndexKey(Key<UserData> userKey, long projectId) {
+    return new Key<UserProjectIndexData>(userKey, UserProjectIndexData.class, projectId);
+  }
+
   private Key<UserFileData> userFileKey(Key<UserData> userKey, String fileName) {
     return new Key<UserFileData>(userKey, UserFileData.class, fileName);
   }
@@ -2583,21 +3369,25 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public InputStream openTempFile(String fileName) throws IOException {
     if (!fileName.startsWith("__TEMP__")) {
-      throw new RuntimeException("deleteTempFile (" + fileName + ") Invalid File Name");
+      throw new RuntimeException("openTempFile (" + fileName + ") Invalid File Name");
     }
+    // Temp files can be as large as an export of all of a user's projects, so they are read
+    // as they are consumed rather than into memory up front.
     GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fileName);
-    int fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-    ByteBuffer resultBuffer = ByteBuffer.allocate(fileSize);
-    GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-    int bytesRead = 0;
-    try {
-      while (bytesRead < fileSize) {
-        bytesRead += readChannel.read(resultBuffer);
-      }
-    } finally {
-      readChannel.close();
+    if (gcsService.getMetadata(gcsFileName) == null) {
+      throw new FileNotFoundException(fileName);
     }
-    return new ByteArrayInputStream(resultBuffer.array());
+    return Channels.newInputStream(
+        gcsService.openPrefetchingReadChannel(gcsFileName, 0, 1024 * 1024));
+  }
+
+  @Override
+  public OutputStream createTempFile(String fileName) throws IOException {
+    if (!fileName.startsWith("__TEMP__")) {
+      throw new RuntimeException("createTempFile (" + fileName + ") Invalid File Name");
+    }
+    return Channels.newOutputStream(gcsService.createOrReplace(
+        new GcsFilename(GCS_BUCKET_NAME, fileName), GcsFileOptions.getDefaultInstance()));
   }
 
   @Override
@@ -2924,22 +3714,116 @@ public class ObjectifyStorageIo implements  StorageIo {
 
 
   @Override
-  public void storeBuildStatus(String userId, long projectId, int progress) {
-    String prelim = "40bae275-070f-478b-9a5f-d50361809b99";
-    String cacheKey = prelim + userId + projectId;
-    memcache.put(cacheKey, progress);
+  public ProjectExportStatus getProjectExportStatus(final String userId) {
+    final Result<ExportJobData> result = new Result<ExportJobData>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            result.t = datastore.find(exportJobKey(userId));
+          }
+        }, false);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+    if (result.t == null) {
+      return null;
+    }
+    return new ProjectExportStatus(result.t.jobId, ProjectExportStatus.State.valueOf(result.t.state),
+        result.t.projectsDone, result.t.projectsTotal);
   }
 
   @Override
-  public int getBuildStatus(String userId, long projectId) {
-    String prelim = "40bae275-070f-478b-9a5f-d50361809b99";
-    String cacheKey = prelim + userId + projectId;
-    Integer ival = (Integer) memcache.get(cacheKey);
-    if (ival == null) {         // not in memcache (or memcache service down)
-      return 50;
-    } else {
-      return ival.intValue();
+  public boolean storeProjectExportStatus(final String userId, final ProjectExportStatus status) {
+    final Result<Boolean> stored = new Result<Boolean>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            ExportJobData ejd = datastore.find(exportJobKey(userId));
+            if (status.getState() == ProjectExportStatus.State.PENDING) {
+              ejd = new ExportJobData();
+              ejd.userId = userId;
+              ejd.jobId = status.getJobId();
+              ejd.dateCreated = System.currentTimeMillis();
+            } else if (ejd == null || !ejd.jobId.equals(status.getJobId())) {
+              stored.t = false;
+              return;
+            }
+            ejd.state = status.getState().name();
+            ejd.projectsDone = status.getProjectsDone();
+            ejd.projectsTotal = status.getProjectsTotal();
+            datastore.put(ejd);
+            stored.t = true;
+          }
+        }, true);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+    return stored.t;
+  }
+
+  @Override
+  public List<String> removeExpiredProjectExports(long createdBefore) {
+    final List<String> jobIds = new ArrayList<String>();
+    // Like cleanupNonces, the exports left here are removed by a later call.
+    try {
+      Objectify datastore = ObjectifyService.begin();
+      for (final ExportJobData expired : datastore.query(ExportJobData.class)
+               .filter("dateCreated <", createdBefore).limit(10)) {
+        runJobWithRetries(new JobRetryHelper() {
+            @Override
+            public void run(Objectify datastore) {
+              // The user may have started another export since the query
+              ExportJobData ejd = datastore.find(exportJobKey(expired.userId));
+              if (ejd != null && ejd.jobId.equals(expired.jobId)) {
+                datastore.delete(ejd);
+                jobIds.add(ejd.jobId);
+              }
+            }
+          }, true);
+      }
+    } catch (Exception ex) {
+      LOG.log(Level.WARNING, "Exception during removeExpiredProjectExports", ex);
     }
+    return jobIds;
+  }
+
+  @Override
+  public void storeBuildStatus(String userId, long projectId, int progress, boolean done,
+      int queuePosition) {
+    String cacheKey = buildStatusCacheKey(userId, projectId);
+    Expiration expiration = Expiration.byDeltaSeconds(BUILD_STATUS_EXPIRATION_SECONDS);
+    for (int tries = 0; tries < MAX_JOB_RETRIES; tries++) {
+      IdentifiableValue value = memcache.getIdentifiable(cacheKey);
+      if (value == null || value.getValue() == null) {
+        // Versions start from the time, so that they differ from those of a status that was
+        // evicted.
+        if (memcache.put(cacheKey,
+            new BuildStatus(System.currentTimeMillis(), progress, done, queuePosition),
+            expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+          return;
+        }
+      } else {
+        BuildStatus status = (BuildStatus) value.getValue();
+        if (memcache.putIfUntouched(cacheKey, value,
+            new BuildStatus(status.getVersion() + 1, progress, done, queuePosition),
+            expiration)) {
+          return;
+        }
+      }
+    }
+    LOG.warning("Unable to store the build status of project " + projectId);
+  }
+
+  @Override
+  public BuildStatus getBuildStatus(String userId, long projectId) {
+    // null if not in memcache (or memcache service down)
+    return (BuildStatus) memcache.get(buildStatusCacheKey(userId, projectId));
+  }
+
+  private static String buildStatusCacheKey(String userId, long projectId) {
+    return "BuildStatus:" + userId + ":" + projectId;
   }
 
   @Override
@@ -0,0 +1,45 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.project.Project;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A project being created from files that are too large to hold in memory
+ * together, such as the assets of an uploaded project archive.
+ *
+ * <p>Raw files are written to storage as they are added. The project exists
+ * only once {@link #commit} returns; until then, {@link #abort} removes every
+ * file that was written. Obtained from {@link StorageIo#beginProjectUpload}.
+ */
+public interface ProjectUpload {
+
+  /**
+   * Adds a raw source file to the project, reading its content in chunks.
+   * The content stream is not closed.
+   *
+   * @param fileName  file name
+   * @param content  file content
+   */
+  void addRawFile(String fileName, InputStream content) throws IOException;
+
+  /**
+   * Creates the project with the files added so far and those of project.
+   *
+   * @param project  project, with its name, type, history and text files
+   * @param projectSettings  project settings
+   * @return  the id of the project
+   */
+  long commit(Project project, String projectSettings);
+
+  /**
+   * Removes the files added so far, unless the project was committed.
+   */
+  void abort();
+}
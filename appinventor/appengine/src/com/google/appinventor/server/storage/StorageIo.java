@@ -12,6 +12,7 @@ import com.google.appinventor.shared.rpc.Nonce;
 import com.google.appinventor.shared.rpc.admin.AdminUser;
 import com.google.appinventor.shared.rpc.AdminInterfaceException;
 import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectExportStatus;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.user.User;
@@ -19,6 +20,7 @@ import com.google.appinventor.shared.rpc.user.SplashConfig;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -176,6 +178,15 @@ public interface StorageIo {
    */
   long createProject(String userId, Project project, String projectSettings);
 
+  /**
+   * Starts creating a new project whose raw files are written one at a time,
+   * so that they need not all be in memory. See {@link ProjectUpload}.
+   *
+   * @param userId user id
+   * @return the upload, to which files are added before it is committed
+   */
+  ProjectUpload beginProjectUpload(String userId);
+
   /**
    * Deletes a project and all its files.
    *
@@ -251,6 +262,14 @@ public interface StorageIo {
 
   List<UserProject> getUserProjects(String userId, List<Long> projectIds);
 
+  /**
+   * Returns all of the projects of a user, from a copy of their metadata kept
+   * with the user, so that the project list is read at once.
+   * @param userId a userId
+   * @return new List of UserProject objects
+   */
+  List<UserProject> getUserProjects(String userId);
+
   /**
    * Returns a project name.
    *
@@ -489,6 +508,19 @@ public interface StorageIo {
    */
   long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content);
 
+  /**
+   * Uploads a file, reading its content from a stream. Large files, such as
+   * build outputs, are copied to storage without being held in memory.
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param userId the user who owns the file
+   * @param content  file content, which is read to its end but not closed
+   * @return modification date for project
+   * @throws IOException if the content cannot be read or stored
+   */
+  long uploadRawFileForce(long projectId, String fileId, String userId, InputStream content)
+      throws IOException;
+
   /**
    * Deletes a file.
    * @param userId a user Id (the request is made on behalf of this user)
@@ -561,6 +593,50 @@ public interface StorageIo {
 
   void deleteTempFile(String fileName) throws IOException;
 
+  /**
+   * Creates a temporary file and returns a stream that writes its content.
+   * The file exists once the stream is closed.
+   * Verifies it is a temp file by making sure the filename
+   * begins with __TEMP__
+   *
+   * @param fileName the temporary filename
+   *
+   * @return outputstream
+   */
+  OutputStream createTempFile(String fileName) throws IOException;
+
+  // Export of all of a user's projects
+
+  /**
+   * Returns the status of the user's most recent export of all of their
+   * projects.
+   *
+   * @param userId  user id
+   * @return  the status, or null if the user never started an export
+   */
+  ProjectExportStatus getProjectExportStatus(String userId);
+
+  /**
+   * Stores the status of an export of all of a user's projects. A
+   * {@link ProjectExportStatus.State#PENDING} status starts a new export and
+   * replaces the user's previous one. Any other status is stored only if it
+   * belongs to the user's current export.
+   *
+   * @param userId  user id
+   * @param status  the status
+   * @return  false if the export has been replaced by a newer one
+   */
+  boolean storeProjectExportStatus(String userId, ProjectExportStatus status);
+
+  /**
+   * Removes a few of the exports of all projects that were started before
+   * the given time, so that their temp files can be deleted.
+   *
+   * @param createdBefore  time in milliseconds since the epoch
+   * @return  the ids of the removed exports
+   */
+  List<String> removeExpiredProjectExports(long createdBefore);
+
   // MOTD management
 
   /**
@@ -590,6 +666,32 @@ public interface StorageIo {
     final boolean forGallery,
     final boolean fatalError) throws IOException;
 
+  /**
+   *  Exports project files as a zip archive written to the given stream
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param includeYail include any yail files in the project
+   * @param includeScreenShots include any screen shots stored with the project
+   * @param forGallery flag to indicate we are exporting for the gallery
+   * @param fatalError set true to cause missing GCS file to throw exception
+   * @param cacheExport whether the export may be cached for the next export of the
+   *                    project, which is not worth it for exports that are rarely repeated
+   * @param zipStream the stream to write the zip archive to
+   *
+   * @return  the name of the project
+   */
+  String exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean forGallery,
+    boolean fatalError,
+    boolean cacheExport,
+    OutputStream zipStream) throws IOException;
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
@@ -697,14 +799,28 @@ public interface StorageIo {
    * a different fashion.
    *
    * Note: The App Engine version uses memcache and if memcache isn't
-   * available (yes, it can be down!) then we cheat and just return
-   * 50 (for 50%).
+   * available (yes, it can be down!) then the status is not known.
    *
+   * @param userId  user id
+   * @param projectId  project id
+   * @param progress  the progress reported by the build server
+   * @param done  whether the build server has sent the build output files
+   * @param queuePosition  the position of the build in the build server's
+   *                       queue, or 0 if it is not waiting to start
    */
 
-  public void storeBuildStatus(String userId, long projectId, int progress);
+  public void storeBuildStatus(String userId, long projectId, int progress, boolean done,
+      int queuePosition);
 
-  public int getBuildStatus(String userId, long projectId);
+  /**
+   * Returns the status of the latest build of a project. The version of the
+   * status changes every time it is stored.
+   *
+   * @param userId  user id
+   * @param projectId  project id
+   * @return the status, or null if it is not known
+   */
+  public BuildStatus getBuildStatus(String userId, long projectId);
 
   /**
    * Checks that the user identified by {@code userId} has a reference to the project identified
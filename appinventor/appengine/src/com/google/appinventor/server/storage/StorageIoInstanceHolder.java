@@ -6,6 +6,7 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appinventor.server.flags.Flag;
 import com.google.common.annotations.VisibleForTesting;
 
 /**
@@ -18,12 +19,16 @@ import com.google.common.annotations.VisibleForTesting;
  */
 public class StorageIoInstanceHolder {
   private static StorageIo INSTANCE;
-  
+
+  // Whether users and project metadata are cached in front of the datastore
+  private static final Flag<Boolean> useCache = Flag.createFlag("storage.cache", true);
+
   private StorageIoInstanceHolder() {} // not to be instantiated
 
   public static StorageIo getInstance() {
     if (INSTANCE == null) {
-      INSTANCE = new ObjectifyStorageIo();
+      StorageIo storageIo = new ObjectifyStorageIo();
+      INSTANCE = useCache.get() ? new CachingStorageIo(storageIo) : storageIo;
     }
     return INSTANCE;
   }
@@ -99,6 +99,9 @@ public class StoredData {
     long galleryId;  // this is the galleryId of this project (if published)
     long attributionId;  // if this project was initiated from the gallery, this is
        // the id of the gallery app that was copied for remix
+    // Incremented when a field copied to the project list of the owner
+    // changes, so that an older copy never replaces a newer one
+    long version;
   }
 
   // Project properties specific to the user
@@ -125,6 +128,31 @@ public class StoredData {
     String settings;
   }
 
+  // The metadata of a project shown in the user's project list, copied from
+  // ProjectData so that the list is read with one query of the user's entity
+  // group. Maintained by ObjectifyStorageIo whenever the metadata changes.
+  @Unindexed
+  static final class UserProjectIndexData {
+    // The id of the entry that marks the user's index as complete. Users who
+    // created projects before the index existed get one when it is built.
+    static final long COMPLETE_MARKER_ID = Long.MAX_VALUE;
+
+    // The project id
+    @Id long projectId;
+
+    // The user (parent's) key
+    @Parent Key<UserData> userKey;
+
+    String name;
+    String type;
+    long dateCreated;
+    long dateModified;
+    long galleryId;
+    long attributionId;
+    // The version of the ProjectData copied
+    long version;
+  }
+
   // Non-project-specific files (tied to user)
   @Unindexed
   static final class UserFileData {
@@ -149,6 +177,10 @@ public class StoredData {
   @Cached
   @Unindexed
   static final class FileData implements Serializable {
+    // FileData is stored in memcache. This is the version computed before it
+    // was declared, so that copies cached by older versions still load.
+    private static final long serialVersionUID = -4791273532267893785L;
+
     // The role that file play: source code, build target or temporary file
     enum RoleEnum {
       SOURCE,
@@ -194,6 +226,11 @@ public class StoredData {
     // DateTime of last backup only used if GCS is enabled
     long lastBackup;
 
+    // SHA-256 hash of the content, in hex, used to skip writes of unchanged
+    // content. Null if unknown, as for files written before it was added or
+    // streamed from an InputStream.
+    String contentHash;
+
     String userId;              // The userId which owns this file
                                 // if null or the empty string, we haven't initialized
                                 // it yet
@@ -302,4 +339,24 @@ public class StoredData {
     public String content;
   }
 
+  // The most recent export of all of a user's projects, which runs on a
+  // task queue and writes its zip to a temp file. Starting another export
+  // replaces this, so the running one can tell that it has been superseded.
+  @Unindexed
+  static final class ExportJobData {
+    // The user id
+    @Id String userId;
+
+    // The id of the export, also part of its temp file name
+    String jobId;
+
+    // The name of a ProjectExportStatus.State
+    String state;
+
+    int projectsDone;
+    int projectsTotal;
+    // Indexed, so that exports that were never downloaded can be removed
+    @Indexed long dateCreated;
+  }
+
 }
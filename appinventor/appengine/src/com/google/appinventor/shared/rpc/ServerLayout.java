@@ -128,6 +128,13 @@ public class ServerLayout {
    */
   public static final String DOWNLOAD_ALL_PROJECTS_SOURCE = "all-projects-source";
 
+  /**
+   * Relative path within {@link com.google.appinventor.server.DownloadServlet}
+   * for downloading the finished export of all of a user's projects' sources,
+   * started with {@link com.google.appinventor.shared.rpc.project.ProjectService#startExportAllProjects()}.
+   */
+  public static final String DOWNLOAD_ALL_PROJECTS_EXPORT = "all-projects-export";
+
   /**
    * Relative path within {@link com.google.appinventor.server.DownloadServlet}
    * for downloading a project's sources for a user other than the logged-in
@@ -0,0 +1,123 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+
+/**
+ * A change to a text file, sent by the client instead of the whole file when
+ * a large .bky or .scm file is saved after a small edit.
+ *
+ * The patch replaces one range of the file, the smallest range outside of
+ * which the old and new contents are the same. An edit to a blocks workspace
+ * usually touches one place in the file, so this is small even though it is
+ * not a general diff. The patch carries the MD5 checksum of the content it
+ * applies to and of the content it produces, in the same format as
+ * {@link ChecksumedLoadFile}. The server applies a patch only if the file it
+ * has matches the first, and saves the result only if it matches the second.
+ */
+public class FilePatch implements Serializable {
+
+  // For serialization
+  private static final long serialVersionUID = 3407618829463302761L;
+
+  private String baseChecksum;
+  private int start;
+  private int removeLength;
+  private String insert;
+  private String checksum;
+
+  /**
+   * Default constructor (for serialization only).
+   */
+  @SuppressWarnings("unused")
+  private FilePatch() {
+  }
+
+  private FilePatch(String baseChecksum, int start, int removeLength, String insert,
+      String checksum) {
+    this.baseChecksum = baseChecksum;
+    this.start = start;
+    this.removeLength = removeLength;
+    this.insert = insert;
+    this.checksum = checksum;
+  }
+
+  /**
+   * Creates the patch that turns base into content.
+   *
+   * @param base  the content the server has
+   * @param content  the content to save
+   * @return  the patch
+   */
+  public static FilePatch create(String base, String content) throws ChecksumedFileException {
+    int prefix = 0;
+    int maxPrefix = Math.min(base.length(), content.length());
+    while (prefix < maxPrefix && base.charAt(prefix) == content.charAt(prefix)) {
+      prefix++;
+    }
+    int suffix = 0;
+    int maxSuffix = maxPrefix - prefix;
+    while (suffix < maxSuffix && base.charAt(base.length() - 1 - suffix)
+        == content.charAt(content.length() - 1 - suffix)) {
+      suffix++;
+    }
+    return new FilePatch(checksum(base), prefix, base.length() - prefix - suffix,
+        content.substring(prefix, content.length() - suffix), checksum(content));
+  }
+
+  /**
+   * Applies this patch.
+   *
+   * @param base  the content the patch was created against
+   * @return  the patched content
+   * @throws ChecksumedFileException  if base is not the content the patch was
+   *         created against, or if the result is not the content it was
+   *         created for
+   */
+  public String apply(String base) throws ChecksumedFileException {
+    if (!checksum(base).equals(baseChecksum)) {
+      throw new ChecksumedFileException("Patch base doesn't match " + baseChecksum);
+    }
+    if (start + removeLength > base.length()) {
+      throw new ChecksumedFileException("Patch range is outside of the file");
+    }
+    String content = base.substring(0, start) + insert + base.substring(start + removeLength);
+    String hexval = checksum(content);
+    if (!hexval.equals(checksum)) {
+      throw new ChecksumedFileException("Checksum doesn't match " + hexval + " " + checksum);
+    }
+    return content;
+  }
+
+  /**
+   * Returns the number of characters inserted by this patch, which is most of
+   * its size.
+   */
+  public int getInsertLength() {
+    return insert.length();
+  }
+
+  /**
+   * Returns the MD5 checksum of content, as a hex string.
+   */
+  public static String checksum(String content) throws ChecksumedFileException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte [] retval = md.digest(content.getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : retval) {
+        sb.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+      }
+      return sb.toString();
+    } catch (java.security.NoSuchAlgorithmException e) {
+      throw new ChecksumedFileException(e.toString());
+    } catch (java.io.UnsupportedEncodingException e) {
+      throw new ChecksumedFileException(e.toString());
+    }
+  }
+}
@@ -0,0 +1,91 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import com.google.gwt.user.client.rpc.IsSerializable;
+
+/**
+ * The progress of an export of all of a user's projects, which runs in the
+ * background and produces a zip of the projects' source zips.
+ */
+public class ProjectExportStatus implements IsSerializable {
+
+  /**
+   * The states of an export.
+   */
+  public enum State {
+    /** Waiting to start. */
+    PENDING,
+    /** Exporting projects. */
+    RUNNING,
+    /** Done; the zip can be downloaded. */
+    DONE,
+    /** Failed, or there was nothing to export. */
+    FAILED
+  }
+
+  /**
+   * The id of the export, which changes every time one is started.
+   */
+  private String jobId;
+
+  private State state;
+
+  /**
+   * The number of projects exported so far.
+   */
+  private int projectsDone;
+
+  /**
+   * The number of projects to export, or 0 if not known yet.
+   */
+  private int projectsTotal;
+
+  /**
+   * Default constructor. This constructor is required by GWT.
+   */
+  @SuppressWarnings("unused")
+  private ProjectExportStatus() {
+  }
+
+  /**
+   * Creates a new export status.
+   *
+   * @param jobId  the id of the export
+   * @param state  the state of the export
+   * @param projectsDone  the number of projects exported so far
+   * @param projectsTotal  the number of projects to export
+   */
+  public ProjectExportStatus(String jobId, State state, int projectsDone, int projectsTotal) {
+    this.jobId = jobId;
+    this.state = state;
+    this.projectsDone = projectsDone;
+    this.projectsTotal = projectsTotal;
+  }
+
+  public String getJobId() {
+    return jobId;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public int getProjectsDone() {
+    return projectsDone;
+  }
+
+  public int getProjectsTotal() {
+    return projectsTotal;
+  }
+
+  /**
+   * Returns whether the export has stopped, successfully or not.
+   */
+  public boolean isFinished() {
+    return state == State.DONE || state == State.FAILED;
+  }
+}
@@ -17,6 +17,7 @@ import com.google.gwt.user.client.rpc.RemoteServiceRelativePath;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Interface for the service providing project information.
@@ -181,6 +182,20 @@ public interface ProjectService extends RemoteService {
    */
   ChecksumedLoadFile load2(long projectId, String fileId) throws ChecksumedFileException;
 
+  /**
+   * Loads several files of a project in a single call. Opening a project
+   * uses this to fetch the form and blocks files of every screen at once,
+   * instead of one {@link #load2(long, String)} call per file.
+   *
+   * @param projectId  project ID
+   * @param fileIds  project nodes whose sources should be loaded, or null
+   *                 to load all of the project's source files
+   *
+   * @return  checksummed file objects, by file id
+   */
+  Map<String, ChecksumedLoadFile> load2(long projectId, List<String> fileIds)
+      throws ChecksumedFileException;
+
   /**
    * Attempt to record the project Id and error message when we detect a corruption
    * while loading a project.
@@ -251,6 +266,26 @@ public interface ProjectService extends RemoteService {
   long save2(String sessionId, long projectId, String fileId, boolean force, String content) throws InvalidSessionException,
       BlocksTruncatedException;
 
+  /**
+   * Saves the content of the file associated with a node in the project tree
+   * by applying a patch to the content the server has. The patched content is
+   * saved as by {@link #save2(String, long, String, boolean, String)}.
+   *
+   * @param sessionId current session id
+   * @param projectId  project ID
+   * @param fileId  project node whose source should be saved
+   * @param force  whether to save a trivial blocks workspace over a
+   *               non-trivial one
+   * @param patch  the change from the content last saved or loaded by the
+   *               client
+   * @return modification date for project
+   * @throws ChecksumedFileException  if the file on the server is not the one
+   *         the patch was made against; the client should save the whole
+   *         content instead
+   */
+  long savePatch(String sessionId, long projectId, String fileId, boolean force, FilePatch patch)
+      throws InvalidSessionException, BlocksTruncatedException, ChecksumedFileException;
+
   /**
    * Saves the contents of multiple files.
    *
@@ -282,10 +317,13 @@ public interface ProjectService extends RemoteService {
    * @param nonce used to access the built project -- random string
    * @param target  build target (optional, implementation dependent)
    * @param secondBuildserver whether to use the second buildserver
+   * @param highPriority whether the user is waiting to try the built app, so that the build
+   *                     server starts it before other waiting builds
    *
    * @return  results of invoking the build command
    */
-  RpcResult build(long projectId, String nonce, String target, boolean secondBuildserver);
+  RpcResult build(long projectId, String nonce, String target, boolean secondBuildserver,
+      boolean highPriority);
 
   /**
    * Gets the result of a build command for the project from the back-end.
@@ -300,6 +338,22 @@ public interface ProjectService extends RemoteService {
    */
   RpcResult getBuildResult(long projectId, String target);
 
+  /**
+   * Waits for the status of a build command for the project to change, and
+   * gets its result. Returns when the build server reports progress or the
+   * build is done, or after a timeout.
+   *
+   * @param projectId  project ID
+   * @param target  build target (optional, implementation dependent)
+   * @param version  the version of the status last seen, from RpcResult.extra
+   *                 of a result of -1, or -1 if none
+   *
+   * @return  results of build, as for {@link #getBuildResult(long, String)}.
+   *          While the build is not yet done, RpcResult.extra holds the
+   *          version of its status.
+   */
+  RpcResult waitForBuildResult(long projectId, String target, long version);
+
   /**
    * Adds a new file to the given project.
    *
@@ -332,6 +386,23 @@ public interface ProjectService extends RemoteService {
 
   UserProject newProjectFromGallery(String appName, String aiaPath, long attributionId);
 
+  /**
+   * Starts an export of all of the user's projects, which runs in the
+   * background. Replaces any export started earlier.
+   *
+   * @return the status of the export
+   */
+  ProjectExportStatus startExportAllProjects();
+
+  /**
+   * Returns the status of the user's most recent export of all of their
+   * projects. Once it is done, the export can be downloaded from
+   * {@link ServerLayout#DOWNLOAD_ALL_PROJECTS_EXPORT}.
+   *
+   * @return the status of the export, or null if there is none
+   */
+  ProjectExportStatus getExportAllProjectsStatus();
+
   /**
    * Log a string to the server log, always log with
    * severity WARNING.
@@ -11,6 +11,7 @@ import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Interface for the service providing project information. All declarations
@@ -106,6 +107,12 @@ public interface ProjectServiceAsync {
    */
   void load2(long projectId, String fileId, AsyncCallback<ChecksumedLoadFile> callback);
 
+  /**
+   * @see ProjectService#load2(long, List)
+   */
+  void load2(long projectId, List<String> fileIds,
+      AsyncCallback<Map<String, ChecksumedLoadFile>> callback);
+
   /**
    * @see ProjectService#recordCorruption(long, String, String)
    */
@@ -136,6 +143,12 @@ public interface ProjectServiceAsync {
    */
   void save2(String sessionId, long projectId, String fileId, boolean force, String source, AsyncCallback<Long> callback);
 
+  /**
+   * @see ProjectService#savePatch(String, long, String, boolean, FilePatch)
+   */
+  void savePatch(String sessionId, long projectId, String fileId, boolean force, FilePatch patch,
+      AsyncCallback<Long> callback);
+
   /**
    * @see ProjectService#save(String, List)
    */
@@ -151,13 +164,19 @@ public interface ProjectServiceAsync {
   /**
    * @see ProjectService#build(long, String, String, boolean)
    */
-  void build(long projectId, String nonce, String target, boolean secondBuildserver, AsyncCallback<RpcResult> callback);
+  void build(long projectId, String nonce, String target, boolean secondBuildserver, boolean highPriority, AsyncCallback<RpcResult> callback);
 
   /**
    * @see ProjectService#getBuildResult(long, String)
    */
   void getBuildResult(long projectId, String target, AsyncCallback<RpcResult> callback);
 
+  /**
+   * @see ProjectService#waitForBuildResult(long, String, long)
+   */
+  void waitForBuildResult(long projectId, String target, long version,
+      AsyncCallback<RpcResult> callback);
+
   /**
    * @see ProjectService#addFile(long, String)
    */
@@ -170,6 +189,16 @@ public interface ProjectServiceAsync {
 
   void newProjectFromGallery(String appName, String aiaPath, long attributionId, AsyncCallback<UserProject> callback);
 
+  /**
+   * @see ProjectService#startExportAllProjects()
+   */
+  void startExportAllProjects(AsyncCallback<ProjectExportStatus> callback);
+
+  /**
+   * @see ProjectService#getExportAllProjectsStatus()
+   */
+  void getExportAllProjectsStatus(AsyncCallback<ProjectExportStatus> callback);
+
   /**
    * @see ProjectService#log(String)
    */
@@ -0,0 +1,169 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.ForwardingStorageIo;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectExportStatus;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Tests for {@link AllProjectsExporter}.
+ *
+ */
+public class AllProjectsExporterTest extends LocalDatastoreTestCase {
+  private static final String USER_ID = "1";
+
+  private static final String FAKE_PROJECT_TYPE = "FakeProjectType";
+  private static final String FORM1_QUALIFIED_NAME = "com.yourdomain.Screen1";
+  private static final String FORM1_CONTENT = "Form A\nEnd Form";
+  private static final String SETTINGS = "";
+
+  private StorageIo storageIo;
+  private AllProjectsExporter exporter;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    storageIo = StorageIoInstanceHolder.getInstance();
+    exporter = new AllProjectsExporter(storageIo);
+  }
+
+  private void createProject(String projectName) {
+    Project project = new Project(projectName);
+    project.setProjectType(FAKE_PROJECT_TYPE);
+    project.addTextFile(new TextFile(FORM1_QUALIFIED_NAME, FORM1_CONTENT));
+    storageIo.createProject(USER_ID, project, SETTINGS);
+  }
+
+  private static Map<String, byte[]> readZip(ZipInputStream zip) throws IOException {
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    ZipEntry entry;
+    while ((entry = zip.getNextEntry()) != null) {
+      entries.put(entry.getName(), ByteStreams.toByteArray(zip));
+    }
+    return entries;
+  }
+
+  public void testExportAllProjects() throws IOException {
+    // More projects than are read at the same time, two of them with the same name
+    createProject("Project1");
+    createProject("Project1");
+    for (int i = 2; i <= AllProjectsExporter.PROJECT_PARALLELISM + 1; i++) {
+      createProject("Project" + i);
+    }
+    int projectCount = AllProjectsExporter.PROJECT_PARALLELISM + 2;
+
+    ProjectExportStatus status = exporter.createJob(USER_ID);
+    assertEquals(ProjectExportStatus.State.PENDING, status.getState());
+    exporter.run(USER_ID, status.getJobId());
+
+    status = exporter.getStatus(USER_ID);
+    assertEquals(ProjectExportStatus.State.DONE, status.getState());
+    assertEquals(projectCount, status.getProjectsDone());
+    assertEquals(projectCount, status.getProjectsTotal());
+
+    ZipInputStream zip = new ZipInputStream(
+        storageIo.openTempFile(exporter.getExportFileName(USER_ID)));
+    Map<String, byte[]> projects;
+    try {
+      projects = readZip(zip);
+    } finally {
+      zip.close();
+    }
+    Set<String> expected = new HashSet<String>();
+    expected.add("Project1.aia");
+    expected.add("duplicate-Project1.aia");
+    for (int i = 2; i <= AllProjectsExporter.PROJECT_PARALLELISM + 1; i++) {
+      expected.add("Project" + i + ".aia");
+    }
+    assertEquals(expected, projects.keySet());
+    Map<String, byte[]> files = readZip(
+        new ZipInputStream(new ByteArrayInputStream(projects.get("Project2.aia"))));
+    assertEquals(FORM1_CONTENT, new String(files.get(FORM1_QUALIFIED_NAME), "UTF-8"));
+  }
+
+  public void testExportWithoutProjects() throws IOException {
+    ProjectExportStatus status = exporter.createJob(USER_ID);
+    exporter.run(USER_ID, status.getJobId());
+    assertEquals(ProjectExportStatus.State.FAILED, exporter.getStatus(USER_ID).getState());
+    try {
+      exporter.getExportFileName(USER_ID);
+      fail();
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+
+  public void testReplacedExportDoesNotRun() throws IOException {
+    createProject("Project1");
+    ProjectExportStatus first = exporter.createJob(USER_ID);
+    ProjectExportStatus second = exporter.createJob(USER_ID);
+    exporter.run(USER_ID, first.getJobId());
+    ProjectExportStatus status = exporter.getStatus(USER_ID);
+    assertEquals(second.getJobId(), status.getJobId());
+    assertEquals(ProjectExportStatus.State.PENDING, status.getState());
+
+    exporter.run(USER_ID, second.getJobId());
+    assertEquals(ProjectExportStatus.State.DONE, exporter.getStatus(USER_ID).getState());
+    // A retried task does not export again
+    exporter.run(USER_ID, second.getJobId());
+    assertEquals(ProjectExportStatus.State.DONE, exporter.getStatus(USER_ID).getState());
+  }
+
+  public void testExportFailsOnRuntimeException() throws IOException {
+    createProject("Project1");
+    AllProjectsExporter failingExporter = new AllProjectsExporter(
+        new ForwardingStorageIo(storageIo) {
+          @Override
+          public String exportProjectSourceZip(String userId, long projectId,
+              boolean includeProjectHistory, boolean includeAndroidKeystore, boolean includeYail,
+              boolean includeScreenShots, boolean forGallery, boolean fatalError,
+              boolean cacheExport, OutputStream zipStream) {
+            throw new IllegalStateException("datastore unavailable");
+          }
+        });
+    ProjectExportStatus status = failingExporter.createJob(USER_ID);
+    failingExporter.run(USER_ID, status.getJobId());
+    assertEquals(ProjectExportStatus.State.FAILED, exporter.getStatus(USER_ID).getState());
+  }
+
+  public void testExpiredExportRemoved() throws IOException {
+    createProject("Project1");
+    ProjectExportStatus status = exporter.createJob(USER_ID);
+    exporter.run(USER_ID, status.getJobId());
+    String fileName = exporter.getExportFileName(USER_ID);
+
+    // A recent export is kept
+    exporter.removeExpiredExports(
+        System.currentTimeMillis() - AllProjectsExporter.EXPORT_EXPIRATION_MILLIS);
+    assertEquals(ProjectExportStatus.State.DONE, exporter.getStatus(USER_ID).getState());
+    storageIo.openTempFile(fileName).close();
+
+    exporter.removeExpiredExports(System.currentTimeMillis() + 1);
+    assertNull(exporter.getStatus(USER_ID));
+    try {
+      storageIo.openTempFile(fileName);
+      fail();
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+}
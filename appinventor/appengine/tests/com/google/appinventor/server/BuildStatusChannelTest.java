@@ -0,0 +1,115 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.BuildStatus;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+/**
+ * Tests for {@link BuildStatusChannel}.
+ *
+ */
+public class BuildStatusChannelTest extends LocalDatastoreTestCase {
+  private static final String USER_ID = "1";
+  private static final long PROJECT_ID = 1;
+
+  private BuildStatusChannel channel;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    channel = new BuildStatusChannel(StorageIoInstanceHolder.getInstance());
+  }
+
+  public void testUnknownBuild() {
+    assertNull(channel.get(USER_ID, PROJECT_ID));
+    assertNull(channel.await(USER_ID, PROJECT_ID, -1, 0));
+  }
+
+  public void testPublishedStatus() {
+    channel.start(USER_ID, PROJECT_ID);
+    BuildStatus started = channel.await(USER_ID, PROJECT_ID, -1, 10000);
+    assertEquals(0, started.getProgress());
+    assertFalse(started.isDone());
+
+    channel.publishProgress(USER_ID, PROJECT_ID, 30);
+    BuildStatus progress = channel.await(USER_ID, PROJECT_ID, started.getVersion(), 10000);
+    assertEquals(30, progress.getProgress());
+    assertFalse(progress.isDone());
+    assertTrue(progress.getVersion() != started.getVersion());
+
+    channel.publishDone(USER_ID, PROJECT_ID);
+    BuildStatus done = channel.await(USER_ID, PROJECT_ID, progress.getVersion(), 10000);
+    assertTrue(done.isDone());
+    assertEquals(done.getVersion(), channel.get(USER_ID, PROJECT_ID).getVersion());
+  }
+
+  public void testQueuePosition() {
+    channel.start(USER_ID, PROJECT_ID);
+    channel.publishQueuePosition(USER_ID, PROJECT_ID, 3);
+    BuildStatus queued = channel.get(USER_ID, PROJECT_ID);
+    assertEquals(3, queued.getQueuePosition());
+    assertEquals(0, queued.getProgress());
+
+    // The first progress report means that the build has started
+    channel.publishProgress(USER_ID, PROJECT_ID, 10);
+    BuildStatus started = channel.get(USER_ID, PROJECT_ID);
+    assertEquals(0, started.getQueuePosition());
+
+    // A position that arrives after the progress is ignored
+    channel.publishQueuePosition(USER_ID, PROJECT_ID, 2);
+    channel.publishQueuePosition(USER_ID, PROJECT_ID, 0);
+    assertEquals(started.getVersion(), channel.get(USER_ID, PROJECT_ID).getVersion());
+  }
+
+  public void testAwaitTimesOut() {
+    channel.start(USER_ID, PROJECT_ID);
+    BuildStatus status = channel.get(USER_ID, PROJECT_ID);
+    long start = System.currentTimeMillis();
+    assertEquals(status.getVersion(),
+        channel.await(USER_ID, PROJECT_ID, status.getVersion(), 100).getVersion());
+    assertTrue(System.currentTimeMillis() - start >= 100);
+  }
+
+  public void testPublishWakesWaiter() throws InterruptedException {
+    channel.start(USER_ID, PROJECT_ID);
+    final BuildStatus status = channel.get(USER_ID, PROJECT_ID);
+    final BuildStatus[] awaited = new BuildStatus[1];
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        setUpThread();
+        awaited[0] = channel.await(USER_ID, PROJECT_ID, status.getVersion(), 60000);
+      }
+    };
+    waiter.start();
+    Thread.sleep(100);
+    channel.publishProgress(USER_ID, PROJECT_ID, 50);
+    waiter.join(10000);
+    assertFalse(waiter.isAlive());
+    assertEquals(50, awaited[0].getProgress());
+  }
+
+  public void testWaiterReadsStatusFromOtherInstance() throws InterruptedException {
+    channel.start(USER_ID, PROJECT_ID);
+    final BuildStatus status = channel.get(USER_ID, PROJECT_ID);
+    final BuildStatus[] awaited = new BuildStatus[1];
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        setUpThread();
+        awaited[0] = channel.await(USER_ID, PROJECT_ID, status.getVersion(), 60000);
+      }
+    };
+    waiter.start();
+    Thread.sleep(100);
+    // Stored without waking the waiter, as by a callback served by another instance
+    StorageIoInstanceHolder.getInstance().storeBuildStatus(USER_ID, PROJECT_ID, 50, false, 0);
+    waiter.join(BuildStatusChannel.MIN_RECHECK_MILLIS * 3 + 1000);
+    assertFalse(waiter.isAlive());
+    assertEquals(50, awaited[0].getProgress());
+  }
+}
@@ -8,7 +8,6 @@ package com.google.appinventor.server;
 
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.riq.MockHttpServletRequest;
 import com.riq.MockHttpServletResponse;
@@ -21,10 +20,13 @@ import org.powermock.modules.junit4.PowerMockRunner;
 
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.fail;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 
 /**
@@ -42,12 +44,8 @@ public class DownloadServletTest {
   private static final long PROJECT_ID = 1234L;
   private static final String DUMMY_FILENAME = "filename123";
   private static final String DUMMY_APK_FILENAME = "filename123.apk";
-  private static final String DUMMY_ZIP_FILENAME = "filename123.aia";
-  private static final String DUMMY_ZIP_FILENAME_WITH_TITLE = "MyProjectTitle123.aia";
   private static final String DOWNLOAD_URL = "http://localhost/baseUrl/download/";
 
-  private ProjectSourceZip dummyZip;
-  private ProjectSourceZip dummyZipWithTitle;
   private RawFile dummyApk;
   private RawFile dummyFile;
 
@@ -67,8 +65,6 @@ public class DownloadServletTest {
     storageIoMock = PowerMock.createNiceMock(StorageIo.class);
     StorageIoInstanceHolder.setInstance(storageIoMock);
 
-    dummyZip = new ProjectSourceZip(DUMMY_ZIP_FILENAME, new byte[] {}, 2);
-    dummyZipWithTitle = new ProjectSourceZip(DUMMY_ZIP_FILENAME_WITH_TITLE, new byte[] {}, 2);
     dummyApk = new RawFile(DUMMY_APK_FILENAME, new byte[] {});
     dummyFile = new RawFile(DUMMY_FILENAME, new byte[] {});
   }
@@ -83,10 +79,12 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithoutTitle() throws Exception {
     storageIoMock.assertUserHasProject(USER_ID, PROJECT_ID);
     PowerMock.expectLastCall().once();
+    expect(storageIoMock.getProjectName(USER_ID, PROJECT_ID)).andReturn(DUMMY_FILENAME);
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false, null, false, false, false, false))
-        .andReturn(dummyZip);
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq(false), eq(false), eq(false), eq(false), anyObject(OutputStream.class)))
+        .andReturn(DUMMY_FILENAME);
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
@@ -102,9 +100,9 @@ public class DownloadServletTest {
     PowerMock.expectLastCall().once();
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234/My Project Title 123");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false,
-        "MyProjectTitle123.aia", false, false, false, false))
-        .andReturn(dummyZipWithTitle);
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq(false), eq(false), eq(false), eq(false), anyObject(OutputStream.class)))
+        .andReturn(DUMMY_FILENAME);
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
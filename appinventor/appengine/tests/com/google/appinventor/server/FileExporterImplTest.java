@@ -125,6 +125,30 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
         StorageUtil.DEFAULT_CHARSET));
   }
 
+  public void testExportProjectSourceZipCached() throws IOException {
+    // The second export of the same files caches the export, and the third one reads it
+    for (int i = 0; i < 3; i++) {
+      ProjectSourceZip project = exporter.exportProjectSourceZip(USER_ID, projectId,
+          false, false, null, false, false, false, false);
+      assertEquals(2, testExportProjectSourceZipHelper(project).size());
+    }
+
+    // A changed file is exported rather than the cached export
+    String newContent = "Form B\nEnd Form";
+    storageIo.uploadFile(projectId, FORM1_QUALIFIED_NAME, USER_ID, newContent,
+        StorageUtil.DEFAULT_CHARSET);
+    ProjectSourceZip project = exporter.exportProjectSourceZip(USER_ID, projectId,
+        false, false, null, false, false, false, false);
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(project.getContent()));
+    ZipEntry zipEntry;
+    while ((zipEntry = zis.getNextEntry()) != null) {
+      if (zipEntry.getName().equals(FORM1_QUALIFIED_NAME)) {
+        assertEquals(newContent, new String(ByteStreams.toByteArray(zis),
+            StorageUtil.DEFAULT_CHARSET));
+      }
+    }
+  }
+
   public void testExportProjectSourceZipWithNonExistingProject() throws IOException {
     try {
       exporter.exportProjectSourceZip(USER_ID, projectId + 1, false, false, null, false, false, false, false);
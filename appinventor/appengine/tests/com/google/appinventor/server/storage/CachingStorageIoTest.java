@@ -0,0 +1,350 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.storage.StoredData.ProjectData;
+import com.google.appinventor.shared.rpc.admin.AdminUser;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import com.google.common.base.Ticker;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CachingStorageIo}.
+ *
+ */
+public class CachingStorageIoTest extends LocalDatastoreTestCase {
+  private static final String USER_ID = "1000";
+  private static final String USER_EMAIL = "user1000@test.com";
+  private static final String SETTINGS = "{settings: \"none\"}";
+  private static final String PROJECT_NAME = "Project1";
+  private static final String FILE_NAME1 = "src/File1.scm";
+  private static final String FILE_NAME2 = "src/File2.bky";
+  private static final String FILE_CONTENT = "The quick onyx goblin jumps over the lazy dwarf";
+  private static final byte[] RAW_FILE_CONTENT = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
+
+  /*
+   * Counts the reads of the cached values that reach the datastore.
+   */
+  private static class CountingStorageIo extends ForwardingStorageIo {
+    int userReads;
+    int whiteListReads;
+    int projectReads;
+
+    CountingStorageIo(StorageIo delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public User getUser(String userId, String email) {
+      userReads++;
+      return delegate.getUser(userId, email);
+    }
+
+    @Override
+    public boolean checkWhiteList(String email) {
+      whiteListReads++;
+      return delegate.checkWhiteList(email);
+    }
+
+    @Override
+    public String getProjectName(String userId, long projectId) {
+      projectReads++;
+      return delegate.getProjectName(userId, projectId);
+    }
+
+    @Override
+    public long getProjectDateModified(String userId, long projectId) {
+      projectReads++;
+      return delegate.getProjectDateModified(userId, projectId);
+    }
+  }
+
+  private static class FakeTicker extends Ticker {
+    long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+  }
+
+  /*
+   * A change that makes the cached values stale.
+   */
+  private interface Change {
+    void apply() throws Exception;
+  }
+
+  private final FakeTicker ticker = new FakeTicker();
+  private CountingStorageIo counting;
+  private CachingStorageIo storage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ObjectifyStorageIo.requireTos.setForTest(false);
+    counting = new CountingStorageIo(new ObjectifyStorageIo());
+    storage = new CachingStorageIo(counting, ticker);
+  }
+
+  private long createProject() {
+    Project project = new Project(PROJECT_NAME);
+    project.setProjectType("FakeProjectType");
+    project.addTextFile(new TextFile(FILE_NAME1, FILE_CONTENT));
+    project.addTextFile(new TextFile(FILE_NAME2, FILE_CONTENT));
+    return storage.createProject(USER_ID, project, SETTINGS);
+  }
+
+  // Caches the user, and checks that a change makes the next lookup read it again.
+  private void assertUserInvalidated(Change change) throws Exception {
+    storage.getUser(USER_ID);
+    int reads = counting.userReads;
+    storage.getUser(USER_ID);
+    assertEquals(reads, counting.userReads);
+    change.apply();
+    storage.getUser(USER_ID);
+    assertEquals(reads + 1, counting.userReads);
+  }
+
+  // Moves the modification date of a project back, so that the next upload changes it. Uploads
+  // within a minute of the last change leave it as it is.
+  private void ageProject(long projectId) {
+    Objectify datastore = ObjectifyService.begin();
+    ProjectData pd = datastore.find(new Key<ProjectData>(ProjectData.class, projectId));
+    pd.dateModified -= TimeUnit.MINUTES.toMillis(2);
+    datastore.put(pd);
+  }
+
+  // Caches the project metadata, and checks that a change makes the next lookups read it again.
+  private void assertProjectInvalidated(long projectId, Change change) throws Exception {
+    storage.getProjectName(USER_ID, projectId);
+    storage.getProjectDateModified(USER_ID, projectId);
+    int reads = counting.projectReads;
+    storage.getProjectName(USER_ID, projectId);
+    storage.getProjectDateModified(USER_ID, projectId);
+    assertEquals(reads, counting.projectReads);
+    change.apply();
+    storage.getProjectName(USER_ID, projectId);
+    storage.getProjectDateModified(USER_ID, projectId);
+    assertEquals(reads + 2, counting.projectReads);
+  }
+
+  public void testUserCached() {
+    storage.getUser(USER_ID, USER_EMAIL);
+    assertEquals(1, counting.userReads);
+    User cached = storage.getUser(USER_ID);
+    assertEquals(1, counting.userReads);
+    assertEquals(USER_EMAIL, cached.getUserEmail());
+
+    // Each caller gets its own copy
+    cached.setIsAdmin(true);
+    assertFalse(storage.getUser(USER_ID).getIsAdmin());
+
+    // A new email address goes to the datastore
+    storage.getUser(USER_ID, "other@test.com");
+    assertEquals(2, counting.userReads);
+  }
+
+  public void testUserSettersInvalidate() throws Exception {
+    storage.getUser(USER_ID, USER_EMAIL);
+    assertUserInvalidated(new Change() {
+      @Override
+      public void apply() {
+        storage.setUserEmail(USER_ID, "new1000@test.com");
+      }
+    });
+    assertUserInvalidated(new Change() {
+      @Override
+      public void apply() {
+        storage.setTosAccepted(USER_ID);
+      }
+    });
+    assertUserInvalidated(new Change() {
+      @Override
+      public void apply() {
+        storage.setUserSessionId(USER_ID, "session");
+      }
+    });
+    assertUserInvalidated(new Change() {
+      @Override
+      public void apply() {
+        storage.setUserPassword(USER_ID, "password");
+      }
+    });
+    assertUserInvalidated(new Change() {
+      @Override
+      public void apply() {
+        storage.setUserName(USER_ID, "name");
+      }
+    });
+    assertEquals("name", storage.getUser(USER_ID).getUserName());
+    assertUserInvalidated(new Change() {
+      @Override
+      public void apply() {
+        storage.setUserLink(USER_ID, "http://example.com");
+      }
+    });
+    assertUserInvalidated(new Change() {
+      @Override
+      public void apply() {
+        storage.setUserEmailFrequency(USER_ID, 10);
+      }
+    });
+    assertEquals(10, storage.getUser(USER_ID).getUserEmailFrequency());
+    assertUserInvalidated(new Change() {
+      @Override
+      public void apply() throws Exception {
+        storage.storeUser(new AdminUser(USER_ID, "name", "new1000@test.com", true, true, false,
+            null));
+      }
+    });
+  }
+
+  public void testProjectChangesInvalidate() throws Exception {
+    storage.getUser(USER_ID, USER_EMAIL);
+    final long projectId = createProject();
+    assertProjectInvalidated(projectId, new Change() {
+      @Override
+      public void apply() {
+        storage.storeProjectSettings(USER_ID, projectId, SETTINGS);
+      }
+    });
+    assertProjectInvalidated(projectId, new Change() {
+      @Override
+      public void apply() {
+        storage.removeSourceFilesFromProject(USER_ID, projectId, true, FILE_NAME2);
+      }
+    });
+    assertProjectInvalidated(projectId, new Change() {
+      @Override
+      public void apply() {
+        storage.addSourceFilesToProject(USER_ID, projectId, true, FILE_NAME2);
+      }
+    });
+    assertProjectInvalidated(projectId, new Change() {
+      @Override
+      public void apply() throws Exception {
+        ageProject(projectId);
+        storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT + "1",
+            StorageUtil.DEFAULT_CHARSET);
+      }
+    });
+    assertProjectInvalidated(projectId, new Change() {
+      @Override
+      public void apply() {
+        ageProject(projectId);
+        storage.uploadFileForce(projectId, FILE_NAME1, USER_ID, FILE_CONTENT + "2",
+            StorageUtil.DEFAULT_CHARSET);
+      }
+    });
+    assertProjectInvalidated(projectId, new Change() {
+      @Override
+      public void apply() throws Exception {
+        ageProject(projectId);
+        storage.uploadRawFile(projectId, FILE_NAME2, USER_ID, true, RAW_FILE_CONTENT);
+      }
+    });
+    assertProjectInvalidated(projectId, new Change() {
+      @Override
+      public void apply() {
+        ageProject(projectId);
+        storage.uploadRawFileForce(projectId, FILE_NAME2, USER_ID, FILE_CONTENT.getBytes());
+      }
+    });
+    assertProjectInvalidated(projectId, new Change() {
+      @Override
+      public void apply() throws Exception {
+        ageProject(projectId);
+        storage.uploadRawFileForce(projectId, FILE_NAME2, USER_ID,
+            new ByteArrayInputStream(RAW_FILE_CONTENT));
+      }
+    });
+    assertProjectInvalidated(projectId, new Change() {
+      @Override
+      public void apply() {
+        storage.deleteFile(USER_ID, projectId, FILE_NAME2);
+      }
+    });
+    assertProjectInvalidated(projectId, new Change() {
+      @Override
+      public void apply() {
+        storage.deleteProject(USER_ID, projectId);
+      }
+    });
+    assertEquals("", storage.getProjectName(USER_ID, projectId));
+  }
+
+  public void testDateModifiedFollowsUpload() throws Exception {
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject();
+    storage.getProjectDateModified(USER_ID, projectId);
+    long date = storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT + "1",
+        StorageUtil.DEFAULT_CHARSET);
+    assertEquals(date, storage.getProjectDateModified(USER_ID, projectId));
+  }
+
+  public void testUploadKeepingDateKeepsCache() throws Exception {
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject();
+    long date = storage.getProjectDateModified(USER_ID, projectId);
+    storage.getProjectName(USER_ID, projectId);
+    int reads = counting.projectReads;
+    // Unchanged, and so skipped
+    assertEquals(date, storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT,
+        StorageUtil.DEFAULT_CHARSET));
+    // Changed, but too soon after the last change to move the date
+    assertEquals(date, storage.uploadRawFile(projectId, FILE_NAME2, USER_ID, true,
+        RAW_FILE_CONTENT));
+    assertEquals(date, storage.getProjectDateModified(USER_ID, projectId));
+    assertEquals(PROJECT_NAME, storage.getProjectName(USER_ID, projectId));
+    assertEquals(reads, counting.projectReads);
+  }
+
+  public void testOtherInstanceSeesChangeAfterVersionCheck() {
+    CachingStorageIo other = new CachingStorageIo(counting, ticker);
+    storage.getUser(USER_ID, USER_EMAIL);
+    storage.getUser(USER_ID);
+    int reads = counting.userReads;
+
+    // The other instance invalidates the user. This one keeps the version it
+    // read for a while, and with it the cached user.
+    other.setUserName(USER_ID, "name");
+    assertFalse("name".equals(storage.getUser(USER_ID).getUserName()));
+    assertEquals(reads, counting.userReads);
+
+    ticker.advance(CachingStorageIo.VERSION_CHECK_SECONDS + 1);
+    assertEquals("name", storage.getUser(USER_ID).getUserName());
+    assertEquals(reads + 1, counting.userReads);
+  }
+
+  public void testWhiteListCached() {
+    boolean allowed = storage.checkWhiteList(USER_EMAIL);
+    assertEquals(allowed, storage.checkWhiteList(USER_EMAIL.toUpperCase()));
+    assertEquals(1, counting.whiteListReads);
+  }
+
+  public void testStats() {
+    storage.getUser(USER_ID, USER_EMAIL);
+    storage.getUser(USER_ID);
+    storage.getUser(USER_ID);
+    assertTrue(storage.getStats(),
+        storage.getStats().startsWith("user cache: 3 lookups, 66% L1 hits, 0% L2 hits"));
+  }
+}
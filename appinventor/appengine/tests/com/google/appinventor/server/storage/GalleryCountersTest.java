@@ -0,0 +1,183 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.storage.GalleryCounters.Counter;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.googlecode.objectify.ObjectifyService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link GalleryCounters}.
+ *
+ */
+public class GalleryCountersTest extends LocalDatastoreTestCase {
+  private static final long GALLERY_ID = 42;
+  private static final long UNSHARDED_VALUE = 100;
+
+  private final List<String> scheduled = new ArrayList<String>();
+  private final List<String> flushed = new ArrayList<String>();
+  private boolean failUnshardedValue;
+  private GalleryCounters counters;
+  private GalleryCounters.Listener listener;
+  private GalleryCounters.FlushScheduler scheduler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // Registers the gallery entities with Objectify
+    new ObjectifyGalleryStorageIo();
+    listener = new GalleryCounters.Listener() {
+      @Override
+      public long getUnshardedValue(long galleryId, Counter counter) {
+        if (failUnshardedValue) {
+          throw new IllegalStateException("datastore unavailable");
+        }
+        return UNSHARDED_VALUE;
+      }
+
+      @Override
+      public void counterFlushed(long galleryId, Counter counter, long delta, long total) {
+        flushed.add(galleryId + " " + counter.getName() + " " + delta + " " + total);
+      }
+    };
+    scheduler = new GalleryCounters.FlushScheduler() {
+      @Override
+      public void schedule(String name, String taskName, long delayMillis) {
+        assertTrue(delayMillis > 0 && delayMillis <= GalleryCounters.FLUSH_INTERVAL_MILLIS);
+        scheduled.add(name);
+      }
+    };
+    counters = new GalleryCounters(listener, scheduler);
+  }
+
+  private long sumShards(Counter counter) {
+    return GalleryCounters.sumShards(ObjectifyService.begin(),
+        GalleryCounters.counterName(GALLERY_ID, counter));
+  }
+
+  public void testAddSchedulesFlush() {
+    String name = GalleryCounters.counterName(GALLERY_ID, Counter.DOWNLOADS);
+    counters.add(GALLERY_ID, Counter.DOWNLOADS, 1);
+    counters.add(GALLERY_ID, Counter.DOWNLOADS, 1);
+    counters.add(GALLERY_ID, Counter.DOWNLOADS, 1);
+    // Once per interval, and the increments may straddle two intervals
+    assertTrue(scheduled.size() == 1 || scheduled.size() == 2);
+    for (String counter : scheduled) {
+      assertEquals(name, counter);
+    }
+    // Nothing is written until the flush
+    assertTrue(flushed.isEmpty());
+    assertEquals(0, sumShards(Counter.DOWNLOADS));
+    assertEquals(UNSHARDED_VALUE + 3, counters.get(GALLERY_ID, Counter.DOWNLOADS));
+  }
+
+  public void testFlushAddsToShards() {
+    String name = GalleryCounters.counterName(GALLERY_ID, Counter.DOWNLOADS);
+    counters.add(GALLERY_ID, Counter.DOWNLOADS, 1);
+    counters.add(GALLERY_ID, Counter.DOWNLOADS, 1);
+    counters.flush(name);
+    assertEquals(1, flushed.size());
+    assertEquals(GALLERY_ID + " downloads 2 " + (UNSHARDED_VALUE + 2), flushed.get(0));
+    assertEquals(UNSHARDED_VALUE + 2, sumShards(Counter.DOWNLOADS));
+    assertEquals(UNSHARDED_VALUE + 2, counters.get(GALLERY_ID, Counter.DOWNLOADS));
+
+    // A flush with nothing pending writes nothing
+    counters.flush(name);
+    assertEquals(1, flushed.size());
+  }
+
+  public void testShardsSumToTotal() {
+    String name = GalleryCounters.counterName(GALLERY_ID, Counter.LIKES);
+    // The deltas land in random shards, which always add up to the total
+    for (int i = 0; i < 3 * GalleryCounters.NUM_SHARDS; i++) {
+      counters.add(GALLERY_ID, Counter.LIKES, 2);
+      counters.add(GALLERY_ID, Counter.LIKES, -1);
+      counters.flush(name);
+      assertEquals(UNSHARDED_VALUE + i + 1, sumShards(Counter.LIKES));
+    }
+    assertEquals(UNSHARDED_VALUE + 3 * GalleryCounters.NUM_SHARDS,
+        counters.get(GALLERY_ID, Counter.LIKES));
+    // The other counter is unaffected
+    assertEquals(0, sumShards(Counter.DOWNLOADS));
+  }
+
+  public void testFailedFlushKeepsDeltas() {
+    String name = GalleryCounters.counterName(GALLERY_ID, Counter.DOWNLOADS);
+    counters.add(GALLERY_ID, Counter.DOWNLOADS, 5);
+    failUnshardedValue = true;
+    try {
+      counters.flush(name);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected; the task queue retries the flush
+    }
+    assertTrue(flushed.isEmpty());
+
+    failUnshardedValue = false;
+    counters.flush(name);
+    assertEquals(GALLERY_ID + " downloads 5 " + (UNSHARDED_VALUE + 5), flushed.get(0));
+    assertEquals(UNSHARDED_VALUE + 5, sumShards(Counter.DOWNLOADS));
+  }
+
+  public void testSetDropsPendingDeltas() {
+    String name = GalleryCounters.counterName(GALLERY_ID, Counter.LIKES);
+    counters.add(GALLERY_ID, Counter.LIKES, 1);
+    counters.flush(name);
+    counters.add(GALLERY_ID, Counter.LIKES, 4);
+    counters.set(GALLERY_ID, Counter.LIKES, 7);
+    assertEquals(7, sumShards(Counter.LIKES));
+    assertEquals(7, counters.get(GALLERY_ID, Counter.LIKES));
+
+    flushed.clear();
+    counters.flush(name);
+    assertTrue(flushed.isEmpty());
+    assertEquals(7, sumShards(Counter.LIKES));
+  }
+
+  public void testOverlappingFlushesWriteDeltaOnce() {
+    final String name = GalleryCounters.counterName(GALLERY_ID, Counter.DOWNLOADS);
+    final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    // The second flush runs between the first one reading the pending delta and claiming it
+    InvocationHandler overlapping = new InvocationHandler() {
+      private boolean overlapped;
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        try {
+          Object result = method.invoke(memcache, args);
+          if (method.getName().equals("getIdentifiable") && !overlapped) {
+            overlapped = true;
+            counters.flush(name);
+          }
+          return result;
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    };
+    GalleryCounters overlapped = new GalleryCounters(listener, scheduler,
+        (MemcacheService) Proxy.newProxyInstance(MemcacheService.class.getClassLoader(),
+            new Class<?>[] { MemcacheService.class }, overlapping));
+    counters.add(GALLERY_ID, Counter.DOWNLOADS, 3);
+    counters.add(GALLERY_ID, Counter.DOWNLOADS, -1);
+
+    overlapped.flush(name);
+    assertEquals(1, flushed.size());
+    assertEquals(GALLERY_ID + " downloads 2 " + (UNSHARDED_VALUE + 2), flushed.get(0));
+    assertEquals(UNSHARDED_VALUE + 2, sumShards(Counter.DOWNLOADS));
+    assertEquals(UNSHARDED_VALUE + 2, counters.get(GALLERY_ID, Counter.DOWNLOADS));
+  }
+}
@@ -0,0 +1,164 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.storage.GalleryListings.Feed;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.googlecode.objectify.ObjectifyService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tests for {@link GalleryListings}.
+ *
+ */
+public class GalleryListingsTest extends LocalDatastoreTestCase {
+  // Small, so that pages run past the listings
+  private static final int LISTING_SIZE = 3;
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+  private GalleryListings listings;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // Registers the gallery entities with Objectify
+    new ObjectifyGalleryStorageIo();
+    listings = new GalleryListings(LISTING_SIZE);
+  }
+
+  private GalleryAppData createApp(String title, int numDownloads, int numLikes) {
+    GalleryAppData appData = new GalleryAppData();
+    appData.title = title;
+    appData.numDownloads = numDownloads;
+    appData.numLikes = numLikes;
+    appData.active = true;
+    ObjectifyService.begin().put(appData);
+    return appData;
+  }
+
+  private void update(GalleryAppData appData) {
+    ObjectifyService.begin().put(appData);
+    listings.changed(appData);
+  }
+
+  private List<String> getPage(Feed feed, int start, int count) {
+    List<GalleryAppData> apps = new ArrayList<GalleryAppData>();
+    listings.getPage(feed, start, count, apps);
+    List<String> titles = new ArrayList<String>();
+    for (GalleryAppData appData : apps) {
+      titles.add(appData.title);
+    }
+    return titles;
+  }
+
+  public void testPagesPastListing() {
+    createApp("a", 60, 0);
+    createApp("b", 50, 0);
+    createApp("c", 40, 0);
+    createApp("d", 30, 0);
+    createApp("e", 20, 0);
+    createApp("f", 10, 0);
+    assertEquals(Arrays.asList("a", "b", "c", "d", "e", "f"), getPage(Feed.DOWNLOADS, 0, 10));
+    assertEquals(Arrays.asList("b", "c"), getPage(Feed.DOWNLOADS, 1, 2));
+    assertEquals(Arrays.asList("c", "d", "e"), getPage(Feed.DOWNLOADS, 2, 3));
+    assertEquals(Arrays.asList("e", "f"), getPage(Feed.DOWNLOADS, 4, 3));
+    assertTrue(getPage(Feed.DOWNLOADS, 6, 3).isEmpty());
+  }
+
+  public void testNextPageResumesFromCursor() {
+    createApp("a", 70, 0);
+    createApp("b", 60, 0);
+    createApp("c", 50, 0);
+    GalleryAppData d = createApp("d", 40, 0);
+    createApp("e", 30, 0);
+    createApp("f", 20, 0);
+    createApp("g", 10, 0);
+    assertEquals(Arrays.asList("d", "e"), getPage(Feed.DOWNLOADS, 3, 2));
+
+    // The next page follows on from e although an app before it is gone, which an offset would
+    // count, skipping f
+    d.active = false;
+    update(d);
+    assertEquals(Arrays.asList("f", "g"), getPage(Feed.DOWNLOADS, 5, 2));
+    // Without a cursor, the page is counted from the end of the listing
+    assertEquals(Arrays.asList("g"), getPage(Feed.DOWNLOADS, 4, 2));
+  }
+
+  public void testPagesFollowChangedListing() {
+    createApp("a", 60, 0);
+    GalleryAppData b = createApp("b", 50, 0);
+    createApp("c", 40, 0);
+    createApp("d", 30, 0);
+    createApp("e", 20, 0);
+    GalleryAppData f = createApp("f", 10, 0);
+    assertEquals(Arrays.asList("a", "b", "c"), getPage(Feed.DOWNLOADS, 0, 3));
+
+    // b drops out of the listing, below the apps that follow it
+    b.numDownloads = 5;
+    update(b);
+    assertEquals(Arrays.asList("a", "c", "d", "e", "f", "b"), getPage(Feed.DOWNLOADS, 0, 10));
+    assertEquals(Arrays.asList("d", "e", "f"), getPage(Feed.DOWNLOADS, 2, 3));
+
+    // f moves into the listing from past its end
+    f.numDownloads = 45;
+    update(f);
+    assertEquals(Arrays.asList("a", "f", "c", "d", "e", "b"), getPage(Feed.DOWNLOADS, 0, 10));
+    assertEquals(Arrays.asList("d", "e", "b"), getPage(Feed.DOWNLOADS, 3, 3));
+
+    // A removed app is in no page
+    f.active = false;
+    update(f);
+    assertEquals(Arrays.asList("a", "c", "d", "e", "b"), getPage(Feed.DOWNLOADS, 0, 10));
+  }
+
+  public void testTiesRankedById() {
+    // Equal likes are ranked by downloads, then by id
+    createApp("a", 1, 2);
+    List<GalleryAppData> tied = new ArrayList<GalleryAppData>();
+    for (String title : Arrays.asList("b", "c", "d", "e")) {
+      tied.add(createApp(title, 5, 1));
+    }
+    createApp("f", 3, 1);
+    Collections.sort(tied, new Comparator<GalleryAppData>() {
+      @Override
+      public int compare(GalleryAppData x, GalleryAppData y) {
+        return x.id.compareTo(y.id);
+      }
+    });
+    List<String> expected = new ArrayList<String>();
+    expected.add("a");
+    for (GalleryAppData appData : tied) {
+      expected.add(appData.title);
+    }
+    expected.add("f");
+    assertEquals(expected, getPage(Feed.LIKES, 0, 10));
+    for (int start = 0; start < expected.size(); start++) {
+      assertEquals(expected.subList(start, Math.min(start + 2, expected.size())),
+          getPage(Feed.LIKES, start, 2));
+    }
+  }
+
+  public void testChangeWhileBuildingDropsListing() {
+    GalleryAppData a = createApp("a", 10, 0);
+    String key = GalleryListings.getCacheKey(Feed.DOWNLOADS);
+    // Another request is building the listing when a changes
+    memcache.put(key, GalleryListings.BUILDING);
+    listings.changed(a);
+    assertNull(memcache.get(key));
+
+    // The next page view builds and stores the listing
+    assertEquals(Arrays.asList("a"), getPage(Feed.DOWNLOADS, 0, 10));
+    assertTrue(memcache.get(key) != null && !GalleryListings.BUILDING.equals(memcache.get(key)));
+  }
+}
@@ -9,6 +9,8 @@ package com.google.appinventor.server.storage;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appinventor.server.LocalDatastoreTestCase;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
+import com.google.appinventor.server.storage.StoredData.UserData;
+import com.google.appinventor.server.storage.StoredData.UserProjectIndexData;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.component.Component;
 import com.google.appinventor.shared.rpc.project.Project;
@@ -21,7 +23,13 @@ import com.google.appinventor.shared.storage.StorageUtil;
 
 import com.google.common.base.Charsets;
 
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -298,6 +306,38 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     oldModificationDate = modificationDate;
   }
 
+  public void testUploadUnchangedContent() throws BlocksTruncatedException {
+    final String USER_ID = "2000";
+    final String USER_EMAIL = "newuser2000@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
+    long skipped = storage.getSkippedRawFileWrites();
+
+    long modificationDate = storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1,
+        StorageUtil.DEFAULT_CHARSET);
+    assertEquals(skipped, storage.getSkippedRawFileWrites());
+    assertEquals(modificationDate,
+        storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1,
+            StorageUtil.DEFAULT_CHARSET));
+    assertEquals(skipped + 1, storage.getSkippedRawFileWrites());
+    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+
+    storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT2,
+        StorageUtil.DEFAULT_CHARSET);
+    assertEquals(skipped + 1, storage.getSkippedRawFileWrites());
+    assertEquals(FILE_CONTENT2, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+
+    // Writing the first content again is not a no-op
+    storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1,
+        StorageUtil.DEFAULT_CHARSET);
+    assertEquals(skipped + 1, storage.getSkippedRawFileWrites());
+    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+  }
+
   public void testAddRemoveFile() throws BlocksTruncatedException {
     final String USER_ID = "1200";
     final String USER_EMAIL = "newuser1200@test.com";
@@ -505,6 +545,175 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     }
   }
 
+  public void testGetUserProjects() {
+    final String USER_ID = "1700";
+    final String USER_EMAIL = "newuser1700@test.com";
+    final String PROJECT_NAME2 = "Project2";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId1 = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    long projectId2 = createProject(USER_ID, PROJECT_NAME2, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+
+    // Drop the project list, as for a user whose projects were created before it was kept
+    Objectify datastore = ObjectifyService.begin();
+    datastore.delete(datastore.query(UserProjectIndexData.class)
+        .ancestor(new Key<UserData>(UserData.class, USER_ID)).fetchKeys());
+
+    List<UserProject> projects = storage.getUserProjects(USER_ID);
+    assertEquals(2, projects.size());
+    UserProject uproject = storage.getUserProject(USER_ID, projectId2);
+    for (UserProject project : projects) {
+      if (project.getProjectId() == projectId2) {
+        assertEquals(PROJECT_NAME2, project.getProjectName());
+        assertEquals(FAKE_PROJECT_TYPE, project.getProjectType());
+        assertEquals(uproject.getDateCreated(), project.getDateCreated());
+        assertEquals(uproject.getDateModified(), project.getDateModified());
+      } else {
+        assertEquals(projectId1, project.getProjectId());
+        assertEquals(PROJECT_NAME, project.getProjectName());
+      }
+    }
+
+    storage.setProjectGalleryId(USER_ID, projectId1, 42);
+    storage.deleteProject(USER_ID, projectId2);
+    projects = storage.getUserProjects(USER_ID);
+    assertEquals(1, projects.size());
+    assertEquals(projectId1, projects.get(0).getProjectId());
+    assertEquals(42, projects.get(0).getGalleryId());
+  }
+
+
+  public void testProjectIndexSkipsDeletedProject() {
+    final String USER_ID = "1710";
+    final String USER_EMAIL = "newuser1710@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    assertEquals(1, storage.getUserProjects(USER_ID).size());
+
+    // The project changes, and is deleted before its entry in the project list is updated
+    ProjectData pd = storage.getProject(projectId);
+    pd.galleryId = 42;
+    pd.version++;
+    storage.deleteProject(USER_ID, projectId);
+    storage.updateProjectIndex(USER_ID, pd);
+
+    assertTrue(storage.getUserProjects(USER_ID).isEmpty());
+    Key<UserData> userKey = new Key<UserData>(UserData.class, USER_ID);
+    assertNull(ObjectifyService.begin().find(
+        new Key<UserProjectIndexData>(userKey, UserProjectIndexData.class, projectId)));
+  }
+
+  public void testProjectIndexKeepsLaterVersion() {
+    final String USER_ID = "1720";
+    final String USER_EMAIL = "newuser1720@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    ProjectData older = storage.getProject(projectId);
+    storage.setProjectGalleryId(USER_ID, projectId, 42);
+
+    // An update of the project list from before the change arrives late
+    storage.updateProjectIndex(USER_ID, older);
+    assertEquals(42, storage.getUserProjects(USER_ID).get(0).getGalleryId());
+
+    // The change is also kept when the list is built again
+    Objectify datastore = ObjectifyService.begin();
+    datastore.delete(new Key<UserProjectIndexData>(new Key<UserData>(UserData.class, USER_ID),
+        UserProjectIndexData.class, UserProjectIndexData.COMPLETE_MARKER_ID));
+    assertEquals(42, storage.getUserProjects(USER_ID).get(0).getGalleryId());
+  }
+
+  public void testProjectIndexRolledBackWithProject() {
+    final String USER_ID = "1730";
+    final String USER_EMAIL = "newuser1730@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+
+    // The transaction that sets the gallery id never commits
+    ObjectifyStorageIo rollingBackStorage = new RollingBackJobObjectifyStorageIo(1);
+    try {
+      rollingBackStorage.setProjectGalleryId(USER_ID, projectId, 42);
+      fail();
+    } catch (RuntimeException e) {
+      // expected
+    }
+    assertEquals(0, storage.getProject(projectId).galleryId);
+    assertEquals(0, storage.getUserProjects(USER_ID).get(0).getGalleryId());
+
+    storage.setProjectGalleryId(USER_ID, projectId, 42);
+    assertEquals(42, storage.getUserProjects(USER_ID).get(0).getGalleryId());
+  }
+  public void testProjectUpload() throws Exception {
+    final String USER_ID = "1800";
+    final String USER_EMAIL = "newuser1800@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    ProjectUpload upload = storage.beginProjectUpload(USER_ID);
+    upload.addRawFile(ASSET_FILE_NAME1, new ByteArrayInputStream(ASSET_FILE_CONTENT1));
+    upload.addRawFile(BLOCK_FILE_NAME, new ByteArrayInputStream(BLOCK_FILE_CONTENT));
+    Project project = new Project(PROJECT_NAME);
+    project.setProjectType(FAKE_PROJECT_TYPE);
+    project.addTextFile(new TextFile(FILE_NAME1, FILE_CONTENT1));
+    long projectId = upload.commit(project, SETTINGS);
+
+    assertEquals(Arrays.asList(projectId), storage.getProjects(USER_ID));
+    assertEquals(PROJECT_NAME, storage.getProjectName(USER_ID, projectId));
+    List<String> sourceFiles = storage.getProjectSourceFiles(USER_ID, projectId);
+    assertTrue(sourceFiles.contains(FILE_NAME1));
+    assertTrue(sourceFiles.contains(ASSET_FILE_NAME1));
+    assertTrue(sourceFiles.contains(BLOCK_FILE_NAME));
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, ASSET_FILE_NAME1)));
+    assertTrue(Arrays.equals(BLOCK_FILE_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId, BLOCK_FILE_NAME)));
+    // Aborting after the commit does nothing
+    upload.abort();
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, ASSET_FILE_NAME1)));
+  }
+
+  public void testProjectUploadAbort() throws Exception {
+    final String USER_ID = "1900";
+    final String USER_EMAIL = "newuser1900@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    ObjectifyStorageIo.GcsProjectUpload upload =
+        (ObjectifyStorageIo.GcsProjectUpload) storage.beginProjectUpload(USER_ID);
+    upload.addRawFile(ASSET_FILE_NAME1, new ByteArrayInputStream(ASSET_FILE_CONTENT1));
+    String gcsName = storage.makeGCSfileName(ASSET_FILE_NAME1, upload.getProjectId());
+    assertTrue(storage.gcsFileExists(gcsName));
+    upload.abort();
+    assertFalse(storage.gcsFileExists(gcsName));
+    assertEquals(0, storage.getProjects(USER_ID).size());
+  }
+
+  public void testExportCacheOnePerProject() throws Exception {
+    final String USER_ID = "2000";
+    final String USER_EMAIL = "newuser2000@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    String cacheName = storage.getExportCacheName(projectId);
+
+    // The second export of the same files is cached
+    storage.exportProjectSourceZip(USER_ID, projectId, false, false, null, false, false, false,
+        false);
+    assertFalse(storage.gcsFileExists(cacheName));
+    storage.exportProjectSourceZip(USER_ID, projectId, false, false, null, false, false, false,
+        false);
+    assertTrue(storage.gcsFileExists(cacheName));
+
+    storage.deleteProject(USER_ID, projectId);
+    assertFalse(storage.gcsFileExists(cacheName));
+  }
+
+  public void testExportNotCachedWhenNotAsked() throws Exception {
+    final String USER_ID = "2100";
+    final String USER_EMAIL = "newuser2100@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    for (int i = 0; i < 3; i++) {
+      storage.exportProjectSourceZip(USER_ID, projectId, false, false, false, false, false, false,
+          false, new ByteArrayOutputStream());
+    }
+    assertFalse(storage.gcsFileExists(storage.getExportCacheName(projectId)));
+  }
+
   public void testTempFiles() throws Exception {
     String fileName = storage.uploadTempFile("test\n".getBytes(Charsets.UTF_8));
     BufferedReader reader = new BufferedReader(new InputStreamReader(storage.openTempFile(fileName),
@@ -519,6 +728,39 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     }
   }
 
+  /*
+   * Run the Nth call to runJobWithRetries, where N is the value of the
+   * rollingBackRun argument to the constructor, but roll back every try of
+   * it, as if other requests kept changing the same entities.
+   */
+  private static class RollingBackJobObjectifyStorageIo extends ObjectifyStorageIo {
+    private final int rollingBackRun;
+    private int run;
+
+    RollingBackJobObjectifyStorageIo(int rollingBackRun) {
+      super();
+      this.rollingBackRun = rollingBackRun;
+      run = 0;
+    }
+
+    @Override
+    void runJobWithRetries(final JobRetryHelper job, boolean useTransaction)
+        throws ObjectifyException {
+      ++run;
+      if (run != rollingBackRun) {
+        super.runJobWithRetries(job, useTransaction);
+        return;
+      }
+      super.runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) throws ObjectifyException, IOException {
+          job.run(datastore);
+          throw new ConcurrentModificationException("rolled back (on purpose)");
+        }
+      }, useTransaction);
+    }
+  }
+
   /*
    * Fail on the Nth call to runJobWithRetries, where N is the value of the
    * failingRun argument to the constructor. Also allows counting
@@ -0,0 +1,45 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link FilePatch}.
+ */
+public class FilePatchTest extends TestCase {
+  private static final String BASE = "<xml><block type=\"a\"/><block type=\"b\"/></xml>";
+
+  public void testApply() throws Exception {
+    String[] contents = {
+        "<xml><block type=\"a\"/><block type=\"c\"/></xml>",  // replace
+        "<xml><block type=\"a\"/></xml>",                      // remove
+        "<xml><block type=\"a\"/><block type=\"b\"/><block type=\"b\"/></xml>",  // repeat
+        "",
+        BASE
+    };
+    for (String content : contents) {
+      assertEquals(content, FilePatch.create(BASE, content).apply(BASE));
+    }
+    assertEquals(BASE, FilePatch.create("", BASE).apply(""));
+  }
+
+  public void testPatchIsSmall() throws Exception {
+    FilePatch patch = FilePatch.create(BASE, BASE.replace("\"b\"", "\"xy\""));
+    assertEquals(2, patch.getInsertLength());
+    assertEquals(0, FilePatch.create(BASE, BASE).getInsertLength());
+  }
+
+  public void testWrongBase() throws Exception {
+    FilePatch patch = FilePatch.create(BASE, BASE.replace("a", "c"));
+    try {
+      patch.apply(BASE.replace("b", "d"));
+      fail();
+    } catch (ChecksumedFileException e) {
+      // expected
+    }
+  }
+}
@@ -1379,7 +1379,11 @@ Blockly.Versioning.AllUpgradeMaps =
 
     // DrawShape & DrawArc was added
     // No blocks need to be modified to upgrade to version 11.
-    11: "noUpgrade"
+    11: "noUpgrade",
+
+    // The FrameSynchronizedSprites property was added.
+    // No blocks need to be modified to upgrade to version 12.
+    12: "noUpgrade"
 
   }, // End Canvas upgraders
 
@@ -0,0 +1,439 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content addressed cache of intermediate build outputs, shared by all builds on this server.
+ *
+ * <p>Each entry is a set of files stored under a key computed from everything the output depends
+ * on: the contents of the inputs, the set of components and extensions used, and the build server
+ * version. Because the key covers all inputs, entries never need to be invalidated; a rebuild of a
+ * project in which only one screen changed finds the other screens, the merged resources and the
+ * R classes in the cache.
+ *
+ * <p>The cache is disabled unless {@link #start} has been called, which the build server does
+ * when it is started with {@code --buildCacheDir}. The least recently used entries are deleted
+ * when the cache grows beyond its maximum size. Optionally, entries that have not been used for a
+ * given time are deleted too; most entries are only useful while a user is building variants or
+ * small revisions of one project, and a short time to live keeps the cache from filling up with
+ * outputs of projects nobody is building any more.
+ */
+final class BuildCache {
+
+  /**
+   * The kinds of build output that are cached.
+   */
+  enum Kind {
+    // The .class files of one screen, as compiled by Kawa.
+    CLASSES,
+    // The .class files of the YAIL runtime, as compiled by Kawa.
+    YAIL_RUNTIME,
+    // The resources merged with those of the AAR libraries.
+    RESOURCES,
+    // The R classes of the app and the AAR libraries.
+    R_CLASSES,
+    // classes.dex, and classes2.dex and so on if any.
+    DEX;
+
+    String getName() {
+      return name().toLowerCase().replace('_', '-');
+    }
+  }
+
+  /**
+   * Computes a cache key. Every key starts with the build server version, so that entries written
+   * by a different build server are never used.
+   */
+  static final class KeyBuilder {
+    private final Hasher hasher = Hashing.sha256().newHasher();
+
+    private KeyBuilder() {
+      putString(GitBuildId.getVersion());
+      putString(GitBuildId.getFingerprint());
+    }
+
+    KeyBuilder putString(String value) {
+      hasher.putInt(value.length());
+      hasher.putString(value, Charsets.UTF_8);
+      return this;
+    }
+
+    /**
+     * Adds the contents of a file, or of all files in a directory along with their relative
+     * paths.
+     */
+    KeyBuilder putFile(File file) throws IOException {
+      if (file.isDirectory()) {
+        String base = file.getAbsolutePath();
+        for (File child : listFiles(file)) {
+          putString(child.getAbsolutePath().substring(base.length()));
+          putContents(child);
+        }
+      } else {
+        putContents(file);
+      }
+      return this;
+    }
+
+    private void putContents(File file) throws IOException {
+      hasher.putLong(file.length());
+      hasher.putBytes(Files.hash(file, Hashing.sha256()).asBytes());
+    }
+
+    String build() {
+      return hasher.hash().toString();
+    }
+  }
+
+  /*
+   * Hit and miss counts for one kind of output.
+   */
+  private static final class Counters {
+    private final AtomicInteger hits = new AtomicInteger(0);
+    private final AtomicInteger misses = new AtomicInteger(0);
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildCache.class.getName());
+
+  // Entries are written here first and then renamed into place.
+  private static final String TMP_DIR_NAME = "tmp";
+
+  // How often expired entries are looked for, at most.
+  private static final long EXPIRE_INTERVAL_MILLIS = 60 * 1000;
+
+  private static volatile BuildCache instance;
+
+  private final File cacheDir;
+  private final long maxSizeBytes;
+  private final long ttlMillis;
+  private final AtomicLong sizeBytes = new AtomicLong(0);
+  private final AtomicLong bytesSaved = new AtomicLong(0);
+  private final AtomicInteger expiredEntries = new AtomicInteger(0);
+  private final AtomicLong lastExpireMillis = new AtomicLong(0);
+  private final Map<Kind, Counters> counters = new EnumMap<Kind, Counters>(Kind.class);
+
+  private BuildCache(File cacheDir, long maxSizeBytes, long ttlMillis) {
+    this.cacheDir = cacheDir;
+    this.maxSizeBytes = maxSizeBytes;
+    this.ttlMillis = ttlMillis;
+    for (Kind kind : Kind.values()) {
+      counters.put(kind, new Counters());
+    }
+  }
+
+  /**
+   * Enables the cache.
+   *
+   * @param cacheDir  the directory holding the cache entries, which persists across restarts
+   * @param maxSizeMb  the size in MB beyond which the least recently used entries are deleted
+   * @param ttlMinutes  the time in minutes after which unused entries are deleted, or 0 to keep
+   *                    entries until the cache is full
+   */
+  static synchronized void start(String cacheDir, long maxSizeMb, long ttlMinutes) {
+    if (instance != null || cacheDir == null) {
+      return;
+    }
+    File dir = new File(cacheDir);
+    BuildCache cache = new BuildCache(dir, maxSizeMb * 1024 * 1024, ttlMinutes * 60 * 1000);
+    deleteRecursively(new File(dir, TMP_DIR_NAME));
+    for (Kind kind : Kind.values()) {
+      cache.sizeBytes.addAndGet(sizeOf(new File(dir, kind.getName())));
+    }
+    LOG.info("Build cache " + dir + " holds " + cache.sizeBytes.get() + " bytes");
+    instance = cache;
+  }
+
+  /**
+   * Returns the cache, or null if the build server did not enable it.
+   */
+  static BuildCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns a new key builder. Entries of different kinds are stored separately, so keys need
+   * not include the kind.
+   */
+  static KeyBuilder newKey() {
+    return new KeyBuilder();
+  }
+
+  /**
+   * Copies the files of a cache entry into the given directory.
+   *
+   * @param kind  the kind of output
+   * @param key  the key computed with {@link #newKey}
+   * @param targetDir  the directory to copy the files to, keeping their relative paths
+   * @return  {@code true} if the entry was found, {@code false} otherwise
+   */
+  boolean restore(Kind kind, String key, File targetDir) {
+    File entryDir = getEntryDir(kind, key);
+    List<File> restored = new ArrayList<File>();
+    long bytes = 0;
+    if (entryDir.isDirectory()) {
+      String base = entryDir.getAbsolutePath();
+      try {
+        for (File file : listFiles(entryDir)) {
+          File target = new File(targetDir, file.getAbsolutePath().substring(base.length()));
+          Files.createParentDirs(target);
+          Files.copy(file, target);
+          restored.add(target);
+          bytes += file.length();
+        }
+        entryDir.setLastModified(System.currentTimeMillis());
+        counters.get(kind).hits.incrementAndGet();
+        bytesSaved.addAndGet(bytes);
+        return true;
+      } catch (IOException e) {
+        // The entry was probably evicted while we were copying it.
+        LOG.log(Level.WARNING, "Unable to restore " + entryDir, e);
+        for (File file : restored) {
+          file.delete();
+        }
+      }
+    }
+    counters.get(kind).misses.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Stores the given files as a cache entry.
+   *
+   * @param kind  the kind of output
+   * @param key  the key computed with {@link #newKey}
+   * @param baseDir  the directory that the files are relative to
+   * @param files  the files to store
+   */
+  void store(Kind kind, String key, File baseDir, Collection<File> files) {
+    File entryDir = getEntryDir(kind, key);
+    if (entryDir.exists()) {
+      return;
+    }
+    File tmpDir = new File(new File(cacheDir, TMP_DIR_NAME), UUID.randomUUID().toString());
+    String base = baseDir.getAbsolutePath();
+    long bytes = 0;
+    try {
+      for (File file : files) {
+        File target = new File(tmpDir, file.getAbsolutePath().substring(base.length()));
+        Files.createParentDirs(target);
+        Files.copy(file, target);
+        bytes += file.length();
+      }
+      tmpDir.mkdirs();
+      Files.createParentDirs(entryDir);
+      // Renaming makes the complete entry visible at once. If another build stored the same entry
+      // in the meantime, the rename fails and our copy is discarded.
+      if (tmpDir.renameTo(entryDir)) {
+        sizeBytes.addAndGet(bytes);
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to store " + entryDir, e);
+    } finally {
+      deleteRecursively(tmpDir);
+    }
+    if (sizeBytes.get() > maxSizeBytes) {
+      evict();
+    }
+    long now = System.currentTimeMillis();
+    long last = lastExpireMillis.get();
+    if (ttlMillis > 0 && now - last > Math.min(ttlMillis, EXPIRE_INTERVAL_MILLIS)
+        && lastExpireMillis.compareAndSet(last, now)) {
+      expire(now - ttlMillis);
+    }
+  }
+
+  /**
+   * Stores all files in the given directory as a cache entry.
+   */
+  void store(Kind kind, String key, File dir) {
+    try {
+      store(kind, key, dir, listFiles(dir));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to store " + dir, e);
+    }
+  }
+
+  /**
+   * Adds the cache statistics to the build server variables.
+   */
+  void addVariables(Map<String, String> variables) {
+    for (Map.Entry<Kind, Counters> entry : counters.entrySet()) {
+      String prefix = "build-cache-" + entry.getKey().getName() + "-";
+      variables.put(prefix + "hits", entry.getValue().hits.get() + "");
+      variables.put(prefix + "misses", entry.getValue().misses.get() + "");
+    }
+    variables.put("build-cache-bytes-saved", bytesSaved.get() + "");
+    variables.put("build-cache-size-bytes", sizeBytes.get() + "");
+    variables.put("build-cache-expired-entries", expiredEntries.get() + "");
+  }
+
+  /**
+   * Writes the cache statistics to the build server metrics.
+   */
+  void writeMetrics(StringBuilder out) {
+    Map<String, Integer> hits = new LinkedHashMap<String, Integer>();
+    Map<String, Integer> misses = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<Kind, Counters> entry : counters.entrySet()) {
+      hits.put(entry.getKey().getName(), entry.getValue().hits.get());
+      misses.put(entry.getKey().getName(), entry.getValue().misses.get());
+    }
+    BuildMetrics.writeCounter(out, "appinventor_build_cache_hits_total",
+        "Build outputs restored from the build cache.", "kind", hits);
+    BuildMetrics.writeCounter(out, "appinventor_build_cache_misses_total",
+        "Build outputs not found in the build cache.", "kind", misses);
+    BuildMetrics.writeCounter(out, "appinventor_build_cache_saved_bytes_total",
+        "Bytes restored from the build cache.", null,
+        Collections.singletonMap("", bytesSaved.get()));
+    BuildMetrics.writeGauge(out, "appinventor_build_cache_size_bytes",
+        "Size of the build cache.", null, Collections.singletonMap("", sizeBytes.get()));
+  }
+
+  private File getEntryDir(Kind kind, String key) {
+    return new File(new File(new File(cacheDir, kind.getName()), key.substring(0, 2)), key);
+  }
+
+  /*
+   * Deletes the least recently used entries until the cache is below 90% of its maximum size.
+   */
+  private synchronized void evict() {
+    if (sizeBytes.get() <= maxSizeBytes) {
+      return;
+    }
+    List<File> entries = listEntries();
+    Collections.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    long target = maxSizeBytes / 10 * 9;
+    for (File entry : entries) {
+      if (sizeBytes.get() <= target) {
+        break;
+      }
+      deleteEntry(entry);
+    }
+    LOG.info("Build cache evicted entries, now holds " + sizeBytes.get() + " bytes");
+  }
+
+  /*
+   * Deletes the entries that have not been stored or restored since the given time.
+   */
+  private synchronized void expire(long oldestMillis) {
+    int expired = 0;
+    for (File entry : listEntries()) {
+      if (entry.lastModified() < oldestMillis && deleteEntry(entry)) {
+        expired++;
+      }
+    }
+    if (expired > 0) {
+      expiredEntries.addAndGet(expired);
+      LOG.info("Build cache expired " + expired + " entries, now holds " + sizeBytes.get()
+          + " bytes");
+    }
+  }
+
+  private List<File> listEntries() {
+    List<File> entries = new ArrayList<File>();
+    for (Kind kind : Kind.values()) {
+      File[] prefixDirs = new File(cacheDir, kind.getName()).listFiles();
+      if (prefixDirs != null) {
+        for (File prefixDir : prefixDirs) {
+          File[] entryDirs = prefixDir.listFiles();
+          if (entryDirs != null) {
+            entries.addAll(Arrays.asList(entryDirs));
+          }
+        }
+      }
+    }
+    return entries;
+  }
+
+  private boolean deleteEntry(File entry) {
+    long bytes = sizeOf(entry);
+    // Move the entry out of the way first, so that a build never sees it half deleted.
+    File doomed = new File(new File(cacheDir, TMP_DIR_NAME), UUID.randomUUID().toString());
+    doomed.getParentFile().mkdirs();
+    if (entry.renameTo(doomed)) {
+      deleteRecursively(doomed);
+      sizeBytes.addAndGet(-bytes);
+      return true;
+    }
+    return false;
+  }
+
+  /*
+   * Returns all files below dir, sorted by path.
+   */
+  private static List<File> listFiles(File dir) throws IOException {
+    List<File> result = new ArrayList<File>();
+    addFiles(dir, result);
+    Collections.sort(result);
+    return result;
+  }
+
+  private static void addFiles(File dir, List<File> result) throws IOException {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      throw new IOException("Unable to list " + dir);
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        addFiles(child, result);
+      } else {
+        result.add(child);
+      }
+    }
+  }
+
+  private static long sizeOf(File file) {
+    if (file.isDirectory()) {
+      long size = 0;
+      File[] children = file.listFiles();
+      if (children != null) {
+        for (File child : children) {
+          size += sizeOf(child);
+        }
+      }
+      return size;
+    }
+    return file.length();
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,314 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link Executor} used for running builds.
+ *
+ * <p>This executor allows only a certain number of simultaneous tasks. Additional tasks wait in a
+ * bounded queue; tasks are rejected only when the queue is full. Queued tasks are started by
+ * priority, and within a priority round-robin by user, so that one user submitting many builds
+ * does not delay everyone else. The position of each queued task is reported to its
+ * {@link QueueListener} when it changes. Positions are computed lazily, at most once every
+ * {@link #POSITION_UPDATE_MILLIS} however many tasks are queued or started in the meantime, so
+ * that a long queue does not cost a pass over the queue for every task.</p>
+ *
+ * @author lizlooney@google.com (Liz Looney)
+ */
+final class BuildExecutor implements Executor {
+
+  /**
+   * The priority of a build. Builds with a higher priority are started first.
+   */
+  enum Priority {
+    HIGH,
+    NORMAL
+  }
+
+  /**
+   * Receives the queue position of a task.
+   */
+  interface QueueListener {
+    /**
+     * Called when the number of tasks that will start before this one changes.
+     *
+     * @param position  the 1-based position in the queue, or 0 when the task starts
+     */
+    void queuePositionChanged(int position);
+  }
+
+  private static final class QueuedTask {
+    private final String user;
+    private final Runnable runnable;
+    private final QueueListener listener;
+    private final long submitNanos = System.nanoTime();
+    private int position = -1;
+
+    private QueuedTask(String user, Runnable runnable, QueueListener listener) {
+      this.user = user;
+      this.runnable = runnable;
+      this.listener = listener;
+    }
+  }
+
+  // How long position changes are collected before they are reported.
+  static final long POSITION_UPDATE_MILLIS = 1000;
+
+  // The maximum number of active tasks. O means unlimited.
+  private final int maxActiveTasks;
+
+  // The maximum number of queued tasks. 0 means tasks are rejected instead of queued.
+  private final int maxQueuedTasks;
+
+  private final AtomicInteger activeTaskCount = new AtomicInteger(0);
+  private final AtomicInteger completedTaskCount = new AtomicInteger(0);
+
+  // Queued tasks by priority, then by user. Users are served in the map's iteration order, and a
+  // user is moved to the end after one of their tasks is started.
+  private final Map<Priority, LinkedHashMap<String, ArrayDeque<QueuedTask>>> queues =
+      new EnumMap<Priority, LinkedHashMap<String, ArrayDeque<QueuedTask>>>(Priority.class);
+  private int queuedTaskCount = 0;
+
+  // Whether a position update is scheduled.
+  private boolean positionUpdateScheduled = false;
+
+  // Queue positions are reported from a single thread, since listeners may do network I/O.
+  private final ScheduledExecutorService notifier =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "BuildExecutor queue notifier");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildExecutor.class.getName());
+
+  // lock is used so that the queues and activeTaskCount are modified by one thread at a time.
+  private final Object lock = new Object();
+
+  /**
+   * Creates a BuildExecutor.
+   *
+   * @param maxActiveTasks the maximum number of active tasks
+   * @param maxQueuedTasks the maximum number of tasks waiting to start
+   */
+  BuildExecutor(int maxActiveTasks, int maxQueuedTasks) {
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = maxQueuedTasks;
+    for (Priority priority : Priority.values()) {
+      queues.put(priority, new LinkedHashMap<String, ArrayDeque<QueuedTask>>());
+    }
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    execute("", Priority.NORMAL, runnable, null);
+  }
+
+  /**
+   * Runs the task now if the executor is below maximum capacity, otherwise queues it.
+   *
+   * @param user  the user requesting the task, for fairness between users
+   * @param priority  the priority of the task
+   * @param runnable  the task
+   * @param listener  receives the queue position of the task, may be null
+   * @throws RejectedExecutionException if the queue is full
+   */
+  public void execute(String user, Priority priority, Runnable runnable, QueueListener listener) {
+    QueuedTask task = new QueuedTask(user, runnable, listener);
+    synchronized (lock) {
+      // Check whether the executor is below maximum capacity.
+      if (maxActiveTasks == 0 || activeTaskCount.get() < maxActiveTasks) {
+        start(task);
+        return;
+      }
+      if (queuedTaskCount >= maxQueuedTasks) {
+        // If the executor and its queue are at maximum capacity, reject the task.
+        throw new RejectedExecutionException();
+      }
+      Map<String, ArrayDeque<QueuedTask>> users = queues.get(priority);
+      ArrayDeque<QueuedTask> tasks = users.get(user);
+      if (tasks == null) {
+        tasks = new ArrayDeque<QueuedTask>();
+        users.put(user, tasks);
+      }
+      tasks.addLast(task);
+      queuedTaskCount++;
+      LOG.info("Queued build for " + user + ", " + queuedTaskCount + " builds waiting");
+      schedulePositionUpdate();
+    }
+  }
+
+  /*
+   * Starts a thread for the task. Must be called with the lock held.
+   */
+  private void start(final QueuedTask task) {
+    // Create a new thread for the task.
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.runnable.run();
+        } finally {
+          completedTaskCount.incrementAndGet();
+          synchronized (lock) {
+            activeTaskCount.decrementAndGet();
+            QueuedTask next = poll();
+            if (next != null) {
+              start(next);
+              schedulePositionUpdate();
+            }
+          }
+        }
+      }
+    });
+    activeTaskCount.incrementAndGet();
+    BuildMetrics.QUEUE_WAIT_SECONDS.observe((System.nanoTime() - task.submitNanos) / 1e9);
+    if (task.position > 0) {
+      task.position = 0;
+      notify(task, 0);
+    }
+    thread.start();
+  }
+
+  /*
+   * Removes the next task to start. Must be called with the lock held.
+   */
+  private QueuedTask poll() {
+    for (LinkedHashMap<String, ArrayDeque<QueuedTask>> users : queues.values()) {
+      Iterator<Map.Entry<String, ArrayDeque<QueuedTask>>> it = users.entrySet().iterator();
+      if (it.hasNext()) {
+        Map.Entry<String, ArrayDeque<QueuedTask>> entry = it.next();
+        QueuedTask task = entry.getValue().pollFirst();
+        // Move this user behind the other waiting users.
+        it.remove();
+        if (!entry.getValue().isEmpty()) {
+          users.put(entry.getKey(), entry.getValue());
+        }
+        queuedTaskCount--;
+        return task;
+      }
+    }
+    return null;
+  }
+
+  /*
+   * Returns the queued tasks in the order they will start, if no other tasks arrive. Must be
+   * called with the lock held.
+   */
+  private List<QueuedTask> getQueueOrder() {
+    List<QueuedTask> order = new ArrayList<QueuedTask>(queuedTaskCount);
+    for (LinkedHashMap<String, ArrayDeque<QueuedTask>> users : queues.values()) {
+      // Users with no more tasks are dropped from the rounds, so this takes time proportional to
+      // the number of tasks however they are spread over users.
+      LinkedList<Iterator<QueuedTask>> rounds = new LinkedList<Iterator<QueuedTask>>();
+      for (ArrayDeque<QueuedTask> tasks : users.values()) {
+        rounds.add(tasks.iterator());
+      }
+      while (!rounds.isEmpty()) {
+        for (Iterator<Iterator<QueuedTask>> it = rounds.iterator(); it.hasNext(); ) {
+          Iterator<QueuedTask> tasks = it.next();
+          order.add(tasks.next());
+          if (!tasks.hasNext()) {
+            it.remove();
+          }
+        }
+      }
+    }
+    return order;
+  }
+
+  /*
+   * Schedules an update of the queue positions, unless one is scheduled already. Must be called
+   * with the lock held.
+   */
+  private void schedulePositionUpdate() {
+    if (!positionUpdateScheduled) {
+      positionUpdateScheduled = true;
+      notifier.schedule(new Runnable() {
+        @Override
+        public void run() {
+          updatePositions();
+        }
+      }, POSITION_UPDATE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /*
+   * Reports the queue positions that changed since they were last reported.
+   */
+  private void updatePositions() {
+    synchronized (lock) {
+      positionUpdateScheduled = false;
+      int position = 0;
+      for (QueuedTask task : getQueueOrder()) {
+        position++;
+        if (task.position != position) {
+          task.position = position;
+          notify(task, position);
+        }
+      }
+    }
+  }
+
+  private void notify(final QueuedTask task, final int position) {
+    if (task.listener != null) {
+      notifier.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.listener.queuePositionChanged(position);
+          } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Unable to report queue position for " + task.user, e);
+          }
+        }
+      });
+    }
+  }
+
+  public int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  public int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  public int getActiveTaskCount() {
+    return activeTaskCount.get();
+  }
+
+  public int getQueuedTaskCount() {
+    synchronized (lock) {
+      return queuedTaskCount;
+    }
+  }
+
+  public int getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+}
@@ -0,0 +1,269 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Build server metrics, exported in the Prometheus text format by the
+ * {@code /buildserver/metrics} endpoint.
+ *
+ * <p>Histograms are registered once as constants of this class and record observations from any
+ * thread. Values that other classes already count, such as build cache hits, are not duplicated
+ * here; they are written with {@link #writeCounter} and {@link #writeGauge} when the metrics are
+ * scraped.
+ *
+ * <p>Usage:
+ * <pre>
+ *   BuildMetrics.Timer timer = BuildMetrics.STAGE_SECONDS.startTimer("dx");
+ *   ...
+ *   timer.stop();
+ * </pre>
+ */
+final class BuildMetrics {
+
+  // Bucket upper bounds for durations, in seconds.
+  private static final double[] SECONDS_BUCKETS =
+      {0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000};
+
+  // Bucket upper bounds for APK sizes, in bytes.
+  private static final double[] BYTES_BUCKETS =
+      {1e6, 2e6, 5e6, 1e7, 2e7, 5e7, 1e8};
+
+  private static final List<Histogram> histograms = new ArrayList<Histogram>();
+
+  /**
+   * Duration of the stages of a compilation that succeeded, labeled by stage: resources,
+   * manifest, libraries, aapt, kawa, dx, apkbuilder, zipalign and sign.
+   */
+  static final Histogram STAGE_SECONDS = register(new Histogram("appinventor_build_stage_seconds",
+      "Duration of a build stage.", "stage", SECONDS_BUCKETS));
+
+  /**
+   * Time spent waiting for a {@link BuildStageScheduler} permit, labeled by stage.
+   */
+  static final Histogram STAGE_WAIT_SECONDS = register(new Histogram(
+      "appinventor_build_stage_wait_seconds", "Time spent waiting to run a build stage.", "stage",
+      SECONDS_BUCKETS));
+
+  /**
+   * Time a build spent in the {@link BuildExecutor} queue before it started.
+   */
+  static final Histogram QUEUE_WAIT_SECONDS = register(new Histogram(
+      "appinventor_build_queue_wait_seconds", "Time a build waited in the queue.", null,
+      SECONDS_BUCKETS));
+
+  /**
+   * Duration of a whole build, labeled by result: success or failure.
+   */
+  static final Histogram BUILD_SECONDS = register(new Histogram("appinventor_build_seconds",
+      "Duration of a build.", "result", SECONDS_BUCKETS));
+
+  /**
+   * Size of the APKs built.
+   */
+  static final Histogram APK_BYTES = register(new Histogram("appinventor_build_apk_bytes",
+      "Size of a built APK.", null, BYTES_BUCKETS));
+
+  /**
+   * A histogram with fixed buckets, optionally split into series by the value of one label.
+   */
+  static final class Histogram {
+    private final String name;
+    private final String help;
+    private final String labelName;
+    private final double[] bounds;
+    // Series by label value, sorted so that the output is stable.
+    private final ConcurrentSkipListMap<String, Series> series =
+        new ConcurrentSkipListMap<String, Series>();
+
+    private Histogram(String name, String help, String labelName, double[] bounds) {
+      this.name = name;
+      this.help = help;
+      this.labelName = labelName;
+      this.bounds = bounds;
+    }
+
+    /**
+     * Records a value of an unlabeled histogram.
+     */
+    void observe(double value) {
+      observe("", value);
+    }
+
+    /**
+     * Records a value in the series with the given label value.
+     */
+    void observe(String labelValue, double value) {
+      Series s = series.get(labelValue);
+      if (s == null) {
+        Series newSeries = new Series(bounds.length);
+        s = series.putIfAbsent(labelValue, newSeries);
+        if (s == null) {
+          s = newSeries;
+        }
+      }
+      int bucket = 0;
+      while (bucket < bounds.length && value > bounds[bucket]) {
+        bucket++;
+      }
+      s.add(bucket, value);
+    }
+
+    /**
+     * Starts timing a duration that is recorded, in seconds, when the timer is stopped.
+     */
+    Timer startTimer(String labelValue) {
+      return new Timer(this, labelValue);
+    }
+
+    /**
+     * Returns the number of values recorded with the given label value.
+     */
+    long getCount(String labelValue) {
+      Series s = series.get(labelValue);
+      return s == null ? 0 : s.snapshot()[bounds.length + 1];
+    }
+
+    private void write(StringBuilder out) {
+      out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(name).append(" histogram\n");
+      for (Map.Entry<String, Series> entry : series.entrySet()) {
+        String label = labelName == null ? ""
+            : labelName + "=\"" + escape(entry.getKey()) + "\"";
+        String prefix = label.isEmpty() ? "" : label + ",";
+        long[] counts;
+        double sum;
+        Series s = entry.getValue();
+        synchronized (s) {
+          counts = s.snapshot();
+          sum = s.sum;
+        }
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+          cumulative += counts[i];
+          out.append(name).append("_bucket{").append(prefix).append("le=\"")
+              .append(formatDouble(bounds[i])).append("\"} ").append(cumulative).append('\n');
+        }
+        long count = counts[bounds.length + 1];
+        out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ")
+            .append(count).append('\n');
+        String braces = label.isEmpty() ? "" : "{" + label + "}";
+        out.append(name).append("_sum").append(braces).append(' ').append(formatDouble(sum))
+            .append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(count).append('\n');
+      }
+    }
+  }
+
+  /*
+   * The bucket counts of one series. The last bucket holds values above the highest bound, and
+   * the element after it the total count.
+   */
+  private static final class Series {
+    private final long[] counts;
+    private double sum = 0;
+
+    private Series(int bucketCount) {
+      counts = new long[bucketCount + 2];
+    }
+
+    private synchronized void add(int bucket, double value) {
+      counts[bucket]++;
+      counts[counts.length - 1]++;
+      sum += value;
+    }
+
+    private synchronized long[] snapshot() {
+      return counts.clone();
+    }
+  }
+
+  /**
+   * Measures a duration. Stopping a timer more than once records it only once.
+   */
+  static final class Timer {
+    private final Histogram histogram;
+    private final String labelValue;
+    private final long start = System.nanoTime();
+    private boolean stopped = false;
+
+    private Timer(Histogram histogram, String labelValue) {
+      this.histogram = histogram;
+      this.labelValue = labelValue;
+    }
+
+    void stop() {
+      if (!stopped) {
+        stopped = true;
+        histogram.observe(labelValue, (System.nanoTime() - start) / 1e9);
+      }
+    }
+  }
+
+  private BuildMetrics() {
+  }
+
+  private static Histogram register(Histogram histogram) {
+    histograms.add(histogram);
+    return histogram;
+  }
+
+  /**
+   * Writes all registered histograms.
+   */
+  static void writeHistograms(StringBuilder out) {
+    for (Histogram histogram : histograms) {
+      histogram.write(out);
+    }
+  }
+
+  /**
+   * Writes a counter, with one series per entry of values, labeled with the entry's key. If
+   * labelName is null, values must have a single entry.
+   */
+  static void writeCounter(StringBuilder out, String name, String help, String labelName,
+      Map<String, ? extends Number> values) {
+    writeSamples(out, name, help, "counter", labelName, values);
+  }
+
+  /**
+   * Writes a gauge, with one series per entry of values, labeled with the entry's key. If
+   * labelName is null, values must have a single entry.
+   */
+  static void writeGauge(StringBuilder out, String name, String help, String labelName,
+      Map<String, ? extends Number> values) {
+    writeSamples(out, name, help, "gauge", labelName, values);
+  }
+
+  private static void writeSamples(StringBuilder out, String name, String help, String type,
+      String labelName, Map<String, ? extends Number> values) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    for (Map.Entry<String, ? extends Number> entry : values.entrySet()) {
+      out.append(name);
+      if (labelName != null) {
+        out.append('{').append(labelName).append("=\"").append(escape(entry.getKey()))
+            .append("\"}");
+      }
+      out.append(' ').append(entry.getValue()).append('\n');
+    }
+  }
+
+  private static String formatDouble(double value) {
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  private static String escape(String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.lang.management.ManagementFactory;
@@ -44,6 +45,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -81,12 +83,22 @@ public class BuildServer {
     }
 
     public void report(int progress) {
+      send("build.status", progress);
+    }
+
+    // Reports the number of builds ahead of this one while it is queued. Position 0 means the
+    // build has started.
+    public void reportQueuePosition(int position) {
+      send("build.queue", position);
+    }
+
+    private void send(String fileName, int value) {
       try {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         ZipOutputStream zipoutput = new ZipOutputStream(output);
-        zipoutput.putNextEntry(new ZipEntry("build.status"));
+        zipoutput.putNextEntry(new ZipEntry(fileName));
         PrintWriter pout = new PrintWriter(zipoutput);
-        pout.println(progress);
+        pout.println(value);
         pout.flush();
         zipoutput.flush();
         zipoutput.close();
@@ -135,6 +147,10 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that can wait for one of the simultaneous builds to finish. 0 means builds beyond the maximum are rejected.")
+    int maxQueuedBuilds = 100;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -151,6 +167,34 @@ public class BuildServer {
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
 
+    @Option(name = "--dexCacheMaxSizeMb",
+            usage = "Size of the dex cache, in MB, beyond which the least recently used pre-dexed libraries are deleted. 0 means unlimited.")
+    long dexCacheMaxSizeMb = 2048;
+
+    @Option(name = "--kawaWorkers",
+            usage = "Number of warm Kawa compiler processes to keep for reuse. Their memory is taken off the budget for child processes. 0 means a new Kawa process for every build.")
+    int kawaWorkers = 0;
+
+    @Option(name = "--kawaWorkerMaxCompiles",
+            usage = "Number of compilations after which a warm Kawa compiler process is restarted.")
+    int kawaWorkerMaxCompiles = 100;
+
+    @Option(name = "--maxSimultaneousJvmStages",
+            usage = "Upper limit on the Kawa, DX and apksigner processes, together, that can run in parallel. 0 means computed from processors and memory.")
+    int maxSimultaneousJvmStages = 0;
+
+    @Option(name = "--buildCacheDir",
+            usage = "the directory to cache compiled screens, merged resources and dex output across builds")
+    String buildCacheDir = null;
+
+    @Option(name = "--buildCacheMaxSizeMb",
+            usage = "Size of the build cache, in MB, beyond which the least recently used outputs are deleted.")
+    long buildCacheMaxSizeMb = 10240;
+
+    @Option(name = "--buildCacheTtlMinutes",
+            usage = "Time, in minutes, after which unused build cache entries are deleted. 0 means they are kept until the cache is full.")
+    long buildCacheTtlMinutes = 0;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -165,6 +209,9 @@ public class BuildServer {
   private static final MediaType ZIP_MEDIA_TYPE =
     new MediaType("application", "zip", ImmutableMap.of("charset", "utf-8"));
 
+  // The chunk size used when streaming the build result to the callback.
+  private static final int CALLBACK_CHUNK_SIZE = 64 * 1024;
+
   private static final AtomicInteger buildCount = new AtomicInteger(0);
 
   // The number of build requests for this server run
@@ -186,7 +233,7 @@ public class BuildServer {
   // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static BuildExecutor buildExecutor;
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
@@ -303,6 +350,25 @@ public class BuildServer {
     maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildExecutor.getActiveTaskCount());
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
     variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
+    variables.put("maximum-queued-build-tasks-allowed", buildExecutor.getMaxQueuedTasks() + "");
+    variables.put("queued-build-tasks", buildExecutor.getQueuedTaskCount() + "");
+
+    // Build stages
+    BuildStageScheduler.addVariables(variables);
+
+    // Kawa workers
+    KawaCompilerPool kawaPool = KawaCompilerPool.getInstance();
+    if (kawaPool != null) {
+      variables.put("kawa-workers", kawaPool.getWorkerCount() + "");
+      variables.put("kawa-warm-compiles", kawaPool.getWarmCompileCount() + "");
+      variables.put("kawa-cold-compiles", kawaPool.getColdCompileCount() + "");
+    }
+
+    // Build cache
+    BuildCache buildCache = BuildCache.getInstance();
+    if (buildCache != null) {
+      buildCache.addVariables(variables);
+    }
 
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
@@ -314,6 +380,48 @@ public class BuildServer {
     return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
   }
 
+  /**
+   * Returns the build server metrics in the Prometheus text format, for scraping by a monitoring
+   * system.
+   */
+  @GET
+  @Path("metrics")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response metrics() {
+    StringBuilder out = new StringBuilder();
+    BuildMetrics.writeHistograms(out);
+
+    Map<String, Integer> builds = new LinkedHashMap<String, Integer>();
+    builds.put("success", successfulBuildRequests.get());
+    builds.put("failure", failedBuildRequests.get());
+    builds.put("rejected", rejectedAsyncBuildRequests.get());
+    BuildMetrics.writeCounter(out, "appinventor_build_requests_total",
+        "Asynchronous build requests, by result.", "result", builds);
+    BuildMetrics.writeGauge(out, "appinventor_build_active_tasks", "Builds running.", null,
+        ImmutableMap.of("", buildExecutor.getActiveTaskCount()));
+    BuildMetrics.writeGauge(out, "appinventor_build_queued_tasks", "Builds waiting to start.",
+        null, ImmutableMap.of("", buildExecutor.getQueuedTaskCount()));
+    BuildStageScheduler.writeMetrics(out);
+
+    KawaCompilerPool kawaPool = KawaCompilerPool.getInstance();
+    if (kawaPool != null) {
+      BuildMetrics.writeCounter(out, "appinventor_kawa_compiles_total",
+          "Kawa compilations, by whether they ran in a warm worker.", "worker",
+          ImmutableMap.of("warm", kawaPool.getWarmCompileCount(),
+              "cold", kawaPool.getColdCompileCount()));
+    }
+
+    BuildCache buildCache = BuildCache.getInstance();
+    if (buildCache != null) {
+      buildCache.writeMetrics(out);
+    }
+
+    MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    BuildMetrics.writeGauge(out, "appinventor_jvm_heap_used_bytes", "Used heap memory.", null,
+        ImmutableMap.of("", memoryBean.getHeapMemoryUsage().getUsed()));
+    return Response.ok(out.toString(), "text/plain; version=0.0.4").build();
+  }
+
   /**
    * Indicate that the server is shutting down.
    *
@@ -450,6 +558,8 @@ public class BuildServer {
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
+   * @param priority  "high" for builds that someone is actively waiting on, such as companion
+   *     builds; these start before other queued builds. Optional.
    * @param inputZipFile  The zip file representing the App Inventor source code.
    * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
    */
@@ -460,6 +570,7 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
+    @QueryParam("priority") final String priority,
     final File inputZipFile) throws IOException {
     // Set the inputZip field so we can delete the input zip file later in
     // cleanUp.
@@ -514,6 +625,7 @@ public class BuildServer {
         }
       }
 
+      final ProgressReporter reporter = new ProgressReporter(callbackUrlStr);
       Runnable buildTask = new Runnable() {
           @Override
           public void run() {
@@ -521,13 +633,15 @@ public class BuildServer {
             try {
               LOG.info("START NEW BUILD " + count);
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile, new ProgressReporter(callbackUrlStr));
-              // Send zip back to the callbackUrl
+              Result buildResult = build(userName, inputZipFile, reporter);
+              // Send zip back to the callbackUrl. The zip is written straight into the request
+              // body in chunks, instead of to a temp file that is then read back.
               LOG.info("CallbackURL: " + callbackUrlStr);
               URL callbackUrl = new URL(callbackUrlStr);
               HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
               connection.setDoOutput(true);
               connection.setRequestMethod("POST");
+              connection.setChunkedStreamingMode(CALLBACK_CHUNK_SIZE);
               // Make sure we aren't misinterpreted as
               // form-url-encoded
               connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
@@ -535,15 +649,7 @@ public class BuildServer {
               connection.setReadTimeout(60000);
               BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
               try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
+                writeResultZip(buildResult, bufferedOutputStream);
               } finally {
                 bufferedOutputStream.close();
               }
@@ -561,10 +667,18 @@ public class BuildServer {
           }
         };
       try {
-        buildExecutor.execute(buildTask);
+        BuildExecutor.Priority buildPriority = "high".equals(priority)
+            ? BuildExecutor.Priority.HIGH : BuildExecutor.Priority.NORMAL;
+        buildExecutor.execute(userName, buildPriority, buildTask,
+            new BuildExecutor.QueueListener() {
+              @Override
+              public void queuePositionChanged(int position) {
+                reporter.reportQueuePosition(position);
+              }
+            });
       } catch (RejectedExecutionException e) {
         // This request was rejected because all threads in the build
-        // executor are busy.
+        // executor are busy and its queue is full.
         rejectedAsyncBuildRequests.incrementAndGet();
         cleanUp();
         // Here, we use SERVICE_UNAVAILABLE (response code 503), which
@@ -586,11 +700,19 @@ public class BuildServer {
   private void buildAndCreateZip(String userName, File inputZipFile, ProgressReporter reporter)
     throws IOException, JSONException {
     Result buildResult = build(userName, inputZipFile, reporter);
-    boolean buildSucceeded = buildResult.succeeded();
     outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
     outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    ZipOutputStream zipOutputStream =
-      new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputZip)));
+    writeResultZip(buildResult, new BufferedOutputStream(new FileOutputStream(outputZip)));
+  }
+
+  /*
+   * Writes the zip containing the build output, and the APK and keystore if the build succeeded,
+   * to the given stream, and closes it.
+   */
+  private void writeResultZip(Result buildResult, OutputStream out)
+    throws IOException, JSONException {
+    boolean buildSucceeded = buildResult.succeeded();
+    ZipOutputStream zipOutputStream = new ZipOutputStream(out);
     if (buildSucceeded) {
       if (outputKeystore != null) {
         zipOutputStream.putNextEntry(new ZipEntry(outputKeystore.getName()));
@@ -630,9 +752,12 @@ public class BuildServer {
     // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
     // is happening, so we should be careful about that.
     outputDir.deleteOnExit();
+    long buildStart = System.nanoTime();
     Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, null,
         false, false, false, null,
         commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir, reporter);
+    BuildMetrics.BUILD_SECONDS.observe(buildResult.succeeded() ? "success" : "failure",
+        (System.nanoTime() - buildStart) / 1e9);
     String buildOutput = buildResult.getOutput();
     LOG.info("Build output: " + buildOutput);
     String buildError = buildResult.getError();
@@ -668,8 +793,9 @@ public class BuildServer {
   }
 
   private static void checkMemory() {
+    // This only logs the heap usage. Forcing a collection here stalled all running builds for
+    // every build started or finished.
     MemoryMXBean mBean = ManagementFactory.getMemoryMXBean();
-    mBean.gc();
     LOG.info("Build " + buildCount + " current used memory: "
       + mBean.getHeapMemoryUsage().getUsed() + " bytes");
   }
@@ -705,7 +831,7 @@ public class BuildServer {
             return;
           }
           while (true) {
-            int tasks = buildExecutor.getActiveTaskCount();
+            int tasks = buildExecutor.getActiveTaskCount() + buildExecutor.getQueuedTaskCount();
             if (tasks <= 0) {
               try {
                 Thread.sleep(10000); // One final wait so people can get
@@ -725,7 +851,34 @@ public class BuildServer {
 
 
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    buildExecutor = new BuildExecutor(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds);
+    BuildStageScheduler.configure(commandLineOptions.childProcessRamMb,
+        commandLineOptions.maxSimultaneousJvmStages, commandLineOptions.kawaWorkers);
+    KawaCompilerPool.start(commandLineOptions.kawaWorkers,
+        commandLineOptions.kawaWorkerMaxCompiles);
+    BuildCache.start(commandLineOptions.buildCacheDir, commandLineOptions.buildCacheMaxSizeMb,
+        commandLineOptions.buildCacheTtlMinutes);
+    DexExecTask.setMaxDexCacheSizeMb(commandLineOptions.dexCacheMaxSizeMb);
+    if (commandLineOptions.dexCacheDir != null) {
+      // Pre-dex the bundled libraries in the background, so that the server can accept builds
+      // right away.
+      Thread preDexThread = new Thread("Pre-dex bundled libraries") {
+        @Override
+        public void run() {
+          try {
+            if (!Compiler.preDexBundledLibraries(commandLineOptions.dexCacheDir,
+                commandLineOptions.childProcessRamMb)) {
+              LOG.warning("Unable to pre-dex some bundled libraries");
+            }
+          } catch (IOException | JSONException e) {
+            LOG.log(Level.WARNING, "Unable to pre-dex bundled libraries", e);
+          }
+        }
+      };
+      preDexThread.setDaemon(true);
+      preDexThread.start();
+    }
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -737,7 +890,9 @@ public class BuildServer {
       LOG.info("Maximum simultanous builds = unlimited!");
     } else {
       LOG.info("Maximum simultanous builds = " + commandLineOptions.maxSimultaneousBuilds);
+      LOG.info("Maximum queued builds = " + commandLineOptions.maxQueuedBuilds);
     }
+    LOG.info("Warm Kawa compiler processes = " + commandLineOptions.kawaWorkers);
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/health for server health");
     LOG.info("Visit: http://" + hostAddress + ":" + port +
@@ -766,7 +921,9 @@ public class BuildServer {
                                 // (unlimited == 0) and allow more then 10 max builds
         return ShutdownState.UP;
       }
-      int active = buildExecutor.getActiveTaskCount();
+      // Queued builds count as load, so that the load balancer sends new builds elsewhere while
+      // we have a backlog.
+      int active = buildExecutor.getActiveTaskCount() + buildExecutor.getQueuedTaskCount();
       if (draining) {
         if (active < max/3) {
           draining = false;
@@ -0,0 +1,285 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many builds can run each of the CPU and memory heavy build stages at the same time.
+ *
+ * <p>The stages that run a child JVM (Kawa, DX, apksigner) share one budget, limited by the
+ * physical memory available for child processes, since each of them uses up to childProcessRamMb
+ * whichever stage it is. Each stage that runs a native tool (AAPT, zipalign) has its own budget,
+ * limited by the number of processors, so a server configured for many simultaneous builds can
+ * package one project while it compiles another.
+ *
+ * <p>Usage:
+ * <pre>
+ *   BuildStageScheduler.Permit permit = BuildStageScheduler.acquire(Stage.DX);
+ *   try {
+ *     ...
+ *   } finally {
+ *     permit.release();
+ *   }
+ * </pre>
+ */
+final class BuildStageScheduler {
+
+  /**
+   * The build stages that are scheduled.
+   */
+  enum Stage {
+    KAWA(true),
+    DX(true),
+    AAPT(false),
+    ZIPALIGN(false),
+    APKSIGNER(true);
+
+    // Whether the stage runs in a child JVM of childProcessRamMb.
+    private final boolean childJvm;
+
+    Stage(boolean childJvm) {
+      this.childJvm = childJvm;
+    }
+
+    String getName() {
+      return name().toLowerCase();
+    }
+  }
+
+  /**
+   * A permit to run a stage. Must be released exactly once.
+   */
+  static final class Permit {
+    private final StageQueue queue;
+    private boolean released = false;
+
+    private Permit(StageQueue queue) {
+      this.queue = queue;
+    }
+
+    void release() {
+      if (!released) {
+        released = true;
+        queue.running.decrementAndGet();
+        queue.semaphore.release();
+      }
+    }
+  }
+
+  /*
+   * Scheduling state and statistics for one stage. Stages that share a budget share a semaphore.
+   */
+  private static final class StageQueue {
+    private final int permits;
+    private final Semaphore semaphore;
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final AtomicInteger running = new AtomicInteger(0);
+    private final AtomicInteger admitted = new AtomicInteger(0);
+    private final AtomicLong totalWaitMillis = new AtomicLong(0);
+    private final AtomicLong maxWaitMillis = new AtomicLong(0);
+
+    private StageQueue(int permits, Semaphore semaphore) {
+      this.permits = permits;
+      this.semaphore = semaphore;
+    }
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildStageScheduler.class.getName());
+
+  // Memory kept for the build server itself when computing the child JVM budget.
+  private static final long RESERVED_MEMORY_MB = 1024;
+
+  // The default maximum RAM of a child process, as in BuildServer and Main.
+  private static final int DEFAULT_CHILD_PROCESS_RAM_MB = 2048;
+
+  private static volatile Map<Stage, StageQueue> queues;
+
+  private BuildStageScheduler() {
+  }
+
+  /**
+   * Computes the stage budgets for this machine, with no warm Kawa workers.
+   *
+   * @param childProcessRamMb  maximum RAM of a child process, in MB
+   * @param maxJvmStages  if non-zero, an upper limit for the stages that run a child JVM, together
+   */
+  static void configure(int childProcessRamMb, int maxJvmStages) {
+    configure(childProcessRamMb, maxJvmStages, 0);
+  }
+
+  /**
+   * Computes the stage budgets for this machine. Called by the build server at startup; if it is
+   * not called, the budgets are computed for the default child process size on first use.
+   *
+   * @param childProcessRamMb  maximum RAM of a child process, in MB
+   * @param maxJvmStages  if non-zero, an upper limit for the stages that run a child JVM, together
+   * @param kawaWorkers  the number of warm Kawa workers the build server may keep, whose memory
+   *                     is held back from the child JVM budget
+   */
+  static synchronized void configure(int childProcessRamMb, int maxJvmStages, int kawaWorkers) {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int jvmPermits = computeJvmPermits(processors, getPhysicalMemoryMb(), childProcessRamMb,
+        maxJvmStages, kawaWorkers);
+    Semaphore jvmSemaphore = new Semaphore(jvmPermits, true);
+    LOG.info("Maximum simultaneous child JVM stages = " + jvmPermits);
+    Map<Stage, StageQueue> newQueues = new EnumMap<Stage, StageQueue>(Stage.class);
+    for (Stage stage : Stage.values()) {
+      if (stage.childJvm) {
+        newQueues.put(stage, new StageQueue(jvmPermits, jvmSemaphore));
+      } else {
+        int permits = Math.max(1, processors);
+        newQueues.put(stage, new StageQueue(permits, new Semaphore(permits, true)));
+        LOG.info("Maximum simultaneous " + stage.getName() + " stages = " + permits);
+      }
+    }
+    queues = newQueues;
+  }
+
+  /**
+   * Returns the number of stages that may run a child JVM at the same time.
+   *
+   * <p>A warm Kawa worker is a JVM of childProcessRamMb that stays alive while idle, so the memory
+   * of every worker the pool may keep is taken off the budget first. A busy worker also holds a
+   * KAWA permit, which errs on the side of leaving memory free.
+   *
+   * @param processors  the number of processors
+   * @param physicalMb  the physical memory of the machine in MB, or 0 if unknown
+   * @param childProcessRamMb  maximum RAM of a child process, in MB
+   * @param maxJvmStages  if non-zero, an upper limit for the stages that run a child JVM
+   * @param kawaWorkers  the number of warm Kawa workers
+   */
+  static int computeJvmPermits(int processors, long physicalMb, int childProcessRamMb,
+      int maxJvmStages, int kawaWorkers) {
+    int jvmPermits = processors;
+    if (physicalMb > 0 && childProcessRamMb > 0) {
+      long workersMb = (long) Math.max(0, kawaWorkers) * childProcessRamMb;
+      jvmPermits = (int) Math.min(jvmPermits,
+          (physicalMb - RESERVED_MEMORY_MB - workersMb) / childProcessRamMb);
+    }
+    if (maxJvmStages > 0) {
+      jvmPermits = Math.min(jvmPermits, maxJvmStages);
+    }
+    return Math.max(1, jvmPermits);
+  }
+
+  private static Map<Stage, StageQueue> getQueues() {
+    Map<Stage, StageQueue> result = queues;
+    if (result == null) {
+      synchronized (BuildStageScheduler.class) {
+        if (queues == null) {
+          configure(DEFAULT_CHILD_PROCESS_RAM_MB, 0);
+        }
+        result = queues;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Waits until the given stage can be run.
+   *
+   * @param stage  the stage about to be run
+   * @return  the permit, which must be released when the stage is finished
+   */
+  static Permit acquire(Stage stage) {
+    StageQueue queue = getQueues().get(stage);
+    long start = System.currentTimeMillis();
+    queue.waiting.incrementAndGet();
+    try {
+      queue.semaphore.acquireUninterruptibly();
+    } finally {
+      queue.waiting.decrementAndGet();
+    }
+    long waited = System.currentTimeMillis() - start;
+    queue.running.incrementAndGet();
+    queue.admitted.incrementAndGet();
+    queue.totalWaitMillis.addAndGet(waited);
+    BuildMetrics.STAGE_WAIT_SECONDS.observe(stage.getName(), waited / 1000.0);
+    long max;
+    while (waited > (max = queue.maxWaitMillis.get())
+        && !queue.maxWaitMillis.compareAndSet(max, waited)) {
+      // retry
+    }
+    return new Permit(queue);
+  }
+
+  /**
+   * Acquires a permit for the given stage only if one is available right away. Used by a build
+   * that already holds a permit to run parts of a stage in parallel when the server is idle.
+   *
+   * @param stage  the stage about to be run
+   * @return  the permit, which must be released when the stage is finished, or null
+   */
+  static Permit tryAcquire(Stage stage) {
+    StageQueue queue = getQueues().get(stage);
+    if (!queue.semaphore.tryAcquire()) {
+      return null;
+    }
+    queue.running.incrementAndGet();
+    queue.admitted.incrementAndGet();
+    return new Permit(queue);
+  }
+
+  /**
+   * Adds the per stage statistics to the build server variables.
+   */
+  static void addVariables(Map<String, String> variables) {
+    for (Map.Entry<Stage, StageQueue> entry : getQueues().entrySet()) {
+      String prefix = "stage-" + entry.getKey().getName() + "-";
+      StageQueue queue = entry.getValue();
+      int admitted = queue.admitted.get();
+      long totalWait = queue.totalWaitMillis.get();
+      variables.put(prefix + "maximum-simultaneous", queue.permits + "");
+      variables.put(prefix + "running", queue.running.get() + "");
+      variables.put(prefix + "queue-depth", queue.waiting.get() + "");
+      variables.put(prefix + "admitted", admitted + "");
+      variables.put(prefix + "average-wait-ms", (admitted == 0 ? 0 : totalWait / admitted) + "");
+      variables.put(prefix + "maximum-wait-ms", queue.maxWaitMillis.get() + "");
+    }
+  }
+
+  /**
+   * Writes the number of builds running and waiting in each stage to the build server metrics.
+   */
+  static void writeMetrics(StringBuilder out) {
+    Map<String, Integer> running = new LinkedHashMap<String, Integer>();
+    Map<String, Integer> waiting = new LinkedHashMap<String, Integer>();
+    for (Map.Entry<Stage, StageQueue> entry : getQueues().entrySet()) {
+      running.put(entry.getKey().getName(), entry.getValue().running.get());
+      waiting.put(entry.getKey().getName(), entry.getValue().waiting.get());
+    }
+    BuildMetrics.writeGauge(out, "appinventor_build_stage_running",
+        "Builds running a build stage.", "stage", running);
+    BuildMetrics.writeGauge(out, "appinventor_build_stage_waiting",
+        "Builds waiting to run a build stage.", "stage", waiting);
+  }
+
+  /*
+   * Returns the physical memory of the machine in MB, or 0 if the JVM does not report it.
+   *
+   * getTotalPhysicalMemorySize is deprecated as of Java 14 in favor of getTotalMemorySize, which
+   * does not exist in Java 8, the version the build server is compiled for.
+   */
+  @SuppressWarnings("deprecation")
+  private static long getPhysicalMemoryMb() {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) osBean).getTotalPhysicalMemorySize()
+          / (1024 * 1024);
+    }
+    return 0;
+  }
+}
@@ -6,6 +6,8 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.appinventor.buildserver.BuildCache.Kind;
+import com.google.appinventor.buildserver.BuildStageScheduler.Stage;
 import com.google.appinventor.buildserver.util.AARLibraries;
 import com.google.appinventor.buildserver.util.AARLibrary;
 import com.google.appinventor.components.common.ComponentDescriptorConstants;
@@ -45,14 +47,17 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -79,9 +84,6 @@ public final class Compiler {
 
   public static int currentProgress = 10;
 
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
-
   private static final String SLASH = File.separator;
   private static final String COLON = File.pathSeparator;
   private static final String ZIPSLASH = "/";
@@ -143,6 +145,11 @@ public final class Compiler {
   @VisibleForTesting
   static final String YAIL_RUNTIME = RUNTIME_FILES_DIR + "runtime.scm";
 
+  // The main class of the YAIL runtime, relative to the classes directory. runtime.scm declares
+  // its module name, so the class does not depend on the package of the project.
+  @VisibleForTesting
+  static final String YAIL_RUNTIME_CLASS = "com/google/youngandroid/runtime.class";
+
   private final ConcurrentMap<String, Set<String>> assetsNeeded =
       new ConcurrentHashMap<String, Set<String>>();
   private final ConcurrentMap<String, Set<String>> activitiesNeeded =
@@ -220,6 +227,9 @@ public final class Compiler {
       "Error: Your build failed because %s cannot be used as the application icon.\n";
   private static final String NO_USER_CODE_ERROR =
       "Error: No user code exists.\n";
+  private static final String TOO_MANY_REFERENCES_ERROR =
+      "Error: Your build failed because your screens and the App Inventor runtime need %s, " +
+      "more than the %d of each that fit in one dex file.\n";
 
   static {
     List<String> aars = new ArrayList<>();
@@ -267,7 +277,11 @@ public final class Compiler {
 
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
-  private boolean hasSecondDex = false; // True if classes2.dex should be added to the APK
+  private int dexFileCount = 1; // The number of classesN.dex files to add to the APK
+  // The estimated references of classes.dex, if too many for a dex file
+  private DexReferenceCounter.Count oversizedMainDex;
+  private String componentKey;  // Identifies the components and extensions in build cache keys
+  private String extensionKey;  // Identifies the extensions only
 
   private JSONArray simpleCompsBuildInfo;
   private JSONArray extCompsBuildInfo;
@@ -1101,6 +1115,7 @@ public final class Compiler {
 
     // Prepare application icon.
     out.println("________Preparing application icon");
+    BuildMetrics.Timer timer = BuildMetrics.STAGE_SECONDS.startTimer("resources");
     File resDir = createDir(buildDir, "res");
     File drawableDir = createDir(resDir, "drawable");
     if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
@@ -1142,19 +1157,23 @@ public final class Compiler {
     if (!compiler.createNetworkConfigXml(providerDir)) {
       return false;
     }
+    timer.stop();
 
     // Generate AndroidManifest.xml
     out.println("________Generating manifest file");
+    timer = BuildMetrics.STAGE_SECONDS.startTimer("manifest");
     File manifestFile = new File(buildDir, "AndroidManifest.xml");
     if (!compiler.writeAndroidManifest(manifestFile)) {
       return false;
     }
+    timer.stop();
     if (reporter != null) {
       reporter.report(20);
     }
 
     // Insert native libraries
     out.println("________Attaching native libraries");
+    timer = BuildMetrics.STAGE_SECONDS.startTimer("libraries");
     if (!compiler.insertNativeLibs(buildDir)) {
       return false;
     }
@@ -1170,9 +1189,11 @@ public final class Compiler {
     if (!compiler.attachCompAssets()) {
       return false;
     }
+    timer.stop();
 
     // Invoke aapt to package everything up
     out.println("________Invoking AAPT");
+    timer = BuildMetrics.STAGE_SECONDS.startTimer("aapt");
     File deployDir = createDir(buildDir, "deploy");
     String tmpPackageName = deployDir.getAbsolutePath() + SLASH +
         project.getProjectName() + ".ap_";
@@ -1181,12 +1202,14 @@ public final class Compiler {
     if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName, srcJavaDir, rJavaDir)) {
       return false;
     }
+    timer.stop();
     if (reporter != null) {
       reporter.report(30);
     }
 
     // Create class files.
     out.println("________Compiling source files");
+    timer = BuildMetrics.STAGE_SECONDS.startTimer("kawa");
     File classesDir = createDir(buildDir, "classes");
     if (!compiler.generateRClasses(classesDir)) {
       return false;
@@ -1194,6 +1217,7 @@ public final class Compiler {
     if (!compiler.generateClasses(classesDir)) {
       return false;
     }
+    timer.stop();
     if (reporter != null) {
       reporter.report(35);
     }
@@ -1217,9 +1241,11 @@ public final class Compiler {
     // Android SDK's Dex Ant task
     File tmpDir = createDir(buildDir, "tmp");
     String dexedClassesDir = tmpDir.getAbsolutePath();
-    if (!compiler.runDx(classesDir, dexedClassesDir, false)) {
+    timer = BuildMetrics.STAGE_SECONDS.startTimer("dx");
+    if (!compiler.runDx(classesDir, dexedClassesDir)) {
       return false;
     }
+    timer.stop();
     if (reporter != null) {
       reporter.report(85);
     }
@@ -1231,24 +1257,31 @@ public final class Compiler {
       fileName = project.getProjectName() + ".apk";
     }
     String apkAbsolutePath = deployDir.getAbsolutePath() + SLASH + fileName;
+    timer = BuildMetrics.STAGE_SECONDS.startTimer("apkbuilder");
     if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClassesDir)) {
       return false;
     }
+    timer.stop();
     if (reporter != null) {
       reporter.report(95);
     }
 
     // ZipAlign the apk file
     out.println("________ZipAligning the apk file");
+    timer = BuildMetrics.STAGE_SECONDS.startTimer("zipalign");
     if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
       return false;
     }
+    timer.stop();
 
     // Sign the apk file
     out.println("________Signing the apk file");
+    timer = BuildMetrics.STAGE_SECONDS.startTimer("sign");
     if (!compiler.runApkSigner(apkAbsolutePath, keystoreFilePath)) {
       return false;
     }
+    timer.stop();
+    BuildMetrics.APK_BYTES.observe(new File(apkAbsolutePath).length());
 
     if (reporter != null) {
       reporter.report(100);
@@ -1317,9 +1350,9 @@ public final class Compiler {
       ApkBuilder apkBuilder =
           new ApkBuilder(apkAbsolutePath, zipArchive,
             dexedClassesDir + File.separator + "classes.dex", null, System.out);
-      if (hasSecondDex) {
-        apkBuilder.addFile(new File(dexedClassesDir + File.separator + "classes2.dex"),
-          "classes2.dex");
+      for (int i = 2; i <= dexFileCount; i++) {
+        apkBuilder.addFile(new File(dexedClassesDir + File.separator + getDexFileName(i)),
+          getDexFileName(i));
       }
       if (nativeLibsNeeded.size() != 0) { // Need to add native libraries...
         apkBuilder.addNativeLibraries(libsDir);
@@ -1418,7 +1451,9 @@ public final class Compiler {
         return false;
       }
 
-      // Construct the class path including component libraries (jars)
+      // Construct the class path including component libraries (jars). The entries that depend
+      // on the project are also collected in buildClasspath, so that a warm Kawa worker started
+      // with the other entries can be reused by every build.
       StringBuilder classpath = new StringBuilder(getResource(KAWA_RUNTIME));
       classpath.append(COLON);
       classpath.append(getResource(ACRA_RUNTIME));
@@ -1430,14 +1465,16 @@ public final class Compiler {
         classpath.append(getResource(jar));
         classpath.append(COLON);
       }
+      final String workerClasspath = classpath + getResource(ANDROID_RUNTIME);
+      StringBuilder buildClasspath = new StringBuilder();
 
       // attach the jars of external comps
       Set<String> addedExtJars = new HashSet<String>();
       for (String type : extCompTypes) {
         String sourcePath = getExtCompDirPath(type) + SIMPLE_ANDROID_RUNTIME_JAR;
         if (!addedExtJars.contains(sourcePath)) {  // don't add multiple copies for bundled extensions
-          classpath.append(sourcePath);
-          classpath.append(COLON);
+          buildClasspath.append(sourcePath);
+          buildClasspath.append(COLON);
           addedExtJars.add(sourcePath);
         }
       }
@@ -1459,8 +1496,8 @@ public final class Compiler {
 
           uniqueLibsNeeded.add(sourcePath);
 
-          classpath.append(sourcePath);
-          classpath.append(COLON);
+          buildClasspath.append(sourcePath);
+          buildClasspath.append(COLON);
         }
       }
 
@@ -1469,54 +1506,62 @@ public final class Compiler {
         if (classesJar != null) {  // true for optimized AARs in App Inventor libs
           final String abspath = classesJar.getAbsolutePath();
           uniqueLibsNeeded.add(abspath);
-          classpath.append(abspath);
-          classpath.append(COLON);
+          buildClasspath.append(abspath);
+          buildClasspath.append(COLON);
         }
       }
       if (explodedAarLibs.size() > 0) {
-        classpath.append(explodedAarLibs.getOutputDirectory().getAbsolutePath());
-        classpath.append(COLON);
+        // The R classes are written to classesDir by generateRClasses (or restored there from the
+        // build cache).
+        buildClasspath.append(classesDir.getAbsolutePath());
+        buildClasspath.append(COLON);
       }
 
+      classpath.append(buildClasspath);
       classpath.append(getResource(ANDROID_RUNTIME));
 
       System.out.println("Libraries Classpath = " + classpath);
 
-      String yailRuntime = getResource(YAIL_RUNTIME);
-      List<String> kawaCommandArgs = Lists.newArrayList();
-      int mx = childProcessRamMb - 200;
-      Collections.addAll(kawaCommandArgs,
-          System.getProperty("java.home") + "/bin/java",
-          "-Dfile.encoding=UTF-8",
-          "-mx" + mx + "M",
-          "-cp", classpath.toString(),
-          "kawa.repl",
-          "-f", yailRuntime,
+      String packageName = Signatures.getPackageName(project.getMainClass());
+      final String kawaClasspath = classpath.toString();
+      final String kawaBuildClasspath = buildClasspath.toString();
+      final String yailRuntime = getResource(YAIL_RUNTIME);
+      final List<String> kawaCompileArgs = Lists.newArrayList();
+      Collections.addAll(kawaCompileArgs,
           "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
+          "-P", packageName + ".",
           "-C");
-      // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
-      // source file names. The resulting .class files contain references to the source file names,
-      // including the name of the tmp directory that contains them. We may be able to avoid that
-      // by using source file names that are relative to the project root and using the project
-      // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
-      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
 
       long start = System.currentTimeMillis();
       // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
       // them to the protocol buffer for logging purposes. (See
       // buildserver/ProjectBuilder.processCompilerOutout.
-      ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
-      boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
-      }
-      if (!kawaSuccess) {
-        LOG.log(Level.SEVERE, "Kawa compile has failed.");
-      }
+      final ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
+      List<String> missingClassFiles = compileClasses(BuildCache.getInstance(), getExtensionKey(),
+          packageName, sourceFileNames, classFileNames, yailRuntime, classesDir, out,
+          new KawaCompile() {
+            @Override
+            public void compile(List<String> sourcesToCompile) {
+              // TODO(lizlooney) - we are currently using (and have always used) absolute paths for
+              // the source file names. The resulting .class files contain references to the source
+              // file names, including the name of the tmp directory that contains them. We may be
+              // able to avoid that by using source file names that are relative to the project
+              // root and using the project root as the working directory for the Kawa compiler
+              // process.
+              kawaCompileArgs.addAll(sourcesToCompile);
+              // Kawa processes can use a lot of memory. The scheduler limits how many run at a
+              // time.
+              BuildStageScheduler.Permit permit = BuildStageScheduler.acquire(Stage.KAWA);
+              try {
+                if (!runKawa(kawaClasspath, workerClasspath, kawaBuildClasspath, yailRuntime,
+                    kawaCompileArgs, new PrintStream(kawaOutputStream))) {
+                  LOG.log(Level.SEVERE, "Kawa compile has failed.");
+                }
+              } finally {
+                permit.release();
+              }
+            }
+          });
       String kawaOutput = kawaOutputStream.toString();
       out.print(kawaOutput);
       String kawaCompileTimeMessage = "Kawa compile time: " +
@@ -1526,15 +1571,17 @@ public final class Compiler {
 
       // Check that all of the class files were created.
       // If they weren't, return with an error.
-      for (String classFileName : classFileNames) {
-        File classFile = new File(classFileName);
-        if (!classFile.exists()) {
-          LOG.log(Level.INFO, "Can't find class file: " + classFileName);
-          String screenName = classFileName.substring(classFileName.lastIndexOf('/') + 1,
-              classFileName.lastIndexOf('.'));
-          userErrors.print(String.format(COMPILATION_ERROR, screenName));
+      for (String classFileName : missingClassFiles) {
+        LOG.log(Level.INFO, "Can't find class file: " + classFileName);
+        if (!classFileNames.contains(classFileName)) {
+          // The YAIL runtime was not compiled
+          userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
           return false;
         }
+        String screenName = classFileName.substring(classFileName.lastIndexOf('/') + 1,
+            classFileName.lastIndexOf('.'));
+        userErrors.print(String.format(COMPILATION_ERROR, screenName));
+        return false;
       }
     } catch (IOException e) {
       e.printStackTrace();
@@ -1545,6 +1592,202 @@ public final class Compiler {
     return true;
   }
 
+  /**
+   * Runs the Kawa compiler on some of the source files of a build.
+   */
+  @VisibleForTesting
+  interface KawaCompile {
+    /**
+     * Compiles the given source files into the classes directory. Failures are detected from
+     * the missing class files.
+     *
+     * @param sourcesToCompile  the screens to compile, followed by the YAIL runtime if it is to
+     *                          be compiled too
+     */
+    void compile(List<String> sourcesToCompile) throws IOException;
+  }
+
+  /**
+   * Compiles the screens of a project and the YAIL runtime into the classes directory, restoring
+   * those whose classes are in the build cache instead of compiling them again. Each screen is a
+   * separate Kawa module, so the remaining screens can be compiled on their own. The runtime is
+   * cached on its own, since it is needed even when every screen is restored.
+   *
+   * @param cache  the build cache, or {@code null} if there is none
+   * @param extensionKey  the key of the extensions used by the project
+   * @param packageName  the package of the project's classes
+   * @param sourceFileNames  the .yail files of the screens
+   * @param classFileNames  the .class files of the screens, in the same order
+   * @param yailRuntime  the runtime.scm file
+   * @param classesDir  the classes directory
+   * @param out  the stream to report progress to
+   * @param kawa  compiles the files that were not restored
+   * @return  the class files that are missing after compiling, empty on success
+   */
+  @VisibleForTesting
+  static List<String> compileClasses(BuildCache cache, String extensionKey, String packageName,
+      List<String> sourceFileNames, List<String> classFileNames, String yailRuntime,
+      File classesDir, PrintStream out, KawaCompile kawa) throws IOException {
+    List<String> sourcesToCompile = Lists.newArrayList();
+    Map<String, String> cacheKeys = new HashMap<String, String>();
+    String runtimeKey = null;
+    boolean compileRuntime = true;
+    if (cache != null) {
+      for (int i = 0; i < sourceFileNames.size(); i++) {
+        // The classes of a screen do not depend on which built-in components are included, so
+        // the companion and the app built from the same sources share them.
+        String key = BuildCache.newKey()
+            .putString(extensionKey)
+            .putString(packageName)
+            .putFile(new File(sourceFileNames.get(i)))
+            .build();
+        if (!cache.restore(Kind.CLASSES, key, classesDir)) {
+          sourcesToCompile.add(sourceFileNames.get(i));
+          cacheKeys.put(classFileNames.get(i), key);
+        }
+      }
+      out.println("________Reusing compiled classes of " +
+          (sourceFileNames.size() - sourcesToCompile.size()) + " unchanged screens");
+      // The runtime declares its own module name, so its classes do not depend on the project.
+      runtimeKey = BuildCache.newKey().putFile(new File(yailRuntime)).build();
+      compileRuntime = !cache.restore(Kind.YAIL_RUNTIME, runtimeKey, classesDir);
+    } else {
+      sourcesToCompile.addAll(sourceFileNames);
+    }
+    if (compileRuntime) {
+      sourcesToCompile.add(yailRuntime);
+    }
+    if (!sourcesToCompile.isEmpty()) {
+      kawa.compile(sourcesToCompile);
+    }
+
+    List<String> missingClassFiles = Lists.newArrayList();
+    List<String> expectedClassFiles = Lists.newArrayList(classFileNames);
+    String runtimeClassFileName = new File(classesDir, YAIL_RUNTIME_CLASS).getAbsolutePath();
+    expectedClassFiles.add(runtimeClassFileName);
+    for (String classFileName : expectedClassFiles) {
+      if (!new File(classFileName).exists()) {
+        missingClassFiles.add(classFileName);
+      }
+    }
+    if (cache != null && missingClassFiles.isEmpty()) {
+      for (Map.Entry<String, String> entry : cacheKeys.entrySet()) {
+        cache.store(Kind.CLASSES, entry.getValue(), classesDir, getClassFiles(entry.getKey()));
+      }
+      if (compileRuntime) {
+        cache.store(Kind.YAIL_RUNTIME, runtimeKey, classesDir,
+            getClassFiles(runtimeClassFileName));
+      }
+    }
+    return missingClassFiles;
+  }
+
+  /**
+   * Pre-dexes the libraries bundled with the build server into the dex cache, so that the first
+   * builds after a restart do not have to. Libraries shipped inside AARs are exploded per build
+   * and are pre-dexed by the first build that uses them.
+   *
+   * @param dexCacheDir  the dex cache directory
+   * @param childProcessRamMb  maximum RAM for the dx process, in MB
+   * @return  {@code true} if all libraries were pre-dexed, {@code false} otherwise
+   */
+  static boolean preDexBundledLibraries(String dexCacheDir, int childProcessRamMb)
+      throws IOException, JSONException {
+    List<File> libraries = new ArrayList<File>();
+    libraries.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
+    libraries.add(new File(getResource(KAWA_RUNTIME)));
+    libraries.add(new File(getResource(ACRA_RUNTIME)));
+    for (String jar : SUPPORT_JARS) {
+      libraries.add(new File(getResource(jar)));
+    }
+    Set<String> added = new HashSet<String>();
+    JSONArray buildInfo = new JSONArray(Resources.toString(
+        Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
+    for (int i = 0; i < buildInfo.length(); i++) {
+      JSONArray libs = buildInfo.getJSONObject(i)
+          .optJSONArray(ComponentDescriptorConstants.LIBRARIES_TARGET);
+      for (int j = 0; libs != null && j < libs.length(); j++) {
+        String lib = libs.getString(j);
+        if (lib.endsWith(".jar") && added.add(lib)) {
+          libraries.add(new File(getResource(RUNTIME_FILES_DIR + lib)));
+        }
+      }
+    }
+
+    DexExecTask dexTask = new DexExecTask();
+    dexTask.setExecutable(getResource(DX_JAR));
+    dexTask.setChildProcessRamMb(childProcessRamMb);
+    createDir(new File(dexCacheDir));
+    dexTask.setDexedLibs(dexCacheDir);
+    // Take a DX permit per library, so that builds started meanwhile are not held up for the
+    // whole warm-up.
+    boolean success = true;
+    for (File library : libraries) {
+      BuildStageScheduler.Permit permit = BuildStageScheduler.acquire(Stage.DX);
+      try {
+        success = dexTask.warmCache(Collections.singletonList(library)) && success;
+      } finally {
+        permit.release();
+      }
+    }
+    return success;
+  }
+
+  /*
+   * Returns the class files generated by Kawa for one module, such as a screen: the module class
+   * itself and its inner classes.
+   */
+  private static List<File> getClassFiles(String classFileName) {
+    File classFile = new File(classFileName);
+    String prefix = classFile.getName().replace(".class", "$");
+    List<File> classFiles = Lists.newArrayList(classFile);
+    File[] siblings = classFile.getParentFile().listFiles();
+    if (siblings != null) {
+      for (File sibling : siblings) {
+        if (sibling.getName().startsWith(prefix)) {
+          classFiles.add(sibling);
+        }
+      }
+    }
+    return classFiles;
+  }
+
+  /*
+   * Runs the Kawa compiler with the given kawa.repl compile arguments, after loading the YAIL
+   * runtime. Uses a warm worker of the KawaCompilerPool when the build server has one available,
+   * and otherwise starts a new Kawa process with the full classpath. A worker is started with
+   * workerClasspath, which is the same for every build, and given the entries of buildClasspath
+   * with each compilation.
+   */
+  private boolean runKawa(String classpath, String workerClasspath, String buildClasspath,
+      String yailRuntime, List<String> kawaCompileArgs, PrintStream kawaErr) {
+    KawaCompilerPool pool = KawaCompilerPool.getInstance();
+    if (pool != null) {
+      KawaCompilerPool.Worker worker =
+          pool.acquire(workerClasspath, childProcessRamMb, yailRuntime);
+      if (worker != null) {
+        try {
+          return worker.compile(buildClasspath, kawaCompileArgs, System.out, kawaErr);
+        } finally {
+          pool.release(worker);
+        }
+      }
+    }
+
+    List<String> kawaCommandArgs = Lists.newArrayList();
+    int mx = childProcessRamMb - 200;
+    Collections.addAll(kawaCommandArgs,
+        System.getProperty("java.home") + "/bin/java",
+        "-Dfile.encoding=UTF-8",
+        "-mx" + mx + "M",
+        "-cp", classpath,
+        "kawa.repl",
+        "-f", yailRuntime);
+    kawaCommandArgs.addAll(kawaCompileArgs);
+    String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+    return Execution.execute(null, kawaCommandLine, System.out, kawaErr);
+  }
+
   private boolean runZipAlign(String apkAbsolutePath, File tmpDir) {
     // TODO(user): add zipalign tool appinventor->lib->android->tools->linux and windows
     // Need to make sure assets directory exists otherwise zipalign will fail.
@@ -1576,7 +1819,14 @@ public final class Compiler {
     long startZipAlign = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
-    if (!Execution.execute(null, zipAlignCommandLine, System.out, System.err)) {
+    boolean zipAlignSuccess;
+    BuildStageScheduler.Permit permit = BuildStageScheduler.acquire(Stage.ZIPALIGN);
+    try {
+      zipAlignSuccess = Execution.execute(null, zipAlignCommandLine, System.out, System.err);
+    } finally {
+      permit.release();
+    }
+    if (!zipAlignSuccess) {
       LOG.warning("YAIL compiler - ZIPALIGN execution failed.");
       err.println("YAIL compiler - ZIPALIGN execution failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
@@ -1615,7 +1865,14 @@ public final class Compiler {
     };
 
     long startApkSigner = System.currentTimeMillis();
-    if (!Execution.execute(null, apksignerCommandLine, System.out, System.err)) {
+    boolean apkSignerSuccess;
+    BuildStageScheduler.Permit permit = BuildStageScheduler.acquire(Stage.APKSIGNER);
+    try {
+      apkSignerSuccess = Execution.execute(null, apksignerCommandLine, System.out, System.err);
+    } finally {
+      permit.release();
+    }
+    if (!apkSignerSuccess) {
       LOG.warning("YAIL compiler - apksigner execution failed.");
       err.println("YAIL compiler - apksigner execution failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "APKSIGNER"));
@@ -1661,10 +1918,9 @@ public final class Compiler {
     return true;
   }
 
-  private boolean runDx(File classesDir, String dexedClassesDir, boolean secondTry) {
+  private boolean runDx(File classesDir, String dexedClassesDir) {
     List<File> libList = new ArrayList<File>();
     List<File> inputList = new ArrayList<File>();
-    List<File> class2List = new ArrayList<File>();
     inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
     inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
     inputList.add(new File(getResource(KAWA_RUNTIME)));
@@ -1678,16 +1934,6 @@ public final class Compiler {
       libList.add(new File(lib));
     }
 
-    // BEGIN DEBUG -- XXX --
-    // System.err.println("runDx -- libraries");
-    // for (File aFile : inputList) {
-    //   System.err.println(" inputList => " + aFile.getAbsolutePath());
-    // }
-    // for (File aFile : libList) {
-    //   System.err.println(" libList => " + aFile.getAbsolutePath());
-    // }
-    // END DEBUG -- XXX --
-
     // attach the jars of external comps to the libraries list
     Set<String> addedExtJars = new HashSet<String>();
     for (String type : extCompTypes) {
@@ -1698,30 +1944,41 @@ public final class Compiler {
       }
     }
 
-    int offset = libList.size();
-    // Note: The choice of 12 libraries is arbitrary. We note that things
-    // worked to put all libraries into the first classes.dex file when we
-    // had 16 libraries and broke at 17. So this is a conservative number
-    // to try.
-    if (!secondTry) {           // First time through, try base + 12 libraries
-      if (offset > 12)
-        offset = 12;
-    } else {
-      offset = 0;               // Add NO libraries the second time through!
-    }
-    for (int i = 0; i < offset; i++) {
-      inputList.add(libList.get(i));
-    }
-
-    if (libList.size() - offset > 0) { // Any left over for classes2?
-      for (int i = offset; i < libList.size(); i++) {
-        class2List.add(libList.get(i));
+    // The dex output depends only on the classes and the libraries, so it can be reused when the
+    // whole project is unchanged, for example when it is built again for the emulator or with a
+    // different output file name. The built-in components are all in the runtime jar, so only
+    // the libraries they need are part of the key.
+    BuildCache cache = BuildCache.getInstance();
+    String key = null;
+    if (cache != null) {
+      try {
+        BuildCache.KeyBuilder keyBuilder = BuildCache.newKey()
+            .putString(getExtensionKey())
+            .putFile(classesDir);
+        String buildDir = project.getBuildDirectory().getAbsolutePath();
+        for (File lib : libList) {
+          if (lib.getAbsolutePath().startsWith(buildDir)) {
+            // The classes.jar of an AAR library, named the same for every library.
+            keyBuilder.putFile(lib);
+          } else {
+            keyBuilder.putString(lib.getName());
+          }
+        }
+        key = keyBuilder.build();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to compute build cache key", e);
+      }
+      if (key != null && cache.restore(Kind.DEX, key, new File(dexedClassesDir))) {
+        while (new File(dexedClassesDir, getDexFileName(dexFileCount + 1)).exists()) {
+          dexFileCount++;
+        }
+        out.println("________Reusing dex output of unchanged project");
+        return true;
       }
     }
 
     DexExecTask dexTask = new DexExecTask();
     dexTask.setExecutable(getResource(DX_JAR));
-    dexTask.setOutput(dexedClassesDir + File.separator + "classes.dex");
     dexTask.setChildProcessRamMb(childProcessRamMb);
     if (dexCacheDir == null) {
       dexTask.setDisableDexMerger(true);
@@ -1734,32 +1991,35 @@ public final class Compiler {
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
     boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
+    // DX processes can use a lot of memory. The scheduler limits how many run at a time.
+    BuildStageScheduler.Permit permit = BuildStageScheduler.acquire(Stage.DX);
+    try {
       setProgress(50);
-      dxSuccess = dexTask.execute(inputList);
-      if (dxSuccess && (class2List.size() > 0)) {
-        setProgress(60);
-        dexTask.setOutput(dexedClassesDir + File.separator + "classes2.dex");
-        inputList = new ArrayList<File>();
-        dxSuccess = dexTask.execute(class2List);
-        setProgress(75);
-        hasSecondDex = true;
-      } else if (!dxSuccess) {  // The initial dx blew out, try more conservative
-        LOG.info("DX execution failed, trying with fewer libraries.");
-        if (secondTry) {        // Already tried the more conservative approach!
-          LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
-          err.println("YAIL compiler - DX execution failed.");
-          userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
-          return false;
+      dxSuccess = dexTask.preDex(inputList) && dexTask.preDex(libList);
+      if (dxSuccess) {
+        List<List<File>> shards = packDexShards(inputList, libList);
+        if (shards == null) {
+          dxSuccess = false;
         } else {
-          return runDx(classesDir, dexedClassesDir, true);
+          setProgress(60);
+          dxSuccess = runDexShards(dexTask, shards, dexedClassesDir);
+          dexFileCount = shards.size();
         }
       }
+      setProgress(75);
+    } finally {
+      dexTask.releasePreDexed();
+      permit.release();
     }
     if (!dxSuccess) {
       LOG.warning("YAIL compiler - DX execution failed.");
       err.println("YAIL compiler - DX execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+      if (oversizedMainDex != null) {
+        userErrors.print(String.format(TOO_MANY_REFERENCES_ERROR, oversizedMainDex,
+            DexReferenceCounter.MAX_REFERENCES));
+      } else {
+        userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+      }
       return false;
     }
     String dxTimeMessage = "DX time: " +
@@ -1767,9 +2027,176 @@ public final class Compiler {
     out.println(dxTimeMessage);
     LOG.info(dxTimeMessage);
 
+    if (key != null) {
+      List<File> dexFiles = Lists.newArrayList();
+      for (int i = 1; i <= dexFileCount; i++) {
+        dexFiles.add(new File(dexedClassesDir, getDexFileName(i)));
+      }
+      cache.store(Kind.DEX, key, new File(dexedClassesDir), dexFiles);
+    }
+
     return true;
   }
 
+  /*
+   * Assigns the dx inputs to dex files so that none exceeds the method or field reference
+   * limit. Returns null if the references cannot be counted.
+   */
+  private List<List<File>> packDexShards(List<File> mainInputs, List<File> libraries) {
+    try {
+      DexReferenceCounter.Count mainCount = new DexReferenceCounter.Count(0, 0);
+      for (File input : mainInputs) {
+        mainCount = mainCount.plus(DexReferenceCounter.count(input));
+      }
+      Map<File, DexReferenceCounter.Count> libCounts =
+          new HashMap<File, DexReferenceCounter.Count>();
+      for (File lib : libraries) {
+        libCounts.put(lib, DexReferenceCounter.count(lib));
+      }
+      if (!mainCount.fits()) {
+        // The count of the project classes is an estimate that may be too high, so dx still gets
+        // to try, but it has classes.dex to itself and its failure is explained.
+        oversizedMainDex = mainCount;
+        String message = "The project classes and the App Inventor runtime need at most " +
+            mainCount + ", more than the " + DexReferenceCounter.MAX_REFERENCES +
+            " of each that fit in " + getDexFileName(1);
+        LOG.warning(message);
+        err.println(message);
+      }
+      return packDexShards(mainInputs, mainCount, libCounts);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /*
+   * Assigns the dx inputs to dex files given their reference counts. The main inputs (the project
+   * classes and the App Inventor runtime) go into classes.dex. The libraries are added largest
+   * first to the first dex file with room for them. If the main inputs alone do not fit, no
+   * library is added to classes.dex.
+   */
+  @VisibleForTesting
+  static List<List<File>> packDexShards(List<File> mainInputs,
+      DexReferenceCounter.Count mainCount,
+      final Map<File, DexReferenceCounter.Count> libCounts) {
+    List<List<File>> shards = new ArrayList<List<File>>();
+    List<DexReferenceCounter.Count> shardCounts = new ArrayList<DexReferenceCounter.Count>();
+    shards.add(new ArrayList<File>(mainInputs));
+    shardCounts.add(mainCount);
+    int firstLibraryShard = mainCount.fits() ? 0 : 1;
+
+    List<File> sortedLibs = new ArrayList<File>(libCounts.keySet());
+    Collections.sort(sortedLibs, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        int byMethods = libCounts.get(b).methods - libCounts.get(a).methods;
+        return byMethods != 0 ? byMethods : a.getPath().compareTo(b.getPath());
+      }
+    });
+    for (File lib : sortedLibs) {
+      DexReferenceCounter.Count libCount = libCounts.get(lib);
+      int shard = firstLibraryShard;
+      while (shard < shards.size() && !shardCounts.get(shard).plus(libCount).fits()) {
+        shard++;
+      }
+      if (shard == shards.size()) {
+        shards.add(new ArrayList<File>());
+        shardCounts.add(new DexReferenceCounter.Count(0, 0));
+      }
+      shards.get(shard).add(lib);
+      shardCounts.set(shard, shardCounts.get(shard).plus(libCount));
+    }
+    for (int i = 0; i < shards.size(); i++) {
+      LOG.info(getDexFileName(i + 1) + ": " + shards.get(i).size() + " inputs, at most " +
+          shardCounts.get(i));
+    }
+    return shards;
+  }
+
+  /*
+   * Runs dx for each shard. The caller holds a DX permit, which is used for classes.dex. The other
+   * dex files are run in parallel when the scheduler has more DX permits available, and in this
+   * thread otherwise.
+   */
+  @VisibleForTesting
+  static boolean runDexShards(final DexExecTask dexTask, List<List<File>> shards,
+      String dexedClassesDir) {
+    final AtomicBoolean success = new AtomicBoolean(true);
+    List<Thread> threads = new ArrayList<Thread>();
+    List<Integer> sequentialShards = new ArrayList<Integer>();
+    sequentialShards.add(0);
+    for (int i = 1; i < shards.size(); i++) {
+      final BuildStageScheduler.Permit extraPermit = BuildStageScheduler.tryAcquire(Stage.DX);
+      if (extraPermit == null) {
+        sequentialShards.add(i);
+        continue;
+      }
+      final List<File> shard = shards.get(i);
+      final String output = dexedClassesDir + File.separator + getDexFileName(i + 1);
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (!dexShard(dexTask, shard, output)) {
+              success.set(false);
+            }
+          } finally {
+            extraPermit.release();
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    boolean interrupted = false;
+    try {
+      for (int i : sequentialShards) {
+        if (success.get() && !dexShard(dexTask, shards.get(i),
+            dexedClassesDir + File.separator + getDexFileName(i + 1))) {
+          success.set(false);
+        }
+      }
+    } finally {
+      // Wait for every shard, even when interrupted, since the caller releases the pre-dexed
+      // libraries they read once this returns.
+      for (Thread thread : threads) {
+        while (thread.isAlive()) {
+          try {
+            thread.join();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return success.get();
+  }
+
+  /*
+   * Runs dx for one shard. An exception fails the shard, so that one thrown in a shard thread is
+   * not lost with the thread.
+   */
+  private static boolean dexShard(DexExecTask dexTask, List<File> shard, String output) {
+    try {
+      return dexTask.dex(shard, output);
+    } catch (Throwable t) {
+      LOG.log(Level.SEVERE, "dx failed for " + output, t);
+      return false;
+    }
+  }
+
+  /*
+   * Returns the name of the n-th dex file, counting from 1.
+   */
+  private static String getDexFileName(int n) {
+    return n == 1 ? "classes.dex" : "classes" + n + ".dex";
+  }
+
   private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName, File sourceOutputDir, File symbolOutputDir) {
     // Need to make sure assets directory exists otherwise aapt will fail.
     final File mergedAssetsDir = createDir(project.getBuildDirectory(), ASSET_DIR_NAME);
@@ -1827,7 +2254,14 @@ public final class Compiler {
     long startAapt = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
-    if (!Execution.execute(null, aaptPackageCommandLine, System.out, System.err)) {
+    boolean aaptSuccess;
+    BuildStageScheduler.Permit permit = BuildStageScheduler.acquire(Stage.AAPT);
+    try {
+      aaptSuccess = Execution.execute(null, aaptPackageCommandLine, System.out, System.err);
+    } finally {
+      permit.release();
+    }
+    if (!aaptSuccess) {
       LOG.warning("YAIL compiler - AAPT execution failed.");
       err.println("YAIL compiler - AAPT execution failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "AAPT"));
@@ -2008,8 +2442,26 @@ public final class Compiler {
     File intermediates = createDir(buildDir, "intermediates");
     File resDir = createDir(intermediates, "res");
     mergedResDir = createDir(resDir, "merged");
+    BuildCache cache = BuildCache.getInstance();
+    String key = null;
+    if (cache != null) {
+      try {
+        key = BuildCache.newKey().putString(getComponentKey()).putFile(mainResDir).build();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to compute build cache key", e);
+      }
+      if (key != null && cache.restore(Kind.RESOURCES, key, mergedResDir)) {
+        return true;
+      }
+    }
     PngCruncher cruncher = new AaptCruncher(getResource(aaptTool), null, null);
-    return explodedAarLibs.mergeResources(mergedResDir, mainResDir, cruncher);
+    if (!explodedAarLibs.mergeResources(mergedResDir, mainResDir, cruncher)) {
+      return false;
+    }
+    if (key != null) {
+      cache.store(Kind.RESOURCES, key, mergedResDir);
+    }
+    return true;
   }
 
   private boolean generateRClasses(File outputDir) {
@@ -2017,8 +2469,22 @@ public final class Compiler {
       return true;  // nothing to see here
     }
     int error;
+    BuildCache cache = BuildCache.getInstance();
+    String key = null;
     try {
-      error = explodedAarLibs.writeRClasses(outputDir, Signatures.getPackageName(project.getMainClass()), appRTxt);
+      String packageName = Signatures.getPackageName(project.getMainClass());
+      if (cache != null) {
+        // outputDir is still empty, so everything in it afterwards is an R class.
+        key = BuildCache.newKey()
+            .putString(getComponentKey())
+            .putString(packageName)
+            .putFile(appRTxt)
+            .build();
+        if (cache.restore(Kind.R_CLASSES, key, outputDir)) {
+          return true;
+        }
+      }
+      error = explodedAarLibs.writeRClasses(outputDir, packageName, appRTxt);
     } catch (IOException|InterruptedException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "Generate R Classes"));
@@ -2029,6 +2495,9 @@ public final class Compiler {
       userErrors.print(String.format(ERROR_IN_STAGE, "Attach AAR Libraries"));
       return false;
     }
+    if (key != null) {
+      cache.store(Kind.R_CLASSES, key, outputDir);
+    }
     return true;
   }
 
@@ -2340,6 +2809,42 @@ public final class Compiler {
     throw new IllegalStateException("Project lacks extension directory for " + type);
   }
 
+  /*
+   * Returns a string identifying the components used by the project and the contents of its
+   * extensions. Build cache entries depend on it, since the component libraries are on the
+   * compilation classpath and contribute resources.
+   */
+  private String getComponentKey() throws IOException {
+    if (componentKey == null) {
+      BuildCache.KeyBuilder key = BuildCache.newKey();
+      for (String type : new TreeSet<String>(simpleCompTypes)) {
+        key.putString(type);
+      }
+      componentKey = key.putString(getExtensionKey()).build();
+    }
+    return componentKey;
+  }
+
+  /*
+   * Returns a string identifying the extensions used by the project and their contents. Unlike
+   * getComponentKey, it is the same for all variants (app, companion, emulator) of a project.
+   */
+  private String getExtensionKey() throws IOException {
+    if (extensionKey == null) {
+      BuildCache.KeyBuilder key = BuildCache.newKey();
+      Set<String> addedExtDirs = new HashSet<String>();
+      for (String type : new TreeSet<String>(extCompTypes)) {
+        String extCompDir = getExtCompDirPath(type);
+        key.putString(type);
+        if (addedExtDirs.add(extCompDir)) {  // bundled extensions share a directory
+          key.putFile(new File(extCompDir));
+        }
+      }
+      extensionKey = key.build();
+    }
+    return extensionKey;
+  }
+
   private static String basename(String path) {
     return new File(path).getName();
   }
@@ -17,18 +17,27 @@
 package com.google.appinventor.buildserver;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
-
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 
 /**
@@ -44,9 +53,39 @@ public class DexExecTask  {
     private boolean mNoLocals = false;
     private int mChildProcessRamMb = 1024;
     private boolean mDisableDexMerger = false;
-    private static Map<String, String> alreadyChecked = new HashMap<String, String>();
 
-    private static Object semaphore = new Object(); // Used to protect dex cache creation
+    // Hashes of the library files, by path, size and modification time.
+    private static final ConcurrentMap<String, String> alreadyChecked =
+        new ConcurrentHashMap<String, String>();
+
+    // Pre-dex operations in progress, by the path of the pre-dexed file. A build that needs a
+    // library that another build is pre-dexing waits for that result instead of dexing it again.
+    private static final ConcurrentMap<String, FutureTask<Boolean>> preDexing =
+        new ConcurrentHashMap<String, FutureTask<Boolean>>();
+
+    private static final String DEX_CACHE_PREFIX = "dex-cached-";
+
+    // The size of the dex cache directory beyond which the least recently used pre-dexed
+    // libraries are deleted. 0 means unlimited.
+    private static volatile long maxDexCacheSizeBytes = 0;
+
+    private static final Object evictionLock = new Object(); // Used to protect dex cache eviction
+
+    // The number of builds using each pre-dexed library, by path. Eviction skips these, since a
+    // build that has resolved a library to its pre-dexed file has yet to pass that file to dx.
+    // Guarded by evictionLock.
+    private static final Map<String, Integer> pinned = new HashMap<String, Integer>();
+
+    // The pre-dexed libraries pinned by this task, released by releasePreDexed.
+    private final List<File> mPinned = new ArrayList<File>();
+
+    /**
+     * Sets the maximum size of the dex cache directory.
+     * @param mb the size in MB, or 0 for unlimited.
+     */
+    public static void setMaxDexCacheSizeMb(long mb) {
+        maxDexCacheSizeBytes = mb * 1024 * 1024;
+    }
 
 
     /**
@@ -99,76 +138,254 @@ public class DexExecTask  {
             // just a jar file (case for proguard'ed builds)
             return true;
         }
+        return preDexInputs(inputs);
+    }
+
+    /**
+     * Pre-dexes the given libraries into the dex cache, if they are not there already. Used to
+     * populate the cache before the first build needs them.
+     * @param libraries the library jars.
+     * @return true if all libraries are in the dex cache.
+     */
+    public boolean warmCache(List<File> libraries) {
+        try {
+            return preDexInputs(new ArrayList<File>(libraries));
+        } finally {
+            releasePreDexed();
+        }
+    }
 
-        synchronized(semaphore) {
-
-            final int count = inputs.size();
-            boolean allSuccessful = true;
-            for (int i = 0 ; i < count; i++) {
-                File input = inputs.get(i);
-                if (input.isFile()) {
-                    // check if this libs needs to be pre-dexed
-                    String fileName = getDexFileName(input);
-                    File dexedLib = new File(mDexedLibs, fileName);
-                    String dexedLibPath = dexedLib.getAbsolutePath();
-
-                    if (dexedLib.isFile() == false/*||
-                                                    dexedLib.lastModified() < input.lastModified()*/) {
-
-                        System.out.println(
-                            String.format("Pre-Dexing %1$s -> %2$s",
-                              input.getAbsolutePath(), fileName));
-
-                        if (dexedLib.isFile()) {
-                            dexedLib.delete();
-                        }
-
-                        boolean dexSuccess = runDx(input, dexedLibPath, false /*showInput*/);
-                        allSuccessful = allSuccessful && dexSuccess;
-                    } else {
-                        System.out.println(
-                            String.format("Using Pre-Dexed %1$s <- %2$s",
-                              fileName, input.getAbsolutePath()));
+    private boolean preDexInputs(List<File> inputs) {
+        final int count = inputs.size();
+        boolean allSuccessful = true;
+        boolean addedToCache = false;
+        for (int i = 0 ; i < count; i++) {
+            File input = inputs.get(i);
+            if (input.isFile()) {
+                // check if this libs needs to be pre-dexed
+                String fileName = getDexFileName(input);
+                if (fileName == null) {
+                    // Unable to hash the library; dex it with the other inputs.
+                    continue;
+                }
+                File dexedLib = new File(mDexedLibs, fileName);
+                // Pin the library before looking for it, so that it is not evicted until the
+                // build is done with it.
+                pin(dexedLib);
+
+                if (dexedLib.isFile()) {
+                    System.out.println(
+                        String.format("Using Pre-Dexed %1$s <- %2$s",
+                          fileName, input.getAbsolutePath()));
+                    // Mark the library as recently used for eviction.
+                    dexedLib.setLastModified(System.currentTimeMillis());
+                } else {
+                    boolean dexSuccess = preDex(input, dexedLib);
+                    allSuccessful = allSuccessful && dexSuccess;
+                    addedToCache = addedToCache || dexSuccess;
+                }
+
+                // replace the input with the pre-dex libs.
+                inputs.set(i, dexedLib);
+            }
+        }
+        if (addedToCache) {
+            evictIfNeeded();
+        }
+        return allSuccessful;
+    }
+
+    private void pin(File dexedLib) {
+        String key = dexedLib.getAbsolutePath();
+        synchronized (evictionLock) {
+            Integer count = pinned.get(key);
+            pinned.put(key, count == null ? 1 : count + 1);
+        }
+        mPinned.add(dexedLib);
+    }
+
+    /**
+     * Releases the pre-dexed libraries that {@link #preDex} resolved for this task, so that they
+     * may be evicted from the dex cache. Call once the task is done running dx.
+     */
+    public void releasePreDexed() {
+        synchronized (evictionLock) {
+            for (File dexedLib : mPinned) {
+                String key = dexedLib.getAbsolutePath();
+                Integer count = pinned.get(key);
+                if (count == null || count <= 1) {
+                    pinned.remove(key);
+                } else {
+                    pinned.put(key, count - 1);
+                }
+            }
+        }
+        mPinned.clear();
+    }
+
+    /*
+     * Pre-dexes input into dexedLib, or waits for another build that is doing so. The library is
+     * dexed into a temporary file and then renamed, so other builds never see a partial file.
+     */
+    private boolean preDex(final File input, final File dexedLib) {
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (dexedLib.isFile()) {
+                    // Another build finished it after we looked.
+                    return true;
+                }
+                System.out.println(
+                    String.format("Pre-Dexing %1$s -> %2$s",
+                      input.getAbsolutePath(), dexedLib.getName()));
+                // dx decides the output format from the extension, so it must remain .jar.
+                File tmpLib = new File(dexedLib.getParentFile(),
+                    "tmp-" + UUID.randomUUID() + "-" + dexedLib.getName());
+                try {
+                    if (!runDx(input, tmpLib.getAbsolutePath(), false /*showInput*/)) {
+                        return false;
                     }
+                    Files.move(tmpLib.toPath(), dexedLib.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    return true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                } finally {
+                    tmpLib.delete();
+                }
+            }
+        });
+        String key = dexedLib.getAbsolutePath();
+        FutureTask<Boolean> running = preDexing.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                preDexing.remove(key, task);
+            }
+            running = task;
+        } else {
+            System.out.println(
+                String.format("Waiting for Pre-Dexing of %1$s", dexedLib.getName()));
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
-                    // replace the input with the pre-dex libs.
-                    inputs.set(i, dexedLib);
+    /*
+     * Deletes the least recently used pre-dexed libraries until the dex cache is below 90% of its
+     * maximum size.
+     */
+    @VisibleForTesting
+    void evictIfNeeded() {
+        long maxBytes = maxDexCacheSizeBytes;
+        if (maxBytes <= 0) {
+            return;
+        }
+        synchronized (evictionLock) {
+            File[] dexedLibs = new File(mDexedLibs).listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return file.getName().startsWith(DEX_CACHE_PREFIX);
+                }
+            });
+            if (dexedLibs == null) {
+                return;
+            }
+            long size = 0;
+            for (File dexedLib : dexedLibs) {
+                size += dexedLib.length();
+            }
+            if (size <= maxBytes) {
+                return;
+            }
+            Arrays.sort(dexedLibs, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            for (File dexedLib : dexedLibs) {
+                if (size <= maxBytes / 10 * 9) {
+                    break;
+                }
+                if (pinned.containsKey(dexedLib.getAbsolutePath())) {
+                    continue;
+                }
+                long length = dexedLib.length();
+                if (dexedLib.delete()) {
+                    System.out.println(
+                        String.format("Evicted Pre-Dexed %1$s", dexedLib.getName()));
+                    size -= length;
                 }
             }
-            return allSuccessful;
         }
     }
 
     private String getDexFileName(File inputFile) {
         String hashed = getHashFor(inputFile);
-        return "dex-cached-" + hashed + ".jar";
+        return hashed == null ? null : DEX_CACHE_PREFIX + hashed + ".jar";
     }
 
     private String getHashFor(File inputFile) {
-        String retval = alreadyChecked.get(inputFile.getAbsolutePath());
+        String key = inputFile.getAbsolutePath() + ":" + inputFile.length() + ":" +
+            inputFile.lastModified();
+        String retval = alreadyChecked.get(key);
         if (retval != null) return retval;
-        // add a hash of the original file path
         try {
-            HashFunction hashFunction = Hashing.md5();
-            HashCode hashCode = hashFunction.hashBytes(Files.readAllBytes(inputFile.toPath()));
+            // Stream the file through the hash instead of reading it into memory.
+            HashCode hashCode = com.google.common.io.Files.hash(inputFile, Hashing.md5());
             retval = hashCode.toString();
-            alreadyChecked.put(inputFile.getAbsolutePath(), retval);
+            alreadyChecked.put(key, retval);
             return retval;
         } catch (IOException e) {
             e.printStackTrace();
-            return "ERROR";
+            return null;
         }
     }
 
     public boolean execute(List<File> paths) {
         // pre dex libraries if needed
-        boolean successPredex = preDexLibraries(paths);
-        if (!successPredex) return false;
+        try {
+            boolean successPredex = preDexLibraries(paths);
+            if (!successPredex) return false;
+
+            return dex(paths, mOutput);
+        } finally {
+            releasePreDexed();
+        }
+    }
+
+    /**
+     * Replaces the library jars in the given list with their pre-dexed versions, pre-dexing them
+     * if needed. The pre-dexed libraries are kept in the dex cache until {@link #releasePreDexed}.
+     * @param paths the inputs; jar files are replaced in place.
+     * @return true if successful.
+     */
+    public boolean preDex(List<File> paths) {
+        return preDexLibraries(paths);
+    }
 
+    /**
+     * Runs dx on inputs that have already been pre-dexed with {@link #preDex}. May be called from
+     * several threads at once for different outputs.
+     * @param paths the inputs.
+     * @param output the dex file to write.
+     * @return true if successful.
+     */
+    public boolean dex(Collection<File> paths, String output) {
         System.out.println(String.format(
-                "Converting compiled files and external libraries into %1$s...", mOutput));
+                "Converting compiled files and external libraries into %1$s...", output));
 
-        return runDx(paths, mOutput, mVerbose /*showInputs*/);
+        return runDx(paths, output, mVerbose /*showInputs*/);
     }
 
     private boolean runDx(File input, String output, boolean showInputs) {
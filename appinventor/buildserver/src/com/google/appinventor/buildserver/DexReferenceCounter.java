@@ -0,0 +1,220 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Counts the method and field references that an input of dx contributes to a dex file. A dex
+ * file can hold at most {@link #MAX_REFERENCES} of each.
+ *
+ * <p>Pre-dexed libraries from the dex cache are counted exactly, from their dex headers. Other
+ * inputs (class directories and jars that were not pre-dexed) are estimated from their class
+ * files: every method or field a class declares or refers to is counted once per class. Since dx
+ * merges duplicates, the estimate is never below the real count.
+ */
+final class DexReferenceCounter {
+
+  /**
+   * The maximum number of method references, and of field references, in a dex file.
+   */
+  static final int MAX_REFERENCES = 65536;
+
+  // Offsets of field_ids_size and method_ids_size in the dex file header.
+  private static final int DEX_FIELD_IDS_SIZE_OFFSET = 0x50;
+  private static final int DEX_METHOD_IDS_SIZE_OFFSET = 0x58;
+
+  private static final int CLASS_FILE_MAGIC = 0xCAFEBABE;
+
+  /**
+   * The references of one or more dx inputs.
+   */
+  static final class Count {
+    final int methods;
+    final int fields;
+
+    Count(int methods, int fields) {
+      this.methods = methods;
+      this.fields = fields;
+    }
+
+    Count plus(Count other) {
+      return new Count(methods + other.methods, fields + other.fields);
+    }
+
+    /**
+     * Returns whether this many references fit into a single dex file.
+     */
+    boolean fits() {
+      return methods <= MAX_REFERENCES && fields <= MAX_REFERENCES;
+    }
+
+    @Override
+    public String toString() {
+      return methods + " methods, " + fields + " fields";
+    }
+  }
+
+  private DexReferenceCounter() {
+  }
+
+  /**
+   * Counts the references of a dx input: a directory of class files, a jar of class files, or a
+   * pre-dexed jar.
+   */
+  static Count count(File input) throws IOException {
+    int[] counts = new int[2];
+    if (input.isDirectory()) {
+      countDirectory(input, counts);
+    } else {
+      ZipFile zip = new ZipFile(input);
+      try {
+        for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+          ZipEntry entry = entries.nextElement();
+          String name = entry.getName();
+          InputStream in;
+          if (name.matches("classes[0-9]*\\.dex")) {
+            in = zip.getInputStream(entry);
+            try {
+              countDex(in, counts);
+            } finally {
+              in.close();
+            }
+          } else if (name.endsWith(".class")) {
+            in = zip.getInputStream(entry);
+            try {
+              countClass(in, counts);
+            } finally {
+              in.close();
+            }
+          }
+        }
+      } finally {
+        zip.close();
+      }
+    }
+    return new Count(counts[0], counts[1]);
+  }
+
+  private static void countDirectory(File dir, int[] counts) throws IOException {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      throw new IOException("Unable to list " + dir);
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        countDirectory(child, counts);
+      } else if (child.getName().endsWith(".class")) {
+        InputStream in = new FileInputStream(child);
+        try {
+          countClass(in, counts);
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  /*
+   * Adds the method_ids_size and field_ids_size of a dex file header.
+   */
+  private static void countDex(InputStream in, int[] counts) throws IOException {
+    byte[] header = new byte[DEX_METHOD_IDS_SIZE_OFFSET + 4];
+    new DataInputStream(in).readFully(header);
+    counts[0] += readLittleEndianInt(header, DEX_METHOD_IDS_SIZE_OFFSET);
+    counts[1] += readLittleEndianInt(header, DEX_FIELD_IDS_SIZE_OFFSET);
+  }
+
+  private static int readLittleEndianInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+        | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+  }
+
+  /*
+   * Adds the methods and fields that a class file declares or refers to.
+   */
+  private static void countClass(InputStream stream, int[] counts) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+    if (in.readInt() != CLASS_FILE_MAGIC) {
+      throw new IOException("Not a class file");
+    }
+    skip(in, 4);  // minor_version, major_version
+    int poolCount = in.readUnsignedShort();
+    for (int i = 1; i < poolCount; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 1:  // Utf8
+          skip(in, in.readUnsignedShort());
+          break;
+        case 7:  // Class
+        case 8:  // String
+        case 16:  // MethodType
+        case 19:  // Module
+        case 20:  // Package
+          skip(in, 2);
+          break;
+        case 15:  // MethodHandle
+          skip(in, 3);
+          break;
+        case 9:  // Fieldref
+          counts[1]++;
+          skip(in, 4);
+          break;
+        case 10:  // Methodref
+        case 11:  // InterfaceMethodref
+          counts[0]++;
+          skip(in, 4);
+          break;
+        case 3:  // Integer
+        case 4:  // Float
+        case 12:  // NameAndType
+        case 17:  // Dynamic
+        case 18:  // InvokeDynamic
+          skip(in, 4);
+          break;
+        case 5:  // Long
+        case 6:  // Double
+          skip(in, 8);
+          i++;  // takes two entries
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+    skip(in, 6);  // access_flags, this_class, super_class
+    skip(in, 2 * in.readUnsignedShort());  // interfaces
+    int fieldCount = in.readUnsignedShort();
+    counts[1] += fieldCount;
+    for (int i = 0; i < fieldCount; i++) {
+      skip(in, 6);  // access_flags, name_index, descriptor_index
+      int attributeCount = in.readUnsignedShort();
+      for (int j = 0; j < attributeCount; j++) {
+        skip(in, 2);  // attribute_name_index
+        skip(in, in.readInt());
+      }
+    }
+    counts[0] += in.readUnsignedShort();
+  }
+
+  private static void skip(DataInputStream in, int count) throws IOException {
+    while (count > 0) {
+      int skipped = in.skipBytes(count);
+      if (skipped <= 0) {
+        throw new EOFException();
+      }
+      count -= skipped;
+    }
+  }
+}
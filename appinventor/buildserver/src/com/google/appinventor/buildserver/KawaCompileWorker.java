@@ -0,0 +1,155 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Main entry point of a long-lived Kawa compilation process.
+ *
+ * <p>The worker loads the YAIL runtime once at startup and then compiles batches of YAIL source
+ * files on request. It is started and driven by {@link KawaCompilerPool}; the protocol is line
+ * based:
+ *
+ * <ul>
+ *   <li>Each request on stdin is a line with the build's classpath entries, separated by
+ *       {@link File#pathSeparator}, then a line with the number of arguments, followed by that
+ *       many lines of kawa.repl arguments (e.g., {@code -d <dir> -P <package> -C <files...>}).
+ *       </li>
+ *   <li>Each response on stdout is a line starting with {@link #RESPONSE_PREFIX}, followed by
+ *       either {@link #SUCCESS} or {@link #FAILURE}. Other stdout lines are Kawa output.</li>
+ *   <li>Compiler messages are written to stderr, terminated by {@link #END_OF_MESSAGES}.</li>
+ * </ul>
+ *
+ * <p>The worker's own classpath holds the entries shared by every build. The classes of a
+ * request's entries are loaded by a class loader of their own, which Kawa finds as the context
+ * class loader, and Kawa's types for them are forgotten after the request, so that the next build
+ * sees its own versions of them.
+ *
+ * <p>Kawa calls System.exit() when a compilation has errors. The pool treats the resulting end of
+ * stream as a failed compilation and starts a fresh worker for the next request.
+ *
+ * <p>This class must only depend on the JDK since it runs with the classpath of the project being
+ * compiled. Kawa is accessed reflectively so that the kawa.jar on that classpath is used.
+ */
+public final class KawaCompileWorker {
+
+  static final String RESPONSE_PREFIX = "\u0001kawa-worker:";
+  static final String READY = "ready";
+  static final String SUCCESS = "ok";
+  static final String FAILURE = "failed";
+  static final String END_OF_MESSAGES = "\u0001kawa-worker:end-of-messages";
+
+  private KawaCompileWorker() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the path to the YAIL runtime (runtime.scm)
+   */
+  public static void main(String[] args) throws Exception {
+    PrintStream protocol = System.out;
+    BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+    Method processArgs = Class.forName("kawa.repl")
+        .getMethod("processArgs", String[].class, int.class, int.class);
+    Class<?> moduleManagerClass = Class.forName("gnu.expr.ModuleManager");
+    Object moduleManager = moduleManagerClass.getMethod("getInstance").invoke(null);
+    Method clearModules = moduleManagerClass.getMethod("clear");
+    Class<?> typeClass = Class.forName("gnu.bytecode.Type");
+    Field typesByName = typeClass.getDeclaredField("mapNameToType");
+    typesByName.setAccessible(true);
+    Field typeClassField = typeClass.getDeclaredField("reflectClass");
+    typeClassField.setAccessible(true);
+
+    // Load the YAIL runtime into the interaction environment, the same as "kawa.repl -f".
+    processArgs.invoke(null, new String[] { "-f", args[0] }, 0, 2);
+    System.err.println(END_OF_MESSAGES);
+    System.err.flush();
+    respond(protocol, READY);
+
+    String line;
+    while ((line = requests.readLine()) != null) {
+      URLClassLoader buildClassLoader = newClassLoader(line);
+      int count = Integer.parseInt(requests.readLine().trim());
+      String[] kawaArgs = new String[count];
+      for (int i = 0; i < count; i++) {
+        kawaArgs[i] = requests.readLine();
+      }
+      boolean success;
+      Thread.currentThread().setContextClassLoader(buildClassLoader);
+      try {
+        // Forget the modules of the previous request; otherwise Kawa would consider runtime.scm
+        // (which has the same path for every request) already compiled and not write its classes.
+        clearModules.invoke(moduleManager);
+        processArgs.invoke(null, kawaArgs, 0, count);
+        success = true;
+      } catch (Throwable t) {
+        t.printStackTrace();
+        success = false;
+      } finally {
+        Thread.currentThread().setContextClassLoader(KawaCompileWorker.class.getClassLoader());
+        forgetTypes(typesByName, typeClassField, buildClassLoader);
+        buildClassLoader.close();
+      }
+      System.err.println(END_OF_MESSAGES);
+      System.err.flush();
+      respond(protocol, success ? SUCCESS : FAILURE);
+    }
+  }
+
+  /*
+   * Returns a class loader for the given classpath entries, delegating to the worker's class
+   * loader.
+   */
+  private static URLClassLoader newClassLoader(String classpath) throws IOException {
+    List<URL> urls = new ArrayList<URL>();
+    for (String entry : classpath.split(File.pathSeparator)) {
+      if (!entry.isEmpty()) {
+        urls.add(new File(entry).toURI().toURL());
+      }
+    }
+    return new URLClassLoader(urls.toArray(new URL[urls.size()]),
+        KawaCompileWorker.class.getClassLoader());
+  }
+
+  /*
+   * Removes Kawa's types for the classes loaded by the given class loader from its table of types
+   * by name.
+   */
+  private static void forgetTypes(Field typesByName, Field typeClassField,
+      ClassLoader classLoader) throws IllegalAccessException {
+    Map<?, ?> types = (Map<?, ?>) typesByName.get(null);
+    if (types == null) {
+      return;
+    }
+    synchronized (types) {
+      for (Iterator<?> it = types.values().iterator(); it.hasNext(); ) {
+        Class<?> typeClass = (Class<?>) typeClassField.get(it.next());
+        if (typeClass != null && typeClass.getClassLoader() == classLoader) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private static void respond(PrintStream protocol, String response) {
+    protocol.println(RESPONSE_PREFIX + response);
+    protocol.flush();
+  }
+}
@@ -0,0 +1,326 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of warm {@link KawaCompileWorker} processes.
+ *
+ * <p>Starting a JVM and loading runtime.scm dominates the Kawa compile time of small projects.
+ * Workers are kept alive between builds and reused by any build. A worker is started with the
+ * classpath entries shared by every build (Kawa, the component runtime and the Android runtime);
+ * the entries that depend on the project, such as extensions, component libraries, AAR classes
+ * and the build's classes directory, are passed with each compilation. When every worker is
+ * busy, {@link #acquire} returns null and the caller falls back to a one-shot Kawa process.
+ *
+ * <p>The pool is disabled unless {@link #start} has been called, which the build server does
+ * when it is started with {@code --kawaWorkers} greater than 0.
+ */
+final class KawaCompilerPool {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerPool.class.getName());
+
+  private static final Joiner joiner = Joiner.on(" ");
+
+  private static volatile KawaCompilerPool instance;
+
+  // The maximum number of worker processes, busy or idle.
+  private final int maxWorkers;
+
+  // The number of compilations after which a worker is retired, so that Kawa's per-module state
+  // does not accumulate forever.
+  private final int maxCompilesPerWorker;
+
+  // Idle workers, least recently used first.
+  private final LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+  private int workerCount = 0;
+
+  private final AtomicInteger warmCompiles = new AtomicInteger(0);
+  private final AtomicInteger coldCompiles = new AtomicInteger(0);
+
+  private KawaCompilerPool(int maxWorkers, int maxCompilesPerWorker) {
+    this.maxWorkers = maxWorkers;
+    this.maxCompilesPerWorker = maxCompilesPerWorker;
+  }
+
+  /**
+   * Enables the pool.
+   *
+   * @param maxWorkers  the maximum number of Kawa worker processes
+   * @param maxCompilesPerWorker  the number of compilations after which a worker is restarted
+   */
+  static synchronized void start(int maxWorkers, int maxCompilesPerWorker) {
+    if (instance != null || maxWorkers <= 0) {
+      return;
+    }
+    final KawaCompilerPool pool = new KawaCompilerPool(maxWorkers, maxCompilesPerWorker);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        pool.shutdown();
+      }
+    });
+    instance = pool;
+  }
+
+  /**
+   * Returns the pool, or null if the build server did not enable it.
+   */
+  static KawaCompilerPool getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns an idle worker for the given classpath, starting one if the pool has room. Returns
+   * null if all workers are busy; the caller should then run Kawa in a separate process.
+   *
+   * @param classpath  the classpath entries shared by every build
+   * @param childProcessRamMb  maximum RAM for the worker process, in MB
+   * @param yailRuntime  the path to runtime.scm
+   */
+  Worker acquire(String classpath, int childProcessRamMb, String yailRuntime) {
+    synchronized (this) {
+      for (Iterator<Worker> it = idleWorkers.iterator(); it.hasNext(); ) {
+        Worker worker = it.next();
+        if (worker.matches(classpath, childProcessRamMb, yailRuntime)) {
+          it.remove();
+          warmCompiles.incrementAndGet();
+          return worker;
+        }
+      }
+      if (workerCount >= maxWorkers) {
+        if (idleWorkers.isEmpty()) {
+          return null;
+        }
+        // Make room by retiring the least recently used idle worker.
+        idleWorkers.removeFirst().destroy();
+        workerCount--;
+      }
+      workerCount++;
+    }
+    coldCompiles.incrementAndGet();
+    try {
+      return new Worker(classpath, childProcessRamMb, yailRuntime);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to start Kawa worker", e);
+      synchronized (this) {
+        workerCount--;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Returns a worker to the pool after a compilation.
+   */
+  void release(Worker worker) {
+    synchronized (this) {
+      if (worker.isAlive() && worker.compiles < maxCompilesPerWorker) {
+        idleWorkers.addLast(worker);
+        return;
+      }
+      workerCount--;
+    }
+    worker.destroy();
+  }
+
+  int getWorkerCount() {
+    synchronized (this) {
+      return workerCount;
+    }
+  }
+
+  int getWarmCompileCount() {
+    return warmCompiles.get();
+  }
+
+  int getColdCompileCount() {
+    return coldCompiles.get();
+  }
+
+  private void shutdown() {
+    synchronized (this) {
+      for (Worker worker : idleWorkers) {
+        worker.destroy();
+      }
+      idleWorkers.clear();
+    }
+  }
+
+  /*
+   * Returns the classpath entry containing KawaCompileWorker.
+   */
+  private static String getWorkerClasspath() throws IOException {
+    try {
+      return new File(KawaCompileWorker.class.getProtectionDomain().getCodeSource().getLocation()
+          .toURI()).getAbsolutePath();
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * A single Kawa worker process.
+   */
+  static final class Worker {
+    // Marks the end of the worker's stderr in the messages queue.
+    private static final String END_OF_STREAM = new String("<eof>");
+
+    private final String classpath;
+    private final int childProcessRamMb;
+    private final String yailRuntime;
+    private final Process process;
+    private final Writer requests;
+    private final BufferedReader responses;
+    private final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+    private volatile boolean alive = true;
+    private int compiles = 0;
+
+    private Worker(String classpath, int childProcessRamMb, String yailRuntime)
+        throws IOException {
+      this.classpath = classpath;
+      this.childProcessRamMb = childProcessRamMb;
+      this.yailRuntime = yailRuntime;
+      List<String> command = new ArrayList<String>();
+      command.add(System.getProperty("java.home") + "/bin/java");
+      command.add("-Dfile.encoding=UTF-8");
+      command.add("-mx" + (childProcessRamMb - 200) + "M");
+      command.add("-cp");
+      command.add(classpath + File.pathSeparator + getWorkerClasspath());
+      command.add(KawaCompileWorker.class.getName());
+      command.add(yailRuntime);
+      LOG.info("Starting Kawa worker: " + joiner.join(command));
+      process = new ProcessBuilder(command).start();
+      requests = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+      responses = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+      Thread stderrReader = new Thread("Kawa worker stderr") {
+        @Override
+        public void run() {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+          try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+              messages.add(line);
+            }
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "____I/O Redirection failure: ", e);
+          } finally {
+            messages.add(END_OF_STREAM);
+          }
+        }
+      };
+      stderrReader.setDaemon(true);
+      stderrReader.start();
+      // Anything the runtime prints while loading belongs to no build, so it goes to the log.
+      String response = readResponse(System.out);
+      drainMessages(System.err);
+      if (!KawaCompileWorker.READY.equals(response)) {
+        destroy();
+        throw new IOException("Kawa worker failed to load " + yailRuntime);
+      }
+    }
+
+    private boolean matches(String classpath, int childProcessRamMb, String yailRuntime) {
+      return alive && this.classpath.equals(classpath)
+          && this.childProcessRamMb == childProcessRamMb && this.yailRuntime.equals(yailRuntime);
+    }
+
+    boolean isAlive() {
+      return alive;
+    }
+
+    /**
+     * Compiles with the given kawa.repl arguments.
+     *
+     * @param buildClasspath  the classpath entries of this build, separated by
+     *                        {@link File#pathSeparator}, in addition to those of the worker
+     * @param kawaArgs  arguments as for kawa.repl, for example -d, -P and -C
+     * @param out  stream for Kawa's standard output
+     * @param err  stream for Kawa's compiler messages
+     * @return  {@code true} if the compilation succeeds, {@code false} otherwise
+     */
+    boolean compile(String buildClasspath, List<String> kawaArgs, PrintStream out,
+        PrintStream err) {
+      compiles++;
+      String response;
+      try {
+        requests.write(buildClasspath + "\n");
+        requests.write(kawaArgs.size() + "\n");
+        for (String arg : kawaArgs) {
+          requests.write(arg + "\n");
+        }
+        requests.flush();
+        response = readResponse(out);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Kawa worker failure: ", e);
+        alive = false;
+        response = null;
+      }
+      drainMessages(err);
+      return KawaCompileWorker.SUCCESS.equals(response);
+    }
+
+    /*
+     * Copies the worker's stderr to err, up to the end of the current request's messages.
+     */
+    private void drainMessages(PrintStream err) {
+      try {
+        String line;
+        while ((line = messages.take()) != END_OF_STREAM
+            && !line.equals(KawaCompileWorker.END_OF_MESSAGES)) {
+          err.println(line);
+        }
+        if (line == END_OF_STREAM) {
+          alive = false;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        alive = false;
+      }
+    }
+
+    /*
+     * Reads the next response of the worker, copying other output lines to out. Returns null if
+     * the worker exited.
+     */
+    private String readResponse(PrintStream out) throws IOException {
+      String line;
+      while ((line = responses.readLine()) != null) {
+        if (line.startsWith(KawaCompileWorker.RESPONSE_PREFIX)) {
+          return line.substring(KawaCompileWorker.RESPONSE_PREFIX.length());
+        }
+        out.println(line);
+      }
+      alive = false;
+      return null;
+    }
+
+    private void destroy() {
+      alive = false;
+      process.destroy();
+    }
+  }
+}
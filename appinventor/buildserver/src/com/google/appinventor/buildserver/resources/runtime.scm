@@ -2108,8 +2108,9 @@ list, use the make-yail-list constructor with no arguments.
 
 
 ;; Implements the Blocks length operation
+;; YailList keeps an index of its contents, so this does not walk the list.
 (define (yail-list-length yail-list)
-  (length (yail-list-contents yail-list)))
+  ((as YailList yail-list):size))
 
 ;; These are removed, to simplify the API to lists
 ;; ;; Implements the Blocks first operation
@@ -2132,11 +2133,14 @@ list, use the make-yail-list constructor with no arguments.
 ;; Implements the Blocks index in list operation
 ;; returns the 1-based index of the object in the list
 ;; returns 0 if object not in list
+;; YailList keeps an index of its items by a hash consistent with yail-equal?,
+;; so only the items that may be equal to the object are compared with it.
 (define (yail-list-index object yail-list)
-  (let loop ((i 1) (list (yail-list-contents yail-list)))
-    (cond ((null? list) 0)
-          ((yail-equal? object (car list)) i)
-          (else (loop (+ i 1) (cdr list))))))
+  (let ((items (as YailList yail-list)))
+    (let loop ((i (items:findCandidate object)))
+      (cond ((< i 0) 0)
+            ((yail-equal? object (items:getObject i)) (+ i 1))
+            (else (loop (items:nextFindCandidate i)))))))
 
 ;; Implements the Blocks get list item operation
 (define (yail-list-get-item yail-list index)
@@ -2154,7 +2158,7 @@ list, use the make-yail-list constructor with no arguments.
                  len
                  (get-display-representation yail-list))
          "Select list item: List index too large")
-    (list-ref (yail-list-contents yail-list) (- index 1)))))
+    ((as YailList yail-list):getObject (- index 1)))))
 
 
 ;; Implements the Blocks set list item operation
@@ -2173,12 +2177,13 @@ list, use the make-yail-list constructor with no arguments.
                  len
                  (get-display-representation yail-list))
          "List index too large")))
-  (set-car! (list-tail (yail-list-contents yail-list) (- index 1)) value))
+  ((as YailList yail-list):setObject (- index 1) value))
 
 
 
 ;; Implements the Blocks remove list item operation
-;; We have to operate on the yail-list itself, not the contents
+;; We have to operate on the yail-list itself, not the contents,
+;; so that its index is kept up to date
 (define (yail-list-remove-item! yail-list index)
   (let ((index2 (coerce-to-number index)))
     (if (eq? index2 *non-coercible-value*)
@@ -2204,8 +2209,7 @@ list, use the make-yail-list constructor with no arguments.
                    len
                    (get-display-representation yail-list))
            "List index too large"))
-      (let ((pair-pointing-to-deletion (list-tail yail-list (- index2 1))))
-        (set-cdr! pair-pointing-to-deletion (cddr pair-pointing-to-deletion))))))
+      ((as YailList yail-list):removeObject (- index2 1)))))
 
 
 ;; Implements the Blocks insert list item operation
@@ -2234,11 +2238,7 @@ list, use the make-yail-list constructor with no arguments.
                    (get-display-representation yail-list)
                    len+1)
            "List index too large"))
-      (let ((contents (yail-list-contents yail-list)))
-        (if (= index2 1)
-            (set-yail-list-contents! yail-list (cons item contents))
-            (let ((at-item (list-tail contents (- index2 2))))
-              (set-cdr! at-item (cons item (cdr at-item)))))))))
+      ((as YailList yail-list):insertObject (- index2 1) item))))
 
 ;; Extends list A by appending the elements of list B to it
 ;; Modifies list A
@@ -2248,14 +2248,9 @@ list, use the make-yail-list constructor with no arguments.
   ;; between the augmented list and the source of the added elements.
   ;; But like Python, we do a shallow copy, so that substructure is
   ;; shared.
-  (define (list-copy l)
-    (if (null? l)
-    '()
-    (cons (car l) (list-copy (cdr l)))))
   ;; We have to operate on the yail-list itself, not the contents, because
-  ;; the contents might be empty
-  (set-cdr! (list-tail yail-list-A (length (yail-list-contents yail-list-A)))
-        (list-copy (yail-list-contents yail-list-B))))
+  ;; the contents might be empty, and so that its index is kept up to date
+  ((as YailList yail-list-A):appendList (as YailList yail-list-B)))
 
 
 ;; Extend list A by appending the items to it
@@ -2270,8 +2265,7 @@ list, use the make-yail-list constructor with no arguments.
 ;; Implements the blocks member? operation
 ;; This returns true or false (unlike Scheme's member primitive)
 (define (yail-list-member? object yail-list)
-  (let ((result (member object (yail-list-contents yail-list) yail-equal?)))
-    (if result #t #f)))
+  (> (yail-list-index object yail-list) 0))
 
 
 ;; Returns an element chosen at random from the list
@@ -2378,19 +2372,27 @@ list, use the make-yail-list constructor with no arguments.
 ;;; how to convert dictionaries to strings and how this interacts with printing
 ;;; JSON objects and whether jsonutils.decode.
 
+;; YailList keeps an index of the keys of its pairs by a hash consistent with
+;; yail-equal?, so only the pairs whose keys may be equal to the key are
+;; compared with it. As before, it is an error if a malformed pair comes
+;; before the pair found.
 (define (yail-alist-lookup key yail-list-of-pairs default)
-  (android-log
-   (format #f "List alist lookup key is  ~A and table is ~A" key yail-list-of-pairs))
-  (let loop ((pairs-to-check (yail-list-contents yail-list-of-pairs)))
-    (cond ((null? pairs-to-check) default)
-          ((not (pair-ok? (car pairs-to-check)))
-           (signal-runtime-error
-            (format #f "Lookup in pairs: the list ~A is not a well-formed list of pairs"
-                    (get-display-representation yail-list-of-pairs))
-            "Invalid list of pairs"))
-          ((yail-equal? key (car (yail-list-contents (car pairs-to-check))))
-           (cadr (yail-list-contents (car pairs-to-check))))
-          (else (loop (cdr pairs-to-check))))))
+  ;; Formatting the table takes as long as searching it, so only do it when debugging
+  (when *debug*
+    (android-log
+     (format #f "List alist lookup key is  ~A and table is ~A" key yail-list-of-pairs)))
+  (let* ((pairs (as YailList yail-list-of-pairs))
+         (first-malformed (pairs:getFirstMalformedEntry)))
+    (let loop ((i (pairs:lookupCandidate key)))
+      (cond ((and (>= first-malformed 0) (or (< i 0) (> i first-malformed)))
+             (signal-runtime-error
+              (format #f "Lookup in pairs: the list ~A is not a well-formed list of pairs"
+                      (get-display-representation yail-list-of-pairs))
+              "Invalid list of pairs"))
+            ((< i 0) default)
+            ((yail-equal? key (car (yail-list-contents (pairs:getObject i))))
+             (cadr (yail-list-contents (pairs:getObject i))))
+            (else (loop (pairs:nextLookupCandidate i)))))))
 
 
 
@@ -0,0 +1,68 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.BuildCache.Kind;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildCache class.
+ */
+public class BuildCacheTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  public void testKeyDependsOnContents() throws Exception {
+    File source = new File(tmpDir, "Screen1.yail");
+    Files.write("(define-form Screen1)", source, Charsets.UTF_8);
+    String key1 = BuildCache.newKey().putString("components").putFile(source).build();
+    assertEquals(key1, BuildCache.newKey().putString("components").putFile(source).build());
+
+    Files.write("(define-form Screen2)", source, Charsets.UTF_8);
+    assertFalse(key1.equals(BuildCache.newKey().putString("components").putFile(source).build()));
+  }
+
+  public void testStoreAndRestore() throws Exception {
+    BuildCache.start(new File(tmpDir, "cache").getAbsolutePath(), 100, 0);
+    BuildCache cache = BuildCache.getInstance();
+    String key = BuildCache.newKey().putString("testStoreAndRestore").build();
+
+    File outputDir = new File(tmpDir, "classes");
+    File classFile = new File(outputDir, "appinventor/Screen1.class");
+    Files.createParentDirs(classFile);
+    Files.write("class", classFile, Charsets.UTF_8);
+    File otherFile = new File(outputDir, "appinventor/Screen2.class");
+    Files.write("other", otherFile, Charsets.UTF_8);
+
+    File restoreDir = new File(tmpDir, "restored");
+    assertFalse(cache.restore(Kind.CLASSES, key, restoreDir));
+    cache.store(Kind.CLASSES, key, outputDir, Arrays.asList(classFile));
+
+    assertTrue(cache.restore(Kind.CLASSES, key, restoreDir));
+    assertEquals("class",
+        Files.toString(new File(restoreDir, "appinventor/Screen1.class"), Charsets.UTF_8));
+    assertFalse(new File(restoreDir, "appinventor/Screen2.class").exists());
+    // Entries of different kinds are separate.
+    assertFalse(cache.restore(Kind.DEX, key, restoreDir));
+
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    cache.addVariables(variables);
+    assertTrue(Integer.parseInt(variables.get("build-cache-classes-hits")) >= 1);
+    assertTrue(Integer.parseInt(variables.get("build-cache-classes-misses")) >= 1);
+    assertTrue(Long.parseLong(variables.get("build-cache-bytes-saved")) >= 5);
+  }
+}
@@ -0,0 +1,221 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.BuildExecutor.Priority;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildExecutor class.
+ *
+ * @author lizlooney@google.com (Liz Looney)
+ */
+public class BuildExecutorTest extends TestCase {
+  public void testAdditionalTaskIsRejected() throws Exception {
+    // Create the BuildExecutor with capacity 10 and no queue.
+    int maxCapacity = 10;
+    BuildExecutor executor = new BuildExecutor(maxCapacity, 0);
+
+    // Execute the maximum number of tasks, which will all wait until I notify them via the signal.
+    final Object signal = new Object();
+    for (int i = 0; i < maxCapacity; i++) {
+      executor.execute(new TaskThatWaitsForSignal(signal));
+    }
+
+    // Now the executor should be at maximum capacity.
+    assertEquals(maxCapacity, executor.getActiveTaskCount());
+
+    // Try to execute another task. We expect it to be rejected.
+    try {
+      executor.execute(new TaskThatDoesNothing());
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    // Notify the signal so the active tasks can complete.
+    synchronized (signal) {
+      signal.notifyAll();
+    }
+  }
+
+  public void testAdditionalTaskIsQueued() throws Exception {
+    BuildExecutor executor = new BuildExecutor(1, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForLatch(release));
+
+    CountDownLatch done = new CountDownLatch(1);
+    PositionRecorder positions = new PositionRecorder();
+    executor.execute("user", Priority.NORMAL, new TaskThatCountsDown(done), positions);
+    assertEquals(1, executor.getQueuedTaskCount());
+
+    // The queue is full now.
+    try {
+      executor.execute(new TaskThatDoesNothing());
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    // Positions are reported after a delay
+    positions.awaitPosition();
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueuedTaskCount());
+    positions.awaitStarted();
+    assertEquals(Integer.valueOf(1), positions.positions.get(0));
+  }
+
+  public void testQueueOrderIsByPriorityThenUser() throws Exception {
+    BuildExecutor executor = new BuildExecutor(1, 10);
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForLatch(release));
+
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(4);
+    executor.execute("alice", Priority.NORMAL, new TaskThatRecords(order, "alice-1", done), null);
+    executor.execute("alice", Priority.NORMAL, new TaskThatRecords(order, "alice-2", done), null);
+    executor.execute("bob", Priority.NORMAL, new TaskThatRecords(order, "bob-1", done), null);
+    executor.execute("carol", Priority.HIGH, new TaskThatRecords(order, "carol-1", done), null);
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(4, order.size());
+    assertEquals("carol-1", order.get(0));
+    assertEquals("alice-1", order.get(1));
+    assertEquals("bob-1", order.get(2));
+    assertEquals("alice-2", order.get(3));
+  }
+
+  public void testPositionsReportedOncePerUpdate() throws Exception {
+    BuildExecutor executor = new BuildExecutor(1, 10);
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute(new TaskThatWaitsForLatch(release));
+
+    // Queued at once, the tasks hear of their positions once, in the order they will start.
+    CountDownLatch done = new CountDownLatch(4);
+    PositionRecorder alice1 = new PositionRecorder();
+    PositionRecorder alice2 = new PositionRecorder();
+    PositionRecorder alice3 = new PositionRecorder();
+    PositionRecorder bob1 = new PositionRecorder();
+    executor.execute("alice", Priority.NORMAL, new TaskThatCountsDown(done), alice1);
+    executor.execute("alice", Priority.NORMAL, new TaskThatCountsDown(done), alice2);
+    executor.execute("alice", Priority.NORMAL, new TaskThatCountsDown(done), alice3);
+    executor.execute("bob", Priority.NORMAL, new TaskThatCountsDown(done), bob1);
+    alice3.awaitPosition();
+    assertEquals(Collections.singletonList(1), alice1.positions);
+    assertEquals(Collections.singletonList(2), bob1.positions);
+    assertEquals(Collections.singletonList(3), alice2.positions);
+    assertEquals(Collections.singletonList(4), alice3.positions);
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    alice3.awaitStarted();
+  }
+
+  private static class TaskThatWaitsForSignal implements Runnable {
+    private final Object signal;
+    private TaskThatWaitsForSignal(Object signal) {
+      this.signal = signal;
+    }
+
+    @Override
+    public void run() {
+      synchronized (signal) {
+        try {
+          // Wait for the signal.
+          signal.wait();
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    }
+  }
+
+  private static class TaskThatWaitsForLatch implements Runnable {
+    private final CountDownLatch latch;
+    private TaskThatWaitsForLatch(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public void run() {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+    }
+  }
+
+  private static class TaskThatCountsDown implements Runnable {
+    private final CountDownLatch latch;
+    private TaskThatCountsDown(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public void run() {
+      latch.countDown();
+    }
+  }
+
+  private static class TaskThatRecords implements Runnable {
+    private final List<String> order;
+    private final String name;
+    private final CountDownLatch latch;
+    private TaskThatRecords(List<String> order, String name, CountDownLatch latch) {
+      this.order = order;
+      this.name = name;
+      this.latch = latch;
+    }
+
+    @Override
+    public void run() {
+      order.add(name);
+      latch.countDown();
+    }
+  }
+
+  private static class TaskThatDoesNothing implements Runnable {
+    @Override
+    public void run() {
+    }
+  }
+
+  private static class PositionRecorder implements BuildExecutor.QueueListener {
+    private final List<Integer> positions = Collections.synchronizedList(new ArrayList<Integer>());
+    private final CountDownLatch queued = new CountDownLatch(1);
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    @Override
+    public void queuePositionChanged(int position) {
+      positions.add(position);
+      if (position == 0) {
+        started.countDown();
+      } else {
+        queued.countDown();
+      }
+    }
+
+    void awaitPosition() throws InterruptedException {
+      assertTrue(queued.await(5, TimeUnit.SECONDS));
+    }
+
+    void awaitStarted() throws InterruptedException {
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      assertEquals(Integer.valueOf(0), positions.get(positions.size() - 1));
+    }
+  }
+}
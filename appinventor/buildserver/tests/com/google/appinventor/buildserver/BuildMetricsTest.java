@@ -0,0 +1,51 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildMetrics class.
+ */
+public class BuildMetricsTest extends TestCase {
+  public void testHistogramBuckets() throws Exception {
+    long before = BuildMetrics.STAGE_SECONDS.getCount("testHistogramBuckets");
+    BuildMetrics.STAGE_SECONDS.observe("testHistogramBuckets", 0.05);
+    BuildMetrics.STAGE_SECONDS.observe("testHistogramBuckets", 3);
+    BuildMetrics.STAGE_SECONDS.observe("testHistogramBuckets", 5000);
+    assertEquals(before + 3, BuildMetrics.STAGE_SECONDS.getCount("testHistogramBuckets"));
+
+    StringBuilder out = new StringBuilder();
+    BuildMetrics.writeHistograms(out);
+    String metrics = out.toString();
+    assertTrue(metrics.contains("# TYPE appinventor_build_stage_seconds histogram\n"));
+    String series = "appinventor_build_stage_seconds_bucket{stage=\"testHistogramBuckets\",";
+    assertTrue(metrics.contains(series + "le=\"0.1\"} 1\n"));
+    assertTrue(metrics.contains(series + "le=\"2.5\"} 1\n"));
+    assertTrue(metrics.contains(series + "le=\"5\"} 2\n"));
+    assertTrue(metrics.contains(series + "le=\"1000\"} 2\n"));
+    assertTrue(metrics.contains(series + "le=\"+Inf\"} 3\n"));
+    assertTrue(metrics.contains(
+        "appinventor_build_stage_seconds_sum{stage=\"testHistogramBuckets\"} 5003.05\n"));
+    assertTrue(metrics.contains(
+        "appinventor_build_stage_seconds_count{stage=\"testHistogramBuckets\"} 3\n"));
+  }
+
+  public void testWriteCounter() throws Exception {
+    StringBuilder out = new StringBuilder();
+    BuildMetrics.writeCounter(out, "test_total", "A test.", "kind",
+        ImmutableMap.of("a", 1, "b\"", 2));
+    BuildMetrics.writeGauge(out, "test_gauge", "Another test.", null, ImmutableMap.of("", 7L));
+    assertEquals("# HELP test_total A test.\n"
+        + "# TYPE test_total counter\n"
+        + "test_total{kind=\"a\"} 1\n"
+        + "test_total{kind=\"b\\\"\"} 2\n"
+        + "# HELP test_gauge Another test.\n"
+        + "# TYPE test_gauge gauge\n"
+        + "test_gauge 7\n", out.toString());
+  }
+}
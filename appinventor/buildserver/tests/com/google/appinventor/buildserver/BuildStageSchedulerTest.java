@@ -0,0 +1,112 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.BuildStageScheduler.Stage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildStageScheduler class.
+ */
+public class BuildStageSchedulerTest extends TestCase {
+  @Override
+  protected void setUp() throws Exception {
+    // Allow only one Kawa, DX or apksigner stage at a time, together.
+    BuildStageScheduler.configure(2048, 1);
+  }
+
+  public void testSecondBuildWaitsForSameStage() throws Exception {
+    BuildStageScheduler.Permit permit = BuildStageScheduler.acquire(Stage.DX);
+    final CountDownLatch admitted = new CountDownLatch(1);
+    Thread other = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        BuildStageScheduler.acquire(Stage.DX).release();
+        admitted.countDown();
+      }
+    });
+    other.start();
+
+    // The other build is queued behind us.
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    assertEquals("1", getVariables().get("stage-dx-queue-depth"));
+
+    permit.release();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    other.join();
+    assertEquals("0", getVariables().get("stage-dx-queue-depth"));
+    assertEquals("2", getVariables().get("stage-dx-admitted"));
+  }
+
+  public void testDifferentStagesRunInParallel() throws Exception {
+    BuildStageScheduler.Permit dx = BuildStageScheduler.acquire(Stage.DX);
+    final CountDownLatch admitted = new CountDownLatch(1);
+    Thread other = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        BuildStageScheduler.acquire(Stage.AAPT).release();
+        admitted.countDown();
+      }
+    });
+    other.start();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    dx.release();
+    other.join();
+  }
+
+  public void testChildJvmStagesShareBudget() throws Exception {
+    BuildStageScheduler.Permit dx = BuildStageScheduler.acquire(Stage.DX);
+    assertNull(BuildStageScheduler.tryAcquire(Stage.APKSIGNER));
+    final CountDownLatch admitted = new CountDownLatch(1);
+    Thread other = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        BuildStageScheduler.acquire(Stage.KAWA).release();
+        admitted.countDown();
+      }
+    });
+    other.start();
+
+    // Kawa waits for DX, since both run a child JVM
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    assertEquals("1", getVariables().get("stage-kawa-queue-depth"));
+    dx.release();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    other.join();
+  }
+
+  public void testTryAcquireDoesNotWait() throws Exception {
+    BuildStageScheduler.Permit permit = BuildStageScheduler.acquire(Stage.KAWA);
+    assertNull(BuildStageScheduler.tryAcquire(Stage.KAWA));
+    permit.release();
+    BuildStageScheduler.Permit extra = BuildStageScheduler.tryAcquire(Stage.KAWA);
+    assertNotNull(extra);
+    extra.release();
+  }
+
+  private static Map<String, String> getVariables() {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    BuildStageScheduler.addVariables(variables);
+    return variables;
+  }
+
+  public void testKawaWorkersReserveMemory() {
+    // 8 GB, less 1 GB for the build server, holds three 2 GB child JVMs
+    assertEquals(3, BuildStageScheduler.computeJvmPermits(16, 8192, 2048, 0, 0));
+    // Two idle Kawa workers leave room for one more
+    assertEquals(1, BuildStageScheduler.computeJvmPermits(16, 8192, 2048, 0, 2));
+    // At least one stage can always run
+    assertEquals(1, BuildStageScheduler.computeJvmPermits(16, 8192, 2048, 0, 8));
+    // Processors and the configured limit still apply
+    assertEquals(2, BuildStageScheduler.computeJvmPermits(2, 65536, 2048, 0, 2));
+    assertEquals(4, BuildStageScheduler.computeJvmPermits(16, 65536, 2048, 4, 2));
+  }
+}
@@ -6,11 +6,22 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.appinventor.buildserver.BuildStageScheduler.Stage;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -130,4 +141,207 @@ public class CompilerTest extends TestCase {
     // Finally, test for the name attribute of the <intent-filter>'s <action> subelement
     assertTrue(activityElementString.contains("name=\"android.intent.action.MAIN\""));
   }
+
+  /**
+   * Stands in for Kawa: writes a class file, and an inner class file, for each source file.
+   */
+  private static class FakeKawa implements Compiler.KawaCompile {
+    private final File classesDir;
+    private final String yailRuntime;
+    final List<String> compiled = Lists.newArrayList();
+
+    FakeKawa(File classesDir, String yailRuntime) {
+      this.classesDir = classesDir;
+      this.yailRuntime = yailRuntime;
+    }
+
+    @Override
+    public void compile(List<String> sourcesToCompile) throws IOException {
+      for (String source : sourcesToCompile) {
+        compiled.add(source);
+        String className;
+        if (source.equals(yailRuntime)) {
+          className = Compiler.YAIL_RUNTIME_CLASS.replace(".class", "");
+        } else {
+          className = "appinventor/ai_test/Project/"
+              + new File(source).getName().replace(".yail", "");
+        }
+        writeClass(new File(classesDir, className + ".class"));
+        writeClass(new File(classesDir, className + "$frame.class"));
+      }
+    }
+
+    private static void writeClass(File classFile) throws IOException {
+      Files.createParentDirs(classFile);
+      Files.write("class", classFile, Charsets.UTF_8);
+    }
+  }
+
+  private File writeFile(File dir, String name, String contents) throws IOException {
+    File file = new File(dir, name);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private static String screenClass(File classesDir, String screenName) {
+    return new File(classesDir, "appinventor/ai_test/Project/" + screenName + ".class")
+        .getAbsolutePath();
+  }
+
+  public void testCompileClassesRestoresRuntime() throws Exception {
+    File tmpDir = Files.createTempDir();
+    BuildCache.start(new File(tmpDir, "cache").getAbsolutePath(), 100, 0);
+    BuildCache cache = BuildCache.getInstance();
+    // The contents are unique, so that entries stored by other tests are not used
+    String screen1 = writeFile(tmpDir, "Screen1.yail", "(define-form Screen1) ; " + tmpDir)
+        .getAbsolutePath();
+    String yailRuntime = writeFile(tmpDir, "runtime.scm", "(module-name runtime) ; " + tmpDir)
+        .getAbsolutePath();
+
+    // The first build compiles the screen and the runtime
+    File classesDir1 = new File(tmpDir, "classes1");
+    FakeKawa kawa1 = new FakeKawa(classesDir1, yailRuntime);
+    List<String> missing = Compiler.compileClasses(cache, "", "appinventor.ai_test.Project",
+        Collections.singletonList(screen1),
+        Collections.singletonList(screenClass(classesDir1, "Screen1")),
+        yailRuntime, classesDir1, System.out, kawa1);
+    assertTrue(missing.isEmpty());
+    assertEquals(Arrays.asList(screen1, yailRuntime), kawa1.compiled);
+
+    // Building the same project again compiles nothing, and the runtime classes are restored
+    // with those of the screen
+    File classesDir2 = new File(tmpDir, "classes2");
+    FakeKawa kawa2 = new FakeKawa(classesDir2, yailRuntime);
+    missing = Compiler.compileClasses(cache, "", "appinventor.ai_test.Project",
+        Collections.singletonList(screen1),
+        Collections.singletonList(screenClass(classesDir2, "Screen1")),
+        yailRuntime, classesDir2, System.out, kawa2);
+    assertTrue(missing.isEmpty());
+    assertTrue(kawa2.compiled.isEmpty());
+    assertTrue(new File(screenClass(classesDir2, "Screen1")).exists());
+    assertTrue(new File(classesDir2, Compiler.YAIL_RUNTIME_CLASS).exists());
+    assertTrue(new File(classesDir2, "com/google/youngandroid/runtime$frame.class").exists());
+  }
+
+  public void testCompileClassesSharedBetweenVariants() throws Exception {
+    File tmpDir = Files.createTempDir();
+    BuildCache.start(new File(tmpDir, "cache").getAbsolutePath(), 100, 0);
+    BuildCache cache = BuildCache.getInstance();
+    String screen1 = writeFile(tmpDir, "Screen1.yail", "(define-form Screen1) ; " + tmpDir)
+        .getAbsolutePath();
+    String screen2 = writeFile(tmpDir, "Screen2.yail", "(define-form Screen2) ; " + tmpDir)
+        .getAbsolutePath();
+    String yailRuntime = writeFile(tmpDir, "runtime.scm", "(module-name runtime) ; " + tmpDir)
+        .getAbsolutePath();
+    List<String> sources = Arrays.asList(screen1, screen2);
+
+    // The app is built first
+    File appClassesDir = new File(tmpDir, "app");
+    FakeKawa appKawa = new FakeKawa(appClassesDir, yailRuntime);
+    List<String> missing = Compiler.compileClasses(cache, "", "appinventor.ai_test.Project",
+        sources, Arrays.asList(screenClass(appClassesDir, "Screen1"),
+            screenClass(appClassesDir, "Screen2")),
+        yailRuntime, appClassesDir, System.out, appKawa);
+    assertTrue(missing.isEmpty());
+    assertEquals(Arrays.asList(screen1, screen2, yailRuntime), appKawa.compiled);
+
+    // The companion built from the same project shares all of the classes, including those of
+    // the runtime
+    File companionClassesDir = new File(tmpDir, "companion");
+    FakeKawa companionKawa = new FakeKawa(companionClassesDir, yailRuntime);
+    missing = Compiler.compileClasses(cache, "", "appinventor.ai_test.Project",
+        sources, Arrays.asList(screenClass(companionClassesDir, "Screen1"),
+            screenClass(companionClassesDir, "Screen2")),
+        yailRuntime, companionClassesDir, System.out, companionKawa);
+    assertTrue(missing.isEmpty());
+    assertTrue(companionKawa.compiled.isEmpty());
+    assertTrue(new File(screenClass(companionClassesDir, "Screen1")).exists());
+    assertTrue(new File(screenClass(companionClassesDir, "Screen2")).exists());
+    assertTrue(new File(companionClassesDir, Compiler.YAIL_RUNTIME_CLASS).exists());
+
+    // A variant with different extensions compiles the screens again, but not the runtime
+    File extensionClassesDir = new File(tmpDir, "extension");
+    FakeKawa extensionKawa = new FakeKawa(extensionClassesDir, yailRuntime);
+    missing = Compiler.compileClasses(cache, "com.example.Extension",
+        "appinventor.ai_test.Project", sources,
+        Arrays.asList(screenClass(extensionClassesDir, "Screen1"),
+            screenClass(extensionClassesDir, "Screen2")),
+        yailRuntime, extensionClassesDir, System.out, extensionKawa);
+    assertTrue(missing.isEmpty());
+    assertEquals(sources, extensionKawa.compiled);
+    assertTrue(new File(extensionClassesDir, Compiler.YAIL_RUNTIME_CLASS).exists());
+  }
+
+  public void testCompileClassesReportsMissingRuntime() throws Exception {
+    File tmpDir = Files.createTempDir();
+    String screen1 = writeFile(tmpDir, "Screen1.yail", "(define-form Screen1)")
+        .getAbsolutePath();
+    String yailRuntime = writeFile(tmpDir, "runtime.scm", "(module-name runtime)")
+        .getAbsolutePath();
+    final File classesDir = new File(tmpDir, "classes");
+
+    // Without a cache everything is compiled. Here Kawa fails to compile the runtime.
+    FakeKawa kawa = new FakeKawa(classesDir, yailRuntime) {
+      @Override
+      public void compile(List<String> sourcesToCompile) throws IOException {
+        super.compile(sourcesToCompile.subList(0, sourcesToCompile.size() - 1));
+      }
+    };
+    List<String> missing = Compiler.compileClasses(null, "", "appinventor.ai_test.Project",
+        Collections.singletonList(screen1),
+        Collections.singletonList(screenClass(classesDir, "Screen1")),
+        yailRuntime, classesDir, System.out, kawa);
+    assertEquals(Collections.singletonList(
+        new File(classesDir, Compiler.YAIL_RUNTIME_CLASS).getAbsolutePath()), missing);
+  }
+
+  public void testRunDexShardsFailsOnException() throws Exception {
+    // Allow extra shards to run in their own threads, where the processors allow
+    BuildStageScheduler.configure(0, 4);
+    final List<String> outputs = Collections.synchronizedList(new ArrayList<String>());
+    DexExecTask dexTask = new DexExecTask() {
+      @Override
+      public boolean dex(Collection<File> paths, String output) {
+        outputs.add(new File(output).getName());
+        if (output.endsWith("classes2.dex")) {
+          throw new IllegalStateException("dx crashed");
+        }
+        return true;
+      }
+    };
+    List<File> shard = Collections.singletonList(new File("classes.jar"));
+    List<List<File>> shards = Arrays.asList(shard, shard, shard);
+    BuildStageScheduler.Permit permit = BuildStageScheduler.acquire(Stage.DX);
+    try {
+      assertFalse(Compiler.runDexShards(dexTask, shards, "dexed"));
+    } finally {
+      permit.release();
+      BuildStageScheduler.configure(2048, 0);
+    }
+    assertTrue(outputs.contains("classes2.dex"));
+  }
+
+  public void testPackDexShards() {
+    List<File> main = Collections.singletonList(new File("classes"));
+    Map<File, DexReferenceCounter.Count> libs = Maps.newHashMap();
+    libs.put(new File("big.jar"), new DexReferenceCounter.Count(40000, 100));
+    libs.put(new File("small.jar"), new DexReferenceCounter.Count(5000, 100));
+    List<List<File>> shards =
+        Compiler.packDexShards(main, new DexReferenceCounter.Count(30000, 100), libs);
+    // big.jar does not fit next to the main inputs, small.jar does
+    assertEquals(2, shards.size());
+    assertEquals(Arrays.asList(new File("classes"), new File("small.jar")), shards.get(0));
+    assertEquals(Collections.singletonList(new File("big.jar")), shards.get(1));
+  }
+
+  public void testPackDexShardsKeepsLibrariesOutOfOversizedMainDex() {
+    List<File> main = Collections.singletonList(new File("classes"));
+    Map<File, DexReferenceCounter.Count> libs = Maps.newHashMap();
+    libs.put(new File("small.jar"), new DexReferenceCounter.Count(10, 10));
+    List<List<File>> shards = Compiler.packDexShards(main,
+        new DexReferenceCounter.Count(DexReferenceCounter.MAX_REFERENCES + 1, 100), libs);
+    assertEquals(2, shards.size());
+    assertEquals(main, shards.get(0));
+    assertEquals(Collections.singletonList(new File("small.jar")), shards.get(1));
+  }
 }
@@ -0,0 +1,114 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the dex cache of DexExecTask class.
+ */
+public class DexExecTaskTest extends TestCase {
+  private static final int DEXED_LIB_SIZE = 400 * 1024;
+
+  private File tmpDir;
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    cacheDir = new File(tmpDir, "dexCache");
+    cacheDir.mkdir();
+    DexExecTask.setMaxDexCacheSizeMb(1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    DexExecTask.setMaxDexCacheSizeMb(0);
+  }
+
+  private DexExecTask newTask() {
+    DexExecTask task = new DexExecTask();
+    task.setDexedLibs(cacheDir.getAbsolutePath());
+    return task;
+  }
+
+  // Creates a library and its pre-dexed file in the cache.
+  private File addLibrary(String name) throws Exception {
+    File library = new File(tmpDir, name + ".jar");
+    Files.write(name, library, Charsets.UTF_8);
+    Files.write(new byte[DEXED_LIB_SIZE], getDexedLib(library));
+    return library;
+  }
+
+  private File getDexedLib(File library) throws Exception {
+    return new File(cacheDir,
+        "dex-cached-" + Files.hash(library, Hashing.md5()).toString() + ".jar");
+  }
+
+  public void testPreDexUsesCachedLibraries() throws Exception {
+    File a = addLibrary("a");
+    File b = addLibrary("b");
+    List<File> inputs = new ArrayList<File>(Arrays.asList(a, b));
+    DexExecTask task = newTask();
+    assertTrue(task.preDex(inputs));
+    assertEquals(Arrays.asList(getDexedLib(a), getDexedLib(b)), inputs);
+    task.releasePreDexed();
+  }
+
+  public void testEvictionSkipsLibrariesInUse() throws Exception {
+    File a = addLibrary("a");
+    File b = addLibrary("b");
+    File c = addLibrary("c");
+    DexExecTask task = newTask();
+    assertTrue(task.preDex(new ArrayList<File>(Arrays.asList(a, b))));
+
+    // a and b are the least recently used, but the task has yet to run dx on them
+    long now = System.currentTimeMillis();
+    getDexedLib(a).setLastModified(now - 20000);
+    getDexedLib(b).setLastModified(now - 10000);
+    newTask().evictIfNeeded();
+    assertTrue(getDexedLib(a).isFile());
+    assertTrue(getDexedLib(b).isFile());
+    assertFalse(getDexedLib(c).isFile());
+
+    // Once released, they are evicted as usual
+    task.releasePreDexed();
+    c = addLibrary("c");
+    newTask().evictIfNeeded();
+    assertFalse(getDexedLib(a).isFile());
+    assertTrue(getDexedLib(b).isFile());
+    assertTrue(getDexedLib(c).isFile());
+  }
+
+  public void testLibraryPinnedByEachTask() throws Exception {
+    File a = addLibrary("a");
+    File b = addLibrary("b");
+    addLibrary("c");
+    DexExecTask first = newTask();
+    DexExecTask second = newTask();
+    assertTrue(first.preDex(new ArrayList<File>(Arrays.asList(a, b))));
+    assertTrue(second.preDex(new ArrayList<File>(Arrays.asList(a, b))));
+    getDexedLib(a).setLastModified(System.currentTimeMillis() - 20000);
+
+    // a is still in use by the second task
+    first.releasePreDexed();
+    newTask().evictIfNeeded();
+    assertTrue(getDexedLib(a).isFile());
+
+    second.releasePreDexed();
+    addLibrary("d");
+    newTask().evictIfNeeded();
+    assertFalse(getDexedLib(a).isFile());
+  }
+}
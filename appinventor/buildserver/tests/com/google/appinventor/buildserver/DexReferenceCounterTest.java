@@ -0,0 +1,59 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests DexReferenceCounter class.
+ */
+public class DexReferenceCounterTest extends TestCase {
+  public void testCountsPreDexedJarFromHeader() throws Exception {
+    byte[] header = new byte[0x70];
+    header[0x50] = 0x34;  // field_ids_size = 0x1234
+    header[0x51] = 0x12;
+    header[0x58] = 0x78;  // method_ids_size = 0x5678
+    header[0x59] = 0x56;
+    File jar = new File(Files.createTempDir(), "dex-cached-test.jar");
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      zip.putNextEntry(new ZipEntry("classes.dex"));
+      zip.write(header);
+      zip.closeEntry();
+    } finally {
+      zip.close();
+    }
+
+    DexReferenceCounter.Count count = DexReferenceCounter.count(jar);
+    assertEquals(0x5678, count.methods);
+    assertEquals(0x1234, count.fields);
+  }
+
+  public void testEstimatesClassDirectory() throws Exception {
+    File classesDir = Files.createTempDir();
+    InputStream in = getClass().getResourceAsStream("DexReferenceCounterTest.class");
+    try {
+      Files.write(ByteStreams.toByteArray(in), new File(classesDir, "DexReferenceCounterTest.class"));
+    } finally {
+      in.close();
+    }
+
+    DexReferenceCounter.Count count = DexReferenceCounter.count(classesDir);
+    // At least the declared methods and constructor, and the methods called by the tests.
+    assertTrue(count.methods >= getClass().getDeclaredMethods().length + 1 + 5);
+    assertTrue(count.fits());
+    assertFalse(count.plus(new DexReferenceCounter.Count(DexReferenceCounter.MAX_REFERENCES, 0))
+        .fits());
+  }
+}
@@ -0,0 +1,80 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests KawaCompilerPool class.
+ */
+public class KawaCompilerPoolTest extends TestCase {
+  private File tmpDir;
+  private String kawaJar;
+  private String yailRuntime;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    kawaJar = new File(Class.forName("kawa.repl").getProtectionDomain().getCodeSource()
+        .getLocation().toURI()).getAbsolutePath();
+    yailRuntime = writeFile("runtime.scm", "(define (double x) (* x 2))").getAbsolutePath();
+    KawaCompilerPool.start(1, 10);
+  }
+
+  private File writeFile(String name, String contents) throws Exception {
+    File file = new File(tmpDir, name);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private boolean compile(String buildClasspath, File classesDir, File source) {
+    KawaCompilerPool pool = KawaCompilerPool.getInstance();
+    KawaCompilerPool.Worker worker = pool.acquire(kawaJar, 1024, yailRuntime);
+    assertNotNull(worker);
+    ByteArrayOutputStream messages = new ByteArrayOutputStream();
+    try {
+      List<String> args = Arrays.asList("-d", classesDir.getAbsolutePath(), "-C",
+          source.getAbsolutePath());
+      return worker.compile(buildClasspath, args, System.out, new PrintStream(messages));
+    } finally {
+      pool.release(worker);
+      System.err.print(messages);
+    }
+  }
+
+  public void testWorkerReusedWithBuildClasspath() throws Exception {
+    KawaCompilerPool pool = KawaCompilerPool.getInstance();
+    int coldCompiles = pool.getColdCompileCount();
+    int warmCompiles = pool.getWarmCompileCount();
+
+    // A library compiled by one build is on the classpath of the next build only
+    File libClassesDir = new File(tmpDir, "lib");
+    File lib = writeFile("lib.scm",
+        "(module-name com.example.lib)\n(module-static #t)\n(define (triple x) (* x 3))");
+    assertTrue(compile("", libClassesDir, lib));
+    assertTrue(new File(libClassesDir, "com/example/lib.class").exists());
+
+    File screenClassesDir = new File(tmpDir, "screen");
+    File screen = writeFile("screen.scm",
+        "(module-name com.example.screen)\n(require com.example.lib)\n"
+        + "(define (sextuple x) (triple (double x)))");
+    assertTrue(compile(libClassesDir.getAbsolutePath(), screenClassesDir, screen));
+    assertTrue(new File(screenClassesDir, "com/example/screen.class").exists());
+
+    // Both builds used the same worker
+    assertEquals(1, pool.getWorkerCount());
+    assertEquals(coldCompiles + 1, pool.getColdCompileCount());
+    assertEquals(warmCompiles + 1, pool.getWarmCompileCount());
+  }
+}
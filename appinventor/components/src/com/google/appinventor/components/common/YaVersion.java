@@ -460,8 +460,10 @@ public class YaVersion {
   // - SPEECHRECOGNIZER_COMPONENT_VERSION was incremented to 2
   // For YOUNG_ANDROID_VERSION 186:
   // - BLOCKS_LANGUAGE_VERSION was incremented to 27
+  // For YOUNG_ANDROID_VERSION 187:
+  // - CANVAS_COMPONENT_VERSION was incremented to 12
 
-  public static final int YOUNG_ANDROID_VERSION = 186;
+  public static final int YOUNG_ANDROID_VERSION = 187;
 
   // ............................... Blocks Language Version Number ...............................
 
@@ -689,7 +691,9 @@ public class YaVersion {
   // - The default value of the TextAlignment property was changed to Component.ALIGNMENT_CENTER
   // For CANVAS_COMPONENT_VERSION 11:
   // - DrawShape & DrawArc was added
-  public static final int CANVAS_COMPONENT_VERSION = 11;
+  // For CANVAS_COMPONENT_VERSION 12:
+  // - The FrameSynchronizedSprites property was added
+  public static final int CANVAS_COMPONENT_VERSION = 12;
 
   // For CHECKBOX_COMPONENT_VERSION 2:
   // - The Value property was renamed to Checked.
@@ -114,7 +114,8 @@ public final class BluetoothServer extends BluetoothConnectionBase {
       return;
     }
 
-    AsynchUtil.runAsynchronously(new Runnable() {
+    // accept blocks until a client connects, so it does not take a pooled thread
+    AsynchUtil.runOnNewThread(new Runnable() {
       public void run() {
         Object acceptedBluetoothSocket = null;
 
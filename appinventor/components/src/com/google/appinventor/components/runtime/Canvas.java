@@ -28,6 +28,7 @@ import com.google.appinventor.components.runtime.util.FileUtil;
 import com.google.appinventor.components.runtime.util.MediaUtil;
 import com.google.appinventor.components.runtime.util.PaintUtil;
 import com.google.appinventor.components.runtime.util.YailList;
+import com.google.common.annotations.VisibleForTesting;
 
 import android.app.Activity;
 import android.content.Context;
@@ -126,6 +127,13 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
   // sorted by increasing sprite.Z().
   private final List<Sprite> sprites;
 
+  // The same sprites, indexed by location for collision and touch checks
+  private final SpriteGrid spriteGrid;
+
+  // Moves the sprites once per display frame when frameSynchronizedSprites is set
+  private final SpriteFrameLoop frameLoop;
+  private boolean frameSynchronizedSprites;
+
   // Handle touches and drags
   private final MotionEventParser motionEventParser;
 
@@ -253,7 +261,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
           lastY = y;
           drag = false;
           isDrag = false;
-          for (Sprite sprite : sprites) {
+          for (Sprite sprite : spriteGrid.query(rect)) {
             if (sprite.Enabled() && sprite.Visible() && sprite.intersectsWith(rect)) {
               draggedSprites.add(sprite);
               sprite.TouchDown(startX, startY);
@@ -280,7 +288,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
 
           // Update draggedSprites by adding any that are currently being
           // touched.
-          for (Sprite sprite : sprites) {
+          for (Sprite sprite : spriteGrid.query(rect)) {
             if (!draggedSprites.contains(sprite)
                 && sprite.Enabled() && sprite.Visible()
                 && sprite.intersectsWith(rect)) {
@@ -705,6 +713,8 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
     FontSize(Component.FONT_DEFAULT_SIZE);
 
     sprites = new LinkedList<Sprite>();
+    spriteGrid = new SpriteGrid();
+    frameLoop = new SpriteFrameLoop(this, sprites);
     motionEventParser = new MotionEventParser();
     mGestureDetector = new GestureDetector(context, new FlingGestureListener());
   }
@@ -746,11 +756,13 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
 
   /**
    * Adds a sprite to this Canvas by placing it in {@link #sprites},
-   * which it ensures remains sorted.
+   * which it ensures remains sorted, and in {@link #spriteGrid}.
    *
    * @param sprite the sprite to add
    */
   void addSprite(Sprite sprite) {
+    spriteGrid.add(sprite);
+
     // Add before first element with greater Z value.
     // This ensures not only that items are in increasing Z value
     // but that sprites whose Z values are always equal are
@@ -775,6 +787,8 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   void removeSprite(Sprite sprite) {
     sprites.remove(sprite);
+    spriteGrid.remove(sprite);
+    frameLoop.remove(sprite);
   }
 
   /**
@@ -784,7 +798,8 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    * @param sprite the Sprite whose Z property has changed
    */
   void changeSpriteLayer(Sprite sprite) {
-    removeSprite(sprite);
+    // The sprite keeps its place in spriteGrid, which addSprite() reorders
+    sprites.remove(sprite);
     addSprite(sprite);
     view.invalidate();
   }
@@ -823,10 +838,43 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    * @param sprite the sprite whose location, size, or appearance has changed
    */
   void registerChange(Sprite sprite) {
+    spriteGrid.update(sprite);
     view.invalidate();
     findSpriteCollisions(sprite);
   }
 
+  /**
+   * Indicates that sprites have moved in a frame of {@link #frameLoop},
+   * triggering a check for collisions with each of them and a single
+   * invalidation of the view.
+   *
+   * @param movedSprites the sprites that have moved, sorted by Z
+   */
+  void registerChanges(List<Sprite> movedSprites) {
+    for (Sprite sprite : movedSprites) {
+      spriteGrid.update(sprite);
+    }
+    for (Sprite sprite : movedSprites) {
+      findSpriteCollisions(sprite);
+    }
+    view.invalidate();
+  }
+
+  /**
+   * Starts {@link #frameLoop} if this Canvas moves its sprites once per frame,
+   * when a sprite may have started moving.
+   */
+  void startFrameLoop() {
+    if (frameSynchronizedSprites) {
+      frameLoop.start();
+    }
+  }
+
+  @VisibleForTesting
+  SpriteFrameLoop getFrameLoop() {
+    return frameLoop;
+  }
+
 
   // Methods for detecting collisions
 
@@ -846,7 +894,9 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    * @param movedSprite the sprite that has just changed position
    */
   protected void findSpriteCollisions(Sprite movedSprite) {
-    for (Sprite sprite : sprites) {
+    // Only the sprites near it, and those it was colliding with, can have changed
+    for (Sprite sprite : spriteGrid.collisionCandidates(movedSprite,
+        movedSprite.getRegisteredCollisions())) {
       if (sprite != movedSprite) {
         // Check whether we already raised an event for their collision.
         if (movedSprite.CollidingWith(sprite)) {
@@ -1112,6 +1162,48 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
     }
   }
 
+  /**
+   * Returns whether the sprites of this canvas are moved once per display
+   * frame.
+   *
+   * @return  {@code true} if the sprites are moved once per frame,
+   *          {@code false} if each sprite moves on its own timer
+   */
+  @SimpleProperty(
+      description = "If true, all of the sprites on the canvas are moved together "
+      + "once per frame of the display, and the canvas is checked for collisions and "
+      + "redrawn once per frame, instead of each sprite moving on its own timer. "
+      + "Sprites still move Speed pixels every Interval milliseconds. This makes "
+      + "animations with many sprites smoother.",
+      category = PropertyCategory.BEHAVIOR)
+  public boolean FrameSynchronizedSprites() {
+    return frameSynchronizedSprites;
+  }
+
+  /**
+   * Specifies whether the sprites of this canvas are moved once per display
+   * frame, instead of each sprite moving on its own timer.
+   *
+   * @param synchronize  {@code true} to move the sprites once per frame
+   */
+  @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN,
+      defaultValue = "False")
+  @SimpleProperty
+  public void FrameSynchronizedSprites(boolean synchronize) {
+    if (synchronize == frameSynchronizedSprites) {
+      return;
+    }
+    frameSynchronizedSprites = synchronize;
+    for (Sprite sprite : sprites) {
+      sprite.synchronizeToFrames(synchronize);
+    }
+    if (synchronize) {
+      frameLoop.start();
+    } else {
+      frameLoop.stop();
+    }
+  }
+
 
   // Methods supporting event handling
 
@@ -1587,7 +1679,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
 
       boolean spriteHandledFling = false;
 
-      for (Sprite sprite : sprites) {
+      for (Sprite sprite : spriteGrid.query(rect)) {
         if (sprite.Enabled() && sprite.Visible() &&
             sprite.intersectsWith(rect)) {
           sprite.Flung(x, y, speed, heading, vx, vy);
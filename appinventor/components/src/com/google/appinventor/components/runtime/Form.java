@@ -62,6 +62,7 @@ import com.google.appinventor.components.runtime.errors.PermissionException;
 import com.google.appinventor.components.runtime.multidex.MultiDex;
 import com.google.appinventor.components.runtime.util.AlignmentUtil;
 import com.google.appinventor.components.runtime.util.AnimationUtil;
+import com.google.appinventor.components.runtime.util.AsynchUtil;
 import com.google.appinventor.components.runtime.util.ErrorMessages;
 import com.google.appinventor.components.runtime.util.FileUtil;
 import com.google.appinventor.components.runtime.util.FullScreenVideoUtil;
@@ -91,6 +92,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 
 /**
@@ -223,6 +225,9 @@ public class Form extends AppInventorCompatActivity
   // Listeners for permission results
   private final HashMap<Integer, PermissionResultHandler> permissionHandlers = Maps.newHashMap();
 
+  // Runs the asynchronous calls made while this form is active; see AsynchUtil
+  private final ExecutorService backgroundExecutor = AsynchUtil.newExecutor();
+
   private final Random permissionRandom = new Random(); // Used for generating nonces
 
   // Set to the optional String-valued Extra passed in via an Intent on startup.
@@ -807,6 +812,10 @@ public class Form extends AppInventorCompatActivity
     for (OnDestroyListener onDestroyListener : onDestroyListeners) {
       onDestroyListener.onDestroy();
     }
+
+    // Take no more asynchronous calls and drop those not yet started, but let
+    // those that are running finish
+    AsynchUtil.shutdown(backgroundExecutor);
   }
 
   public void registerForOnDestroy(OnDestroyListener component) {
@@ -2070,6 +2079,14 @@ public class Form extends AppInventorCompatActivity
     return activeForm;
   }
 
+  /**
+   * Returns the pool of threads that runs the asynchronous calls made while
+   * this form is active. It is shut down when the form is destroyed.
+   */
+  public ExecutorService getBackgroundExecutor() {
+    return backgroundExecutor;
+  }
+
 
   /**
    * Returns the string that was passed to this screen when it was opened
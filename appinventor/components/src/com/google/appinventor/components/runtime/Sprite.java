@@ -114,6 +114,7 @@ public abstract class Sprite extends VisibleComponent
 
     // Set in motion.
     timerInternal = new TimerInternal(this, DEFAULT_ENABLED, DEFAULT_INTERVAL, handler);
+    timerInternal.setSuspended(canvas.FrameSynchronizedSprites());
 
     this.form = container.$form();
 
@@ -144,6 +145,7 @@ public abstract class Sprite extends VisibleComponent
   public void Initialize() {
     initialized = true;
     canvas.registerChange(this);
+    canvas.startFrameLoop();
   }
 
   // Properties (Enabled, Heading, Interval, Speed, Visible, X, Y, Z)
@@ -172,6 +174,9 @@ public abstract class Sprite extends VisibleComponent
   @SimpleProperty
       public void Enabled(boolean enabled) {
     timerInternal.Enabled(enabled);
+    if (enabled) {
+      canvas.startFrameLoop();
+    }
   }
 
   /**
@@ -250,6 +255,9 @@ public abstract class Sprite extends VisibleComponent
       defaultValue = DEFAULT_SPEED + "")
   public void Speed(float speed) {
     this.speed = speed;
+    if (speed != 0) {
+      canvas.startFrameLoop();
+    }
   }
 
   /**
@@ -588,6 +596,14 @@ public abstract class Sprite extends VisibleComponent
     return registeredCollisions.contains(other);
   }
 
+  /**
+   * Returns the sprites a collision has been registered with, so that the
+   * enclosing Canvas can check whether they are still colliding.
+   */
+  Set<Sprite> getRegisteredCollisions() {
+    return registeredCollisions;
+  }
+
   /**
    * Moves the sprite back in bounds if part of it extends out of bounds,
    * having no effect otherwise. If the sprite is too wide to fit on the
@@ -667,11 +683,29 @@ public abstract class Sprite extends VisibleComponent
       canvas.getView().invalidate();
       return;
     }
+    checkEdges();
+    canvas.registerChange(this);
+  }
+
+  /**
+   * Raises the {@link #EdgeReached(int)} event if the Sprite has reached the
+   * edge of the Canvas, moving it back in bounds.
+   */
+  void checkEdges() {
     int edge = hitEdge();
     if (edge != Component.DIRECTION_NONE) {
       EdgeReached(edge);
     }
-    canvas.registerChange(this);
+  }
+
+  /**
+   * Suspends this sprite's timer while the enclosing Canvas moves its sprites
+   * once per display frame, or resumes it.
+   *
+   * @param synchronize whether the Canvas moves its sprites
+   */
+  void synchronizeToFrames(boolean synchronize) {
+    timerInternal.setSuspended(synchronize);
   }
 
   /**
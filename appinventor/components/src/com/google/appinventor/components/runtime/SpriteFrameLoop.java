@@ -0,0 +1,172 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime;
+
+import com.google.appinventor.components.runtime.util.JellybeanUtil;
+import com.google.appinventor.components.runtime.util.SdkLevel;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves the sprites of a {@link Canvas} once per display frame, when its
+ * FrameSynchronizedSprites property is set, instead of each sprite moving on
+ * its own timer.
+ *
+ * <p>A sprite still moves Speed pixels every Interval milliseconds, but its
+ * moves are applied at the start of the frames: a sprite whose Interval is
+ * shorter than a frame moves several times in a frame, and one whose Interval
+ * is longer skips frames. Each frame first moves all of the sprites that are
+ * due, then raises EdgeReached for those that reached an edge, then checks
+ * those that moved for collisions, each in the order of the sprites' Z
+ * layers, and finally redraws the canvas once.
+ *
+ * <p>The loop runs while there is an enabled sprite with a nonzero Speed. The
+ * canvas starts it again with {@link #start()} when a sprite may have started
+ * moving.
+ */
+final class SpriteFrameLoop implements Runnable {
+
+  // The time between frames when Choreographer is not available
+  private static final long FRAME_MILLIS = 16;
+
+  // The most moves a sprite makes in a frame to catch up on its Interval.
+  // After a longer pause, such as while the app was in the background, the
+  // sprite moves once and starts its Interval again.
+  static final int MAX_MOVES_PER_FRAME = 4;
+
+  private final Canvas canvas;
+  private final List<Sprite> sprites;
+  private final Handler handler;
+
+  // The time of the last move of each moving sprite
+  private final Map<Sprite, Long> lastMoves = new HashMap<Sprite, Long>();
+
+  private boolean running;
+  private boolean framePosted;
+
+  /**
+   * Creates a frame loop for the sprites of a canvas.
+   *
+   * @param canvas the canvas
+   * @param sprites the canvas's sprites, sorted by Z
+   */
+  SpriteFrameLoop(Canvas canvas, List<Sprite> sprites) {
+    this.canvas = canvas;
+    this.sprites = sprites;
+    handler = new Handler();
+  }
+
+  /**
+   * Starts the loop, if it is not running. The Interval of each moving sprite
+   * starts again at the first frame.
+   */
+  void start() {
+    if (!running) {
+      running = true;
+      lastMoves.clear();
+      postFrame();
+    }
+  }
+
+  /**
+   * Stops the loop.
+   */
+  void stop() {
+    running = false;
+  }
+
+  /**
+   * Indicates whether the loop is running.
+   */
+  boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Forgets a sprite that was removed from the canvas.
+   *
+   * @param sprite the sprite
+   */
+  void remove(Sprite sprite) {
+    lastMoves.remove(sprite);
+  }
+
+  // Runnable implementation
+
+  public void run() {
+    framePosted = false;
+    if (running) {
+      running = doFrame(SystemClock.uptimeMillis());
+      if (running) {
+        postFrame();
+      }
+    }
+  }
+
+  private void postFrame() {
+    if (framePosted) {
+      return;
+    }
+    framePosted = true;
+    if (SdkLevel.getLevel() >= SdkLevel.LEVEL_JELLYBEAN) {
+      JellybeanUtil.postFrameCallback(this);
+    } else {
+      handler.postDelayed(this, FRAME_MILLIS);
+    }
+  }
+
+  /**
+   * Moves the sprites that are due at the given time and registers the changes
+   * with the canvas.
+   *
+   * @param now the time of the frame, in ms
+   * @return whether any sprite is moving
+   */
+  boolean doFrame(long now) {
+    List<Sprite> moved = new ArrayList<Sprite>();
+    boolean moving = false;
+    for (Sprite sprite : new ArrayList<Sprite>(sprites)) {
+      if (!sprite.initialized || !sprite.Enabled() || sprite.Speed() == 0) {
+        lastMoves.remove(sprite);
+        continue;
+      }
+      moving = true;
+      Long lastMove = lastMoves.get(sprite);
+      if (lastMove == null) {
+        // The sprite's Interval starts now
+        lastMoves.put(sprite, now);
+        continue;
+      }
+      int interval = sprite.Interval();
+      long moves = interval > 0 ? (now - lastMove) / interval : 1;
+      if (moves > MAX_MOVES_PER_FRAME) {
+        moves = 1;
+        lastMoves.put(sprite, now);
+      } else if (moves > 0) {
+        lastMoves.put(sprite, interval > 0 ? lastMove + moves * interval : now);
+      }
+      if (moves > 0) {
+        for (int i = 0; i < moves; i++) {
+          sprite.updateCoordinates();
+        }
+        moved.add(sprite);
+      }
+    }
+    if (!moved.isEmpty()) {
+      for (Sprite sprite : moved) {
+        sprite.checkEdges();
+      }
+      canvas.registerChanges(moved);
+    }
+    return moving;
+  }
+}
@@ -0,0 +1,257 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime;
+
+import com.google.appinventor.components.runtime.util.BoundingBox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the sprites of a {@link Canvas} by location, used to find the
+ * sprites that may collide with a sprite or be under a finger without
+ * checking every sprite of the canvas.
+ *
+ * <p>The canvas is divided into square cells, and each sprite is listed in
+ * the cells its bounding box, with a border of 1 pixel, overlaps. Two sprites
+ * that collide, or a sprite and a rectangle that intersect, therefore share
+ * a cell. A sprite that would be listed in too many cells, because it is
+ * large or far out of bounds, is returned by every query instead.
+ *
+ * <p>A sprite is also returned by every query until {@link #update(Sprite)}
+ * is first called for it, since the location and size of a sprite are not
+ * known while it is constructed. The canvas calls it when a sprite is
+ * initialized and whenever the location or size of an initialized sprite
+ * changes; sprites that are never initialized, as in the REPL, are simply
+ * not indexed.
+ */
+final class SpriteGrid {
+
+  // The width and height of a cell, in pixels
+  static final int CELL_SIZE = 64;
+
+  // The largest number of cells a sprite is listed in
+  static final int MAX_CELLS = 64;
+
+  private static final class Entry {
+    final Sprite sprite;
+    long order;
+
+    // The range of cells the sprite is listed in, or null if it is returned by every query
+    int[] cells;
+
+    Entry(Sprite sprite, long order) {
+      this.sprite = sprite;
+      this.order = order;
+    }
+  }
+
+  // Orders sprites as Canvas.sprites does: by Z, then in the order they were added
+  // or last changed layer
+  private static final Comparator<Entry> CANVAS_ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry entry1, Entry entry2) {
+      int byZ = Double.compare(entry1.sprite.Z(), entry2.sprite.Z());
+      if (byZ != 0) {
+        return byZ;
+      }
+      return entry1.order < entry2.order ? -1 : (entry1.order == entry2.order ? 0 : 1);
+    }
+  };
+
+  private final Map<Sprite, Entry> entries = new HashMap<Sprite, Entry>();
+  private final Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+  // The sprites returned by every query
+  private final Set<Entry> unindexed = new HashSet<Entry>();
+  private long addCount;
+
+  /**
+   * Adds a sprite after the sprites with the same Z, or moves it there if it
+   * was added already, as {@link Canvas#addSprite(Sprite)} does.
+   *
+   * @param sprite the sprite to add
+   */
+  void add(Sprite sprite) {
+    Entry entry = entries.get(sprite);
+    if (entry == null) {
+      entry = new Entry(sprite, addCount++);
+      entries.put(sprite, entry);
+      unindexed.add(entry);
+    } else {
+      entry.order = addCount++;
+    }
+  }
+
+  /**
+   * Removes a sprite.
+   *
+   * @param sprite the sprite to remove
+   */
+  void remove(Sprite sprite) {
+    Entry entry = entries.remove(sprite);
+    if (entry != null) {
+      unplace(entry);
+    }
+  }
+
+  /**
+   * Moves a sprite to the cells of its current location and size.
+   *
+   * @param sprite the sprite that has moved or changed size
+   */
+  void update(Sprite sprite) {
+    Entry entry = entries.get(sprite);
+    if (entry != null) {
+      int[] range = cellRange(sprite.getBoundingBox(1));
+      if (entry.cells == null || !Arrays.equals(range, entry.cells)) {
+        unplace(entry);
+        place(entry, range);
+      }
+    }
+  }
+
+  /**
+   * Indicates whether a sprite has been added and not removed.
+   *
+   * @param sprite the sprite
+   */
+  boolean contains(Sprite sprite) {
+    return entries.containsKey(sprite);
+  }
+
+  /**
+   * Returns the sprites whose bounding boxes, with a border of 1 pixel, may
+   * intersect a rectangle, in the order of the canvas's sprites.
+   *
+   * @param rect the rectangle
+   */
+  List<Sprite> query(BoundingBox rect) {
+    return sorted(collect(rect, null));
+  }
+
+  /**
+   * Returns the sprites that may collide with a sprite, including those it
+   * has registered collisions with, in the order of the canvas's sprites.
+   * The sprite itself is not included.
+   *
+   * @param sprite the sprite
+   * @param collisions the sprites it has registered collisions with
+   */
+  List<Sprite> collisionCandidates(Sprite sprite, Set<Sprite> collisions) {
+    Set<Entry> found = collect(sprite.getBoundingBox(1), sprite);
+    for (Sprite other : collisions) {
+      Entry entry = entries.get(other);
+      if (entry != null && other != sprite) {
+        found.add(entry);
+      }
+    }
+    return sorted(found);
+  }
+
+  private Set<Entry> collect(BoundingBox rect, Sprite excluded) {
+    Set<Entry> found = new HashSet<Entry>();
+    int[] range = cellRange(rect);
+    if (range == null) {
+      found.addAll(entries.values());
+    } else {
+      found.addAll(unindexed);
+      for (int x = range[0]; x <= range[2]; x++) {
+        for (int y = range[1]; y <= range[3]; y++) {
+          List<Entry> cell = cells.get(key(x, y));
+          if (cell != null) {
+            found.addAll(cell);
+          }
+        }
+      }
+    }
+    if (excluded != null) {
+      found.remove(entries.get(excluded));
+    }
+    return found;
+  }
+
+  private static List<Sprite> sorted(Set<Entry> found) {
+    List<Entry> ordered = new ArrayList<Entry>(found);
+    Collections.sort(ordered, CANVAS_ORDER);
+    List<Sprite> sprites = new ArrayList<Sprite>(ordered.size());
+    for (Entry entry : ordered) {
+      sprites.add(entry.sprite);
+    }
+    return sprites;
+  }
+
+  private void place(Entry entry, int[] range) {
+    entry.cells = range;
+    if (range == null) {
+      unindexed.add(entry);
+      return;
+    }
+    for (int x = range[0]; x <= range[2]; x++) {
+      for (int y = range[1]; y <= range[3]; y++) {
+        Long key = key(x, y);
+        List<Entry> cell = cells.get(key);
+        if (cell == null) {
+          cell = new ArrayList<Entry>(2);
+          cells.put(key, cell);
+        }
+        cell.add(entry);
+      }
+    }
+  }
+
+  private void unplace(Entry entry) {
+    int[] range = entry.cells;
+    if (range == null) {
+      unindexed.remove(entry);
+      return;
+    }
+    for (int x = range[0]; x <= range[2]; x++) {
+      for (int y = range[1]; y <= range[3]; y++) {
+        Long key = key(x, y);
+        List<Entry> cell = cells.get(key);
+        if (cell != null) {
+          cell.remove(entry);
+          if (cell.isEmpty()) {
+            cells.remove(key);
+          }
+        }
+      }
+    }
+    entry.cells = null;
+  }
+
+  /**
+   * Returns the left, top, right and bottom cells a rectangle overlaps, or
+   * null if it overlaps more than {@link #MAX_CELLS} cells.
+   */
+  private static int[] cellRange(BoundingBox rect) {
+    int left = cell(rect.getLeft());
+    int top = cell(rect.getTop());
+    int right = cell(rect.getRight());
+    int bottom = cell(rect.getBottom());
+    if (right < left || bottom < top
+        || ((long) right - left + 1) * ((long) bottom - top + 1) > MAX_CELLS) {
+      // An inverted box is treated as large, to be safe
+      return null;
+    }
+    return new int[] {left, top, right, bottom};
+  }
+
+  private static int cell(double coordinate) {
+    return (int) Math.floor(coordinate / CELL_SIZE);
+  }
+
+  private static Long key(int x, int y) {
+    return ((long) x << 32) | (y & 0xffffffffL);
+  }
+}
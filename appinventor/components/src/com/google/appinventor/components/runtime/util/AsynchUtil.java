@@ -1,29 +1,115 @@
 // -*- mode: java; c-basic-offset: 2; -*-
 // Copyright 2009-2011 Google, All Rights reserved
-// Copyright 2011-2012 MIT, All rights reserved
+// Copyright 2011-2019 MIT, All rights reserved
 // Released under the Apache License, Version 2.0
 // http://www.apache.org/licenses/LICENSE-2.0
 
 package com.google.appinventor.components.runtime.util;
 
 import android.os.Handler;
+import android.util.Log;
+
+import com.google.appinventor.components.runtime.Form;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utilities for handling asynchronous calls.
  *
+ * <p>Calls run on a pool of threads owned by the active form, rather than on
+ * a new thread each, so that components that make many calls, such as a Web
+ * component polled by a Clock, reuse a few threads. When all the threads of
+ * the pool are busy, calls wait in a bounded queue; only when that is full
+ * does a call get a thread of its own. Calls that may block indefinitely, such
+ * as waiting for a Bluetooth connection, would hold a pooled thread and the
+ * calls queued behind it, so they use {@link #runOnNewThread} instead. When
+ * the form is destroyed, {@link #shutdown} drops the calls that are still
+ * queued and lets those that are running finish. Calls made while no form is
+ * active run on a pool shared by the application.
+ *
  * @author markf@google.com (Mark Friedman)
  */
 
 public class AsynchUtil {
 
+  private static final String LOG_TAG = "AsynchUtil";
+
+  // The number of threads of a pool. Idle threads stop after KEEP_ALIVE_SECONDS.
+  static final int POOL_SIZE = 8;
+  // The number of calls that may wait for a thread of a pool
+  static final int QUEUE_SIZE = 128;
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, "AsynchUtil-" + threadCount.incrementAndGet());
+    }
+  };
+
+  // The pool for calls made while no form is active, created when first needed
+  private static ExecutorService defaultExecutor;
+
+  /**
+   * Creates a pool of threads for asynchronous calls. Each form has one,
+   * which it shuts down when it is destroyed.
+   */
+  public static ExecutorService newExecutor() {
+    // The pool starts a thread for each call until it has POOL_SIZE, and then
+    // queues calls. As a ThreadPoolExecutor queues before it grows past its
+    // core threads, all of them are core threads, which stop when idle.
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+        THREAD_FACTORY);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Shuts down a pool created by {@link #newExecutor}. The calls that are
+   * running finish, since they may be writing files or sending data, but
+   * those still queued are dropped, as nothing is left to handle their
+   * results.
+   */
+  public static void shutdown(ExecutorService executor) {
+    executor.shutdown();
+    if (executor instanceof ThreadPoolExecutor) {
+      List<Runnable> dropped = new ArrayList<Runnable>();
+      ((ThreadPoolExecutor) executor).getQueue().drainTo(dropped);
+      if (!dropped.isEmpty()) {
+        Log.i(LOG_TAG, "Dropped " + dropped.size() + " queued asynchronous calls");
+      }
+    }
+  }
+
   /**
    * Make an asynchronous call in a separate thread.
    * @param call a {@link Runnable} to run in the thread.
    */
   public static void runAsynchronously(final Runnable call) {
-    Thread thread = new Thread(call);
-    thread.start();
+    execute(call);
+  }
+  /**
+   * Make an asynchronous call on a thread of its own, rather than on a pooled
+   * thread. For calls that may block indefinitely, such as waiting for a
+   * Bluetooth connection, which would otherwise keep the calls queued behind
+   * them waiting as well.
+   * @param call a {@link Runnable} to run in the thread.
+   */
+  public static void runOnNewThread(final Runnable call) {
+    THREAD_FACTORY.newThread(call).start();
   }
+
   /**
    * Make an asynchronous call in a separate thread, with a callback that's run on the current
    * Android UI thread.
@@ -46,7 +132,37 @@ public class AsynchUtil {
         }
       }
     };
-    Thread thread = new Thread(runnable);
-    thread.start();
+    execute(runnable);
+  }
+
+  private static void execute(Runnable call) {
+    Form form = Form.getActiveForm();
+    ExecutorService executor = form == null ? null : form.getBackgroundExecutor();
+    if (executor == null || executor.isShutdown()) {
+      // No form is active, or the active form was destroyed and another form
+      // has not yet dispatched an event
+      executor = getDefaultExecutor();
+    }
+    execute(executor, call);
+  }
+
+  /**
+   * Runs a call on a thread of the given pool, or on a new thread if the
+   * queue of the pool is full or the pool has been shut down.
+   */
+  static void execute(ExecutorService executor, Runnable call) {
+    try {
+      executor.execute(call);
+    } catch (RejectedExecutionException e) {
+      Log.w(LOG_TAG, "The pool cannot take a call; running it on a new thread");
+      runOnNewThread(call);
+    }
+  }
+
+  private static synchronized ExecutorService getDefaultExecutor() {
+    if (defaultExecutor == null) {
+      defaultExecutor = newExecutor();
+    }
+    return defaultExecutor;
   }
 }
@@ -22,6 +22,10 @@ public final class TimerInternal implements Runnable {
   // Indicates whether the timer is running or not
   private boolean enabled;  // set in constructor
 
+  // Indicates whether the timer is suspended, in which case it does not call
+  // the component even if it is enabled
+  private boolean suspended;
+
   // Interval between timer events in ms
   private int interval;  // set in constructor
 
@@ -80,7 +84,7 @@ public final class TimerInternal implements Runnable {
    */
   public void Interval(int interval) {
     this.interval = interval;
-    if (enabled) {
+    if (enabled && !suspended) {
       handler.removeCallbacks(this);
       handler.postDelayed(this, interval);
     }
@@ -108,20 +112,40 @@ public final class TimerInternal implements Runnable {
 
     this.enabled = enabled;
 
-    if (enabled) {
+    if (enabled && !suspended) {
       handler.postDelayed(this, interval);
     }
   }
 
+  /**
+   * Suspends or resumes the timer without changing whether it is enabled, for
+   * a component whose alarms are raised by other means for a while.
+   *
+   * @param suspended  {@code true} suspends the timer, {@code false} resumes it
+   */
+  public void setSuspended(boolean suspended) {
+    if (this.suspended == suspended) {
+      return;
+    }
+    this.suspended = suspended;
+    if (enabled) {
+      if (suspended) {
+        handler.removeCallbacks(this);
+      } else {
+        handler.postDelayed(this, interval);
+      }
+    }
+  }
+
   // Runnable implementation
 
   public void run() {
-    if (enabled) {
+    if (enabled && !suspended) {
       component.alarm();
 
       // During the call to component.alarm, the enabled field may have changed.
       // We need to make sure that enabled is still true before we call handler.postDelayed.
-      if (enabled) {
+      if (enabled && !suspended) {
         handler.postDelayed(this, interval);
       }
     }
@@ -24,11 +24,48 @@ import android.util.Log;
  * by the Kawa framework. YailList is the main list primitive used
  * by App Inventor components.
  *
+ * <p>The items of the list are the cars of the pairs in its cdr, so that Kawa
+ * and runtime.scm can use the contents as an ordinary list. To find an item
+ * without walking the pairs, the list keeps an array of them, built the first
+ * time it is needed. Items are then read, replaced and counted in constant
+ * time, and added at the end in amortized constant time. The array is kept up
+ * to date by the methods of this class; if the contents are changed some other
+ * way, it is rebuilt when it is next used, as long as the first or last pair
+ * has changed.
+ *
+ * <p>For the membership and lookup primitives, the list also keeps indexes of
+ * its items and, when it is used as a list of pairs, of the keys of the pairs
+ * (see {@link YailListIndex}). They are built the first time they are needed
+ * and dropped when the list or one of its indexed pairs is changed, except
+ * that items added at the end are added to them.
+ *
  */
 public class YailList extends Pair {
 
   private static final String LOG_TAG = "YailList";
 
+  // The pairs of the contents, in order, or null if not yet built. Only the
+  // first pairCount elements are used.
+  private transient Pair[] pairs;
+  private transient int pairCount;
+
+  // The index of the items, or null if not yet built
+  private transient YailListIndex itemIndex;
+
+  // The index of the keys of the items that are pairs, or null if not yet
+  // built, with the position of the first item that is not a pair, or -1
+  private transient YailListIndex entryIndex;
+  private transient int firstMalformedEntry;
+  // The value of entryChanges when entryIndex was built
+  private transient int entryIndexChanges;
+
+  // Whether this list is a pair in the entryIndex of a list
+  private transient boolean isIndexedEntry;
+
+  // The number of changes to lists that are pairs in the entryIndex of a list.
+  // An entryIndex built before the latest of them may be out of date.
+  private static int entryChanges;
+
   // Component writers take note!
   // If you want to pass back a list to the blocks language, the
   // straightforward way to do this is simply to pass
@@ -161,7 +198,20 @@ public class YailList extends Pair {
    */
   @Override
   public int size() {
-    return super.size() - 1;
+    index();
+    return pairCount;
+  }
+
+  /**
+   * Return the element at the given index, where the element at index 0 is
+   * the list header and the items start at index 1.
+   */
+  @Override
+  public Object get(int index) {
+    if (index == 0) {
+      return car;
+    }
+    return getPair(index - 1).getCar();
   }
 
   /**
@@ -191,4 +241,213 @@ public class YailList extends Pair {
   public Object getObject(int index) {
     return get(index + 1);
   }
+
+  /**
+   * Replace the Object at the given index.
+   */
+  public void setObject(int index, Object value) {
+    getPair(index).setCar(value);
+    changed();
+  }
+
+  /**
+   * Add an Object at the end of this YailList.
+   */
+  public void addObject(Object value) {
+    insertObject(size(), value);
+  }
+
+  /**
+   * Insert an Object at the given index, which may be the size of this
+   * YailList to add it at the end.
+   */
+  public void insertObject(int index, Object value) {
+    index();
+    if (index < 0 || index > pairCount) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + pairCount);
+    }
+    Pair pair = new Pair(value, index < pairCount ? pairs[index] : LList.Empty);
+    if (index == 0) {
+      cdr = pair;
+    } else {
+      pairs[index - 1].setCdr(pair);
+    }
+    if (pairCount == pairs.length) {
+      Pair[] newPairs = new Pair[pairs.length * 2];
+      System.arraycopy(pairs, 0, newPairs, 0, pairCount);
+      pairs = newPairs;
+    }
+    System.arraycopy(pairs, index, pairs, index + 1, pairCount - index);
+    pairs[index] = pair;
+    pairCount++;
+    if (index == pairCount - 1) {
+      added(index, value);
+    } else {
+      changed();
+    }
+  }
+
+  /**
+   * Remove the Object at the given index.
+   */
+  public void removeObject(int index) {
+    Pair pair = getPair(index);
+    if (index == 0) {
+      cdr = pair.getCdr();
+    } else {
+      pairs[index - 1].setCdr(pair.getCdr());
+    }
+    System.arraycopy(pairs, index + 1, pairs, index, pairCount - index - 1);
+    pairs[--pairCount] = null;
+    changed();
+  }
+
+  /**
+   * Add the Objects of another YailList at the end of this one. The Objects
+   * themselves are not copied.
+   */
+  public void appendList(YailList other) {
+    // other may be this list, so only the Objects it has now are added
+    int size = other.size();
+    for (int i = 0; i < size; i++) {
+      addObject(other.getObject(i));
+    }
+  }
+
+  /**
+   * Return the index of the first Object that may be yail-equal? to the given
+   * one, or -1 if there is none.
+   */
+  public int findCandidate(Object object) {
+    return getItemIndex().first(object);
+  }
+
+  /**
+   * Return the index after the given one of an Object that may be
+   * yail-equal? to the one at that index, or -1 if there is none.
+   */
+  public int nextFindCandidate(int index) {
+    return getItemIndex().next(index);
+  }
+
+  /**
+   * Return the index of the first pair, in this YailList of pairs, whose key
+   * may be yail-equal? to the given one, or -1 if there is none. A pair is a
+   * YailList of two Objects, a key and a value.
+   */
+  public int lookupCandidate(Object key) {
+    return getEntryIndex().first(key);
+  }
+
+  /**
+   * Return the index after the given one of a pair, in this YailList of
+   * pairs, whose key may be yail-equal? to the key of the one at that index,
+   * or -1 if there is none.
+   */
+  public int nextLookupCandidate(int index) {
+    return getEntryIndex().next(index);
+  }
+
+  /**
+   * Return the index of the first Object in this YailList of pairs that is not
+   * a pair, or -1 if there is none.
+   */
+  public int getFirstMalformedEntry() {
+    getEntryIndex();
+    return firstMalformedEntry;
+  }
+
+  private YailListIndex getItemIndex() {
+    index();
+    if (itemIndex == null) {
+      itemIndex = new YailListIndex(pairCount);
+      for (int i = 0; i < pairCount; i++) {
+        itemIndex.add(i, pairs[i].getCar());
+      }
+    }
+    return itemIndex;
+  }
+
+  private YailListIndex getEntryIndex() {
+    index();
+    if (entryIndex == null || entryIndexChanges != entryChanges) {
+      entryIndex = new YailListIndex(pairCount);
+      firstMalformedEntry = -1;
+      for (int i = 0; i < pairCount; i++) {
+        addEntry(i, pairs[i].getCar());
+      }
+      entryIndexChanges = entryChanges;
+    }
+    return entryIndex;
+  }
+
+  private void addEntry(int index, Object item) {
+    if (item instanceof YailList && ((YailList) item).size() == 2) {
+      YailList entry = (YailList) item;
+      entry.isIndexedEntry = true;
+      entryIndex.add(index, entry.getObject(0));
+    } else if (firstMalformedEntry < 0) {
+      firstMalformedEntry = index;
+    }
+  }
+
+  /*
+   * Updates the indexes after an Object was added at the end.
+   */
+  private void added(int index, Object value) {
+    if (isIndexedEntry) {
+      entryChanges++;
+    }
+    if (itemIndex != null) {
+      itemIndex.add(index, value);
+    }
+    if (entryIndex != null) {
+      addEntry(index, value);
+    }
+  }
+
+  /*
+   * Drops the indexes after a change other than adding an Object at the end.
+   */
+  private void changed() {
+    if (isIndexedEntry) {
+      entryChanges++;
+    }
+    itemIndex = null;
+    entryIndex = null;
+  }
+
+  private Pair getPair(int index) {
+    index();
+    if (index < 0 || index >= pairCount) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + pairCount);
+    }
+    return pairs[index];
+  }
+
+  /*
+   * Builds the array of pairs, unless it is up to date.
+   */
+  private void index() {
+    if (pairs != null && (pairCount == 0
+        ? cdr == LList.Empty
+        : cdr == pairs[0] && pairs[pairCount - 1].getCdr() == LList.Empty)) {
+      return;
+    }
+    if (pairs != null) {
+      changed();
+    }
+    Pair[] newPairs = new Pair[8];
+    int count = 0;
+    for (Object rest = cdr; rest instanceof Pair; rest = ((Pair) rest).getCdr()) {
+      if (count == newPairs.length) {
+        Pair[] grown = new Pair[newPairs.length * 2];
+        System.arraycopy(newPairs, 0, grown, 0, count);
+        newPairs = grown;
+      }
+      newPairs[count++] = (Pair) rest;
+    }
+    pairs = newPairs;
+    pairCount = count;
+  }
 }
@@ -0,0 +1,109 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.kawa.lispexpr.LispReader;
+import gnu.lists.Pair;
+import gnu.math.Numeric;
+import gnu.math.RealNum;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An index of objects by their position in a {@link YailList}, used to find
+ * the objects that may be equal to another without comparing it to each one.
+ *
+ * <p>Objects are indexed by a hash that is consistent with yail-equal? in
+ * runtime.scm: objects that are yail-equal? have the same hash. In particular
+ * a string that can be read as a number has the hash of that number. The
+ * positions of the objects with the same hash are chained in increasing
+ * order, so that the first of the equal objects is found first; the caller
+ * still compares each of them with yail-equal?.
+ *
+ * <p>Lists are not hashed, since they can be changed after they are indexed.
+ * They are chained together, and a list is compared to each of them.
+ */
+final class YailListIndex {
+
+  // The first and last positions of each chain, by hash. Lists are chained under null.
+  private final Map<Integer, int[]> chains = new HashMap<Integer, int[]>();
+
+  // The next position in the chain of each position, or -1 at the end of a
+  // chain or if nothing was added at the position
+  private int[] next;
+
+  YailListIndex(int capacity) {
+    next = new int[Math.max(capacity, 8)];
+    Arrays.fill(next, -1);
+  }
+
+  /**
+   * Adds an object at a position after all of the positions added so far.
+   */
+  void add(int position, Object object) {
+    if (position >= next.length) {
+      int[] grown = new int[Math.max(next.length * 2, position + 1)];
+      Arrays.fill(grown, next.length, grown.length, -1);
+      System.arraycopy(next, 0, grown, 0, next.length);
+      next = grown;
+    }
+    Integer hash = hash(object);
+    int[] chain = chains.get(hash);
+    if (chain == null) {
+      chains.put(hash, new int[] {position, position});
+    } else {
+      next[chain[1]] = position;
+      chain[1] = position;
+    }
+  }
+
+  /**
+   * Returns the first position of an object that may be yail-equal? to the
+   * given one, or -1 if there is none.
+   */
+  int first(Object object) {
+    int[] chain = chains.get(hash(object));
+    return chain == null ? -1 : chain[0];
+  }
+
+  /**
+   * Returns the position after the given one of an object that may be
+   * yail-equal? to the object at that position, or -1 if there is none.
+   */
+  int next(int position) {
+    return next[position];
+  }
+
+  /**
+   * Returns the hash of an object, or null if it is a list.
+   */
+  static Integer hash(Object object) {
+    if (object instanceof Pair) {
+      return null;
+    }
+    Object number = object;
+    if (object instanceof CharSequence) {
+      // As in padded-string->number
+      String string = object.toString();
+      number = LispReader.parseNumber(string.trim(), 10);
+      if (!(number instanceof Numeric)) {
+        return string.hashCode();
+      }
+    }
+    if (number instanceof Number) {
+      if (number instanceof Numeric && !(number instanceof RealNum)) {
+        // A complex number, only equal to another with the same parts
+        return 0;
+      }
+      double value = ((Number) number).doubleValue();
+      // Numbers that are = have the same value, and 0.0 and -0.0 are =
+      return value == 0 ? 0 : Double.valueOf(value).hashCode();
+    }
+    return object == null ? 0 : object.hashCode();
+  }
+}
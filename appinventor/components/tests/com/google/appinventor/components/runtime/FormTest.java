@@ -9,11 +9,19 @@ import com.google.appinventor.components.runtime.test.TestExtension;
 import com.google.appinventor.components.runtime.util.IOUtils;
 import org.junit.Test;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests for the Form component.
@@ -58,6 +66,72 @@ public class FormTest extends RobolectricTestBase {
     }
   }
 
+  /**
+   * Tests that an asynchronous write that is running when the form is
+   * destroyed still finishes, rather than being interrupted, and that calls
+   * still waiting for a thread are dropped.
+   */
+  @Test
+  public void testDestroyFinishesRunningWriteAndDropsQueuedCalls() throws Exception {
+    final java.io.File target = new java.io.File(getForm().getFilesDir(), TARGET_FILE);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    ThreadPoolExecutor executor = (ThreadPoolExecutor) getForm().getBackgroundExecutor();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        FileOutputStream out = null;
+        try {
+          release.await();
+          out = new FileOutputStream(target);
+          out.write("saved".getBytes("UTF-8"));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        } finally {
+          IOUtils.closeQuietly("test", out);
+        }
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    // Keep the other threads busy too, so that the next call is queued
+    for (int i = 1; i < executor.getCorePoolSize(); i++) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+    final AtomicBoolean queuedRan = new AtomicBoolean();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        queuedRan.set(true);
+      }
+    });
+    assertEquals(1, executor.getQueue().size());
+
+    getForm().onDestroy();
+    assertTrue(executor.isShutdown());
+    assertTrue(executor.getQueue().isEmpty());
+    release.countDown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    assertFalse(queuedRan.get());
+    InputStream is = new FileInputStream(target);
+    try {
+      assertEquals("saved", readStream(is));
+    } finally {
+      IOUtils.closeQuietly("test", is);
+    }
+  }
+
   /// Helper functions
 
   /**
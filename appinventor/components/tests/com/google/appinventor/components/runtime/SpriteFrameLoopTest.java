@@ -0,0 +1,190 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.Scheduler.IdleState;
+
+/**
+ * Tests SpriteFrameLoop.java.
+ *
+ */
+public class SpriteFrameLoopTest extends RobolectricTestBase {
+  private static final int CANVAS_SIZE = 320;
+  private static final double DELTA = .0001;  // for floating-point comparisons
+
+  /**
+   * A sprite that records the events it raises, in order, in a shared list.
+   */
+  private static class RecordingSprite extends Sprite {
+    private final String name;
+    private final List<String> events;
+    private final int size;
+
+    RecordingSprite(Canvas canvas, String name, List<String> events, int size) {
+      super(canvas, new Handler());
+      this.name = name;
+      this.events = events;
+      this.size = size;
+    }
+
+    @Override
+    public int Width() {
+      return size;
+    }
+
+    @Override
+    public void Width(int width) {
+    }
+
+    @Override
+    public int Height() {
+      return size;
+    }
+
+    @Override
+    public void Height(int height) {
+    }
+
+    @Override
+    public void WidthPercent(int wPercent) {
+    }
+
+    @Override
+    public void HeightPercent(int hPercent) {
+    }
+
+    @Override
+    public void onDraw(android.graphics.Canvas canvas) {
+    }
+
+    // The canvas is not laid out in these tests, so use a fixed size.
+    @Override
+    protected int hitEdge() {
+      return hitEdge(CANVAS_SIZE, CANVAS_SIZE);
+    }
+
+    @Override
+    public void MoveIntoBounds() {
+      moveIntoBounds(CANVAS_SIZE, CANVAS_SIZE);
+    }
+
+    @Override
+    protected void postEvent(Sprite sprite, String eventName, Object... args) {
+      events.add(name + "." + eventName + Arrays.toString(args));
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private final List<String> events = new ArrayList<String>();
+  private Canvas canvas;
+  private SpriteFrameLoop frameLoop;
+
+  @Before
+  public void setUpCanvas() {
+    // Frames are run by the tests, not by the scheduler.
+    ShadowLooper.getShadowMainLooper().getScheduler().setIdleState(IdleState.PAUSED);
+    canvas = new Canvas(getForm());
+    canvas.FrameSynchronizedSprites(true);
+    frameLoop = canvas.getFrameLoop();
+  }
+
+  private RecordingSprite createSprite(String name, int x, int y, double heading, float speed) {
+    RecordingSprite sprite = new RecordingSprite(canvas, name, events, 10);
+    sprite.MoveTo(x, y);
+    sprite.Heading(heading);
+    sprite.Speed(speed);
+    sprite.Interval(50);
+    sprite.Initialize();
+    return sprite;
+  }
+
+  @Test
+  public void testMovesEveryInterval() {
+    RecordingSprite sprite = createSprite("A", 10, 10, 0, 5);
+    assertTrue(frameLoop.isRunning());
+
+    // The first frame starts the interval
+    assertTrue(frameLoop.doFrame(1000));
+    assertEquals(10, sprite.X(), DELTA);
+    assertTrue(frameLoop.doFrame(1016));
+    assertEquals(10, sprite.X(), DELTA);
+    assertTrue(frameLoop.doFrame(1050));
+    assertEquals(15, sprite.X(), DELTA);
+    // Two intervals have passed since the last move
+    assertTrue(frameLoop.doFrame(1150));
+    assertEquals(25, sprite.X(), DELTA);
+    // After a long pause, the sprite moves only once
+    assertTrue(frameLoop.doFrame(10000));
+    assertEquals(30, sprite.X(), DELTA);
+    assertTrue(events.isEmpty());
+  }
+
+  @Test
+  public void testStopsWhenNoSpriteMoves() {
+    RecordingSprite sprite = createSprite("A", 10, 10, 0, 5);
+    assertTrue(frameLoop.doFrame(1000));
+    sprite.Enabled(false);
+    assertFalse(frameLoop.doFrame(1050));
+    assertEquals(10, sprite.X(), DELTA);
+
+    sprite.Enabled(true);
+    sprite.Speed(0);
+    assertFalse(frameLoop.doFrame(1100));
+    assertEquals(10, sprite.X(), DELTA);
+  }
+
+  @Test
+  public void testCollisionAfterAllSpritesMove() {
+    // A and B move toward each other and only overlap once both have moved
+    RecordingSprite a = createSprite("A", 100, 100, 0, 10);
+    RecordingSprite b = createSprite("B", 125, 100, 180, 10);
+    frameLoop.doFrame(1000);
+    frameLoop.doFrame(1050);
+    assertEquals(110, a.X(), DELTA);
+    assertEquals(115, b.X(), DELTA);
+    assertEquals(Arrays.asList("A.CollidedWith[B]", "B.CollidedWith[A]"), events);
+
+    events.clear();
+    a.Heading(180);
+    b.Heading(0);
+    frameLoop.doFrame(1100);
+    assertEquals(Arrays.asList("A.NoLongerCollidingWith[B]", "B.NoLongerCollidingWith[A]"),
+        events);
+  }
+
+  @Test
+  public void testEdgesBeforeCollisions() {
+    // C is in front of the others but reaches the east edge in the same frame
+    // in which A and B collide
+    RecordingSprite a = createSprite("A", 100, 100, 0, 10);
+    RecordingSprite b = createSprite("B", 125, 100, 180, 10);
+    RecordingSprite c = createSprite("C", CANVAS_SIZE - 15, 200, 0, 10);
+    c.Z(2);
+    a.Z(0);
+    frameLoop.doFrame(1000);
+    frameLoop.doFrame(1050);
+    assertEquals(CANVAS_SIZE - 10, c.X(), DELTA);
+    assertEquals(Arrays.asList("C.EdgeReached[" + Component.DIRECTION_EAST + "]",
+        "A.CollidedWith[B]", "B.CollidedWith[A]"), events);
+  }
+}
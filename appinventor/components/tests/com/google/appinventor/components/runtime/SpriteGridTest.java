@@ -0,0 +1,135 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.view.View;
+
+import com.google.appinventor.components.runtime.SpriteTest.TestSprite;
+import com.google.appinventor.components.runtime.util.BoundingBox;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.easymock.PowerMock;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Tests SpriteGrid.java.
+ *
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Canvas.class, Handler.class, Form.class, View.class })
+public class SpriteGridTest {
+  private final Form formMock = PowerMock.createNiceMock(Form.class);
+  private final View canvasViewMock = PowerMock.createNiceMock(View.class);
+  private final Canvas canvasMock = PowerMock.createNiceMock(Canvas.class);
+  private final Handler handlerMock = PowerMock.createNiceMock(Handler.class);
+
+  private SpriteGrid grid;
+
+  @Before
+  public void setUp() throws Exception {
+    EasyMock.expect(canvasMock.getView()).andReturn(canvasViewMock).anyTimes();
+    EasyMock.expect(canvasMock.$form()).andReturn(formMock).anyTimes();
+    EasyMock.replay(canvasViewMock, canvasMock, handlerMock);
+    grid = new SpriteGrid();
+  }
+
+  private TestSprite addSprite(int x, int y, int width, int height) {
+    TestSprite sprite = TestSprite.createTestSprite(canvasMock, handlerMock, height, width);
+    sprite.MoveTo(x, y);
+    grid.add(sprite);
+    grid.update(sprite);
+    return sprite;
+  }
+
+  private static BoundingBox finger(int x, int y) {
+    return new BoundingBox(x - 5, y - 5, x + 5, y + 5);
+  }
+
+  @Test
+  public void testQueryFindsNearbySprites() {
+    TestSprite near = addSprite(10, 10, 20, 20);
+    TestSprite far = addSprite(500, 500, 20, 20);
+    assertEquals(Collections.singletonList(near), grid.query(finger(15, 15)));
+    assertEquals(Collections.singletonList(far), grid.query(finger(510, 510)));
+    assertTrue(grid.query(finger(300, 300)).isEmpty());
+  }
+
+  @Test
+  public void testUpdateMovesSprite() {
+    TestSprite sprite = addSprite(10, 10, 20, 20);
+    sprite.MoveTo(400, 10);
+    grid.update(sprite);
+    assertTrue(grid.query(finger(15, 15)).isEmpty());
+    assertEquals(Collections.singletonList(sprite), grid.query(finger(410, 15)));
+  }
+
+  @Test
+  public void testSpriteOverlappingCells() {
+    // Spans the corner of four cells
+    int corner = SpriteGrid.CELL_SIZE;
+    TestSprite sprite = addSprite(corner - 10, corner - 10, 20, 20);
+    assertEquals(Collections.singletonList(sprite), grid.query(finger(corner - 8, corner - 8)));
+    assertEquals(Collections.singletonList(sprite), grid.query(finger(corner + 8, corner - 8)));
+    assertEquals(Collections.singletonList(sprite), grid.query(finger(corner - 8, corner + 8)));
+    assertEquals(Collections.singletonList(sprite), grid.query(finger(corner + 8, corner + 8)));
+  }
+
+  @Test
+  public void testLargeAndUnindexedSpritesAlwaysFound() {
+    TestSprite large = addSprite(0, 0, SpriteGrid.CELL_SIZE * 20, SpriteGrid.CELL_SIZE * 20);
+    TestSprite unindexed = TestSprite.createTestSprite(canvasMock, handlerMock, 10, 10);
+    grid.add(unindexed);
+    assertEquals(Arrays.asList(large, unindexed), grid.query(finger(5000, 5000)));
+  }
+
+  @Test
+  public void testQueryKeepsCanvasOrder() {
+    TestSprite first = addSprite(10, 10, 20, 20);
+    TestSprite second = addSprite(12, 12, 20, 20);
+    TestSprite third = addSprite(14, 14, 20, 20);
+    assertEquals(Arrays.asList(first, second, third), grid.query(finger(20, 20)));
+
+    // Changing the layer of a sprite moves it after the sprites with the same Z
+    grid.add(first);
+    assertEquals(Arrays.asList(second, third, first), grid.query(finger(20, 20)));
+
+    third.Z(-1);
+    grid.add(third);
+    assertEquals(Arrays.asList(third, second, first), grid.query(finger(20, 20)));
+  }
+
+  @Test
+  public void testCollisionCandidates() {
+    TestSprite moved = addSprite(10, 10, 20, 20);
+    TestSprite abutting = addSprite(30, 10, 20, 20);
+    TestSprite former = addSprite(300, 300, 20, 20);
+    TestSprite removed = addSprite(12, 12, 20, 20);
+    grid.remove(removed);
+    assertFalse(grid.contains(removed));
+
+    assertEquals(Collections.singletonList(abutting),
+        grid.collisionCandidates(moved, Collections.<Sprite>emptySet()));
+    // A sprite it was colliding with is checked wherever it is
+    assertEquals(Arrays.asList(abutting, former),
+        grid.collisionCandidates(moved, Collections.<Sprite>singleton(former)));
+    assertTrue(grid.collisionCandidates(moved, Collections.<Sprite>singleton(removed))
+        .contains(abutting));
+    assertFalse(grid.collisionCandidates(moved, Collections.<Sprite>singleton(removed))
+        .contains(removed));
+  }
+}
@@ -37,6 +37,11 @@ public class ShadowAsynchUtil {
     runnables.add(call);
   }
 
+  @Implementation
+  public static void runOnNewThread(final Runnable call) {
+    runnables.add(call);
+  }
+
   @Implementation
   public static void runAsynchronously(final Handler androidUIHandler,
                                        final Runnable call,
@@ -0,0 +1,169 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link AsynchUtil}.
+ *
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest="tests/AndroidManifest.xml")
+public class AsynchUtilTest {
+
+  private static final long TIMEOUT_SECONDS = 5;
+
+  private ExecutorService executor;
+  private CountDownLatch release;
+
+  @Before
+  public void setUp() {
+    executor = AsynchUtil.newExecutor();
+    release = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    executor.shutdown();
+  }
+
+  /*
+   * Returns a call that counts down started, then blocks until the test ends.
+   */
+  private Runnable blockingCall(final CountDownLatch started) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+  }
+
+  /*
+   * Blocks every thread of the pool until the test ends.
+   */
+  private void fillPool() throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(AsynchUtil.POOL_SIZE);
+    for (int i = 0; i < AsynchUtil.POOL_SIZE; i++) {
+      AsynchUtil.execute(executor, blockingCall(started));
+    }
+    assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Tests that a call made while every thread of the pool is busy waits for
+   * one, rather than starting a thread of its own.
+   */
+  @Test
+  public void testSaturatedPoolQueuesCall() throws InterruptedException {
+    fillPool();
+    CountDownLatch started = new CountDownLatch(1);
+    AsynchUtil.execute(executor, blockingCall(started));
+    assertFalse(started.await(100, TimeUnit.MILLISECONDS));
+    release.countDown();
+    assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Tests that a call runs on a thread of its own when the queue of the pool
+   * is full.
+   */
+  @Test
+  public void testFullQueueRunsCallOnNewThread() throws InterruptedException {
+    fillPool();
+    CountDownLatch queued = new CountDownLatch(AsynchUtil.QUEUE_SIZE);
+    for (int i = 0; i < AsynchUtil.QUEUE_SIZE; i++) {
+      AsynchUtil.execute(executor, blockingCall(queued));
+    }
+    CountDownLatch started = new CountDownLatch(1);
+    AsynchUtil.execute(executor, blockingCall(started));
+    assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(AsynchUtil.QUEUE_SIZE, queued.getCount());
+  }
+
+  /**
+   * Tests that shutting a pool down drops the calls still queued and lets
+   * the running ones finish.
+   */
+  @Test
+  public void testShutdownDropsQueuedCalls() throws InterruptedException {
+    fillPool();
+    CountDownLatch queuedStarted = new CountDownLatch(1);
+    AsynchUtil.execute(executor, blockingCall(queuedStarted));
+    AsynchUtil.shutdown(executor);
+    release.countDown();
+    assertTrue(executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(1, queuedStarted.getCount());
+  }
+
+  /**
+   * Tests that a call made with runOnNewThread runs while every thread of the
+   * pool is busy.
+   */
+  @Test
+  public void testRunOnNewThreadBypassesPool() throws InterruptedException {
+    fillPool();
+    CountDownLatch started = new CountDownLatch(1);
+    AsynchUtil.runOnNewThread(blockingCall(started));
+    assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Tests that a call still runs when the pool has been shut down, as when
+   * it is made while its form is being destroyed.
+   */
+  @Test
+  public void testShutDownPoolRunsCallOnNewThread() throws InterruptedException {
+    executor.shutdown();
+    CountDownLatch started = new CountDownLatch(1);
+    AsynchUtil.execute(executor, blockingCall(started));
+    assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Tests that calls made one after the other reuse the threads of the pool,
+   * rather than each starting a thread.
+   */
+  @Test
+  public void testThreadsReused() throws InterruptedException {
+    final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+    for (int i = 0; i < 3 * AsynchUtil.POOL_SIZE; i++) {
+      final CountDownLatch done = new CountDownLatch(1);
+      AsynchUtil.execute(executor, new Runnable() {
+        @Override
+        public void run() {
+          threads.add(Thread.currentThread());
+          done.countDown();
+        }
+      });
+      assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+    assertTrue(threads.size() <= AsynchUtil.POOL_SIZE);
+  }
+}
@@ -91,6 +91,17 @@ public class GeoJSONUtilTest extends MapTestBase {
     fail();
   }
 
+  @Test
+  public void testSwapCoordinatesUpdatesIndex() {
+    YailList point = YailList.makeList(new Object[] {1.0, 2.0});
+    YailList points = YailList.makeList(new Object[] {point});
+    assertEquals(1, point.findCandidate(2.0));
+    GeoJSONUtil.swapCoordinates(points);
+    assertEquals(2.0, point.getObject(0));
+    assertEquals(0, point.findCandidate(2.0));
+    assertEquals(1, point.findCandidate(1.0));
+  }
+
   @Test
   public void testCharToHexNum() {
     assertEquals(0, GeoJSONUtil.charToHex('0'));
@@ -0,0 +1,57 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2019 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.lists.FString;
+import gnu.math.DFloNum;
+import gnu.math.IntNum;
+import gnu.math.RatNum;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests YailListIndex class.
+ *
+ */
+public class YailListIndexTest extends TestCase {
+
+  public void testNumbersHashLikeTheirValues() {
+    Integer hash = YailListIndex.hash(IntNum.make(2));
+    assertEquals(hash, YailListIndex.hash(new DFloNum(2.0)));
+    assertEquals(hash, YailListIndex.hash(2));
+    assertEquals(hash, YailListIndex.hash(2L));
+    assertEquals(hash, YailListIndex.hash("2"));
+    assertEquals(hash, YailListIndex.hash(" 02.0 "));
+    assertEquals(hash, YailListIndex.hash(new FString("2")));
+    assertEquals(YailListIndex.hash(RatNum.make(IntNum.make(1), IntNum.make(2))),
+        YailListIndex.hash("0.5"));
+    assertEquals(YailListIndex.hash(0.0), YailListIndex.hash(-0.0));
+  }
+
+  public void testStringsHashLikeTheirCharacters() {
+    assertEquals(YailListIndex.hash("abc"), YailListIndex.hash(new FString("abc")));
+  }
+
+  public void testListsAreNotHashed() {
+    assertNull(YailListIndex.hash(YailList.makeList(new Object[] {1, 2})));
+  }
+
+  public void testChainsAreInOrder() {
+    YailListIndex index = new YailListIndex(2);
+    index.add(0, "a");
+    index.add(1, 1);
+    index.add(3, "1.0");
+    index.add(20, 1);
+    assertEquals(1, index.first("1"));
+    assertEquals(3, index.next(1));
+    assertEquals(20, index.next(3));
+    assertEquals(-1, index.next(20));
+    assertEquals(0, index.first("a"));
+    assertEquals(-1, index.next(0));
+    assertEquals(-1, index.next(2));
+    assertEquals(-1, index.first("b"));
+  }
+}
@@ -7,6 +7,8 @@
 package com.google.appinventor.components.runtime.util;
 
 import gnu.lists.FString;
+import gnu.lists.LList;
+import gnu.lists.Pair;
 import gnu.math.IntNum;
 
 import junit.framework.TestCase;
@@ -212,4 +214,94 @@ public class YailListTest extends TestCase {
     assertEquals(Long.toString(Long.MAX_VALUE), strings[0]);
     assertEquals(Long.toString(Long.MAX_VALUE), strings[1]);
   }
+
+  public void testAddObject() {
+    YailList yailList = new YailList();
+    for (int i = 0; i < 100; i++) {
+      yailList.addObject(i);
+    }
+    assertEquals(100, yailList.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, yailList.getObject(i));
+    }
+    // The contents are still a list
+    assertEquals(100, LList.length(yailList.getCdr()));
+    assertEquals(99, ((Pair) LList.listTail(yailList.getCdr(), 99)).getCar());
+  }
+
+  public void testSetObject() {
+    YailList yailList = YailList.makeList(new Object[] {"a", "b", "c"});
+    yailList.setObject(1, "x");
+    assertEquals("(a x c)", yailList.toString());
+    try {
+      yailList.setObject(3, "y");
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // this is the intended behavior
+    }
+  }
+
+  public void testInsertAndRemoveObject() {
+    YailList yailList = YailList.makeList(new Object[] {"b", "d"});
+    yailList.insertObject(0, "a");
+    yailList.insertObject(2, "c");
+    yailList.insertObject(4, "e");
+    assertEquals("(a b c d e)", yailList.toString());
+    assertEquals(5, yailList.size());
+    yailList.removeObject(0);
+    yailList.removeObject(3);
+    yailList.removeObject(1);
+    assertEquals("(b d)", yailList.toString());
+    assertEquals(2, yailList.size());
+    assertEquals("d", yailList.getObject(1));
+    yailList.removeObject(0);
+    yailList.removeObject(0);
+    assertEquals(0, yailList.size());
+    assertSame(LList.Empty, yailList.getCdr());
+  }
+
+  public void testAppendList() {
+    YailList yailList = YailList.makeList(new Object[] {"a", "b"});
+    yailList.appendList(YailList.makeList(new Object[] {"c"}));
+    yailList.appendList(yailList);
+    assertEquals("(a b c a b c)", yailList.toString());
+    assertEquals(6, yailList.size());
+  }
+
+  public void testContentsChangedOutsideList() {
+    YailList yailList = YailList.makeList(new Object[] {"a", "b"});
+    assertEquals(2, yailList.size());
+    ((Pair) ((Pair) yailList.getCdr()).getCdr()).setCdr(LList.list1("c"));
+    assertEquals(3, yailList.size());
+    assertEquals("c", yailList.getObject(2));
+    yailList.setCdr(LList.list1("d"));
+    assertEquals(1, yailList.size());
+    assertEquals("d", yailList.getObject(0));
+  }
+
+  public void testFindCandidate() {
+    YailList yailList = YailList.makeList(new Object[] {"a", IntNum.make(2), "b", " 2.0 "});
+    assertEquals(1, yailList.findCandidate("2"));
+    assertEquals(3, yailList.nextFindCandidate(1));
+    assertEquals(-1, yailList.nextFindCandidate(3));
+    assertEquals(-1, yailList.findCandidate("c"));
+    yailList.addObject("c");
+    assertEquals(4, yailList.findCandidate("c"));
+    yailList.setObject(0, "c");
+    assertEquals(0, yailList.findCandidate("c"));
+  }
+
+  public void testLookupCandidate() {
+    YailList pairs = YailList.makeList(new Object[] {
+        YailList.makeList(new Object[] {"one", 1}),
+        YailList.makeList(new Object[] {"two", 2})});
+    assertEquals(1, pairs.lookupCandidate("two"));
+    assertEquals(-1, pairs.getFirstMalformedEntry());
+    // Changing a pair changes the index of the list of pairs
+    ((YailList) pairs.getObject(0)).setObject(0, "two");
+    assertEquals(0, pairs.lookupCandidate("two"));
+    assertEquals(1, pairs.nextLookupCandidate(0));
+    pairs.addObject("three");
+    assertEquals(2, pairs.getFirstMalformedEntry());
+  }
 }